@@ -852,6 +852,8 @@ public class GenomeAnalysisEngine {
         }
 
         RMDTrackBuilder builder = new RMDTrackBuilder(sequenceDictionary,genomeLocParser, header, validationExclusionType);
+        builder.setNumVCFDecodingThreads(getArguments().numberOfVCFDecodingThreads);
+        builder.setMemoryMapBCF2(getArguments().memoryMapBCF2);
 
         List<ReferenceOrderedDataSource> dataSources = new ArrayList<ReferenceOrderedDataSource>();
         for (RMDTriplet fileDescriptor : referenceMetaDataFiles)
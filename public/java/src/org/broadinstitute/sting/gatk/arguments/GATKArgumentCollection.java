@@ -267,6 +267,29 @@ public class GATKArgumentCollection {
     @Hidden
     public Integer numberOfIOThreads = null;
 
+    /**
+     * When greater than one, VCF files that are read from start to finish (such as the variants of a RodWalker run
+     * without intervals) are decoded ahead of the traversal on this many worker threads.  Records are still delivered
+     * to the walker in file order.  Works for both plain text and block-gzipped VCFs.
+     */
+    @Argument(fullName = "num_vcf_decoding_threads", shortName = "nvdt", doc="How many threads should be used to decode VCF files read from start to finish", required = false)
+    public int numberOfVCFDecodingThreads = 1;
+
+    /**
+     * When enabled, uncompressed BCF2 files that are read from start to finish are decoded straight out of the
+     * memory-mapped file, mapping windows of about 256 MB at a time, instead of through a buffered stream.  This
+     * uses a lot of virtual address space, so it is off by default.
+     */
+    @Argument(fullName = "memory_map_bcf2", shortName = "mmbcf2", doc="Decode BCF2 files read from start to finish from memory-mapped windows of the file", required = false)
+    public boolean memoryMapBCF2 = false;
+
+    /**
+     * When writing BCF2, the genotype fields of records with many samples are encoded on this many threads.  The
+     * output is identical to that of a single encoding thread.
+     */
+    @Argument(fullName = "num_bcf2_encoding_threads", shortName = "nbet", doc="How many threads should be used to encode the genotypes of BCF2 output records", required = false)
+    public int numberOfBCF2EncodingThreads = 1;
+
     @Argument(fullName = "num_bam_file_handles", shortName = "bfh", doc="The total number of BAM file handles to keep open simultaneously", required=false)
     public Integer numberOfBAMFileHandles = null;
 
@@ -38,6 +38,7 @@ import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -153,6 +154,17 @@ public class ReferenceOrderedDataSource {
         return (name.equals(fileDescriptor.getName()) && (type.getClass().isAssignableFrom(getType().getClass())));
     }
 
+    /**
+     * Only decode the genotypes of the given samples from this data source, if its codec supports it.
+     * Streamed data sources are read once up front, so this has no effect on them.
+     *
+     * @param samples the samples whose genotypes we want, or null to decode all of them
+     */
+    public void setSamplesToDecode( final Collection<String> samples ) {
+        if ( iteratorPool instanceof ReferenceOrderedQueryDataPool )
+            ((ReferenceOrderedQueryDataPool)iteratorPool).setSamplesToDecode(samples);
+    }
+
     /**
      * Seek to the specified position and return an iterator through the data.
      *
@@ -196,6 +208,11 @@ class ReferenceOrderedQueryDataPool extends ResourcePool<RMDTrack,LocationAwareS
      */
     private final SAMSequenceDictionary sequenceDictionary;
 
+    /**
+     * If not null, the only samples whose genotypes are decoded from our tracks.
+     */
+    private volatile Collection<String> samplesToDecode = null;
+
     public ReferenceOrderedQueryDataPool(RMDTriplet fileDescriptor, RMDTrackBuilder builder, SAMSequenceDictionary referenceSequenceDictionary, GenomeLocParser genomeLocParser) {
         super(referenceSequenceDictionary,genomeLocParser);
         this.fileDescriptor = fileDescriptor;
@@ -218,6 +235,10 @@ class ReferenceOrderedQueryDataPool extends ResourcePool<RMDTrack,LocationAwareS
         return sequenceDictionary;
     }
 
+    public void setSamplesToDecode(final Collection<String> samples) {
+        this.samplesToDecode = samples;
+    }
+
     @Override
     protected RMDTrack createNewResource() {
         return builder.createInstanceOfTrack(fileDescriptor);
@@ -232,6 +253,7 @@ class ReferenceOrderedQueryDataPool extends ResourcePool<RMDTrack,LocationAwareS
 
     @Override
     protected LocationAwareSeekableRODIterator createIteratorFromResource(DataStreamSegment position, RMDTrack track) {
+        track.setSamplesToDecode(samplesToDecode);
         try {
             if (position instanceof MappedStreamSegment) {
                 GenomeLoc pos = ((MappedStreamSegment) position).locus;
@@ -74,8 +74,8 @@ public class VariantContextWriterStorage implements Storage<VariantContextWriter
         else if ( stub.getOutputStream() != null ) {
             this.file = null;
             this.stream = stub.getOutputStream();
-            writer = VariantContextWriterFactory.create(stream,
-                    stub.getMasterSequenceDictionary(), stub.getWriterOptions(false));
+            writer = VariantContextWriterFactory.create(null, stream,
+                    stub.getMasterSequenceDictionary(), stub.getWriterOptions(false), stub.getNumBCF2EncodingThreads());
         }
         else
             throw new ReviewedStingException("Unable to create target to which to write; storage was provided with neither a file nor a stream.");
@@ -101,7 +101,7 @@ public class VariantContextWriterStorage implements Storage<VariantContextWriter
 
         // The GATK/Tribble can't currently index block-compressed files on the fly.  Disable OTF indexing even if the user explicitly asked for it.
         EnumSet<Options> options = stub.getWriterOptions(indexOnTheFly);
-        VariantContextWriter writer = VariantContextWriterFactory.create(file, this.stream, stub.getMasterSequenceDictionary(), options);
+        VariantContextWriter writer = VariantContextWriterFactory.create(file, this.stream, stub.getMasterSequenceDictionary(), options, stub.getNumBCF2EncodingThreads());
 
         // if the stub says to test BCF, create a secondary writer to BCF and an 2 way out writer to send to both
         // TODO -- remove me when argument generateShadowBCF is removed
@@ -248,6 +248,13 @@ public class VariantContextWriterStub implements Stub<VariantContextWriter>, Var
         return getClass().getName();
     }
 
+    /**
+     * @return the number of threads BCF2 writers should use to encode genotypes
+     */
+    public int getNumBCF2EncodingThreads() {
+        return engine.getArguments().numberOfBCF2EncodingThreads;
+    }
+
     /**
      * Should we also write a BCF file alongside our VCF file for testing
      *
@@ -34,10 +34,16 @@ import org.broadinstitute.sting.gatk.refdata.utils.FeatureToGATKFeatureIterator;
 import org.broadinstitute.sting.gatk.refdata.utils.GATKFeature;
 import org.broadinstitute.sting.utils.GenomeLoc;
 import org.broadinstitute.sting.utils.GenomeLocParser;
+import org.broadinstitute.sting.utils.codecs.bcf2.BCF2Codec;
+import org.broadinstitute.sting.utils.codecs.bcf2.MemoryMappedBCF2Iterator;
+import org.broadinstitute.sting.utils.codecs.vcf.AbstractVCFCodec;
+import org.broadinstitute.sting.utils.codecs.vcf.ParallelVCFDecoder;
+import org.broadinstitute.sting.utils.codecs.vcf.SampleSubsetAwareCodec;
 import org.broadinstitute.sting.utils.exceptions.UserException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 
 
 /**
@@ -69,6 +75,16 @@ public class RMDTrack {
     // our codec type
     private final FeatureCodec codec;
 
+    // if not null, full traversals of this track decode VCF records on nVCFDecodingThreads worker threads
+    private ParallelVCFDecoder.CodecFactory parallelCodecFactory = null;
+    private int nVCFDecodingThreads = 1;
+
+    // if true, full traversals of this BCF2 track decode the records straight out of the memory-mapped file
+    private boolean memoryMapBCF2 = false;
+
+    // if not null, the only samples whose genotypes are decoded from this track
+    private Collection<String> samplesToDecode = null;
+
     public Class getType() {
         return type;
     }
@@ -106,6 +122,15 @@ public class RMDTrack {
      *         but other more advanced tracks support the query interface
      */
     public CloseableIterator<GATKFeature> getIterator() {
+        if ( parallelCodecFactory != null )
+            return new FeatureToGATKFeatureIterator(genomeLocParser, (CloseableTribbleIterator)new ParallelVCFDecoder(file, createSubsetCodecFactory(), nVCFDecodingThreads), this.getName());
+
+        if ( memoryMapBCF2 ) {
+            final BCF2Codec bcf2Codec = new BCF2Codec();
+            bcf2Codec.setSamplesToDecode(samplesToDecode);
+            return new FeatureToGATKFeatureIterator(genomeLocParser, (CloseableTribbleIterator)new MemoryMappedBCF2Iterator(file, bcf2Codec), this.getName());
+        }
+
         try {
             return new FeatureToGATKFeatureIterator(genomeLocParser,reader.iterator(),this.getName());
         } catch (IOException e) {
@@ -113,6 +138,60 @@ public class RMDTrack {
         }
     }
 
+    /**
+     * Decode the records of this VCF track on a pool of worker threads when iterating over the entire file.
+     * Queries are unaffected, as they only read the small part of the file covered by the index.
+     *
+     * @param codecFactory creates a configured codec for each of the decoding threads
+     * @param nThreads the number of decoding threads to use
+     */
+    public void enableParallelVCFDecoding(final ParallelVCFDecoder.CodecFactory codecFactory, final int nThreads) {
+        this.parallelCodecFactory = codecFactory;
+        this.nVCFDecodingThreads = nThreads;
+    }
+
+    /**
+     * Decode the records of this BCF2 track directly from the memory-mapped file when iterating over the entire file.
+     * Queries are unaffected.
+     */
+    public void enableMemoryMappedBCF2Decoding() {
+        this.memoryMapBCF2 = true;
+    }
+
+    /**
+     * Only decode the genotypes of the given samples from this track, if the codec supports it.  The genotypes of
+     * all other samples are skipped over without being parsed, and are absent from the records we return.
+     *
+     * @param samples the samples whose genotypes we want, or null to decode all of them
+     */
+    public void setSamplesToDecode(final Collection<String> samples) {
+        if ( samples == null ? samplesToDecode == null : samples.equals(samplesToDecode) )
+            return;
+
+        this.samplesToDecode = samples;
+        if ( codec instanceof SampleSubsetAwareCodec )
+            ((SampleSubsetAwareCodec)codec).setSamplesToDecode(samples);
+    }
+
+    /**
+     * @return a codec factory handing out codecs restricted to samplesToDecode, for the parallel decoder
+     */
+    private ParallelVCFDecoder.CodecFactory createSubsetCodecFactory() {
+        if ( samplesToDecode == null )
+            return parallelCodecFactory;
+
+        final Collection<String> samples = samplesToDecode;
+        final ParallelVCFDecoder.CodecFactory factory = parallelCodecFactory;
+        return new ParallelVCFDecoder.CodecFactory() {
+            @Override
+            public AbstractVCFCodec createCodec() {
+                final AbstractVCFCodec codec = factory.createCodec();
+                codec.setSamplesToDecode(samples);
+                return codec;
+            }
+        };
+    }
+
     public CloseableIterator<GATKFeature> query(GenomeLoc interval) throws IOException {
         CloseableTribbleIterator<Feature> iter = reader.query(interval.getContig(),interval.getStart(),interval.getStop());
         return new FeatureToGATKFeatureIterator(genomeLocParser, iter, this.getName());
@@ -39,6 +39,9 @@ import org.broadinstitute.sting.gatk.arguments.ValidationExclusion;
 import org.broadinstitute.sting.gatk.refdata.utils.RMDTriplet;
 import org.broadinstitute.sting.gatk.refdata.utils.RMDTriplet.RMDStorageType;
 import org.broadinstitute.sting.utils.GenomeLocParser;
+import org.broadinstitute.sting.utils.codecs.bcf2.BCF2Codec;
+import org.broadinstitute.sting.utils.codecs.vcf.AbstractVCFCodec;
+import org.broadinstitute.sting.utils.codecs.vcf.ParallelVCFDecoder;
 import org.broadinstitute.sting.utils.codecs.vcf.VCFHeader;
 import org.broadinstitute.sting.utils.collections.Pair;
 import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
@@ -83,6 +86,16 @@ public class RMDTrackBuilder { // extends PluginManager<FeatureCodec> {
 
     private final FeatureManager featureManager;
 
+    /**
+     * Number of threads to use when decoding entire VCF files.  1 means decode on the traversal thread.
+     */
+    private int nVCFDecodingThreads = 1;
+
+    /**
+     * Should uncompressed BCF2 files read from start to finish be decoded from memory-mapped windows of the file?
+     */
+    private boolean memoryMapBCF2 = false;
+
     /**
      * Construct an RMDTrackerBuilder, allowing the user to define tracks to build after-the-fact.  This is generally
      * used when walkers want to directly manage the ROD system for whatever reason.  Before using this constructor,
@@ -111,6 +124,26 @@ public class RMDTrackBuilder { // extends PluginManager<FeatureCodec> {
         return featureManager;
     }
 
+    /**
+     * Decode VCF tracks built from now on with nThreads worker threads when they are read from start to finish
+     *
+     * @param nThreads the number of decoding threads; 1 disables parallel decoding
+     */
+    public void setNumVCFDecodingThreads(final int nThreads) {
+        if ( nThreads < 1 )
+            throw new UserException.BadArgumentValue("num_vcf_decoding_threads", "must be at least 1 but saw " + nThreads);
+        this.nVCFDecodingThreads = nThreads;
+    }
+
+    /**
+     * Decode BCF2 tracks built from now on straight out of the memory-mapped file when they are read from start to finish
+     *
+     * @param memoryMapBCF2 true to decode from the mapped file, false to use the buffered stream of the feature reader
+     */
+    public void setMemoryMapBCF2(final boolean memoryMapBCF2) {
+        this.memoryMapBCF2 = memoryMapBCF2;
+    }
+
     /**
      * Same as full constructor but makes one without a header for repairs
      * @param dict
@@ -131,21 +164,38 @@ public class RMDTrackBuilder { // extends PluginManager<FeatureCodec> {
      * @return an instance of the track
      */
     public RMDTrack createInstanceOfTrack(RMDTriplet fileDescriptor) {
-        String name = fileDescriptor.getName();
+        final String name = fileDescriptor.getName();
         File inputFile = new File(fileDescriptor.getFile());
 
-        FeatureManager.FeatureDescriptor descriptor = getFeatureManager().getByTriplet(fileDescriptor);
+        final FeatureManager.FeatureDescriptor descriptor = getFeatureManager().getByTriplet(fileDescriptor);
         if (descriptor == null)
             throw new UserException.BadArgumentValue("-B",fileDescriptor.getType());
 
+        // the reader and the track share a codec, so that configuring the track's codec affects the records we read
+        final FeatureCodec codec = createCodec(descriptor, name);
+
         // return a feature reader track
         Pair<AbstractFeatureReader, SAMSequenceDictionary> pair;
         if (inputFile.getAbsolutePath().endsWith(".gz"))
-            pair = createTabixIndexedFeatureSource(descriptor, name, inputFile);
+            pair = createTabixIndexedFeatureSource(codec, inputFile);
         else
-            pair = getFeatureSource(descriptor, name, inputFile, fileDescriptor.getStorageType());
+            pair = getFeatureSource(descriptor, name, codec, inputFile, fileDescriptor.getStorageType());
         if (pair == null) throw new UserException.CouldNotReadInputFile(inputFile, "Unable to make the feature reader for input file");
-        return new RMDTrack(descriptor.getCodecClass(), name, inputFile, pair.first, pair.second, genomeLocParser, createCodec(descriptor, name));
+        final RMDTrack track = new RMDTrack(descriptor.getCodecClass(), name, inputFile, pair.first, pair.second, genomeLocParser, codec);
+
+        if ( nVCFDecodingThreads > 1 && AbstractVCFCodec.class.isAssignableFrom(descriptor.getCodecClass()) && inputFile.isFile() ) {
+            track.enableParallelVCFDecoding(new ParallelVCFDecoder.CodecFactory() {
+                @Override
+                public AbstractVCFCodec createCodec() {
+                    return (AbstractVCFCodec)RMDTrackBuilder.this.createCodec(descriptor, name);
+                }
+            }, nVCFDecodingThreads);
+        }
+
+        if ( memoryMapBCF2 && BCF2Codec.class.isAssignableFrom(descriptor.getCodecClass()) && inputFile.isFile() && ! inputFile.getName().endsWith(".gz") )
+            track.enableMemoryMappedBCF2Decoding();
+
+        return track;
     }
 
     /**
@@ -168,16 +218,15 @@ public class RMDTrackBuilder { // extends PluginManager<FeatureCodec> {
      * reader of the appropriate type will figure out what the right index type is, and determine if it
      * exists.
      *
-     * @param descriptor the FeatureDescriptor describing the FeatureCodec we want to create
-     * @param name the name of the track
+     * @param codec the codec used to decode the records of the file
      * @param inputFile the file to load
      * @return a feature reader implementation
      */
-    private Pair<AbstractFeatureReader, SAMSequenceDictionary> createTabixIndexedFeatureSource(FeatureManager.FeatureDescriptor descriptor, String name, File inputFile) {
+    private Pair<AbstractFeatureReader, SAMSequenceDictionary> createTabixIndexedFeatureSource(FeatureCodec codec, File inputFile) {
         // we might not know the index type, try loading with the default reader constructor
         logger.info("Attempting to blindly load " + inputFile + " as a tabix indexed file");
         try {
-            return new Pair<AbstractFeatureReader, SAMSequenceDictionary>(AbstractFeatureReader.getFeatureReader(inputFile.getAbsolutePath(), createCodec(descriptor, name)),null);
+            return new Pair<AbstractFeatureReader, SAMSequenceDictionary>(AbstractFeatureReader.getFeatureReader(inputFile.getAbsolutePath(), codec),null);
         } catch (TribbleException e) {
             throw new UserException(e.getMessage(), e);
         }
@@ -197,12 +246,14 @@ public class RMDTrackBuilder { // extends PluginManager<FeatureCodec> {
      * create a feature source object given:
      * @param descriptor the FeatureDescriptor describing the FeatureCodec we want to create
      * @param name the name of the codec
+     * @param codec the codec used by the feature reader to decode the records of the file
      * @param inputFile the tribble file to parse
      * @param storageType How the RMD is streamed into the input file.
      * @return the input file as a FeatureReader
      */
     private Pair<AbstractFeatureReader, SAMSequenceDictionary> getFeatureSource(FeatureManager.FeatureDescriptor descriptor,
                                                                         String name,
+                                                                        FeatureCodec codec,
                                                                         File inputFile,
                                                                         RMDStorageType storageType) {
         // Feature source and sequence dictionary to use as the ultimate reference
@@ -233,7 +284,7 @@ public class RMDTrackBuilder { // extends PluginManager<FeatureCodec> {
                     sequenceDictionary = IndexDictionaryUtils.getSequenceDictionaryFromProperties(index);
                 }
 
-                featureSource = AbstractFeatureReader.getFeatureReader(inputFile.getAbsolutePath(), createCodec(descriptor, name), index);
+                featureSource = AbstractFeatureReader.getFeatureReader(inputFile.getAbsolutePath(), codec, index);
             }
             catch (TribbleException e) {
                 throw new UserException(e.getMessage());
@@ -243,7 +294,7 @@ public class RMDTrackBuilder { // extends PluginManager<FeatureCodec> {
             }
         }
         else {
-            featureSource = AbstractFeatureReader.getFeatureReader(inputFile.getAbsolutePath(), createCodec(descriptor, name), false);
+            featureSource = AbstractFeatureReader.getFeatureReader(inputFile.getAbsolutePath(), codec, false);
         }
 
         return new Pair<AbstractFeatureReader,SAMSequenceDictionary>(featureSource,sequenceDictionary);
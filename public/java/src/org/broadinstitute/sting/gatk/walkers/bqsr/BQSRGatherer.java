@@ -26,13 +26,17 @@
 package org.broadinstitute.sting.gatk.walkers.bqsr;
 
 import org.broadinstitute.sting.commandline.Gatherer;
+import org.broadinstitute.sting.gatk.report.GATKReportTable;
 import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
 import org.broadinstitute.sting.utils.exceptions.UserException;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * User: carneiro
@@ -47,24 +51,12 @@ public class BQSRGatherer extends Gatherer  {
 
     @Override
     public void gather(List<File> inputs, File output) {
-        RecalibrationReport generalReport = null;
-        final PrintStream outputFile;
-        try {
-            outputFile = new PrintStream(output);
-        } catch(FileNotFoundException e) {
-            throw new UserException.MissingArgument("output", MISSING_OUTPUT_FILE);
-        }
-
-        for (File input : inputs) {
-            final RecalibrationReport inputReport = new RecalibrationReport(input);
-            if (generalReport == null)
-                generalReport = inputReport;
-            else
-                generalReport.combine(inputReport);
-        }
-        if (generalReport == null)
+        if (inputs.isEmpty())
             throw new ReviewedStingException(EMPTY_INPUT_LIST);
 
+        final boolean binaryInputs = allBinaryReports(inputs);
+        final RecalibrationReport generalReport = binaryInputs ? gatherBinaryReports(inputs) : gatherReports(inputs);
+
         generalReport.calculateQuantizedQualities();
 
         RecalibrationArgumentCollection RAC = generalReport.getRAC();
@@ -78,6 +70,75 @@ public class BQSRGatherer extends Gatherer  {
             RecalDataManager.generateRecalibrationPlot(recal_out, generalReport.getRecalibrationTables(), generalReport.getCovariates(), RAC.KEEP_INTERMEDIATE_FILES);
         }
 
-        generalReport.output(outputFile);
+        if (binaryInputs) {
+            generalReport.outputBinary(output);
+        } else {
+            final PrintStream outputFile;
+            try {
+                outputFile = new PrintStream(output);
+            } catch(FileNotFoundException e) {
+                throw new UserException.MissingArgument("output", MISSING_OUTPUT_FILE);
+            }
+            generalReport.output(outputFile);
+        }
+    }
+
+    private static boolean allBinaryReports(final List<File> inputs) {
+        for (final File input : inputs) {
+            if (!BinaryRecalibrationReport.isBinaryReport(input))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Combines the reports one at a time into the first of them
+     */
+    private static RecalibrationReport gatherReports(final List<File> inputs) {
+        RecalibrationReport generalReport = null;
+        for (File input : inputs) {
+            final RecalibrationReport inputReport = new RecalibrationReport(input);
+            if (generalReport == null)
+                generalReport = inputReport;
+            else
+                generalReport.combine(inputReport);
+        }
+        return generalReport;
+    }
+
+    /**
+     * Combines binary reports in a single pass, adding the data of each straight from the file into the tables of
+     * the result without building a report for it.  The read groups of all of the inputs are collected from their
+     * headers first, since each scattered report numbers its read groups in the order it happened to see them.
+     * Only one input is open at a time in either pass, so the number of inputs doesn't limit the gather.
+     */
+    private static RecalibrationReport gatherBinaryReports(final List<File> inputs) {
+        final Map<String, Integer> readGroupKeys = new HashMap<String, Integer>();
+        final List<String> readGroups = new ArrayList<String>();
+        GATKReportTable argumentTable = null;
+        for (final File input : inputs) {
+            final BinaryRecalibrationReport.Reader inputReport = new BinaryRecalibrationReport.Reader(input);
+            inputReport.close();
+            if (argumentTable == null)
+                argumentTable = inputReport.getArgumentTable();
+            for (final String readGroup : inputReport.getReadGroups()) {
+                if (!readGroupKeys.containsKey(readGroup)) {
+                    readGroupKeys.put(readGroup, readGroups.size());
+                    readGroups.add(readGroup);
+                }
+            }
+        }
+
+        final RecalibrationReport generalReport = new RecalibrationReport(argumentTable, readGroups);
+        for (final File input : inputs) {
+            final BinaryRecalibrationReport.Reader inputReport = new BinaryRecalibrationReport.Reader(input);
+            final List<String> inputReadGroups = inputReport.getReadGroups();
+            final int[] keys = new int[inputReadGroups.size()];
+            for (int i = 0; i < keys.length; i++)
+                keys[i] = readGroupKeys.get(inputReadGroups.get(i));
+            inputReport.combineTables(generalReport.getRecalibrationTables(), generalReport.getRequestedCovariates(), keys);
+            inputReport.close();
+        }
+        return generalReport;
     }
 }
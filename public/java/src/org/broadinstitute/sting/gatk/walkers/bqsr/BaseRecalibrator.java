@@ -25,7 +25,6 @@
 
 package org.broadinstitute.sting.gatk.walkers.bqsr;
 
-import net.sf.samtools.SAMFileHeader;
 import org.broadinstitute.sting.commandline.ArgumentCollection;
 import org.broadinstitute.sting.gatk.CommandLineGATK;
 import org.broadinstitute.sting.gatk.contexts.AlignmentContext;
@@ -35,21 +34,9 @@ import org.broadinstitute.sting.gatk.filters.MappingQualityZeroFilter;
 import org.broadinstitute.sting.gatk.refdata.RefMetaDataTracker;
 import org.broadinstitute.sting.gatk.walkers.*;
 import org.broadinstitute.sting.utils.baq.BAQ;
-import org.broadinstitute.sting.utils.classloader.GATKLiteUtils;
-import org.broadinstitute.sting.utils.collections.Pair;
-import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
-import org.broadinstitute.sting.utils.exceptions.UserException;
 import org.broadinstitute.sting.utils.help.DocumentedGATKFeature;
 import org.broadinstitute.sting.utils.pileup.PileupElement;
-import org.broadinstitute.sting.utils.recalibration.RecalibrationTables;
 import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
-import org.broadinstitute.sting.utils.sam.ReadUtils;
-
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintStream;
-import java.lang.reflect.Constructor;
-import java.util.ArrayList;
 
 /**
  * First pass of the base quality score recalibration -- Generates recalibration table based on various user-specified covariates (such as reported quality score, cycle, and dinucleotide).
@@ -109,94 +96,29 @@ public class BaseRecalibrator extends LocusWalker<Long, Long> implements TreeRed
     @ArgumentCollection
     private final RecalibrationArgumentCollection RAC = new RecalibrationArgumentCollection();                          // all the command line arguments for BQSR and it's covariates
 
-    private QuantizationInfo quantizationInfo;                                                                          // an object that keeps track of the information necessary for quality score quantization 
-    
-    private RecalibrationTables recalibrationTables;
-
-    private Covariate[] requestedCovariates;                                                                            // list to hold the all the covariate objects that were requested (required + standard + experimental)
+    private RecalibrationDataCollector collector;                                                                       // the covariates, tables and engine shared with BaseRecalibratorByRead
 
     private RecalibrationEngine recalibrationEngine;
 
-    private int minimumQToUse;
-
     protected static final String SKIP_RECORD_ATTRIBUTE = "SKIP";                                                       // used to label reads that should be skipped.
     protected static final String SEEN_ATTRIBUTE = "SEEN";                                                              // used to label reads as processed.
     protected static final String COVARS_ATTRIBUTE = "COVARS";                                                          // used to store covariates array as a temporary attribute inside GATKSAMRecord.\
 
-    private static final String NO_DBSNP_EXCEPTION = "This calculation is critically dependent on being able to skip over known variant sites. Please provide a VCF file containing known sites of genetic variation.";
-
 
     /**
      * Parse the -cov arguments and create a list of covariates to be used here
      * Based on the covariates' estimates for initial capacity allocate the data hashmap
      */
     public void initialize() {
-
-        // check for unsupported access
-        if (getToolkit().isGATKLite() && !getToolkit().getArguments().disableIndelQuals)
-            throw new UserException.NotSupportedInGATKLite("base insertion/deletion recalibration is not supported, please use the --disable_indel_quals argument");
-
-        if (RAC.FORCE_PLATFORM != null)
-            RAC.DEFAULT_PLATFORM = RAC.FORCE_PLATFORM;
-
-        if (RAC.knownSites.isEmpty() && !RAC.RUN_WITHOUT_DBSNP)                                                         // Warn the user if no dbSNP file or other variant mask was specified
-            throw new UserException.CommandLineException(NO_DBSNP_EXCEPTION);
-
-        if (RAC.LIST_ONLY) {
-            RecalDataManager.listAvailableCovariates(logger);
-            System.exit(0);
-        }
-        RAC.recalibrationReport = getToolkit().getArguments().BQSR_RECAL_FILE;                                          // if we have a recalibration file, record it so it goes on the report table
-
-        Pair<ArrayList<Covariate>, ArrayList<Covariate>> covariates = RecalDataManager.initializeCovariates(RAC);       // initialize the required and optional covariates
-        ArrayList<Covariate> requiredCovariates = covariates.getFirst();
-        ArrayList<Covariate> optionalCovariates = covariates.getSecond();
-
-        requestedCovariates = new Covariate[requiredCovariates.size() + optionalCovariates.size()];
-        int covariateIndex = 0;
-        for (final Covariate covariate : requiredCovariates)
-            requestedCovariates[covariateIndex++] = covariate;
-        for (final Covariate covariate : optionalCovariates)
-            requestedCovariates[covariateIndex++] = covariate;
-
-        logger.info("The covariates being used here: ");
-        for (Covariate cov : requestedCovariates) {                                                                     // list all the covariates being used
-            logger.info("\t" + cov.getClass().getSimpleName());
-            cov.initialize(RAC);                                                                                        // initialize any covariate member variables using the shared argument collection
-        }
-
-        int numReadGroups = 0;
-        for ( final SAMFileHeader header : getToolkit().getSAMFileHeaders() )
-            numReadGroups += header.getReadGroups().size();
-        recalibrationTables = new RecalibrationTables(requestedCovariates, numReadGroups);
-
-        recalibrationEngine = initializeRecalibrationEngine();
-        recalibrationEngine.initialize(requestedCovariates, recalibrationTables);
-
-        minimumQToUse = getToolkit().getArguments().PRESERVE_QSCORES_LESS_THAN;
-    }
-
-    private RecalibrationEngine initializeRecalibrationEngine() {
-
-        final Class recalibrationEngineClass = GATKLiteUtils.getProtectedClassIfAvailable(RecalibrationEngine.class);
-        try {
-            Constructor constructor = recalibrationEngineClass.getDeclaredConstructor((Class[])null);
-            constructor.setAccessible(true);
-            return (RecalibrationEngine)constructor.newInstance();
-        }
-        catch (Exception e) {
-            throw new ReviewedStingException("Unable to create RecalibrationEngine class instance " + recalibrationEngineClass.getSimpleName());
-        }
+        collector = new RecalibrationDataCollector(RAC, logger);
+        collector.initialize(getToolkit());
+        recalibrationEngine = collector.getRecalibrationEngine();
     }
 
     private boolean readHasBeenSkipped(GATKSAMRecord read) {
         return read.containsTemporaryAttribute(SKIP_RECORD_ATTRIBUTE);
     }
 
-    private boolean isLowQualityBase(GATKSAMRecord read, int offset) {
-        return read.getBaseQualities()[offset] < minimumQToUse;
-    }
-
     private boolean readNotSeen(GATKSAMRecord read) {
         return !read.containsTemporaryAttribute(SEEN_ATTRIBUTE);
     }
@@ -217,22 +139,19 @@ public class BaseRecalibrator extends LocusWalker<Long, Long> implements TreeRed
                 final GATKSAMRecord read = p.getRead();
                 final int offset = p.getOffset();
 
-                if (readHasBeenSkipped(read) || isLowQualityBase(read, offset))                                         // This read has been marked to be skipped or base is low quality (we don't recalibrate low quality bases)
+                if (readHasBeenSkipped(read) || collector.isLowQualityBase(read, offset))                               // This read has been marked to be skipped or base is low quality (we don't recalibrate low quality bases)
                     continue;
 
                 if (readNotSeen(read)) {
                     read.setTemporaryAttribute(SEEN_ATTRIBUTE, true);
-                    RecalDataManager.parsePlatformForRead(read, RAC);
-                    if (RecalDataManager.isColorSpaceConsistent(RAC.SOLID_NOCALL_STRATEGY, read)) {
+                    if (collector.skipRead(read)) {
                         read.setTemporaryAttribute(SKIP_RECORD_ATTRIBUTE, true);
                         continue;
                     }
-                    read.setTemporaryAttribute(COVARS_ATTRIBUTE, RecalDataManager.computeCovariates(read, requestedCovariates));
+                    read.setTemporaryAttribute(COVARS_ATTRIBUTE, RecalDataManager.computeCovariates(read, collector.getRequestedCovariates()));
                 }
 
-                if (!ReadUtils.isSOLiDRead(read) ||                                                                     // SOLID bams have inserted the reference base into the read if the color space in inconsistent with the read base so skip it
-                    RAC.SOLID_RECAL_MODE == RecalDataManager.SOLID_RECAL_MODE.DO_NOTHING ||
-                        RecalDataManager.isColorSpaceConsistent(read, offset))
+                if (collector.isUsableSOLiDBase(read, offset))                                                          // SOLID bams have inserted the reference base into the read if the color space in inconsistent with the read base so skip it
                     recalibrationEngine.updateDataForPileupElement(p, ref.getBase());                                                             // This base finally passed all the checks for a good base, so add it to the big data hashmap
             }
             countedSites++;
@@ -269,47 +188,7 @@ public class BaseRecalibrator extends LocusWalker<Long, Long> implements TreeRed
 
     @Override
     public void onTraversalDone(Long result) {
-        logger.info("Calculating quantized quality scores...");
-        quantizeQualityScores();
-        if (!RAC.NO_PLOTS) {
-            logger.info("Generating recalibration plots...");
-            generatePlots();
-        }
-        logger.info("Writing recalibration report...");
-        generateReport();
-        logger.info("...done!");
+        collector.onTraversalDone(getToolkit());
         logger.info("Processed: " + result + " sites");
     }
-
-    private void generatePlots() {
-        File recalFile = getToolkit().getArguments().BQSR_RECAL_FILE;
-        if (recalFile != null) {
-            RecalibrationReport report = new RecalibrationReport(recalFile);
-            RecalDataManager.generateRecalibrationPlot(RAC.RECAL_FILE, report.getRecalibrationTables(), recalibrationTables, requestedCovariates, RAC.KEEP_INTERMEDIATE_FILES);
-        }
-        else
-            RecalDataManager.generateRecalibrationPlot(RAC.RECAL_FILE, recalibrationTables, requestedCovariates, RAC.KEEP_INTERMEDIATE_FILES);
-    }
-
-
-    /**
-     * go through the quality score table and use the # observations and the empirical quality score
-     * to build a quality score histogram for quantization. Then use the QuantizeQual algorithm to
-     * generate a quantization map (recalibrated_qual -> quantized_qual)
-     */
-    private void quantizeQualityScores() {
-        quantizationInfo = new QuantizationInfo(recalibrationTables, RAC.QUANTIZING_LEVELS);
-    }
-
-    private void generateReport() {
-        PrintStream output;
-        try {
-            output = new PrintStream(RAC.RECAL_FILE);
-        } catch (FileNotFoundException e) {
-            throw new UserException.CouldNotCreateOutputFile(RAC.RECAL_FILE, "could not be created");
-        }
-
-        RecalDataManager.outputRecalibrationReport(RAC, quantizationInfo, recalibrationTables, requestedCovariates, output);
-    }
 }
-
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.bqsr;
+
+import net.sf.samtools.CigarElement;
+import org.broadinstitute.sting.commandline.ArgumentCollection;
+import org.broadinstitute.sting.commandline.RodBinding;
+import org.broadinstitute.sting.gatk.CommandLineGATK;
+import org.broadinstitute.sting.gatk.contexts.ReferenceContext;
+import org.broadinstitute.sting.gatk.filters.*;
+import org.broadinstitute.sting.gatk.refdata.ReadMetaDataTracker;
+import org.broadinstitute.sting.gatk.refdata.utils.GATKFeature;
+import org.broadinstitute.sting.gatk.walkers.*;
+import org.broadinstitute.sting.utils.BaseUtils;
+import org.broadinstitute.sting.utils.GenomeLoc;
+import org.broadinstitute.sting.utils.baq.BAQ;
+import org.broadinstitute.sting.utils.help.DocumentedGATKFeature;
+import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
+import org.broad.tribble.Feature;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * First pass of the base quality score recalibration, traversing by read instead of by locus.
+ *
+ * <p>
+ * Generates exactly the same kind of recalibration report as BaseRecalibrator, with the same arguments, but rather than
+ * building a pileup at every locus it compares each read as a whole against the reference bases it's aligned to,
+ * skipping the bases aligned to a known site, and updates the tables with all of the bases of the read in one go.
+ * This avoids the cost of the locus traversal altogether, which dominates the run time of BaseRecalibrator.
+ * <p>
+ * The results differ slightly from those of BaseRecalibrator in a few corner cases:
+ * <ul>
+ *     <li>reads are never downsampled, whereas BaseRecalibrator sees the downsampled pileups</li>
+ *     <li>all of the aligned bases of a read are used, even those outside of the intervals given with -L</li>
+ *     <li>the deletions in a read aren't counted as observations, only the bases aligned to the reference are</li>
+ *     <li>a known site starting before the first aligned base of a read doesn't mask the bases of that read</li>
+ * </ul>
+ *
+ * <h2>Examples</h2>
+ * <pre>
+ * java -Xmx4g -jar GenomeAnalysisTK.jar \
+ *   -T BaseRecalibratorByRead \
+ *   -I my_reads.bam \
+ *   -R resources/Homo_sapiens_assembly18.fasta \
+ *   -knownSites bundle/hg18/dbsnp_132.hg18.vcf \
+ *   -o recal_data.grp
+ * </pre>
+ */
+@DocumentedGATKFeature( groupName = "BAM Processing and Analysis Tools", extraDocs = {CommandLineGATK.class} )
+@BAQMode(ApplicationTime = BAQ.ApplicationTime.FORBIDDEN)
+@ReadFilters({UnmappedReadFilter.class, NotPrimaryAlignmentFilter.class, DuplicateReadFilter.class, FailsVendorQualityCheckFilter.class,
+        MappingQualityZeroFilter.class, MappingQualityUnavailableFilter.class})                                         // the same reads BaseRecalibrator looks at
+@Requires({DataSource.READS, DataSource.REFERENCE, DataSource.REFERENCE_BASES})                                         // this walker requires both -I input.bam and -R reference.fasta
+public class BaseRecalibratorByRead extends ReadWalker<Long, Long> implements TreeReducible<Long> {
+    @ArgumentCollection
+    private final RecalibrationArgumentCollection RAC = new RecalibrationArgumentCollection();                          // all the command line arguments for BQSR and it's covariates
+
+    private RecalibrationDataCollector collector;
+
+    private RecalibrationEngine recalibrationEngine;
+
+    private final Set<String> knownSitesNames = new HashSet<String>();
+
+    public void initialize() {
+        collector = new RecalibrationDataCollector(RAC, logger);
+        collector.initialize(getToolkit());
+        recalibrationEngine = collector.getRecalibrationEngine();
+
+        for ( final RodBinding<Feature> knownSites : RAC.knownSites )
+            knownSitesNames.add(knownSites.getName());
+    }
+
+    /**
+     * Compare the read to the reference and add all of its usable bases to the tables
+     *
+     * @param ref     the reference bases the read is aligned to
+     * @param read    the read
+     * @param tracker the known sites overlapping the read
+     * @return 1 if the read was used, 0 if it was skipped
+     */
+    public Long map(ReferenceContext ref, GATKSAMRecord read, ReadMetaDataTracker tracker) {
+        if ( collector.skipRead(read) )
+            return 0L;
+
+        read.setTemporaryAttribute(BaseRecalibrator.COVARS_ATTRIBUTE, RecalDataManager.computeCovariates(read, collector.getRequestedCovariates()));
+
+        final int readLength = read.getReadLength();
+        final boolean[] skip = new boolean[readLength];
+        final boolean[] isError = new boolean[readLength];
+        calculateSkipsAndErrors(read, ref.getBases(), calculateKnownSites(read, tracker), skip, isError);
+
+        for ( int offset = 0; offset < readLength; offset++ ) {
+            if ( !skip[offset] && (collector.isLowQualityBase(read, offset) || !collector.isUsableSOLiDBase(read, offset)) )
+                skip[offset] = true;
+        }
+
+        recalibrationEngine.updateDataForRead(read, skip, isError);
+        return 1L;
+    }
+
+    /**
+     * Which of the reference positions the read is aligned to are covered by a known site?
+     *
+     * @param read    the read
+     * @param tracker the reference ordered data overlapping the read, or null if there is none
+     * @return a mask with one entry per position from the alignment start to the alignment end of the read
+     */
+    private boolean[] calculateKnownSites(final GATKSAMRecord read, final ReadMetaDataTracker tracker) {
+        final int alignmentStart = read.getAlignmentStart();
+        final boolean[] knownSites = new boolean[read.getAlignmentEnd() - alignmentStart + 1];
+        if ( tracker == null )
+            return knownSites;
+
+        for ( final GATKFeature feature : tracker.getAllCoveringRods() ) {
+            if ( !knownSitesNames.contains(feature.getName()) )
+                continue;
+            final GenomeLoc loc = feature.getLocation();
+            final int start = Math.max(loc.getStart() - alignmentStart, 0);
+            final int stop = Math.min(loc.getStop() - alignmentStart, knownSites.length - 1);
+            for ( int i = start; i <= stop; i++ )
+                knownSites[i] = true;
+        }
+        return knownSites;
+    }
+
+    /**
+     * Walks the cigar of the read, comparing each aligned base with the reference base it's aligned to.  Soft clipped
+     * and inserted bases, like the bases aligned to known sites, aren't used.
+     *
+     * @param read       the read
+     * @param refBases   the reference bases from the alignment start to the alignment end of the read
+     * @param knownSites is each of the reference bases covered by a known site?
+     * @param skip       filled in with whether each base of the read should be left out of the tables
+     * @param isError    filled in with whether each base of the read is a mismatch with the reference
+     */
+    protected static void calculateSkipsAndErrors(final GATKSAMRecord read, final byte[] refBases, final boolean[] knownSites, final boolean[] skip, final boolean[] isError) {
+        final byte[] bases = read.getReadBases();
+        int readOffset = 0;
+        int refOffset = 0;
+
+        for ( final CigarElement element : read.getCigar().getCigarElements() ) {
+            final int length = element.getLength();
+            switch ( element.getOperator() ) {
+                case M:
+                case EQ:
+                case X:
+                    for ( int i = 0; i < length; i++, readOffset++, refOffset++ ) {
+                        skip[readOffset] = knownSites[refOffset];
+                        isError[readOffset] = !BaseUtils.basesAreEqual(bases[readOffset], refBases[refOffset]);
+                    }
+                    break;
+                case I:
+                case S:
+                    for ( int i = 0; i < length; i++, readOffset++ )
+                        skip[readOffset] = true;
+                    break;
+                case D:
+                case N:
+                    refOffset += length;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    public Long reduceInit() {
+        return 0L;
+    }
+
+    public Long reduce(Long mapped, Long sum) {
+        sum += mapped;
+        return sum;
+    }
+
+    public Long treeReduce(Long sum1, Long sum2) {
+        sum1 += sum2;
+        return sum1;
+    }
+
+    @Override
+    public void onTraversalDone(Long result) {
+        collector.onTraversalDone(getToolkit());
+        logger.info("Processed: " + result + " reads");
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.bqsr;
+
+import org.broadinstitute.sting.gatk.report.GATKReportTable;
+import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
+import org.broadinstitute.sting.utils.exceptions.UserException;
+import org.broadinstitute.sting.utils.recalibration.RecalibrationTables;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compact binary encoding of a recalibration report, as an alternative to the GATKReport text format.
+ *
+ * Parsing the text tables of a large report (one row per covariate value per read group) dominates the time it takes
+ * to load it, both for -BQSR and for gathering scattered reports.  The binary format stores the argument table,
+ * the quantization map and the read group names up front, followed by the data of each table as fixed-size
+ * records keyed by their RecalDatumTable index, so they can be read straight out of a memory-mapped file:
+ *
+ *   magic, version
+ *   arguments:    count, (name, value)*
+ *   quantization: count, (quantized qual, count)*
+ *   read groups:  count, name*              -- in the order of their keys
+ *   tables:       count, (covariate, number of dimensions, dimension*, number of data)*
+ *   data:         (index, observations, mismatches, estimated Q reported, empirical quality)* for each table in turn
+ *
+ * As in the text format only the read groups with data are kept, and they are renumbered in the order of their keys,
+ * and the tables of the optional covariates are matched up by the name of their covariate rather than their order.
+ */
+public final class BinaryRecalibrationReport {
+    private static final byte[] MAGIC = {'B', 'Q', 'S', 'R', 'B', 'I', 'N', '\n'};
+    private static final int VERSION = 1;
+    private static final int DATUM_SIZE = 5 * 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private BinaryRecalibrationReport() {}
+
+    /**
+     * @return true if file starts like a binary recalibration report, false if it doesn't or can't be read
+     */
+    public static boolean isBinaryReport(final File file) {
+        final byte[] start = new byte[MAGIC.length];
+        try {
+            final DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(start);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return Arrays.equals(start, MAGIC);
+    }
+
+    /**
+     * Writes the report to file in the binary format
+     *
+     * @param argumentTable        the arguments used to generate the tables
+     * @param quantizationInfo     the quantization map of the tables
+     * @param recalibrationTables  the tables
+     * @param requestedCovariates  the covariates of the tables, the first of which must be the read group covariate
+     * @param file                 the file to write
+     */
+    public static void write(final GATKReportTable argumentTable, final QuantizationInfo quantizationInfo, final RecalibrationTables recalibrationTables, final Covariate[] requestedCovariates, final File file) {
+        final RecalDatumTable readGroupTable = recalibrationTables.getTable(RecalibrationTables.TableType.READ_GROUP_TABLE);
+        final int[] readGroupKeys = new int[readGroupTable.getDimension(0)];
+        final List<String> readGroups = new ArrayList<String>();
+        for ( int rg = 0; rg < readGroupKeys.length; rg++ ) {
+            readGroupKeys[rg] = -1;
+            for ( int event = 0; event < readGroupTable.getDimension(1); event++ ) {
+                if ( readGroupTable.contains(readGroupTable.index(rg, event)) ) {
+                    readGroupKeys[rg] = readGroups.size();
+                    readGroups.add(requestedCovariates[RecalibrationTables.TableType.READ_GROUP_TABLE.index].formatKey(rg));
+                    break;
+                }
+            }
+        }
+
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+
+                out.writeInt(argumentTable.getNumRows());
+                for ( int i = 0; i < argumentTable.getNumRows(); i++ ) {
+                    writeString(out, String.valueOf(argumentTable.get(i, 0)));
+                    writeString(out, String.valueOf(argumentTable.get(i, 1)));
+                }
+
+                final List<Byte> quantizedQuals = quantizationInfo.getQuantizedQuals();
+                final List<Long> qualCounts = quantizationInfo.getEmpiricalQualCounts();
+                out.writeInt(quantizedQuals.size());
+                for ( int qual = 0; qual < quantizedQuals.size(); qual++ ) {
+                    out.writeByte(quantizedQuals.get(qual));
+                    out.writeLong(qualCounts.get(qual));
+                }
+
+                out.writeInt(readGroups.size());
+                for ( final String readGroup : readGroups )
+                    writeString(out, readGroup);
+
+                out.writeInt(recalibrationTables.numTables());
+                for ( int t = 0; t < recalibrationTables.numTables(); t++ ) {
+                    final RecalDatumTable table = recalibrationTables.getTable(t);
+                    writeString(out, requestedCovariates[t].getClass().getSimpleName());
+                    out.writeInt(table.numDimensions());
+                    out.writeInt(readGroups.size());
+                    for ( int i = 1; i < table.numDimensions(); i++ )
+                        out.writeInt(table.getDimension(i));
+                    out.writeLong(table.size());
+                }
+
+                for ( int t = 0; t < recalibrationTables.numTables(); t++ ) {
+                    final RecalDatumTable table = recalibrationTables.getTable(t);
+                    final long stride = readGroupStride(table);
+                    for ( long index = table.nextIndex(0); index >= 0; index = table.nextIndex(index + 1) ) {
+                        final int readGroupKey = readGroupKeys[(int)(index / stride)];
+                        if ( readGroupKey < 0 )
+                            throw new ReviewedStingException("Recalibration table " + t + " has data for a read group that isn't in the read group table");
+                        out.writeLong(readGroupKey * stride + index % stride);
+                        out.writeLong(table.getNumObservations(index));
+                        out.writeLong(table.getNumMismatches(index));
+                        out.writeDouble(table.getEstimatedQReported(index));
+                        out.writeDouble(table.getEmpiricalQuality(index));
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new UserException.CouldNotCreateOutputFile(file, "could not be written", e);
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        final byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @return the distance between the indices of consecutive read groups in table, whose first key is the read group
+     */
+    private static long readGroupStride(final RecalDatumTable table) {
+        long stride = 1;
+        for ( int i = 1; i < table.numDimensions(); i++ )
+            stride *= table.getDimension(i);
+        return stride;
+    }
+
+    /**
+     * A binary recalibration report mapped into memory.  The header is decoded when the reader is created; the
+     * data are only read by readTables() and combineTables(), directly into RecalDatumTables.  The file itself is
+     * closed once it is mapped, and close() releases the mapping, so that reports can be read one after another
+     * without holding on to all of them.
+     */
+    public static final class Reader {
+        private final File file;
+        private ByteBuffer buffer;
+
+        private final GATKReportTable argumentTable;
+        private final QuantizationInfo quantizationInfo;
+        private final List<String> readGroups;
+        private final String[] covariates;
+        private final int[][] dimensions;
+        private final int[] dataStart;
+        private final long[] dataSize;
+
+        public Reader(final File file) {
+            this.file = file;
+            try {
+                final RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    final FileChannel channel = raf.getChannel();
+                    if ( channel.size() > Integer.MAX_VALUE )
+                        throw new UserException.CouldNotReadInputFile(file, "binary recalibration reports larger than 2Gb are not supported");
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                throw new UserException.CouldNotReadInputFile(file, e);
+            }
+
+            try {
+                final byte[] magic = new byte[MAGIC.length];
+                buffer.get(magic);
+                if ( ! Arrays.equals(magic, MAGIC) )
+                    throw new UserException.MalformedFile(file, "is not a binary recalibration report");
+                final int version = buffer.getInt();
+                if ( version != VERSION )
+                    throw new UserException.MalformedFile(file, "is a binary recalibration report of version " + version + " but only version " + VERSION + " is supported");
+
+                argumentTable = new GATKReportTable(RecalDataManager.ARGUMENT_REPORT_TABLE_TITLE, "Recalibration argument collection values used in this run", 2);
+                argumentTable.addColumn("Argument");
+                argumentTable.addColumn(RecalDataManager.ARGUMENT_VALUE_COLUMN_NAME);
+                final int numArguments = buffer.getInt();
+                for ( int i = 0; i < numArguments; i++ ) {
+                    argumentTable.set(i, 0, readString());                                                                // rows by index, as in a table read from a GATKReport
+                    argumentTable.set(i, 1, readString());
+                }
+
+                final int numQuals = buffer.getInt();
+                final List<Byte> quantizedQuals = new ArrayList<Byte>(numQuals);
+                final List<Long> qualCounts = new ArrayList<Long>(numQuals);
+                for ( int qual = 0; qual < numQuals; qual++ ) {
+                    quantizedQuals.add(buffer.get());
+                    qualCounts.add(buffer.getLong());
+                }
+                quantizationInfo = new QuantizationInfo(quantizedQuals, qualCounts);
+
+                final int numReadGroups = buffer.getInt();
+                final List<String> readGroups = new ArrayList<String>(numReadGroups);
+                for ( int i = 0; i < numReadGroups; i++ )
+                    readGroups.add(readString());
+                this.readGroups = Collections.unmodifiableList(readGroups);
+
+                final int numTables = buffer.getInt();
+                covariates = new String[numTables];
+                dimensions = new int[numTables][];
+                dataStart = new int[numTables];
+                dataSize = new long[numTables];
+                for ( int t = 0; t < numTables; t++ ) {
+                    covariates[t] = readString();
+                    dimensions[t] = new int[buffer.getInt()];
+                    for ( int i = 0; i < dimensions[t].length; i++ )
+                        dimensions[t][i] = buffer.getInt();
+                    dataSize[t] = buffer.getLong();
+                }
+
+                long position = buffer.position();
+                for ( int t = 0; t < numTables; t++ ) {
+                    dataStart[t] = (int)position;
+                    position += dataSize[t] * DATUM_SIZE;
+                }
+                if ( position != buffer.limit() )
+                    throw new UserException.MalformedFile(file, "is a binary recalibration report of the wrong size (" + buffer.limit() + " bytes where " + position + " were expected)");
+            } catch (BufferUnderflowException e) {
+                throw new UserException.MalformedFile(file, "is a truncated binary recalibration report");
+            }
+        }
+
+        private String readString() {
+            final byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        public GATKReportTable getArgumentTable() {
+            return argumentTable;
+        }
+
+        public QuantizationInfo getQuantizationInfo() {
+            return quantizationInfo;
+        }
+
+        /**
+         * @return the names of the read groups, in the order of their keys
+         */
+        public List<String> getReadGroups() {
+            return readGroups;
+        }
+
+        /**
+         * Stores the data of the report in recalibrationTables, which must have exactly the same dimensions
+         *
+         * @param recalibrationTables  the tables to store the data in
+         * @param requestedCovariates  the covariates of recalibrationTables
+         */
+        public void readTables(final RecalibrationTables recalibrationTables, final Covariate[] requestedCovariates) {
+            checkNotClosed();
+            for ( int t = 0; t < dimensions.length; t++ ) {
+                final RecalDatumTable table = recalibrationTables.getTable(tableFor(t, requestedCovariates));
+                checkDimensions(t, table, 0);
+                final long size = readGroupStride(table) * table.getDimension(0);
+                int position = dataStart[t];
+                for ( long i = 0; i < dataSize[t]; i++, position += DATUM_SIZE ) {
+                    final long index = buffer.getLong(position);
+                    checkIndex(index, size);
+                    table.put(index, buffer.getLong(position + 8), buffer.getLong(position + 16), buffer.getDouble(position + 24), buffer.getDouble(position + 32));
+                }
+            }
+        }
+
+        /**
+         * Combines the data of the report into recalibrationTables, as RecalDatumTable.combine() does
+         *
+         * @param recalibrationTables  the tables to add the data to, which must have the same dimensions as the report
+         *                             except for the number of read groups
+         * @param requestedCovariates  the covariates of recalibrationTables
+         * @param readGroupKeys        the key in recalibrationTables of each of the read groups of the report
+         */
+        public void combineTables(final RecalibrationTables recalibrationTables, final Covariate[] requestedCovariates, final int[] readGroupKeys) {
+            checkNotClosed();
+            if ( readGroupKeys.length != readGroups.size() )
+                throw new ReviewedStingException("Expected " + readGroups.size() + " read group keys but got " + readGroupKeys.length);
+
+            for ( int t = 0; t < dimensions.length; t++ ) {
+                final RecalDatumTable table = recalibrationTables.getTable(tableFor(t, requestedCovariates));
+                checkDimensions(t, table, 1);
+                final long stride = readGroupStride(table);
+                final long size = stride * readGroupKeys.length;
+                int position = dataStart[t];
+                for ( long i = 0; i < dataSize[t]; i++, position += DATUM_SIZE ) {
+                    final long index = buffer.getLong(position);
+                    checkIndex(index, size);
+                    table.combine(readGroupKeys[(int)(index / stride)] * stride + index % stride, buffer.getLong(position + 8), buffer.getLong(position + 16), buffer.getDouble(position + 24));
+                }
+            }
+        }
+
+        /**
+         * Releases the mapping of the report; its header can still be used, but its data can no longer be read.
+         * The JVM unmaps the file once the buffer is garbage collected.
+         */
+        public void close() {
+            buffer = null;
+        }
+
+        private void checkNotClosed() {
+            if ( buffer == null )
+                throw new ReviewedStingException("The binary recalibration report " + file + " has already been closed");
+        }
+
+        /**
+         * @return the index among requestedCovariates of the covariate of table t of the report
+         */
+        private int tableFor(final int t, final Covariate[] requestedCovariates) {
+            if ( requestedCovariates.length != covariates.length )
+                throw new UserException.MalformedFile(file, "has " + covariates.length + " recalibration tables but its arguments call for " + requestedCovariates.length);
+            for ( int i = 0; i < requestedCovariates.length; i++ ) {
+                if ( requestedCovariates[i].getClass().getSimpleName().equals(covariates[t]) )
+                    return i;
+            }
+            throw new UserException.MalformedFile(file, "has a recalibration table for the " + covariates[t] + " which its arguments don't call for");
+        }
+
+        private void checkDimensions(final int t, final RecalDatumTable table, final int firstDimension) {
+            boolean matches = table.numDimensions() == dimensions[t].length;
+            for ( int i = firstDimension; matches && i < dimensions[t].length; i++ )
+                matches = table.getDimension(i) == dimensions[t][i];
+            if ( ! matches )
+                throw new UserException.MalformedFile(file, "has a recalibration table with dimensions " + Arrays.toString(dimensions[t]) + " that don't match the covariates of the recalibration");
+        }
+
+        private void checkIndex(final long index, final long size) {
+            if ( index < 0 || index >= size )
+                throw new UserException.MalformedFile(file, "has a recalibration datum with index " + index + " outside of its table");
+        }
+    }
+}
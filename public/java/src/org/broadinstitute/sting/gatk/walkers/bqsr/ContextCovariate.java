@@ -26,14 +26,10 @@
 package org.broadinstitute.sting.gatk.walkers.bqsr;
 
 import org.broadinstitute.sting.utils.BaseUtils;
-import org.broadinstitute.sting.utils.clipping.ClippingRepresentation;
-import org.broadinstitute.sting.utils.clipping.ReadClipper;
 import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
 import org.broadinstitute.sting.utils.exceptions.UserException;
 import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
 
-import java.util.ArrayList;
-
 /**
  * Created by IntelliJ IDEA.
  * User: rpoplin
@@ -75,29 +71,49 @@ public class ContextCovariate implements StandardCovariate {
         indelsKeyMask = createMask(indelsContextSize);
     }
 
+    /**
+     * Computes the mismatch and indel context keys of every base in a single rolling pass over the bases, in the
+     * direction they were sequenced, pushing the 2-bit encoding of each base onto both keys.  The bases in the low
+     * quality tails are treated like Ns, and no context containing an N gets a key.
+     */
     @Override
     public void recordValues(final GATKSAMRecord read, final ReadCovariates values) {
+        final byte[] bases = read.getReadBases();
+        final byte[] quals = read.getBaseQualities();
+        final int readLength = bases.length;
 
-        // store the original bases and then write Ns over low quality ones
-        final byte[] originalBases = read.getReadBases().clone();
-        final GATKSAMRecord clippedRead = ReadClipper.clipLowQualEnds(read, LOW_QUAL_TAIL, ClippingRepresentation.WRITE_NS);   // Write N's over the low quality tail of the reads to avoid adding them into the context
-        
-        final boolean negativeStrand = clippedRead.getReadNegativeStrandFlag();
-        byte[] bases = clippedRead.getReadBases();
-        if (negativeStrand)
-            bases = BaseUtils.simpleReverseComplement(bases);
+        // the low quality tails are left out of the contexts, as if they were clipped with ClippingRepresentation.WRITE_NS
+        int firstGoodBase = 0;
+        while (firstGoodBase < readLength && quals[firstGoodBase] <= LOW_QUAL_TAIL)
+            firstGoodBase++;
+        int lastGoodBase = readLength - 1;
+        while (lastGoodBase >= 0 && quals[lastGoodBase] <= LOW_QUAL_TAIL)
+            lastGoodBase--;
+
+        final boolean negativeStrand = read.getReadNegativeStrandFlag();
+        final int mismatchesNewBaseOffset = 2 * (mismatchesContextSize - 1) + LENGTH_BITS;
+        final int indelsNewBaseOffset = 2 * (indelsContextSize - 1) + LENGTH_BITS;
+
+        int mismatchKey = 0;
+        int indelKey = 0;
+        int basesSinceLastN = 0;                                                                                        // the number of consecutive ACGT bases ending at the current one
+        for (int i = 0; i < readLength; i++) {
+            final int offset = negativeStrand ? readLength - i - 1 : i;
+            final int baseIndex = (offset < firstGoodBase || offset > lastGoodBase) ? -1 : BaseUtils.simpleBaseToBaseIndex(bases[offset]);
 
-        final ArrayList<Integer> mismatchKeys = contextWith(bases, mismatchesContextSize, mismatchesKeyMask);
-        final ArrayList<Integer> indelKeys = contextWith(bases, indelsContextSize, indelsKeyMask);
+            if (baseIndex == -1) {                                                                                      // ignore non-ACGT bases
+                basesSinceLastN = 0;
+            } else {
+                // push this base's contribution onto the keys: shift everything 2 bits, mask out the non-context bits, and add the new base and the length in
+                final int sequencedBaseIndex = negativeStrand ? 3 - baseIndex : baseIndex;                              // the complement of the base, on the negative strand
+                mismatchKey = ((mismatchKey >> 2) & mismatchesKeyMask) | (sequencedBaseIndex << mismatchesNewBaseOffset) | mismatchesContextSize;
+                indelKey = ((indelKey >> 2) & indelsKeyMask) | (sequencedBaseIndex << indelsNewBaseOffset) | indelsContextSize;
+                basesSinceLastN++;
+            }
 
-        final int readLength = bases.length;
-        for (int i = 0; i < readLength; i++) {
-            final int indelKey = indelKeys.get(i);
-            values.addCovariate(mismatchKeys.get(i), indelKey, indelKey, (negativeStrand ? readLength - i - 1 : i));
+            final int indelContextKey = basesSinceLastN >= indelsContextSize ? indelKey : -1;
+            values.addCovariate(basesSinceLastN >= mismatchesContextSize ? mismatchKey : -1, indelContextKey, indelContextKey, offset);
         }
-
-        // put the original bases back in
-        read.setReadBases(originalBases);
     }
 
     // Used to get the covariate's value from input csv file during on-the-fly recalibration
@@ -128,68 +144,6 @@ public class ContextCovariate implements StandardCovariate {
         return mask << LENGTH_BITS;
     }
 
-    /**
-     * calculates the context of a base independent of the covariate mode (mismatch, insertion or deletion)
-     *
-     * @param bases       the bases in the read to build the context from
-     * @param contextSize context size to use building the context
-     * @param mask        mask for pulling out just the context bits
-     */
-    private static ArrayList<Integer> contextWith(final byte[] bases, final int contextSize, final int mask) {
-
-        final int readLength = bases.length;
-        final ArrayList<Integer> keys = new ArrayList<Integer>(readLength);
-
-        // the first contextSize-1 bases will not have enough previous context
-        for (int i = 1; i < contextSize && i <= readLength; i++)
-            keys.add(-1);
-
-        if (readLength < contextSize)
-            return keys;
-
-        final int newBaseOffset = 2 * (contextSize - 1) + LENGTH_BITS;
-
-        // get (and add) the key for the context starting at the first base
-        int currentKey = keyFromContext(bases, 0, contextSize);
-        keys.add(currentKey);
-
-        // if the first key was -1 then there was an N in the context; figure out how many more consecutive contexts it affects
-        int currentNPenalty = 0;
-        if (currentKey == -1) {
-            currentKey = 0;
-            currentNPenalty = contextSize - 1;
-            int offset = newBaseOffset;
-            while (bases[currentNPenalty] != 'N') {
-                final int baseIndex = BaseUtils.simpleBaseToBaseIndex(bases[currentNPenalty]);
-                currentKey |= (baseIndex << offset);
-                offset -= 2;
-                currentNPenalty--;
-            }
-        }
-
-        for (int currentIndex = contextSize; currentIndex < readLength; currentIndex++) {
-            final int baseIndex = BaseUtils.simpleBaseToBaseIndex(bases[currentIndex]);
-            if (baseIndex == -1) {                    // ignore non-ACGT bases
-                currentNPenalty = contextSize;
-                currentKey = 0;                       // reset the key
-            } else {
-                // push this base's contribution onto the key: shift everything 2 bits, mask out the non-context bits, and add the new base and the length in
-                currentKey = (currentKey >> 2) & mask;
-                currentKey |= (baseIndex << newBaseOffset);
-                currentKey |= contextSize;
-            }
-
-            if (currentNPenalty == 0) {
-                keys.add(currentKey);
-            } else {
-                currentNPenalty--;
-                keys.add(-1);
-            }
-        }
-
-        return keys;
-    }
-
     public static int keyFromContext(final String dna) {
         return keyFromContext(dna.getBytes(), 0, dna.length());
     }
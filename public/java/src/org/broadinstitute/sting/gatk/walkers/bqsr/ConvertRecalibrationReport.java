@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.bqsr;
+
+import org.broadinstitute.sting.commandline.Argument;
+import org.broadinstitute.sting.commandline.CommandLineProgram;
+import org.broadinstitute.sting.utils.exceptions.UserException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+
+/**
+ * Converts a recalibration report from the GATKReport text format to the binary format of BinaryRecalibrationReport,
+ * or from the binary format back to text, depending on the format of the input.
+ */
+public class ConvertRecalibrationReport extends CommandLineProgram {
+    @Argument(fullName="input",shortName="I",doc="Recalibration report to convert",required=true)
+    private File input = null;
+
+    @Argument(fullName="output",shortName="O",doc="Converted recalibration report to create",required=true)
+    private File output = null;
+
+    public int execute() {
+        final boolean binaryInput = BinaryRecalibrationReport.isBinaryReport(input);
+        final RecalibrationReport report = new RecalibrationReport(input);
+
+        if ( binaryInput ) {
+            final PrintStream out;
+            try {
+                out = new PrintStream(output);
+            } catch (FileNotFoundException e) {
+                throw new UserException.CouldNotCreateOutputFile(output, "could not be created", e);
+            }
+            report.output(out);
+            out.close();
+        } else {
+            report.outputBinary(output);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Required main method implementation.
+     * @param argv Command-line argument text.
+     * @throws Exception on error.
+     */
+    public static void main(String[] argv) throws Exception {
+        int returnCode = 0;
+        try {
+            ConvertRecalibrationReport instance = new ConvertRecalibrationReport();
+            start(instance, argv);
+            returnCode = 0;
+        }
+        catch(Exception ex) {
+            returnCode = 1;
+            ex.printStackTrace();
+            throw ex;
+        }
+        finally {
+            System.exit(returnCode);
+        }
+    }
+}
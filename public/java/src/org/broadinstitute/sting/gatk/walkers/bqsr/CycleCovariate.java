@@ -1,6 +1,5 @@
 package org.broadinstitute.sting.gatk.walkers.bqsr;
 
-import org.broadinstitute.sting.utils.BaseUtils;
 import org.broadinstitute.sting.utils.NGSPlatform;
 import org.broadinstitute.sting.utils.exceptions.UserException;
 import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
@@ -49,7 +48,7 @@ public class CycleCovariate implements StandardCovariate {
 
     private static final int MAXIMUM_CYCLE_VALUE = 1000;
     private static final int CUSHION_FOR_INDELS = 4;
-    private static String default_platform = null;
+    private static NGSPlatform default_platform = null;
 
     private static final EnumSet<NGSPlatform> DISCRETE_CYCLE_PLATFORMS = EnumSet.of(NGSPlatform.ILLUMINA, NGSPlatform.SOLID, NGSPlatform.PACBIO, NGSPlatform.COMPLETE_GENOMICS);
     private static final EnumSet<NGSPlatform> FLOW_CYCLE_PLATFORMS = EnumSet.of(NGSPlatform.LS454, NGSPlatform.ION_TORRENT);
@@ -61,14 +60,14 @@ public class CycleCovariate implements StandardCovariate {
             throw new UserException.CommandLineException("The requested default platform (" + RAC.DEFAULT_PLATFORM + ") is not a recognized platform.");
 
         if (RAC.DEFAULT_PLATFORM != null)
-            default_platform = RAC.DEFAULT_PLATFORM;
+            default_platform = NGSPlatform.fromReadGroupPL(RAC.DEFAULT_PLATFORM);
     }
 
     // Used to pick out the covariate's value from attributes of the read
     @Override
     public void recordValues(final GATKSAMRecord read, final ReadCovariates values) {
         final int readLength = read.getReadLength();
-        final NGSPlatform ngsPlatform = default_platform == null ? read.getNGSPlatform() : NGSPlatform.fromReadGroupPL(default_platform);
+        final NGSPlatform ngsPlatform = default_platform == null ? read.getNGSPlatform() : default_platform;
 
         // Discrete cycle platforms
         if (DISCRETE_CYCLE_PLATFORMS.contains(ngsPlatform)) {
@@ -110,78 +109,28 @@ public class CycleCovariate implements StandardCovariate {
 
             // BUGBUG: Consider looking at degradation of base quality scores in homopolymer runs to detect when the cycle incremented even though the nucleotide didn't change
             // For example, AAAAAAA was probably read in two flow cycles but here we count it as one
-            if (!read.getReadNegativeStrandFlag()) { // Forward direction
-                int iii = 0;
-                while (iii < readLength) {
-                    while (iii < readLength && bases[iii] == (byte) 'T') {
-                        final int key = keyFromCycle(cycle);
-                        values.addCovariate(key, key, key, iii);
-                        iii++;
-                    }
-                    while (iii < readLength && bases[iii] == (byte) 'A') {
-                        final int key = keyFromCycle(cycle);
-                        values.addCovariate(key, key, key, iii);
-                        iii++;
-                    }
-                    while (iii < readLength && bases[iii] == (byte) 'C') {
-                        final int key = keyFromCycle(cycle);
-                        values.addCovariate(key, key, key, iii);
-                        iii++;
-                    }
-                    while (iii < readLength && bases[iii] == (byte) 'G') {
-                        final int key = keyFromCycle(cycle);
-                        values.addCovariate(key, key, key, iii);
-                        iii++;
-                    }
-                    if (iii < readLength) {
-                        if (multiplyByNegative1)
-                            cycle--;
-                        else
-                            cycle++;
-                    }
-                    if (iii < readLength && !BaseUtils.isRegularBase(bases[iii])) {
-                        final int key = keyFromCycle(cycle);
-                        values.addCovariate(key, key, key, iii);
-                        iii++;
-                    }
-
+            //
+            // Each flow cycle grabs the bases in TACG order, so the cycle moves on whenever a base comes earlier in the
+            // flow order than the previous one.  A base that isn't one of TACG moves the cycle on too, and the next base
+            // starts back at the beginning of the flow order.
+            final boolean negativeStrand = read.getReadNegativeStrandFlag();
+            final int cycleIncrement = multiplyByNegative1 ? -1 : 1;
+            int flow = 0;                                                                                               // the position in the flow order of the previous base
+            for (int i = 0; i < readLength; i++) {
+                final int offset = negativeStrand ? readLength - i - 1 : i;
+                final int baseFlow = flowIndex(bases[offset]);
+                if (baseFlow == -1) {
+                    cycle += cycleIncrement;
+                    flow = 0;
                 }
-            }
-            else { // Negative direction
-                int iii = readLength - 1;
-                while (iii >= 0) {
-                    while (iii >= 0 && bases[iii] == (byte) 'T') {
-                        final int key = keyFromCycle(cycle);
-                        values.addCovariate(key, key, key, iii);
-                        iii--;
-                    }
-                    while (iii >= 0 && bases[iii] == (byte) 'A') {
-                        final int key = keyFromCycle(cycle);
-                        values.addCovariate(key, key, key, iii);
-                        iii--;
-                    }
-                    while (iii >= 0 && bases[iii] == (byte) 'C') {
-                        final int key = keyFromCycle(cycle);
-                        values.addCovariate(key, key, key, iii);
-                        iii--;
-                    }
-                    while (iii >= 0 && bases[iii] == (byte) 'G') {
-                        final int key = keyFromCycle(cycle);
-                        values.addCovariate(key, key, key, iii);
-                        iii--;
-                    }
-                    if (iii >= 0) {
-                        if (multiplyByNegative1)
-                            cycle--;
-                        else
-                            cycle++;
-                    }
-                    if (iii >= 0 && !BaseUtils.isRegularBase(bases[iii])) {
-                        final int key = keyFromCycle(cycle);
-                        values.addCovariate(key, key, key, iii);
-                        iii--;
-                    }
+                else {
+                    if (baseFlow < flow)
+                        cycle += cycleIncrement;
+                    flow = baseFlow;
                 }
+
+                final int key = keyFromCycle(cycle);
+                values.addCovariate(key, key, key, offset);
             }
         }
 
@@ -215,6 +164,20 @@ public class CycleCovariate implements StandardCovariate {
         return (MAXIMUM_CYCLE_VALUE << 1) + 1;
     }
 
+    /**
+     * @param base the base
+     * @return the position of the base in the TACG flow order, or -1 if it isn't one of TACG
+     */
+    private static int flowIndex(final byte base) {
+        switch (base) {
+            case 'T': return 0;
+            case 'A': return 1;
+            case 'C': return 2;
+            case 'G': return 3;
+            default: return -1;
+        }
+    }
+
     private static int keyFromCycle(final int cycle) {
         // no negative values because values must fit into the first few bits of the long
         int result = Math.abs(cycle);
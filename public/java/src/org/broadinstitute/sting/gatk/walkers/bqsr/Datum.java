@@ -82,6 +82,10 @@ public class Datum {
     //---------------------------------------------------------------------------------------------------------------
 
     double empiricalQualDouble() {
+        return empiricalQualDouble(numObservations, numMismatches);
+    }
+
+    static double empiricalQualDouble(final long numObservations, final long numMismatches) {
         final double doubleMismatches = (double) (numMismatches + SMOOTHING_CONSTANT);
         final double doubleObservations = (double) (numObservations + SMOOTHING_CONSTANT + SMOOTHING_CONSTANT); // smoothing is one error and one non-error observation, for example
         final double empiricalQual = -10 * Math.log10(doubleMismatches / doubleObservations);
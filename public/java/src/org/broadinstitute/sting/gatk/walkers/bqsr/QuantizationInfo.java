@@ -3,7 +3,6 @@ package org.broadinstitute.sting.gatk.walkers.bqsr;
 import org.broadinstitute.sting.gatk.report.GATKReportTable;
 import org.broadinstitute.sting.utils.MathUtils;
 import org.broadinstitute.sting.utils.QualityUtils;
-import org.broadinstitute.sting.utils.collections.NestedIntegerArray;
 import org.broadinstitute.sting.utils.recalibration.QualQuantizer;
 import org.broadinstitute.sting.utils.recalibration.RecalibrationTables;
 
@@ -36,7 +35,7 @@ public class QuantizationInfo {
         for (int i = 0; i < qualHistogram.length; i++)
             qualHistogram[i] = 0L;
 
-        final NestedIntegerArray<RecalDatum> qualTable = recalibrationTables.getTable(RecalibrationTables.TableType.QUALITY_SCORE_TABLE); // get the quality score table
+        final RecalDatumTable qualTable = recalibrationTables.getTable(RecalibrationTables.TableType.QUALITY_SCORE_TABLE); // get the quality score table
 
         for (final RecalDatum value : qualTable.getAllValues()) {
             final RecalDatum datum = value;
@@ -65,6 +64,10 @@ public class QuantizationInfo {
         return quantizedQuals;
     }
 
+    public List<Long> getEmpiricalQualCounts() {
+        return empiricalQualCounts;
+    }
+
     public int getQuantizationLevels() {
         return quantizationLevels;
     }
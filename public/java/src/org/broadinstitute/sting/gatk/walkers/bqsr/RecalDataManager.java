@@ -248,7 +248,7 @@ public class RecalDataManager {
                 reportTable = result.get(RecalibrationTables.TableType.OPTIONAL_COVARIATE_TABLES_START.index);
             }
 
-            final NestedIntegerArray<RecalDatum> table = recalibrationTables.getTable(tableIndex);
+            final RecalDatumTable table = recalibrationTables.getTable(tableIndex);
             for (final NestedIntegerArray.Leaf row : table.getAllLeaves()) {
                 final RecalDatum datum = (RecalDatum)row.value;
                 final int[] keys = row.keys;
@@ -349,7 +349,7 @@ public class RecalDataManager {
         final NestedHashMap deltaTable = new NestedHashMap();
 
         // add the quality score table to the delta table
-        final NestedIntegerArray<RecalDatum> qualTable = recalibrationTables.getTable(RecalibrationTables.TableType.QUALITY_SCORE_TABLE);
+        final RecalDatumTable qualTable = recalibrationTables.getTable(RecalibrationTables.TableType.QUALITY_SCORE_TABLE);
         for (final NestedIntegerArray.Leaf leaf : qualTable.getAllLeaves()) {                                           // go through every element in the covariates table to create the delta table
             final int[] newCovs = new int[4];
             newCovs[0] = leaf.keys[0];
@@ -361,7 +361,7 @@ public class RecalDataManager {
 
         // add the optional covariates to the delta table
         for (int i = RecalibrationTables.TableType.OPTIONAL_COVARIATE_TABLES_START.index; i < requestedCovariates.length; i++) {
-            final NestedIntegerArray<RecalDatum> covTable = recalibrationTables.getTable(i);
+            final RecalDatumTable covTable = recalibrationTables.getTable(i);
             for (final NestedIntegerArray.Leaf leaf : covTable.getAllLeaves()) {
                 final int[] covs = new int[4];
                 covs[0] = leaf.keys[0];
@@ -81,6 +81,12 @@ public class RecalDatum extends Datum {
         empiricalQuality = UNINITIALIZED;
     }
 
+    @Override
+    void increment(final long incObservations, final long incMismatches) {
+        super.increment(incObservations, incMismatches);
+        empiricalQuality = UNINITIALIZED;
+    }
+
     @Requires("empiricalQuality == UNINITIALIZED")
     @Ensures("empiricalQuality != UNINITIALIZED")
     protected final void calcEmpiricalQuality() {
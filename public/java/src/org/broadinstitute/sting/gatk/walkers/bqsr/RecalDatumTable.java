@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.bqsr;
+
+import org.broadinstitute.sting.utils.collections.NestedIntegerArray;
+import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A table of recalibration data keyed by a fixed number of integer covariate keys, stored in flat primitive arrays
+ *
+ * The keys are combined into a single mixed-radix index, (((k0 * d1) + k1) * d2 + k2) ..., and the observations,
+ * mismatches, estimated reported qualities and cached empirical qualities of each index are kept in parallel
+ * arrays.  So updating or looking up a datum costs a few multiplications and array reads instead of walking a
+ * tree of Object[] levels.  Since most tables are sparse (only a few qualities and cycles occur in each read
+ * group) the index space is split into pages that are only allocated once something is stored in them.
+ *
+ * The fast paths take an index from one of the index() methods.  get(), put(), getAllValues() and getAllLeaves()
+ * keep the NestedIntegerArray<RecalDatum> interface for reading and writing reports, but the RecalDatums they
+ * return are copies: changing them doesn't change the table.
+ */
+public final class RecalDatumTable {
+    private final static int PAGE_BITS = 10;
+    private final static int PAGE_SIZE = 1 << PAGE_BITS;
+    private final static int PAGE_MASK = PAGE_SIZE - 1;
+
+    /** the value of empiricalQuality before it has been calculated, as in RecalDatum */
+    private final static double UNINITIALIZED = -1.0;
+
+    private final int[] dimensions;
+    private final Page[] pages;
+
+    private final static class Page {
+        final boolean[] present = new boolean[PAGE_SIZE];
+        final long[] numObservations = new long[PAGE_SIZE];
+        final long[] numMismatches = new long[PAGE_SIZE];
+        final double[] estimatedQReported = new double[PAGE_SIZE];
+        final double[] empiricalQuality = new double[PAGE_SIZE];
+    }
+
+    public RecalDatumTable(final int... dimensions) {
+        if ( dimensions.length == 0 )
+            throw new ReviewedStingException("There must be at least one dimension to a RecalDatumTable");
+        this.dimensions = dimensions.clone();
+
+        long size = 1;
+        for ( final int dimension : dimensions )
+            size *= dimension;
+        pages = new Page[(int)((size + PAGE_SIZE - 1) >>> PAGE_BITS)];
+    }
+
+    public int numDimensions() {
+        return dimensions.length;
+    }
+
+    /**
+     * @return the number of distinct values of the i-th key
+     */
+    public int getDimension(final int i) {
+        return dimensions[i];
+    }
+
+    // --------------------------------------------------------------------------------
+    //
+    // indexing
+    //
+    // --------------------------------------------------------------------------------
+
+    /**
+     * @return the index of keys, or -1 if any of them is outside of its dimension
+     */
+    public long index(final int... keys) {
+        if ( keys.length != dimensions.length )
+            throw new ReviewedStingException("Exactly " + dimensions.length + " keys should be passed to this RecalDatumTable but " + keys.length + " were provided");
+
+        long index = 0;
+        for ( int i = 0; i < keys.length; i++ ) {
+            if ( keys[i] < 0 || keys[i] >= dimensions[i] )
+                return -1;
+            index = index * dimensions[i] + keys[i];
+        }
+        return index;
+    }
+
+    /** index(k0, k1) without the varargs array, for two-dimensional tables */
+    public long index(final int k0, final int k1) {
+        if ( k0 < 0 || k0 >= dimensions[0] || k1 < 0 || k1 >= dimensions[1] )
+            return -1;
+        return (long)k0 * dimensions[1] + k1;
+    }
+
+    /** index(k0, k1, k2) without the varargs array, for three-dimensional tables */
+    public long index(final int k0, final int k1, final int k2) {
+        final long index = index(k0, k1);
+        if ( index < 0 || k2 < 0 || k2 >= dimensions[2] )
+            return -1;
+        return index * dimensions[2] + k2;
+    }
+
+    /** index(k0, k1, k2, k3) without the varargs array, for four-dimensional tables */
+    public long index(final int k0, final int k1, final int k2, final int k3) {
+        final long index = index(k0, k1, k2);
+        if ( index < 0 || k3 < 0 || k3 >= dimensions[3] )
+            return -1;
+        return index * dimensions[3] + k3;
+    }
+
+    private int[] keysOf(long index) {
+        final int[] keys = new int[dimensions.length];
+        for ( int i = dimensions.length - 1; i >= 0; i-- ) {
+            keys[i] = (int)(index % dimensions[i]);
+            index /= dimensions[i];
+        }
+        return keys;
+    }
+
+    private Page getPage(final long index) {
+        return index < 0 ? null : pages[(int)(index >>> PAGE_BITS)];
+    }
+
+    private Page getOrCreatePage(final long index) {
+        final int pageIndex = (int)(index >>> PAGE_BITS);
+        Page page = pages[pageIndex];
+        if ( page == null ) {
+            page = new Page();
+            pages[pageIndex] = page;
+        }
+        return page;
+    }
+
+    private void checkIndex(final long index) {
+        if ( index < 0 )
+            throw new ReviewedStingException("Keys are outside of the dimensions of this RecalDatumTable");
+    }
+
+    // --------------------------------------------------------------------------------
+    //
+    // fast paths
+    //
+    // --------------------------------------------------------------------------------
+
+    /**
+     * @return true if there is a datum at index
+     */
+    public boolean contains(final long index) {
+        final Page page = getPage(index);
+        return page != null && page.present[(int)index & PAGE_MASK];
+    }
+
+    /**
+     * Add one observation, with reported quality qual, to the datum at index, creating it if needed
+     */
+    public void increment(final long index, final byte qual, final boolean isError) {
+        checkIndex(index);
+        final Page page = getOrCreatePage(index);
+        final int i = (int)index & PAGE_MASK;
+        if ( ! page.present[i] ) {
+            page.present[i] = true;
+            page.estimatedQReported[i] = qual;
+        }
+        page.numObservations[i]++;
+        if ( isError )
+            page.numMismatches[i]++;
+        page.empiricalQuality[i] = UNINITIALIZED;
+    }
+
+    /**
+     * Add the observations and mismatches of other to the datum at index, keeping its estimated reported quality
+     * as it is.  For tables whose keys include the reported quality, where all of the data in a datum share it.
+     */
+    public void add(final long index, final RecalDatum other) {
+        checkIndex(index);
+        final Page page = getOrCreatePage(index);
+        final int i = (int)index & PAGE_MASK;
+        if ( ! page.present[i] ) {
+            set(page, i, other);
+        } else {
+            page.numObservations[i] += other.numObservations;
+            page.numMismatches[i] += other.numMismatches;
+            page.empiricalQuality[i] = UNINITIALIZED;
+        }
+    }
+
+    /**
+     * Combine other into the datum at index, as RecalDatum.combine() does, or store a copy of it if there isn't one
+     */
+    public void combine(final long index, final RecalDatum other) {
+        combine(index, other.numObservations, other.numMismatches, other.getEstimatedQReported());
+    }
+
+    /**
+     * Combine a datum with the given observations, mismatches and estimated reported quality into the datum at
+     * index, as RecalDatum.combine() does, or store it if there isn't one
+     */
+    public void combine(final long index, final long numObservations, final long numMismatches, final double estimatedQReported) {
+        checkIndex(index);
+        final Page page = getOrCreatePage(index);
+        final int i = (int)index & PAGE_MASK;
+        if ( ! page.present[i] ) {
+            page.present[i] = true;
+            page.numObservations[i] = numObservations;
+            page.numMismatches[i] = numMismatches;
+            page.estimatedQReported[i] = estimatedQReported;
+        } else {
+            final double sumErrors = page.numObservations[i] * qualToErrorProb(page.estimatedQReported[i])
+                    + numObservations * qualToErrorProb(estimatedQReported);
+            page.numObservations[i] += numObservations;
+            page.numMismatches[i] += numMismatches;
+            page.estimatedQReported[i] = -10 * Math.log10(sumErrors / page.numObservations[i]);
+        }
+        page.empiricalQuality[i] = UNINITIALIZED;
+    }
+
+    /**
+     * Store a datum with the given values at index, replacing whatever was there
+     */
+    public void put(final long index, final long numObservations, final long numMismatches, final double estimatedQReported, final double empiricalQuality) {
+        checkIndex(index);
+        final Page page = getOrCreatePage(index);
+        final int i = (int)index & PAGE_MASK;
+        page.present[i] = true;
+        page.numObservations[i] = numObservations;
+        page.numMismatches[i] = numMismatches;
+        page.estimatedQReported[i] = estimatedQReported;
+        page.empiricalQuality[i] = empiricalQuality;
+    }
+
+    private static double qualToErrorProb(final double qual) {
+        return Math.pow(10.0, qual / -10.0);
+    }
+
+    /**
+     * @return the empirical quality of the datum at index, which must exist
+     */
+    public double getEmpiricalQuality(final long index) {
+        final Page page = getPage(index);
+        final int i = (int)index & PAGE_MASK;
+        if ( page.empiricalQuality[i] == UNINITIALIZED )
+            page.empiricalQuality[i] = Datum.empiricalQualDouble(page.numObservations[i], page.numMismatches[i]);
+        return page.empiricalQuality[i];
+    }
+
+    /**
+     * Calculates the empirical quality of every datum up front, so that getEmpiricalQuality() never writes to the
+     * table, and the table can be read by several threads at once as long as it isn't updated any more
+     */
+    public void calculateEmpiricalQualities() {
+        for ( final Page page : pages ) {
+            if ( page == null )
+                continue;
+            for ( int i = 0; i < PAGE_SIZE; i++ ) {
+                if ( page.present[i] && page.empiricalQuality[i] == UNINITIALIZED )
+                    page.empiricalQuality[i] = Datum.empiricalQualDouble(page.numObservations[i], page.numMismatches[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the estimated reported quality of the datum at index, which must exist
+     */
+    public double getEstimatedQReported(final long index) {
+        return getPage(index).estimatedQReported[(int)index & PAGE_MASK];
+    }
+
+    /**
+     * @return the number of observations of the datum at index, which must exist
+     */
+    public long getNumObservations(final long index) {
+        return getPage(index).numObservations[(int)index & PAGE_MASK];
+    }
+
+    /**
+     * @return the number of mismatches of the datum at index, which must exist
+     */
+    public long getNumMismatches(final long index) {
+        return getPage(index).numMismatches[(int)index & PAGE_MASK];
+    }
+
+    /**
+     * Walks the table without creating any objects:
+     *
+     * for ( long i = table.nextIndex(0); i >= 0; i = table.nextIndex(i + 1) ) ...
+     *
+     * @return the smallest index at or after from holding a datum, or -1 if there isn't one
+     */
+    public long nextIndex(final long from) {
+        for ( int pageIndex = (int)(from >>> PAGE_BITS); pageIndex < pages.length; pageIndex++ ) {
+            final Page page = pages[pageIndex];
+            if ( page == null )
+                continue;
+            for ( int i = pageIndex == (int)(from >>> PAGE_BITS) ? (int)from & PAGE_MASK : 0; i < PAGE_SIZE; i++ ) {
+                if ( page.present[i] )
+                    return ((long)pageIndex << PAGE_BITS) + i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of data in the table
+     */
+    public long size() {
+        long size = 0;
+        for ( final Page page : pages ) {
+            if ( page == null )
+                continue;
+            for ( int i = 0; i < PAGE_SIZE; i++ ) {
+                if ( page.present[i] )
+                    size++;
+            }
+        }
+        return size;
+    }
+
+    // --------------------------------------------------------------------------------
+    //
+    // RecalDatum views
+    //
+    // --------------------------------------------------------------------------------
+
+    /**
+     * @return a copy of the datum at keys, or null if there isn't one
+     */
+    public RecalDatum get(final int... keys) {
+        return get(index(keys));
+    }
+
+    /**
+     * @return a copy of the datum at index, or null if there isn't one
+     */
+    public RecalDatum get(final long index) {
+        if ( ! contains(index) )
+            return null;
+        final Page page = getPage(index);
+        final int i = (int)index & PAGE_MASK;
+        final RecalDatum datum = new RecalDatum(page.numObservations[i], page.numMismatches[i], (byte)1);
+        datum.setEstimatedQReported(page.estimatedQReported[i]);
+        datum.setEmpiricalQuality(page.empiricalQuality[i]);
+        return datum;
+    }
+
+    public void put(final RecalDatum value, final int... keys) { // WARNING! value comes before the keys!
+        if ( keys.length != dimensions.length )
+            throw new ReviewedStingException("Exactly " + dimensions.length + " keys should be passed to this RecalDatumTable but " + keys.length + " were provided");
+        for ( int i = 0; i < keys.length; i++ )
+            if ( keys[i] >= dimensions[i] )
+                throw new ReviewedStingException("Key " + keys[i] + " is too large for dimension " + i + " (max is " + (dimensions[i]-1) + ")");
+
+        final long index = index(keys);
+        checkIndex(index);
+        set(getOrCreatePage(index), (int)index & PAGE_MASK, value);
+    }
+
+    private static void set(final Page page, final int i, final RecalDatum value) {
+        page.present[i] = true;
+        page.numObservations[i] = value.numObservations;
+        page.numMismatches[i] = value.numMismatches;
+        page.estimatedQReported[i] = value.getEstimatedQReported();
+        page.empiricalQuality[i] = value.getEmpiricalQuality();
+    }
+
+    /**
+     * @return copies of all of the data in the table, in the order of their keys
+     */
+    public List<RecalDatum> getAllValues() {
+        final List<RecalDatum> result = new ArrayList<RecalDatum>();
+        for ( final NestedIntegerArray.Leaf leaf : getAllLeaves() )
+            result.add((RecalDatum)leaf.value);
+        return result;
+    }
+
+    /**
+     * @return the keys and copies of all of the data in the table, in the order of their keys
+     */
+    public List<NestedIntegerArray.Leaf> getAllLeaves() {
+        final List<NestedIntegerArray.Leaf> result = new ArrayList<NestedIntegerArray.Leaf>();
+        for ( int pageIndex = 0; pageIndex < pages.length; pageIndex++ ) {
+            final Page page = pages[pageIndex];
+            if ( page == null )
+                continue;
+            for ( int i = 0; i < PAGE_SIZE; i++ ) {
+                if ( page.present[i] ) {
+                    final long index = ((long)pageIndex << PAGE_BITS) + i;
+                    result.add(new NestedIntegerArray.Leaf(keysOf(index), get(index)));
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -153,6 +153,14 @@ public class RecalibrationArgumentCollection {
     @Argument(fullName = "quantizing_levels", shortName = "ql", required = false, doc = "number of distinct quality scores in the quantized output")
     public int QUANTIZING_LEVELS = 16;
 
+    /**
+     * Writes the recalibration report in a compact binary format instead of as a GATKReport.  Binary reports load much
+     * faster with -BQSR and are gathered in a single pass when scattering with Queue; they can be converted to and
+     * from the text format with ConvertRecalibrationReport.
+     */
+    @Argument(fullName = "binary_report", shortName = "binaryReport", required = false, doc = "write the recalibration report in the binary format")
+    public boolean BINARY_REPORT = false;
+
     /**
      * The tag name for the binary tag covariate (if using it)
      */
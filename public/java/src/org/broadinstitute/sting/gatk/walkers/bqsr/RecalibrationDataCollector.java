@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.bqsr;
+
+import net.sf.samtools.SAMFileHeader;
+import org.apache.log4j.Logger;
+import org.broadinstitute.sting.gatk.GenomeAnalysisEngine;
+import org.broadinstitute.sting.utils.classloader.GATKLiteUtils;
+import org.broadinstitute.sting.utils.collections.Pair;
+import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
+import org.broadinstitute.sting.utils.exceptions.UserException;
+import org.broadinstitute.sting.utils.recalibration.RecalibrationTables;
+import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
+import org.broadinstitute.sting.utils.sam.ReadUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+
+/**
+ * The state shared by the walkers that collect the recalibration tables, BaseRecalibrator (by locus) and
+ * BaseRecalibratorByRead (by read): the covariates, the tables and the engine filling them in, and the
+ * report written once the traversal is done.
+ */
+class RecalibrationDataCollector {
+    private static final String NO_DBSNP_EXCEPTION = "This calculation is critically dependent on being able to skip over known variant sites. Please provide a VCF file containing known sites of genetic variation.";
+
+    private final RecalibrationArgumentCollection RAC;
+    private final Logger logger;
+
+    private QuantizationInfo quantizationInfo;                                                                          // an object that keeps track of the information necessary for quality score quantization
+
+    private RecalibrationTables recalibrationTables;
+
+    private Covariate[] requestedCovariates;                                                                            // list to hold the all the covariate objects that were requested (required + standard + experimental)
+
+    private RecalibrationEngine recalibrationEngine;
+
+    private int minimumQToUse;
+
+    public RecalibrationDataCollector(final RecalibrationArgumentCollection RAC, final Logger logger) {
+        this.RAC = RAC;
+        this.logger = logger;
+    }
+
+    /**
+     * Parse the -cov arguments and create a list of covariates to be used here
+     * Based on the covariates' estimates for initial capacity allocate the data hashmap
+     *
+     * @param toolkit the engine running the walker
+     */
+    public void initialize(final GenomeAnalysisEngine toolkit) {
+
+        // check for unsupported access
+        if (toolkit.isGATKLite() && !toolkit.getArguments().disableIndelQuals)
+            throw new UserException.NotSupportedInGATKLite("base insertion/deletion recalibration is not supported, please use the --disable_indel_quals argument");
+
+        if (RAC.FORCE_PLATFORM != null)
+            RAC.DEFAULT_PLATFORM = RAC.FORCE_PLATFORM;
+
+        if (RAC.knownSites.isEmpty() && !RAC.RUN_WITHOUT_DBSNP)                                                         // Warn the user if no dbSNP file or other variant mask was specified
+            throw new UserException.CommandLineException(NO_DBSNP_EXCEPTION);
+
+        if (RAC.LIST_ONLY) {
+            RecalDataManager.listAvailableCovariates(logger);
+            System.exit(0);
+        }
+        RAC.recalibrationReport = toolkit.getArguments().BQSR_RECAL_FILE;                                               // if we have a recalibration file, record it so it goes on the report table
+
+        Pair<ArrayList<Covariate>, ArrayList<Covariate>> covariates = RecalDataManager.initializeCovariates(RAC);       // initialize the required and optional covariates
+        ArrayList<Covariate> requiredCovariates = covariates.getFirst();
+        ArrayList<Covariate> optionalCovariates = covariates.getSecond();
+
+        requestedCovariates = new Covariate[requiredCovariates.size() + optionalCovariates.size()];
+        int covariateIndex = 0;
+        for (final Covariate covariate : requiredCovariates)
+            requestedCovariates[covariateIndex++] = covariate;
+        for (final Covariate covariate : optionalCovariates)
+            requestedCovariates[covariateIndex++] = covariate;
+
+        logger.info("The covariates being used here: ");
+        for (Covariate cov : requestedCovariates) {                                                                     // list all the covariates being used
+            logger.info("\t" + cov.getClass().getSimpleName());
+            cov.initialize(RAC);                                                                                        // initialize any covariate member variables using the shared argument collection
+        }
+
+        int numReadGroups = 0;
+        for ( final SAMFileHeader header : toolkit.getSAMFileHeaders() )
+            numReadGroups += header.getReadGroups().size();
+        recalibrationTables = new RecalibrationTables(requestedCovariates, numReadGroups);
+
+        recalibrationEngine = initializeRecalibrationEngine();
+        recalibrationEngine.initialize(requestedCovariates, recalibrationTables);
+
+        minimumQToUse = toolkit.getArguments().PRESERVE_QSCORES_LESS_THAN;
+    }
+
+    private RecalibrationEngine initializeRecalibrationEngine() {
+
+        final Class recalibrationEngineClass = GATKLiteUtils.getProtectedClassIfAvailable(RecalibrationEngine.class);
+        try {
+            Constructor constructor = recalibrationEngineClass.getDeclaredConstructor((Class[])null);
+            constructor.setAccessible(true);
+            return (RecalibrationEngine)constructor.newInstance();
+        }
+        catch (Exception e) {
+            throw new ReviewedStingException("Unable to create RecalibrationEngine class instance " + recalibrationEngineClass.getSimpleName());
+        }
+    }
+
+    public RecalibrationEngine getRecalibrationEngine() {
+        return recalibrationEngine;
+    }
+
+    public Covariate[] getRequestedCovariates() {
+        return requestedCovariates;
+    }
+
+    public boolean isLowQualityBase(final GATKSAMRecord read, final int offset) {
+        return read.getBaseQualities()[offset] < minimumQToUse;
+    }
+
+    /**
+     * Parses the platform of a read seen for the first time, and decides whether it's to be skipped altogether
+     *
+     * @param read the read
+     * @return true if none of the bases of this read should be used
+     */
+    public boolean skipRead(final GATKSAMRecord read) {
+        RecalDataManager.parsePlatformForRead(read, RAC);
+        return RecalDataManager.isColorSpaceConsistent(RAC.SOLID_NOCALL_STRATEGY, read);
+    }
+
+    /**
+     * SOLID bams have inserted the reference base into the read if the color space in inconsistent with the read base,
+     * so those bases mustn't be used
+     *
+     * @param read   the read
+     * @param offset the offset of the base in the read
+     * @return true if the base at offset can be used
+     */
+    public boolean isUsableSOLiDBase(final GATKSAMRecord read, final int offset) {
+        return !ReadUtils.isSOLiDRead(read) ||
+                RAC.SOLID_RECAL_MODE == RecalDataManager.SOLID_RECAL_MODE.DO_NOTHING ||
+                RecalDataManager.isColorSpaceConsistent(read, offset);
+    }
+
+    /**
+     * Merges the data of all of the threads, quantizes the qualities and writes the report (and the plots)
+     *
+     * @param toolkit the engine running the walker
+     */
+    public void onTraversalDone(final GenomeAnalysisEngine toolkit) {
+        recalibrationEngine.finalizeData();
+        logger.info("Calculating quantized quality scores...");
+        quantizeQualityScores();
+        if (!RAC.NO_PLOTS) {
+            logger.info("Generating recalibration plots...");
+            generatePlots(toolkit);
+        }
+        logger.info("Writing recalibration report...");
+        generateReport();
+        logger.info("...done!");
+    }
+
+    private void generatePlots(final GenomeAnalysisEngine toolkit) {
+        File recalFile = toolkit.getArguments().BQSR_RECAL_FILE;
+        if (recalFile != null) {
+            RecalibrationReport report = new RecalibrationReport(recalFile);
+            RecalDataManager.generateRecalibrationPlot(RAC.RECAL_FILE, report.getRecalibrationTables(), recalibrationTables, requestedCovariates, RAC.KEEP_INTERMEDIATE_FILES);
+        }
+        else
+            RecalDataManager.generateRecalibrationPlot(RAC.RECAL_FILE, recalibrationTables, requestedCovariates, RAC.KEEP_INTERMEDIATE_FILES);
+    }
+
+
+    /**
+     * go through the quality score table and use the # observations and the empirical quality score
+     * to build a quality score histogram for quantization. Then use the QuantizeQual algorithm to
+     * generate a quantization map (recalibrated_qual -> quantized_qual)
+     */
+    private void quantizeQualityScores() {
+        quantizationInfo = new QuantizationInfo(recalibrationTables, RAC.QUANTIZING_LEVELS);
+    }
+
+    private void generateReport() {
+        if ( RAC.BINARY_REPORT ) {
+            BinaryRecalibrationReport.write(RAC.generateReportTable(), quantizationInfo, recalibrationTables, requestedCovariates, RAC.RECAL_FILE);
+            return;
+        }
+
+        PrintStream output;
+        try {
+            output = new PrintStream(RAC.RECAL_FILE);
+        } catch (FileNotFoundException e) {
+            throw new UserException.CouldNotCreateOutputFile(RAC.RECAL_FILE, "could not be created");
+        }
+
+        RecalDataManager.outputRecalibrationReport(RAC, quantizationInfo, recalibrationTables, requestedCovariates, output);
+    }
+}
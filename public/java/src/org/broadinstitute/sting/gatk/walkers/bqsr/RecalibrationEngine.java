@@ -2,6 +2,7 @@ package org.broadinstitute.sting.gatk.walkers.bqsr;
 
 import org.broadinstitute.sting.utils.pileup.PileupElement;
 import org.broadinstitute.sting.utils.recalibration.RecalibrationTables;
+import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
 
 /*
 * Copyright (c) 2009 The Broad Institute
@@ -33,4 +34,19 @@ public interface RecalibrationEngine {
 
     public void updateDataForPileupElement(final PileupElement pileupElement, final byte refBase);
 
+    /**
+     * Update the tables with every base of a read at once, rather than one pileup element at a time
+     *
+     * @param read    the read, with its covariates already computed
+     * @param skip    for each offset in the read, should the base be left out of the tables?
+     * @param isError for each offset in the read, is the base a mismatch with the reference?
+     */
+    public void updateDataForRead(final GATKSAMRecord read, final boolean[] skip, final boolean[] isError);
+
+    /**
+     * Make sure all of the data from the calls to updateDataForPileupElement, from every thread, is in the
+     * tables passed to initialize.  Must be called once all of the updates are done, before the tables are used.
+     */
+    public void finalizeData();
+
 }
@@ -31,19 +31,63 @@ public class RecalibrationReport {
     private final int[] tempCOVarray = new int[4];
 
     public RecalibrationReport(final File RECAL_FILE) {
-        final GATKReport report = new GATKReport(RECAL_FILE);
+        final BinaryRecalibrationReport.Reader binaryReport = BinaryRecalibrationReport.isBinaryReport(RECAL_FILE) ? new BinaryRecalibrationReport.Reader(RECAL_FILE) : null;
+        final GATKReport report = binaryReport == null ? new GATKReport(RECAL_FILE) : null;
 
-        argumentTable = report.getTable(RecalDataManager.ARGUMENT_REPORT_TABLE_TITLE);
+        argumentTable = binaryReport == null ? report.getTable(RecalDataManager.ARGUMENT_REPORT_TABLE_TITLE) : binaryReport.getArgumentTable();
         RAC = initializeArgumentCollectionTable(argumentTable);
 
-        GATKReportTable quantizedTable = report.getTable(RecalDataManager.QUANTIZED_REPORT_TABLE_TITLE);
-        quantizationInfo = initializeQuantizationTable(quantizedTable);
+        quantizationInfo = binaryReport == null ? initializeQuantizationTable(report.getTable(RecalDataManager.QUANTIZED_REPORT_TABLE_TITLE)) : binaryReport.getQuantizationInfo();
 
+        optionalCovariateIndexes = new HashMap<String, Integer>();
+        requestedCovariates = initializeCovariates(RAC, optionalCovariateIndexes);
+
+        if ( binaryReport != null ) {
+            recalibrationTables = new RecalibrationTables(requestedCovariates, binaryReport.getReadGroups().size());
+            for ( final String readGroup : binaryReport.getReadGroups() )
+                requestedCovariates[0].keyFromValue(readGroup);                                                         // the read groups get their keys in the order they are seen, which is the order of the report
+            binaryReport.readTables(recalibrationTables, requestedCovariates);
+            binaryReport.close();
+            return;
+        }
+
+        recalibrationTables = new RecalibrationTables(requestedCovariates, countReadGroups(report.getTable(RecalDataManager.READGROUP_REPORT_TABLE_TITLE)));
+
+        parseReadGroupTable(report.getTable(RecalDataManager.READGROUP_REPORT_TABLE_TITLE), recalibrationTables.getTable(RecalibrationTables.TableType.READ_GROUP_TABLE));
+
+        parseQualityScoreTable(report.getTable(RecalDataManager.QUALITY_SCORE_REPORT_TABLE_TITLE), recalibrationTables.getTable(RecalibrationTables.TableType.QUALITY_SCORE_TABLE));
+
+        parseAllCovariatesTable(report.getTable(RecalDataManager.ALL_COVARIATES_REPORT_TABLE_TITLE), recalibrationTables);
+
+    }
+
+    /**
+     * Creates a report with empty tables for the given arguments and read groups, which get keys in the order given.
+     * Used by the BQSRGatherer to combine binary reports into.
+     */
+    protected RecalibrationReport(final GATKReportTable argumentTable, final List<String> readGroups) {
+        this.argumentTable = argumentTable;
+        this.RAC = initializeArgumentCollectionTable(argumentTable);
+        this.quantizationInfo = null;
+        this.optionalCovariateIndexes = new HashMap<String, Integer>();
+        this.requestedCovariates = initializeCovariates(RAC, optionalCovariateIndexes);
+        this.recalibrationTables = new RecalibrationTables(requestedCovariates, readGroups.size());
+        for ( final String readGroup : readGroups )
+            requestedCovariates[0].keyFromValue(readGroup);
+    }
+
+    /**
+     * Creates and initializes the covariates called for by RAC
+     *
+     * @param RAC                       the arguments of the report
+     * @param optionalCovariateIndexes  filled with the index of each optional covariate among the optional covariates, by name
+     * @return the required covariates followed by the optional ones
+     */
+    private static Covariate[] initializeCovariates(final RecalibrationArgumentCollection RAC, final HashMap<String, Integer> optionalCovariateIndexes) {
         Pair<ArrayList<Covariate>, ArrayList<Covariate>> covariates = RecalDataManager.initializeCovariates(RAC);       // initialize the required and optional covariates
         ArrayList<Covariate> requiredCovariates = covariates.getFirst();
         ArrayList<Covariate> optionalCovariates = covariates.getSecond();
-        requestedCovariates = new Covariate[requiredCovariates.size() + optionalCovariates.size()];
-        optionalCovariateIndexes = new HashMap<String, Integer>(optionalCovariates.size());
+        final Covariate[] requestedCovariates = new Covariate[requiredCovariates.size() + optionalCovariates.size()];
         int covariateIndex = 0;
         for (final Covariate covariate : requiredCovariates)
             requestedCovariates[covariateIndex++] = covariate;
@@ -56,15 +100,7 @@ public class RecalibrationReport {
 
         for (Covariate cov : requestedCovariates)
             cov.initialize(RAC);                                                                                        // initialize any covariate member variables using the shared argument collection
-
-        recalibrationTables = new RecalibrationTables(requestedCovariates, countReadGroups(report.getTable(RecalDataManager.READGROUP_REPORT_TABLE_TITLE)));
-
-        parseReadGroupTable(report.getTable(RecalDataManager.READGROUP_REPORT_TABLE_TITLE), recalibrationTables.getTable(RecalibrationTables.TableType.READ_GROUP_TABLE));
-
-        parseQualityScoreTable(report.getTable(RecalDataManager.QUALITY_SCORE_REPORT_TABLE_TITLE), recalibrationTables.getTable(RecalibrationTables.TableType.QUALITY_SCORE_TABLE));
-
-        parseAllCovariatesTable(report.getTable(RecalDataManager.ALL_COVARIATES_REPORT_TABLE_TITLE), recalibrationTables);
-
+        return requestedCovariates;
     }
 
     protected RecalibrationReport(final QuantizationInfo quantizationInfo, final RecalibrationTables recalibrationTables, final GATKReportTable argumentTable, final RecalibrationArgumentCollection RAC) {
@@ -105,17 +141,11 @@ public class RecalibrationReport {
     public void combine(final RecalibrationReport other) {
 
         for (RecalibrationTables.TableType type : RecalibrationTables.TableType.values()) {
-            final NestedIntegerArray<RecalDatum> myTable = recalibrationTables.getTable(type);
-            final NestedIntegerArray<RecalDatum> otherTable = other.recalibrationTables.getTable(type);
-
-            for (final NestedIntegerArray.Leaf row : otherTable.getAllLeaves()) {
-                final RecalDatum myDatum = myTable.get(row.keys);
+            final RecalDatumTable myTable = recalibrationTables.getTable(type);
+            final RecalDatumTable otherTable = other.recalibrationTables.getTable(type);
 
-                if (myDatum == null)
-                    myTable.put((RecalDatum)row.value, row.keys);
-                else
-                    myDatum.combine((RecalDatum)row.value);
-            }
+            for (final NestedIntegerArray.Leaf row : otherTable.getAllLeaves())
+                myTable.combine(myTable.index(row.keys), (RecalDatum)row.value);                                       // stores the datum if the key is new
         }
     }
 
@@ -162,7 +192,7 @@ public class RecalibrationReport {
      * @param reportTable            the GATKReport table containing data for this table
      * @param qualTable               the map representing this table
      */
-    private void parseQualityScoreTable(final GATKReportTable reportTable, final NestedIntegerArray<RecalDatum> qualTable) {
+    private void parseQualityScoreTable(final GATKReportTable reportTable, final RecalDatumTable qualTable) {
         for ( int i = 0; i < reportTable.getNumRows(); i++ ) {
             final Object rg = reportTable.get(i, RecalDataManager.READGROUP_COLUMN_NAME);
             tempQUALarray[0] = requestedCovariates[0].keyFromValue(rg);
@@ -181,7 +211,7 @@ public class RecalibrationReport {
      * @param reportTable            the GATKReport table containing data for this table
      * @param rgTable                the map representing this table
      */
-    private void parseReadGroupTable(final GATKReportTable reportTable, final NestedIntegerArray<RecalDatum> rgTable) {
+    private void parseReadGroupTable(final GATKReportTable reportTable, final RecalDatumTable rgTable) {
         for ( int i = 0; i < reportTable.getNumRows(); i++ ) {
             final Object rg = reportTable.get(i, RecalDataManager.READGROUP_COLUMN_NAME);
             tempRGarray[0] = requestedCovariates[0].keyFromValue(rg);
@@ -234,7 +264,7 @@ public class RecalibrationReport {
      * @param table the GATKReportTable containing the arguments and its corresponding values
      * @return a RAC object properly initialized with all the objects in the table
      */
-    private RecalibrationArgumentCollection initializeArgumentCollectionTable(GATKReportTable table) {
+    private static RecalibrationArgumentCollection initializeArgumentCollectionTable(GATKReportTable table) {
         final RecalibrationArgumentCollection RAC = new RecalibrationArgumentCollection();
 
         for ( int i = 0; i < table.getNumRows(); i++ ) {
@@ -310,6 +340,13 @@ public class RecalibrationReport {
         RecalDataManager.outputRecalibrationReport(argumentTable, quantizationInfo, recalibrationTables, requestedCovariates, output);
     }
 
+    /**
+     * Writes the report to file in the binary format of BinaryRecalibrationReport
+     */
+    public void outputBinary(final File file) {
+        BinaryRecalibrationReport.write(argumentTable, quantizationInfo, recalibrationTables, requestedCovariates, file);
+    }
+
     public RecalibrationArgumentCollection getRAC() {
         return RAC;
     }
@@ -32,14 +32,71 @@ import org.broadinstitute.sting.utils.pileup.PileupElement;
 import org.broadinstitute.sting.utils.recalibration.RecalibrationTables;
 import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class StandardRecalibrationEngine implements RecalibrationEngine, PublicPackageSource {
 
     protected Covariate[] covariates;
-    protected RecalibrationTables recalibrationTables;
+
+    /**
+     * The tables the data from all of the threads ends up in, filled in by finalizeData()
+     */
+    protected RecalibrationTables finalRecalibrationTables;
+
+    /**
+     * Each thread updates its own tables, so the updates don't need to be synchronized; they're merged into the
+     * final tables by finalizeData()
+     */
+    protected ThreadLocal<RecalibrationTables> threadLocalTables;
+    private final List<RecalibrationTables> allThreadLocalTables = new ArrayList<RecalibrationTables>();
 
     public void initialize(final Covariate[] covariates, final RecalibrationTables recalibrationTables) {
         this.covariates = covariates;
-        this.recalibrationTables = recalibrationTables;
+        this.finalRecalibrationTables = recalibrationTables;
+        resetThreadLocalTables();
+    }
+
+    /**
+     * Start giving each thread new, empty tables of its own
+     */
+    private void resetThreadLocalTables() {
+        threadLocalTables = new ThreadLocal<RecalibrationTables>() {
+            @Override
+            protected RecalibrationTables initialValue() {
+                final RecalibrationTables tables = finalRecalibrationTables.makeEmptyCopy();
+                synchronized (allThreadLocalTables) {
+                    allThreadLocalTables.add(tables);
+                }
+                return tables;
+            }
+        };
+    }
+
+    /**
+     * Merge the tables of each thread into the final tables.  The read group table combines the estimated reported
+     * qualities of its datums, while the datums of the other tables all have the same reported quality, which is
+     * one of their keys, so only their counts are added up.
+     */
+    public void finalizeData() {
+        synchronized (allThreadLocalTables) {
+            for ( final RecalibrationTables threadTables : allThreadLocalTables ) {
+                for ( int i = 0; i < finalRecalibrationTables.numTables(); i++ ) {
+                    final RecalDatumTable finalTable = finalRecalibrationTables.getTable(i);
+                    for ( final NestedIntegerArray.Leaf leaf : threadTables.getTable(i).getAllLeaves() ) {
+                        final long index = finalTable.index(leaf.keys);
+                        if ( i == RecalibrationTables.TableType.READ_GROUP_TABLE.index )
+                            finalTable.combine(index, (RecalDatum)leaf.value);
+                        else
+                            finalTable.add(index, (RecalDatum)leaf.value);
+                    }
+                }
+            }
+            allThreadLocalTables.clear();
+        }
+
+        // the merged tables mustn't be updated again, so any further updates go into new tables for the next call
+        resetThreadLocalTables();
     }
 
     /**
@@ -50,40 +107,46 @@ public class StandardRecalibrationEngine implements RecalibrationEngine, PublicP
      * @param pileupElement The pileup element to update
      * @param refBase       The reference base at this locus
      */
-    public synchronized void updateDataForPileupElement(final PileupElement pileupElement, final byte refBase) {
-        final int offset = pileupElement.getOffset();
-        final ReadCovariates readCovariates = covariateKeySetFrom(pileupElement.getRead());
-
-        final byte qual = pileupElement.getQual();
+    public void updateDataForPileupElement(final PileupElement pileupElement, final byte refBase) {
         final boolean isError = !BaseUtils.basesAreEqual(pileupElement.getBase(), refBase);
+        updateDataForBase(threadLocalTables.get(), covariateKeySetFrom(pileupElement.getRead()), pileupElement.getOffset(), pileupElement.getQual(), isError);
+    }
+
+    public void updateDataForRead(final GATKSAMRecord read, final boolean[] skip, final boolean[] isError) {
+        final RecalibrationTables recalibrationTables = threadLocalTables.get();
+        final ReadCovariates readCovariates = covariateKeySetFrom(read);
+        final byte[] quals = read.getBaseQualities();
 
+        for (int offset = 0; offset < quals.length; offset++) {
+            if (!skip[offset])
+                updateDataForBase(recalibrationTables, readCovariates, offset, quals[offset], isError[offset]);
+        }
+    }
+
+    /**
+     * Adds one observation of the base at offset in a read, an error or not, to the tables
+     *
+     * @param recalibrationTables the tables of this thread
+     * @param readCovariates      the covariates of the read
+     * @param offset              the offset of the base in the read
+     * @param qual                the reported quality of the base
+     * @param isError             is the base a mismatch with the reference?
+     */
+    private void updateDataForBase(final RecalibrationTables recalibrationTables, final ReadCovariates readCovariates, final int offset, final byte qual, final boolean isError) {
         final int[] keys = readCovariates.getKeySet(offset, EventType.BASE_SUBSTITUTION);
         final int eventIndex = EventType.BASE_SUBSTITUTION.index;
 
-        final NestedIntegerArray<RecalDatum> rgRecalTable = recalibrationTables.getTable(RecalibrationTables.TableType.READ_GROUP_TABLE);
-        final RecalDatum rgPreviousDatum = rgRecalTable.get(keys[0], eventIndex);
-        final RecalDatum rgThisDatum = createDatumObject(qual, isError);
-        if (rgPreviousDatum == null)                                                                                // key doesn't exist yet in the map so make a new bucket and add it
-            rgRecalTable.put(rgThisDatum, keys[0], eventIndex);
-        else
-            rgPreviousDatum.combine(rgThisDatum);
-
-        final NestedIntegerArray<RecalDatum> qualRecalTable = recalibrationTables.getTable(RecalibrationTables.TableType.QUALITY_SCORE_TABLE);
-        final RecalDatum qualPreviousDatum = qualRecalTable.get(keys[0], keys[1], eventIndex);
-        if (qualPreviousDatum == null)
-            qualRecalTable.put(createDatumObject(qual, isError), keys[0], keys[1], eventIndex);
-        else
-            qualPreviousDatum.increment(isError);
+        final RecalDatumTable rgRecalTable = recalibrationTables.getTable(RecalibrationTables.TableType.READ_GROUP_TABLE);
+        rgRecalTable.combine(rgRecalTable.index(keys[0], eventIndex), 1, isError ? 1 : 0, qual);
+
+        final RecalDatumTable qualRecalTable = recalibrationTables.getTable(RecalibrationTables.TableType.QUALITY_SCORE_TABLE);
+        qualRecalTable.increment(qualRecalTable.index(keys[0], keys[1], eventIndex), qual, isError);
 
         for (int i = 2; i < covariates.length; i++) {
             if (keys[i] < 0)
                 continue;
-            final NestedIntegerArray<RecalDatum> covRecalTable = recalibrationTables.getTable(i);
-            final RecalDatum covPreviousDatum = covRecalTable.get(keys[0], keys[1], keys[i], eventIndex);
-            if (covPreviousDatum == null)
-                covRecalTable.put(createDatumObject(qual, isError), keys[0], keys[1], keys[i], eventIndex);
-            else
-                covPreviousDatum.increment(isError);
+            final RecalDatumTable covRecalTable = recalibrationTables.getTable(i);
+            covRecalTable.increment(covRecalTable.index(keys[0], keys[1], keys[i], eventIndex), qual, isError);
         }
     }
 
@@ -35,6 +35,8 @@ import org.broadinstitute.sting.utils.pileup.PileupElement;
 import org.broadinstitute.sting.utils.pileup.ReadBackedPileup;
 
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static java.lang.Math.log10;
 import static java.lang.Math.pow;
@@ -90,15 +92,23 @@ public class DiploidSNPGenotypeLikelihoods implements Cloneable {
     protected double log10_PCR_error_3;
     protected double log10_1_minus_PCR_error;
 
+    // the likelihoods of each observation at our PCR error rate
+    private final LikelihoodTables tables;
+
     /**
      * Create a new GenotypeLikelhoods object with given PCR error rate for each diploid genotype
      *
      * @param PCR_error_rate  the PCR error rate
      */
     public DiploidSNPGenotypeLikelihoods(double PCR_error_rate) {
+        this(PCR_error_rate, getTables(PCR_error_rate));
+    }
+
+    private DiploidSNPGenotypeLikelihoods(double PCR_error_rate, LikelihoodTables tables) {
         log10_PCR_error_3 = log10(PCR_error_rate) - log10_3;
         log10_1_minus_PCR_error = log10(1.0 - PCR_error_rate);
         setToZero();
+        this.tables = tables;
     }
 
     /**
@@ -124,6 +134,10 @@ public class DiploidSNPGenotypeLikelihoods implements Cloneable {
         return log10Likelihoods;
     }
 
+    protected LikelihoodTables getTables() {
+        return tables;
+    }
+
     // -------------------------------------------------------------------------------------
     //
     // add() routines.  These are the workhorse routines for calculating the overall genotype
@@ -211,26 +225,24 @@ public class DiploidSNPGenotypeLikelihoods implements Cloneable {
     private int add(byte obsBase1, byte qual1, byte obsBase2, byte qual2, int nObs) {
         // TODO-- Right now we assume that there are at most 2 reads per fragment.  This assumption is fine
         // TODO--   given the current state of next-gen sequencing, but may need to be fixed in the future.
-        // TODO--   However, when that happens, we'll need to be a lot smarter about the caching we do here.
 
-        // Just look up the cached result if it's available, or compute and store it
-        DiploidSNPGenotypeLikelihoods gl;
-        if ( ! inCache(obsBase1, qual1, obsBase2, qual2, FIXED_PLOIDY) ) {
-            gl = calculateCachedGenotypeLikelihoods(obsBase1, qual1, obsBase2, qual2, FIXED_PLOIDY);
+        // Just look up the precomputed likelihoods of this observation
+        final double[] table;
+        final int offset;
+        if ( qual2 == 0 ) {
+            table = tables.singleObservationLikelihoods;
+            offset = LikelihoodTables.getOffset(obsBase1, qual1);
         } else {
-            gl = getCachedGenotypeLikelihoods(obsBase1, qual1, obsBase2, qual2, FIXED_PLOIDY);
+            table = tables.getPairedObservationLikelihoods(obsBase1, qual1);
+            offset = table == null ? -1 : LikelihoodTables.getOffset(obsBase2, qual2);
         }
 
         // for bad bases, there are no likelihoods
-        if ( gl == null )
+        if ( offset < 0 )
             return 0;
 
-        double[] likelihoods = gl.getLikelihoods();
-
-        for ( DiploidGenotype g : DiploidGenotype.values() ) {
-            double likelihood = likelihoods[g.ordinal()];
-            log10Likelihoods[g.ordinal()] += likelihood * nObs;
-        }
+        for ( int i = 0; i < N_GENOTYPES; i++ )
+            log10Likelihoods[i] += table[offset + i] * nObs;
 
         return 1;
     }
@@ -241,84 +253,125 @@ public class DiploidSNPGenotypeLikelihoods implements Cloneable {
 
     // -------------------------------------------------------------------------------------
     //
-    // Dealing with the cache routines
+    // Dealing with the likelihood tables
     //
     // -------------------------------------------------------------------------------------
 
-    static DiploidSNPGenotypeLikelihoods[][][][][] CACHE = new DiploidSNPGenotypeLikelihoods[BaseUtils.BASES.length][QualityUtils.MAX_QUAL_SCORE+1][BaseUtils.BASES.length+1][QualityUtils.MAX_QUAL_SCORE+1][MAX_PLOIDY];
+    private final static int N_GENOTYPES = DiploidGenotype.values().length;
+    private final static int N_QUALS = QualityUtils.MAX_QUAL_SCORE + 1;
 
-    protected boolean inCache(byte observedBase1, byte qualityScore1, byte observedBase2, byte qualityScore2, int ploidy) {
-        return getCache(CACHE, observedBase1, qualityScore1, observedBase2, qualityScore2, ploidy) != null;
-    }
+    // the tables for each PCR error rate we've seen, with the last one used as a shortcut
+    private final static ConcurrentHashMap<Double, LikelihoodTables> TABLES = new ConcurrentHashMap<Double, LikelihoodTables>();
+    private static volatile LikelihoodTables lastTables = null;
 
-    protected DiploidSNPGenotypeLikelihoods getCachedGenotypeLikelihoods(byte observedBase1, byte qualityScore1, byte observedBase2, byte qualityScore2, int ploidy) {
-        DiploidSNPGenotypeLikelihoods gl = getCache(CACHE, observedBase1, qualityScore1, observedBase2, qualityScore2, ploidy);
-        if ( gl == null )
-            throw new RuntimeException(String.format("BUG: trying to fetch an unset cached genotype likelihood at base1=%c, qual1=%d, base2=%c, qual2=%d, ploidy=%d",
-                    observedBase1, qualityScore1, observedBase2, qualityScore2, ploidy));
-        return gl;
-    }
+    private static LikelihoodTables getTables(final double PCR_error_rate) {
+        final LikelihoodTables last = lastTables;
+        if ( last != null && last.PCR_error_rate == PCR_error_rate )
+            return last;
+
+        LikelihoodTables tables = TABLES.get(PCR_error_rate);
+        if ( tables == null ) {
+            final LikelihoodTables newTables = new LikelihoodTables(PCR_error_rate);
+            tables = TABLES.putIfAbsent(PCR_error_rate, newTables);
+            if ( tables == null )
+                tables = newTables;
+        }
 
-    protected DiploidSNPGenotypeLikelihoods calculateCachedGenotypeLikelihoods(byte observedBase1, byte qualityScore1, byte observedBase2, byte qualityScore2, int ploidy) {
-        DiploidSNPGenotypeLikelihoods gl = calculateGenotypeLikelihoods(observedBase1, qualityScore1, observedBase2, qualityScore2);
-        setCache(CACHE, observedBase1, qualityScore1, observedBase2, qualityScore2, ploidy, gl);
-        return gl;
+        lastTables = tables;
+        return tables;
     }
 
-    protected void setCache( DiploidSNPGenotypeLikelihoods[][][][][] cache,
-                             byte observedBase1, byte qualityScore1, byte observedBase2, byte qualityScore2, int ploidy,
-                             DiploidSNPGenotypeLikelihoods val ) {
-        int i = BaseUtils.simpleBaseToBaseIndex(observedBase1);
-        int j = qualityScore1;
-        int k = qualityScore2 != 0 ? BaseUtils.simpleBaseToBaseIndex(observedBase2) : BaseUtils.BASES.length;
-        int l = qualityScore2;
-        int m = ploidy;
+    /**
+     * The log10 likelihoods of all 10 genotypes given each possible observation, for one PCR error rate
+     *
+     * Rather than a cache of likelihoods objects, the likelihoods are kept in flat double tables with N_GENOTYPES
+     * entries for each observed base and quality, so adding an observation is just a lookup and N_GENOTYPES additions.
+     * The likelihoods of single observations are all computed up front.  Those of overlapping pairs of observations
+     * are computed lazily, one table for all second observations per first observed base and quality.
+     */
+    protected static final class LikelihoodTables {
+        private final static int TABLE_SIZE = BaseUtils.BASES.length * N_QUALS * N_GENOTYPES;
 
-        cache[i][j][k][l][m] = val;
-    }
+        private final double PCR_error_rate;
+        private final DiploidSNPGenotypeLikelihoods calculator;
 
-    protected DiploidSNPGenotypeLikelihoods getCache(DiploidSNPGenotypeLikelihoods[][][][][] cache,
-                                            byte observedBase1, byte qualityScore1, byte observedBase2, byte qualityScore2, int ploidy) {
-        int i = BaseUtils.simpleBaseToBaseIndex(observedBase1);
-        int j = qualityScore1;
-        int k = qualityScore2 != 0 ? BaseUtils.simpleBaseToBaseIndex(observedBase2) : BaseUtils.BASES.length;
-        int l = qualityScore2;
-        int m = ploidy;
-        return cache[i][j][k][l][m];
-    }
+        // indexed by getOffset(observedBase, qual)
+        private final double[] singleObservationLikelihoods = new double[TABLE_SIZE];
 
-    protected DiploidSNPGenotypeLikelihoods calculateGenotypeLikelihoods(byte observedBase1, byte qualityScore1, byte observedBase2, byte qualityScore2) {
-        double[] log10FourBaseLikelihoods = computeLog10Likelihoods(observedBase1, qualityScore1, observedBase2, qualityScore2);
+        // indexed by getOffset(observedBase1, qual1) / N_GENOTYPES, then within each table by getOffset(observedBase2, qual2)
+        private final AtomicReferenceArray<double[]> pairedObservationLikelihoods = new AtomicReferenceArray<double[]>(BaseUtils.BASES.length * N_QUALS);
 
-        try {
+        private LikelihoodTables(final double PCR_error_rate) {
+            // a likelihoods object without tables of its own, used only to compute the entries of ours
+            this.calculator = new DiploidSNPGenotypeLikelihoods(PCR_error_rate, null);
+            this.PCR_error_rate = PCR_error_rate;
 
-            DiploidSNPGenotypeLikelihoods gl = (DiploidSNPGenotypeLikelihoods)this.clone();
-            gl.setToZero();
+            for ( final byte base : BaseUtils.BASES )
+                for ( byte qual = 1; qual < N_QUALS; qual++ )
+                    System.arraycopy(calculator.calculateGenotypeLikelihoods(base, qual, (byte)0, (byte)0), 0, singleObservationLikelihoods, getOffset(base, qual), N_GENOTYPES);
+        }
 
-            // we need to adjust for ploidy.  We take the raw p(obs | chrom) / ploidy, which is -log10(ploidy) in log space
-            for ( DiploidGenotype g : DiploidGenotype.values() ) {
+        protected double[] getSingleObservationLikelihoods() {
+            return singleObservationLikelihoods;
+        }
 
-                // todo assumes ploidy is 2 -- should be generalized.  Obviously the below code can be turned into a loop
-                double p_base = 0.0;
-                p_base += pow(10, log10FourBaseLikelihoods[BaseUtils.simpleBaseToBaseIndex(g.base1)] - ploidyAdjustment);
-                p_base += pow(10, log10FourBaseLikelihoods[BaseUtils.simpleBaseToBaseIndex(g.base2)] - ploidyAdjustment);
+        /**
+         * @return the offset of the likelihoods of observing base with qual in a table, or -1 if base isn't a regular base
+         */
+        protected static int getOffset(final byte observedBase, final byte qual) {
+            final int baseIndex = BaseUtils.simpleBaseToBaseIndex(observedBase);
+            return baseIndex == -1 ? -1 : (baseIndex * N_QUALS + qual) * N_GENOTYPES;
+        }
 
-                final double likelihood = log10(p_base);
-                gl.log10Likelihoods[g.ordinal()] += likelihood;
+        /**
+         * @return the table of likelihoods of each second observation of a fragment whose first observation
+         *         was observedBase1 with qual1, or null if observedBase1 isn't a regular base
+         */
+        protected double[] getPairedObservationLikelihoods(final byte observedBase1, final byte qual1) {
+            final int offset1 = getOffset(observedBase1, qual1);
+            if ( offset1 == -1 )
+                return null;
+
+            final int i = offset1 / N_GENOTYPES;
+            double[] table = pairedObservationLikelihoods.get(i);
+            if ( table == null ) {
+                table = new double[TABLE_SIZE];
+                for ( final byte base2 : BaseUtils.BASES )
+                    for ( byte qual2 = 1; qual2 < N_QUALS; qual2++ )
+                        System.arraycopy(calculator.calculateGenotypeLikelihoods(observedBase1, qual1, base2, qual2), 0, table, getOffset(base2, qual2), N_GENOTYPES);
+                pairedObservationLikelihoods.set(i, table);
             }
+            return table;
+        }
+    }
 
-            if ( VERBOSE ) {
-                for ( DiploidGenotype g : DiploidGenotype.values() ) { System.out.printf("%s\t", g); }
-                System.out.println();
-            for ( DiploidGenotype g : DiploidGenotype.values() ) { System.out.printf("%.2f\t", gl.log10Likelihoods[g.ordinal()]); }
-                System.out.println();
-            }
+    /**
+     * @return the log10 likelihoods of each genotype, indexed by DiploidGenotype.ordinal(), given the observations of a fragment
+     */
+    protected double[] calculateGenotypeLikelihoods(byte observedBase1, byte qualityScore1, byte observedBase2, byte qualityScore2) {
+        double[] log10FourBaseLikelihoods = computeLog10Likelihoods(observedBase1, qualityScore1, observedBase2, qualityScore2);
+        final double[] likelihoods = genotypeZeros.clone();
+
+        // we need to adjust for ploidy.  We take the raw p(obs | chrom) / ploidy, which is -log10(ploidy) in log space
+        for ( DiploidGenotype g : DiploidGenotype.values() ) {
 
-            return gl;
+            // todo assumes ploidy is 2 -- should be generalized.  Obviously the below code can be turned into a loop
+            double p_base = 0.0;
+            p_base += pow(10, log10FourBaseLikelihoods[BaseUtils.simpleBaseToBaseIndex(g.base1)] - ploidyAdjustment);
+            p_base += pow(10, log10FourBaseLikelihoods[BaseUtils.simpleBaseToBaseIndex(g.base2)] - ploidyAdjustment);
+
+            final double likelihood = log10(p_base);
+            likelihoods[g.ordinal()] += likelihood;
+        }
+
+        if ( VERBOSE ) {
+            for ( DiploidGenotype g : DiploidGenotype.values() ) { System.out.printf("%s\t", g); }
+            System.out.println();
+            for ( DiploidGenotype g : DiploidGenotype.values() ) { System.out.printf("%.2f\t", likelihoods[g.ordinal()]); }
+            System.out.println();
+        }
 
-         } catch ( CloneNotSupportedException e ) {
-             throw new RuntimeException(e);
-         }
+        return likelihoods;
     }
 
     /**
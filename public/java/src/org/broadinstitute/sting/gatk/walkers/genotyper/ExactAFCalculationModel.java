@@ -36,10 +36,13 @@ public class ExactAFCalculationModel extends AlleleFrequencyCalculationModel {
 
     // private final static boolean DEBUG = false;
 
-    private final static double MAX_LOG10_ERROR_TO_STOP_EARLY = 6; // we want the calculation to be accurate to 1 / 10^6
+    protected final static double MAX_LOG10_ERROR_TO_STOP_EARLY = 6; // we want the calculation to be accurate to 1 / 10^6
+
+    private final double maxLog10ErrorToStopEarly;
 
     protected ExactAFCalculationModel(UnifiedArgumentCollection UAC, int N, Logger logger, PrintStream verboseWriter) {
         super(UAC, N, logger, verboseWriter);
+        maxLog10ErrorToStopEarly = UAC.EXACT_MAX_LOG10_ERROR_TO_STOP_EARLY;
     }
 
     public List<Allele> getLog10PNonRef(final VariantContext vc,
@@ -61,7 +64,7 @@ public class ExactAFCalculationModel extends AlleleFrequencyCalculationModel {
             GLs = VariantContextUtils.subsetDiploidAlleles(vc, alleles, false);
         }
 
-        linearExactMultiAllelic(GLs, alleles.size() - 1, log10AlleleFrequencyPriors, result);
+        linearExactMultiAllelic(GLs, alleles.size() - 1, log10AlleleFrequencyPriors, result, maxLog10ErrorToStopEarly);
 
         return alleles;
     }
@@ -110,244 +113,406 @@ public class ExactAFCalculationModel extends AlleleFrequencyCalculationModel {
     //
     // -------------------------------------------------------------------------------------
 
+    /**
+     * Computes the likelihoods and posteriors of the allele count conformations of the GLs into result, not
+     * extending conformations whose likelihood is more than MAX_LOG10_ERROR_TO_STOP_EARLY below the best seen
+     */
     public static void linearExactMultiAllelic(final GenotypesContext GLs,
                                                final int numAlternateAlleles,
                                                final double[] log10AlleleFrequencyPriors,
                                                final AlleleFrequencyCalculationResult result) {
+        linearExactMultiAllelic(GLs, numAlternateAlleles, log10AlleleFrequencyPriors, result, MAX_LOG10_ERROR_TO_STOP_EARLY);
+    }
 
-        final ArrayList<double[]> genotypeLikelihoods = getGLs(GLs);
-        final int numSamples = genotypeLikelihoods.size()-1;
-        final int numChr = 2*numSamples;
+    /**
+     * Computes the likelihoods and posteriors of the allele count conformations of the GLs into result
+     *
+     * @param maxLog10ErrorToStopEarly conformations whose log10 likelihood is more than this below the best one seen
+     *                                 so far aren't extended to higher allele counts
+     */
+    public static void linearExactMultiAllelic(final GenotypesContext GLs,
+                                               final int numAlternateAlleles,
+                                               final double[] log10AlleleFrequencyPriors,
+                                               final AlleleFrequencyCalculationResult result,
+                                               final double maxLog10ErrorToStopEarly) {
+        lattice.get().calculate(getGLs(GLs), numAlternateAlleles, log10AlleleFrequencyPriors, result, maxLog10ErrorToStopEarly);
+    }
 
-        // queue of AC conformations to process
-        final LinkedList<ExactACset> ACqueue = new LinkedList<ExactACset>();
+    // each thread reuses the tables of its lattice from site to site
+    private static final ThreadLocal<ExactACLattice> lattice = new ThreadLocal<ExactACLattice>() {
+        @Override
+        protected ExactACLattice initialValue() {
+            return new ExactACLattice();
+        }
+    };
 
-        // mapping of ExactACset indexes to the objects
-        final HashMap<ExactACcounts, ExactACset> indexesToACset = new HashMap<ExactACcounts, ExactACset>(numChr+1);
+    /**
+     * The lattice of allele count (AC) conformations visited by the exact model, kept in primitive tables
+     *
+     * Each conformation waiting to be processed lives in a slot, which holds its AC vector, the sum of that
+     * vector and its column of the exact model matrix.  Slots are looked up by AC vector through an open
+     * addressing hash table, processed in FIFO order from a ring buffer, and recycled as soon as their
+     * conformation has been processed, so the tables only ever hold the frontier of the lattice.  The
+     * conformations are visited, and their columns updated, in exactly the same order as they always were.
+     */
+    private static final class ExactACLattice {
+        private final static int INITIAL_CAPACITY = 64;
 
-        // add AC=0 to the queue
-        int[] zeroCounts = new int[numAlternateAlleles];
-        ExactACset zeroSet = new ExactACset(numSamples+1, new ExactACcounts(zeroCounts));
-        ACqueue.add(zeroSet);
-        indexesToACset.put(zeroSet.ACcounts, zeroSet);
+        // don't hold onto the columns of a huge site once we're done with it
+        private final static int MAX_RETAINED_LIKELIHOODS = 1 << 22;
 
-        // keep processing while we have AC conformations that need to be calculated
-        double maxLog10L = Double.NEGATIVE_INFINITY;
-        while ( !ACqueue.isEmpty() ) {
-            // compute log10Likelihoods
-            final ExactACset set = ACqueue.remove();
-            final double log10LofKs = calculateAlleleCountConformation(set, genotypeLikelihoods, maxLog10L, numChr, ACqueue, indexesToACset, log10AlleleFrequencyPriors, result);
-
-            // adjust max likelihood seen if needed
-            maxLog10L = Math.max(maxLog10L, log10LofKs);
-
-            // clean up memory
-            indexesToACset.remove(set.ACcounts);
-            //if ( DEBUG )
-            //    System.out.printf(" *** removing used set=%s%n", set.ACcounts);
-        }
-    }
+        private int numAltAlleles = -1, numSamples, numChr;
+        private double[][] genotypeLikelihoods = new double[0][];
+        private double[] log10AlleleFrequencyPriors;
+        private AlleleFrequencyCalculationResult result;
+        private double maxLog10ErrorToStopEarly;
 
-    private static final class DependentSet {
-        public final int[] ACcounts;
-        public final int PLindex;
-        
-        public DependentSet(final int[] ACcounts, final int PLindex) {
-            this.ACcounts = ACcounts;
-            this.PLindex = PLindex;
-        }
-    }
+        // the slots: ACcounts holds numAltAlleles counts per slot
+        private int capacity = 0;
+        private int[] ACcounts, ACsums, hashes, freeSlots;
+        private double[][] log10Likelihoods;
+        private int nUsedSlots, nFreeSlots;
 
-    private static double calculateAlleleCountConformation(final ExactACset set,
-                                                           final ArrayList<double[]> genotypeLikelihoods,
-                                                           final double maxLog10L,
-                                                           final int numChr,
-                                                           final LinkedList<ExactACset> ACqueue,
-                                                           final HashMap<ExactACcounts, ExactACset> indexesToACset,
-                                                           final double[] log10AlleleFrequencyPriors,
-                                                           final AlleleFrequencyCalculationResult result) {
+        // open addressing hash table of slot + 1, with 0 for empty entries
+        private int[] table;
+        private int tableMask;
 
-        //if ( DEBUG )
-        //    System.out.printf(" *** computing LofK for set=%s%n", set.ACcounts);
+        // ring buffer of the slots waiting to be processed
+        private int[] queue;
+        private int queueHead, queueSize;
 
-        // compute the log10Likelihoods
-        computeLofK(set, genotypeLikelihoods, log10AlleleFrequencyPriors, result);
+        // the PL index of each k+1 successor, and the allele indices and PL index of each k+2 successor in update order
+        private int[] oneStepPLindex, twoStepAllele1, twoStepAllele2, twoStepPLindex;
 
-        final double log10LofK = set.log10Likelihoods[set.log10Likelihoods.length-1];
+        private int[] candidateCounts, slotCounts;
 
-        // can we abort early because the log10Likelihoods are so small?
-        if ( log10LofK < maxLog10L - MAX_LOG10_ERROR_TO_STOP_EARLY ) {
-            //if ( DEBUG )
-            //    System.out.printf(" *** breaking early set=%s log10L=%.2f maxLog10L=%.2f%n", set.ACcounts, log10LofK, maxLog10L);
-            return log10LofK;
-        }
+        public void calculate(final ArrayList<double[]> GLs,
+                              final int numAltAlleles,
+                              final double[] log10AlleleFrequencyPriors,
+                              final AlleleFrequencyCalculationResult result,
+                              final double maxLog10ErrorToStopEarly) {
+            initialize(GLs, numAltAlleles, log10AlleleFrequencyPriors, result, maxLog10ErrorToStopEarly);
 
-        // iterate over higher frequencies if possible
-        final int ACwiggle = numChr - set.getACsum();
-        if ( ACwiggle == 0 ) // all alternate alleles already sum to 2N so we cannot possibly go to higher frequencies
-            return log10LofK;
+            // add AC=0 to the queue
+            Arrays.fill(candidateCounts, 0);
+            newSlot(candidateCounts, 0, hash(candidateCounts));
 
-        final int numAltAlleles = set.ACcounts.getCounts().length;
+            // keep processing while we have AC conformations that need to be calculated
+            double maxLog10L = Double.NEGATIVE_INFINITY;
+            while ( queueSize > 0 ) {
+                final int slot = queue[queueHead];
+                queueHead = (queueHead + 1) & (capacity - 1);
+                queueSize--;
 
-        // add conformations for the k+1 case
-        for ( int allele = 0; allele < numAltAlleles; allele++ ) {
-            final int[] ACcountsClone = set.ACcounts.getCounts().clone();
-            ACcountsClone[allele]++;
-            // to get to this conformation, a sample would need to be AB (remember that ref=0)
-            final int PLindex = GenotypeLikelihoods.calculatePLindex(0, allele+1);
-            updateACset(ACcountsClone, numChr, set, PLindex, ACqueue, indexesToACset, genotypeLikelihoods);
-        }
+                final double log10LofKs = calculateAlleleCountConformation(slot, maxLog10L);
 
-        // add conformations for the k+2 case if it makes sense; note that the 2 new alleles may be the same or different
-        if ( ACwiggle > 1 ) {
-            final ArrayList<DependentSet> differentAlleles = new ArrayList<DependentSet>(numAltAlleles * numAltAlleles);
-            final ArrayList<DependentSet> sameAlleles = new ArrayList<DependentSet>(numAltAlleles);
-
-            for ( int allele_i = 0; allele_i < numAltAlleles; allele_i++ ) {
-                for ( int allele_j = allele_i; allele_j < numAltAlleles; allele_j++ ) {
-                    final int[] ACcountsClone = set.ACcounts.getCounts().clone();
-                    ACcountsClone[allele_i]++;
-                    ACcountsClone[allele_j]++;
-
-                    // to get to this conformation, a sample would need to be BB or BC (remember that ref=0, so add one to the index)
-                    final int PLindex = GenotypeLikelihoods.calculatePLindex(allele_i+1, allele_j+1);
-                    if ( allele_i == allele_j )
-                        sameAlleles.add(new DependentSet(ACcountsClone, PLindex));
-                    else
-                        differentAlleles.add(new DependentSet(ACcountsClone, PLindex));
-                }
+                // adjust max likelihood seen if needed
+                maxLog10L = Math.max(maxLog10L, log10LofKs);
+
+                releaseSlot(slot);
             }
 
-            // IMPORTANT: we must first add the cases where the 2 new alleles are different so that the queue maintains its ordering
-            for ( DependentSet dependent : differentAlleles )
-                updateACset(dependent.ACcounts, numChr, set, dependent.PLindex, ACqueue, indexesToACset, genotypeLikelihoods);
-            for ( DependentSet dependent : sameAlleles )
-                updateACset(dependent.ACcounts, numChr, set, dependent.PLindex, ACqueue, indexesToACset, genotypeLikelihoods);
+            this.result = null;
+            if ( (long)nUsedSlots * (numSamples + 1) > MAX_RETAINED_LIKELIHOODS )
+                Arrays.fill(log10Likelihoods, null);
         }
 
-        return log10LofK;
-    }
+        private void initialize(final ArrayList<double[]> GLs,
+                                final int numAltAlleles,
+                                final double[] log10AlleleFrequencyPriors,
+                                final AlleleFrequencyCalculationResult result,
+                                final double maxLog10ErrorToStopEarly) {
+            genotypeLikelihoods = GLs.toArray(genotypeLikelihoods);
+            numSamples = GLs.size() - 1;
+            numChr = 2 * numSamples;
+            this.log10AlleleFrequencyPriors = log10AlleleFrequencyPriors;
+            this.result = result;
+            this.maxLog10ErrorToStopEarly = maxLog10ErrorToStopEarly;
+
+            if ( capacity == 0 )
+                grow();
+
+            if ( numAltAlleles != this.numAltAlleles ) {
+                this.numAltAlleles = numAltAlleles;
+                ACcounts = new int[capacity * numAltAlleles];
+                candidateCounts = new int[numAltAlleles];
+                slotCounts = new int[numAltAlleles];
+                initializeSuccessors();
+            }
 
-    // adds the ExactACset represented by the ACcounts to the ACqueue if not already there (creating it if needed) and
-    // also pushes its value to the given callingSetIndex.
-    private static void updateACset(final int[] newSetCounts,
-                                    final int numChr,
-                                    final ExactACset dependentSet,
-                                    final int PLsetIndex,
-                                    final Queue<ExactACset> ACqueue,
-                                    final HashMap<ExactACcounts, ExactACset> indexesToACset,
-                                    final ArrayList<double[]> genotypeLikelihoods) {
-        final ExactACcounts index = new ExactACcounts(newSetCounts);
-        if ( !indexesToACset.containsKey(index) ) {
-            ExactACset set = new ExactACset(numChr/2 +1, index);
-            indexesToACset.put(index, set);
-            ACqueue.add(set);
+            Arrays.fill(table, 0);
+            nUsedSlots = nFreeSlots = 0;
+            queueHead = queueSize = 0;
         }
 
-        // push data from the dependency to the new set
-        //if ( DEBUG )
-        //    System.out.println(" *** pushing data from " + index + " to " + dependencySet.ACcounts);
-        pushData(indexesToACset.get(index), dependentSet, PLsetIndex, genotypeLikelihoods);
-    }
+        private void initializeSuccessors() {
+            oneStepPLindex = new int[numAltAlleles];
+            for ( int allele = 0; allele < numAltAlleles; allele++ )
+                // to get to this conformation, a sample would need to be AB (remember that ref=0)
+                oneStepPLindex[allele] = GenotypeLikelihoods.calculatePLindex(0, allele+1);
+
+            // IMPORTANT: the cases where the 2 new alleles are different must come first so that the queue maintains its ordering
+            final int nTwoSteps = numAltAlleles * (numAltAlleles + 1) / 2;
+            twoStepAllele1 = new int[nTwoSteps];
+            twoStepAllele2 = new int[nTwoSteps];
+            twoStepPLindex = new int[nTwoSteps];
+            int i = 0;
+            for ( int allele_i = 0; allele_i < numAltAlleles; allele_i++ )
+                for ( int allele_j = allele_i + 1; allele_j < numAltAlleles; allele_j++ )
+                    setTwoStep(i++, allele_i + 1, allele_j + 1);
+            for ( int allele = 0; allele < numAltAlleles; allele++ )
+                setTwoStep(i++, allele + 1, allele + 1);
+        }
+
+        private void setTwoStep(final int i, final int alleleIndex1, final int alleleIndex2) {
+            // to get to this conformation, a sample would need to be BB or BC (remember that ref=0)
+            twoStepAllele1[i] = alleleIndex1;
+            twoStepAllele2[i] = alleleIndex2;
+            twoStepPLindex[i] = GenotypeLikelihoods.calculatePLindex(alleleIndex1, alleleIndex2);
+        }
 
-    private static void computeLofK(final ExactACset set,
-                                    final ArrayList<double[]> genotypeLikelihoods,
-                                    final double[] log10AlleleFrequencyPriors,
-                                    final AlleleFrequencyCalculationResult result) {
+        private double calculateAlleleCountConformation(final int slot, final double maxLog10L) {
+            // compute the log10Likelihoods
+            computeLofK(slot);
 
-        set.log10Likelihoods[0] = 0.0; // the zero case
-        final int totalK = set.getACsum();
+            final double log10LofK = log10Likelihoods[slot][numSamples];
 
-        // special case for k = 0 over all k
-        if ( totalK == 0 ) {
-            for ( int j = 1; j < set.log10Likelihoods.length; j++ )
-                set.log10Likelihoods[j] = set.log10Likelihoods[j-1] + genotypeLikelihoods.get(j)[HOM_REF_INDEX];
+            // can we abort early because the log10Likelihoods are so small?
+            if ( log10LofK < maxLog10L - maxLog10ErrorToStopEarly )
+                return log10LofK;
 
-            final double log10Lof0 = set.log10Likelihoods[set.log10Likelihoods.length-1];
-            result.setLog10LikelihoodOfAFzero(log10Lof0);
-            result.setLog10PosteriorOfAFzero(log10Lof0 + log10AlleleFrequencyPriors[0]);
-            return;
-        }
+            // iterate over higher frequencies if possible
+            final int ACsum = ACsums[slot];
+            final int ACwiggle = numChr - ACsum;
+            if ( ACwiggle == 0 ) // all alternate alleles already sum to 2N so we cannot possibly go to higher frequencies
+                return log10LofK;
 
-        // if we got here, then k > 0 for at least one k.
-        // the non-AA possible conformations were already dealt with by pushes from dependent sets;
-        // now deal with the AA case (which depends on previous cells in this column) and then update the L(j,k) value
-        for ( int j = 1; j < set.log10Likelihoods.length; j++ ) {
+            // add conformations for the k+1 case
+            for ( int allele = 0; allele < numAltAlleles; allele++ ) {
+                System.arraycopy(ACcounts, slot * numAltAlleles, candidateCounts, 0, numAltAlleles);
+                candidateCounts[allele]++;
+                updateACset(slot, ACsum + 1, oneStepPLindex[allele], 0, allele + 1);
+            }
 
-            if ( totalK < 2*j-1 ) {
-                final double[] gl = genotypeLikelihoods.get(j);
-                final double conformationValue = MathUtils.log10Cache[2*j-totalK] + MathUtils.log10Cache[2*j-totalK-1] + set.log10Likelihoods[j-1] + gl[HOM_REF_INDEX];
-                set.log10Likelihoods[j] = MathUtils.approximateLog10SumLog10(set.log10Likelihoods[j], conformationValue);
+            // add conformations for the k+2 case if it makes sense; note that the 2 new alleles may be the same or different
+            if ( ACwiggle > 1 ) {
+                for ( int i = 0; i < twoStepPLindex.length; i++ ) {
+                    System.arraycopy(ACcounts, slot * numAltAlleles, candidateCounts, 0, numAltAlleles);
+                    candidateCounts[twoStepAllele1[i]-1]++;
+                    candidateCounts[twoStepAllele2[i]-1]++;
+                    updateACset(slot, ACsum + 2, twoStepPLindex[i], twoStepAllele1[i], twoStepAllele2[i]);
+                }
             }
 
-            final double logDenominator = MathUtils.log10Cache[2*j] + MathUtils.log10Cache[2*j-1];
-            set.log10Likelihoods[j] = set.log10Likelihoods[j] - logDenominator;
+            return log10LofK;
         }
 
-        double log10LofK = set.log10Likelihoods[set.log10Likelihoods.length-1];
+        // adds the conformation in candidateCounts to the queue if not already there and pushes the data of dependentSlot to it
+        private void updateACset(final int dependentSlot, final int ACsum, final int PLindex, final int alleleIndex1, final int alleleIndex2) {
+            final int hash = hash(candidateCounts);
+            int slot = findSlot(candidateCounts, hash);
+            if ( slot == -1 )
+                slot = newSlot(candidateCounts, ACsum, hash);
 
-        // update the MLE if necessary
-        result.updateMLEifNeeded(log10LofK, set.ACcounts.counts);
-
-        // apply the priors over each alternate allele
-        for ( final int ACcount : set.ACcounts.getCounts() ) {
-            if ( ACcount > 0 )
-                log10LofK += log10AlleleFrequencyPriors[ACcount];
+            pushData(slot, dependentSlot, PLindex, alleleIndex1, alleleIndex2);
         }
-        result.updateMAPifNeeded(log10LofK, set.ACcounts.counts);
-    }
 
-    private static void pushData(final ExactACset targetSet,
-                                 final ExactACset dependentSet,
-                                 final int PLsetIndex,
-                                 final ArrayList<double[]> genotypeLikelihoods) {
-        final int totalK = targetSet.getACsum();
+        private void computeLofK(final int slot) {
+            final double[] column = log10Likelihoods[slot];
+            column[0] = 0.0; // the zero case
+            final int totalK = ACsums[slot];
 
-        for ( int j = 1; j < targetSet.log10Likelihoods.length; j++ ) {
+            // special case for k = 0 over all k
+            if ( totalK == 0 ) {
+                for ( int j = 1; j <= numSamples; j++ )
+                    column[j] = column[j-1] + genotypeLikelihoods[j][HOM_REF_INDEX];
 
-            if ( totalK <= 2*j ) { // skip impossible conformations
-                final double[] gl = genotypeLikelihoods.get(j);
-                final double conformationValue =
-                        determineCoefficient(PLsetIndex, j, targetSet.ACcounts.getCounts(), totalK) + dependentSet.log10Likelihoods[j-1] + gl[PLsetIndex];
-                targetSet.log10Likelihoods[j] = MathUtils.approximateLog10SumLog10(targetSet.log10Likelihoods[j], conformationValue);
+                final double log10Lof0 = column[numSamples];
+                result.setLog10LikelihoodOfAFzero(log10Lof0);
+                result.setLog10PosteriorOfAFzero(log10Lof0 + log10AlleleFrequencyPriors[0]);
+                return;
             }
-        }        
-    }
 
-    private static double determineCoefficient(int PLindex, final int j, final int[] ACcounts, final int totalK) {
+            // if we got here, then k > 0 for at least one k.
+            // the non-AA possible conformations were already dealt with by pushes from dependent sets;
+            // now deal with the AA case (which depends on previous cells in this column) and then update the L(j,k) value
+            for ( int j = 1; j <= numSamples; j++ ) {
 
-        // the closed form representation generalized for multiple alleles is as follows:
-        // AA: (2j - totalK) * (2j - totalK - 1)
-        // AB: 2k_b * (2j - totalK)
-        // AC: 2k_c * (2j - totalK)
-        // BB: k_b * (k_b - 1)
-        // BC: 2 * k_b * k_c
-        // CC: k_c * (k_c - 1)
+                if ( totalK < 2*j-1 ) {
+                    final double conformationValue = MathUtils.log10Cache[2*j-totalK] + MathUtils.log10Cache[2*j-totalK-1] + column[j-1] + genotypeLikelihoods[j][HOM_REF_INDEX];
+                    column[j] = MathUtils.approximateLog10SumLog10(column[j], conformationValue);
+                }
 
-        // find the 2 alleles that are represented by this PL index
-        GenotypeLikelihoods.GenotypeLikelihoodsAllelePair alleles = GenotypeLikelihoods.getAllelePair(PLindex);
+                final double logDenominator = MathUtils.log10Cache[2*j] + MathUtils.log10Cache[2*j-1];
+                column[j] = column[j] - logDenominator;
+            }
+
+            double log10LofK = column[numSamples];
+            System.arraycopy(ACcounts, slot * numAltAlleles, slotCounts, 0, numAltAlleles);
 
-        // *** note that throughout this method we subtract one from the alleleIndex because ACcounts ***
-        // *** doesn't consider the reference allele whereas the GenotypeLikelihoods PL cache does.   ***
+            // update the MLE if necessary
+            result.updateMLEifNeeded(log10LofK, slotCounts);
 
-        // the AX het case
-        if ( alleles.alleleIndex1 == 0 )
-            return MathUtils.log10Cache[2*ACcounts[alleles.alleleIndex2-1]] + MathUtils.log10Cache[2*j-totalK];
+            // apply the priors over each alternate allele
+            for ( final int ACcount : slotCounts ) {
+                if ( ACcount > 0 )
+                    log10LofK += log10AlleleFrequencyPriors[ACcount];
+            }
+            result.updateMAPifNeeded(log10LofK, slotCounts);
+        }
 
-        final int k_i = ACcounts[alleles.alleleIndex1-1];
+        private void pushData(final int targetSlot, final int dependentSlot, final int PLindex, final int alleleIndex1, final int alleleIndex2) {
+            final double[] target = log10Likelihoods[targetSlot];
+            final double[] dependent = log10Likelihoods[dependentSlot];
+            final int totalK = ACsums[targetSlot];
+            final int offset = targetSlot * numAltAlleles;
+
+            // the closed form representation generalized for multiple alleles is as follows:
+            // AA: (2j - totalK) * (2j - totalK - 1)
+            // AB: 2k_b * (2j - totalK)
+            // AC: 2k_c * (2j - totalK)
+            // BB: k_b * (k_b - 1)
+            // BC: 2 * k_b * k_c
+            // CC: k_c * (k_c - 1)
+            // so only the coefficients of the AX het cases depend on j
+            // *** note that we subtract one from the alleleIndex because ACcounts doesn't consider the reference allele ***
+            final boolean isHetRef = alleleIndex1 == 0;
+            double coefficient = 0.0;
+            if ( isHetRef ) {
+                coefficient = MathUtils.log10Cache[2*ACcounts[offset + alleleIndex2 - 1]];
+            } else {
+                final int k_i = ACcounts[offset + alleleIndex1 - 1];
+                if ( alleleIndex1 == alleleIndex2 )
+                    coefficient = MathUtils.log10Cache[k_i] + MathUtils.log10Cache[k_i - 1];
+                else
+                    coefficient = MathUtils.log10Cache[2] + MathUtils.log10Cache[k_i] + MathUtils.log10Cache[ACcounts[offset + alleleIndex2 - 1]];
+            }
 
-        // the hom var case (e.g. BB, CC, DD)
-        final double coeff;
-        if ( alleles.alleleIndex1 == alleles.alleleIndex2 ) {
-            coeff = MathUtils.log10Cache[k_i] + MathUtils.log10Cache[k_i - 1];
+            // skip impossible conformations, which have totalK > 2j
+            for ( int j = Math.max(1, (totalK + 1) / 2); j <= numSamples; j++ ) {
+                final double jCoefficient = isHetRef ? coefficient + MathUtils.log10Cache[2*j-totalK] : coefficient;
+                final double conformationValue = jCoefficient + dependent[j-1] + genotypeLikelihoods[j][PLindex];
+                target[j] = MathUtils.approximateLog10SumLog10(target[j], conformationValue);
+            }
         }
-        // the het non-ref case (e.g. BC, BD, CD)
-        else {
-            final int k_j = ACcounts[alleles.alleleIndex2-1];
-            coeff = MathUtils.log10Cache[2] + MathUtils.log10Cache[k_i] + MathUtils.log10Cache[k_j];
+
+        // -------------------------------------------------------------------------------------
+        //
+        // slot management
+        //
+        // -------------------------------------------------------------------------------------
+
+        private int hash(final int[] counts) {
+            int hash = 1;
+            for ( int i = 0; i < numAltAlleles; i++ )
+                hash = 31 * hash + counts[i];
+            hash *= 0x9E3779B9;
+            return hash ^ (hash >>> 16);
         }
 
-        return coeff;
+        private boolean hasCounts(final int slot, final int[] counts) {
+            final int offset = slot * numAltAlleles;
+            for ( int i = 0; i < numAltAlleles; i++ )
+                if ( ACcounts[offset + i] != counts[i] )
+                    return false;
+            return true;
+        }
+
+        /**
+         * @return the slot holding the conformation with counts, or -1 if there isn't one
+         */
+        private int findSlot(final int[] counts, final int hash) {
+            for ( int i = hash & tableMask; table[i] != 0; i = (i + 1) & tableMask ) {
+                final int slot = table[i] - 1;
+                if ( hashes[slot] == hash && hasCounts(slot, counts) )
+                    return slot;
+            }
+            return -1;
+        }
+
+        /**
+         * Create a slot for the conformation with counts, with an empty column, and queue it for processing
+         */
+        private int newSlot(final int[] counts, final int ACsum, final int hash) {
+            if ( nFreeSlots == 0 && nUsedSlots == capacity )
+                grow();
+            final int slot = nFreeSlots > 0 ? freeSlots[--nFreeSlots] : nUsedSlots++;
+
+            System.arraycopy(counts, 0, ACcounts, slot * numAltAlleles, numAltAlleles);
+            ACsums[slot] = ACsum;
+            hashes[slot] = hash;
+            if ( log10Likelihoods[slot] == null || log10Likelihoods[slot].length < numSamples + 1 )
+                log10Likelihoods[slot] = new double[numSamples + 1];
+            Arrays.fill(log10Likelihoods[slot], 0, numSamples + 1, Double.NEGATIVE_INFINITY);
+
+            int i = hash & tableMask;
+            while ( table[i] != 0 )
+                i = (i + 1) & tableMask;
+            table[i] = slot + 1;
+
+            queue[(queueHead + queueSize) & (capacity - 1)] = slot;
+            queueSize++;
+
+            return slot;
+        }
+
+        /**
+         * Remove the slot from the hash table, shifting back any entries that probed past it, and recycle it
+         */
+        private void releaseSlot(final int slot) {
+            int hole = hashes[slot] & tableMask;
+            while ( table[hole] != slot + 1 )
+                hole = (hole + 1) & tableMask;
+
+            for ( int i = (hole + 1) & tableMask; table[i] != 0; i = (i + 1) & tableMask ) {
+                final int home = hashes[table[i] - 1] & tableMask;
+                final boolean homeIsBetweenHoleAndEntry = hole < i ? (home > hole && home <= i) : (home > hole || home <= i);
+                if ( ! homeIsBetweenHoleAndEntry ) {
+                    table[hole] = table[i];
+                    hole = i;
+                }
+            }
+            table[hole] = 0;
+
+            freeSlots[nFreeSlots++] = slot;
+        }
+
+        /**
+         * Double the number of slots, which must all be in use
+         */
+        private void grow() {
+            final int newCapacity = capacity == 0 ? INITIAL_CAPACITY : 2 * capacity;
+
+            if ( ACcounts != null )
+                ACcounts = Arrays.copyOf(ACcounts, newCapacity * numAltAlleles);
+            ACsums = capacity == 0 ? new int[newCapacity] : Arrays.copyOf(ACsums, newCapacity);
+            hashes = capacity == 0 ? new int[newCapacity] : Arrays.copyOf(hashes, newCapacity);
+            log10Likelihoods = capacity == 0 ? new double[newCapacity][] : Arrays.copyOf(log10Likelihoods, newCapacity);
+            freeSlots = new int[newCapacity];
+
+            final int[] newQueue = new int[newCapacity];
+            for ( int i = 0; i < queueSize; i++ )
+                newQueue[i] = queue[(queueHead + i) & (capacity - 1)];
+            queue = newQueue;
+            queueHead = 0;
+
+            // keep the table at most half full
+            final int[] oldTable = table;
+            table = new int[2 * newCapacity];
+            tableMask = table.length - 1;
+            if ( oldTable != null ) {
+                for ( final int entry : oldTable ) {
+                    if ( entry != 0 ) {
+                        int i = hashes[entry - 1] & tableMask;
+                        while ( table[i] != 0 )
+                            i = (i + 1) & tableMask;
+                        table[i] = entry;
+                    }
+                }
+            }
+
+            capacity = newCapacity;
+        }
     }
 
     public GenotypesContext subsetAlleles(final VariantContext vc,
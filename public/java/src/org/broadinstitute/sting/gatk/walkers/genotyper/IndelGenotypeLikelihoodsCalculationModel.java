@@ -31,6 +31,7 @@ import org.broadinstitute.sting.gatk.contexts.AlignmentContextUtils;
 import org.broadinstitute.sting.gatk.contexts.ReferenceContext;
 import org.broadinstitute.sting.gatk.refdata.RefMetaDataTracker;
 import org.broadinstitute.sting.gatk.walkers.indels.PairHMMIndelErrorModel;
+import org.broadinstitute.sting.gatk.walkers.indels.ReadHaplotypeLikelihoodCache;
 import org.broadinstitute.sting.utils.BaseUtils;
 import org.broadinstitute.sting.utils.GenomeLoc;
 import org.broadinstitute.sting.utils.GenomeLocParser;
@@ -72,7 +73,8 @@ public class IndelGenotypeLikelihoodsCalculationModel extends GenotypeLikelihood
     protected IndelGenotypeLikelihoodsCalculationModel(UnifiedArgumentCollection UAC, Logger logger) {
         super(UAC, logger);
         pairModel = new PairHMMIndelErrorModel(UAC.INDEL_GAP_OPEN_PENALTY, UAC.INDEL_GAP_CONTINUATION_PENALTY,
-                UAC.OUTPUT_DEBUG_INDEL_INFO, !UAC.DONT_DO_BANDED_INDEL_COMPUTATION);
+                UAC.OUTPUT_DEBUG_INDEL_INFO, !UAC.DONT_DO_BANDED_INDEL_COMPUTATION, UAC.INDEL_LIKELIHOOD_CACHE_SIZE_IN_MB, UAC.PAIR_HMM_IMPLEMENTATION,
+                UAC.PAIR_HMM_THREADS);
         DEBUG = UAC.OUTPUT_DEBUG_INDEL_INFO;
         haplotypeMap = new LinkedHashMap<Allele, Haplotype>();
         ignoreSNPAllelesWhenGenotypingIndels = UAC.IGNORE_SNP_ALLELES;
@@ -156,6 +158,13 @@ public class IndelGenotypeLikelihoodsCalculationModel extends GenotypeLikelihood
         return builder.genotypes(genotypes).make();
     }
 
+    /**
+     * @return the cache of read likelihoods shared across the sites genotyped by this model, or null if there isn't one
+     */
+    protected ReadHaplotypeLikelihoodCache getLikelihoodCache() {
+        return pairModel.getLikelihoodCache();
+    }
+
     public static HashMap<PileupElement, LinkedHashMap<Allele, Double>> getIndelLikelihoodMap() {
         return indelLikelihoodMap.get();
     }
@@ -26,6 +26,8 @@
 package org.broadinstitute.sting.gatk.walkers.genotyper;
 
 import org.broadinstitute.sting.commandline.*;
+import org.broadinstitute.sting.gatk.walkers.indels.ReadHaplotypeLikelihoodCache;
+import org.broadinstitute.sting.utils.PairHMMEngine;
 import org.broadinstitute.sting.utils.variantcontext.VariantContext;
 import org.broadinstitute.sting.utils.variantcontext.VariantContextUtils;
 
@@ -121,6 +123,14 @@ public class UnifiedArgumentCollection {
     @Argument(fullName = "cap_max_alternate_alleles_for_indels", shortName = "capMaxAllelesForIndels", doc = "Cap the maximum number of alternate alleles to genotype for indel calls at 2; overrides the --max_alternate_alleles argument; GSA production use only", required = false)
     public boolean CAP_MAX_ALTERNATE_ALLELES_FOR_INDELS = false;
 
+    /**
+     * The exact model stops exploring higher allele counts once their likelihood falls this many log10 units below
+     * the best seen so far.  Smaller values make sites with many alternate alleles much faster, at some cost in accuracy.
+     */
+    @Hidden
+    @Argument(fullName = "exact_max_log10_error_to_stop_early", shortName = "exactStopEarly", doc = "Log10 likelihood below the best allele count conformation at which the exact model stops exploring higher allele counts", required = false)
+    public double EXACT_MAX_LOG10_ERROR_TO_STOP_EARLY = ExactAFCalculationModel.MAX_LOG10_ERROR_TO_STOP_EARLY;
+
     // indel-related arguments
     /**
      * A candidate indel is genotyped (and potentially called) if there are this number of reads with a consensus indel at a site.
@@ -166,6 +176,30 @@ public class UnifiedArgumentCollection {
     @Argument(fullName = "indelDebug", shortName = "indelDebug", doc = "Output indel debug info", required = false)
     public boolean OUTPUT_DEBUG_INDEL_INFO = false;
 
+    /**
+     * Likelihoods of reads given candidate haplotypes are remembered across neighboring indel sites, which mostly
+     * share their reads in repetitive regions, using at most this much memory per thread.  0 disables the cache.
+     */
+    @Hidden
+    @Argument(fullName = "indelLikelihoodCacheSize", shortName = "indelCacheMB", doc = "Maximum memory in MB per thread for caching read likelihoods across indel sites", required = false)
+    public int INDEL_LIKELIHOOD_CACHE_SIZE_IN_MB = ReadHaplotypeLikelihoodCache.DEFAULT_MAX_SIZE_IN_MB;
+
+    /**
+     * The CACHING implementations compute in probability space with reusable matrices, and are much faster than the
+     * ORIGINAL log10 implementation, but give slightly different likelihoods because they don't approximate the log10 sums.
+     */
+    @Hidden
+    @Argument(fullName = "pair_hmm_implementation", shortName = "pairHMM", doc = "The pair HMM implementation to use for indel likelihoods", required = false)
+    public PairHMMEngine.Implementation PAIR_HMM_IMPLEMENTATION = PairHMMEngine.Implementation.ORIGINAL;
+
+    /**
+     * The pair HMM likelihoods of all of the reads at an indel site are computed in one batch, which is split
+     * between this many threads when there are enough reads.  The likelihoods don't depend on the number of threads.
+     */
+    @Hidden
+    @Argument(fullName = "pair_hmm_threads", shortName = "pairHMMThreads", doc = "The number of threads to use for the pair HMM at each indel site", required = false)
+    public int PAIR_HMM_THREADS = 1;
+
     @Hidden
     @Argument(fullName = "ignoreSNPAlleles", shortName = "ignoreSNPAlleles", doc = "expt", required = false)
     public boolean IGNORE_SNP_ALLELES = false;
@@ -253,10 +287,14 @@ public class UnifiedArgumentCollection {
         uac.INDEL_GAP_OPEN_PENALTY = INDEL_GAP_OPEN_PENALTY;
         uac.INDEL_GAP_CONTINUATION_PENALTY = INDEL_GAP_CONTINUATION_PENALTY;
         uac.OUTPUT_DEBUG_INDEL_INFO = OUTPUT_DEBUG_INDEL_INFO;
+        uac.INDEL_LIKELIHOOD_CACHE_SIZE_IN_MB = INDEL_LIKELIHOOD_CACHE_SIZE_IN_MB;
+        uac.PAIR_HMM_IMPLEMENTATION = PAIR_HMM_IMPLEMENTATION;
+        uac.PAIR_HMM_THREADS = PAIR_HMM_THREADS;
         uac.INDEL_HAPLOTYPE_SIZE = INDEL_HAPLOTYPE_SIZE;
         uac.alleles = alleles;
         uac.MAX_ALTERNATE_ALLELES = MAX_ALTERNATE_ALLELES;
         uac.CAP_MAX_ALTERNATE_ALLELES_FOR_INDELS = CAP_MAX_ALTERNATE_ALLELES_FOR_INDELS;
+        uac.EXACT_MAX_LOG10_ERROR_TO_STOP_EARLY = EXACT_MAX_LOG10_ERROR_TO_STOP_EARLY;
         uac.GLmodel = GLmodel;
         uac.TREAT_ALL_READS_AS_SINGLE_POOL = TREAT_ALL_READS_AS_SINGLE_POOL;
         uac.referenceSampleRod = referenceSampleRod;
@@ -37,6 +37,7 @@ import org.broadinstitute.sting.gatk.refdata.RefMetaDataTracker;
 import org.broadinstitute.sting.gatk.walkers.*;
 import org.broadinstitute.sting.gatk.walkers.annotator.VariantAnnotatorEngine;
 import org.broadinstitute.sting.gatk.walkers.annotator.interfaces.AnnotatorCompatible;
+import org.broadinstitute.sting.gatk.walkers.indels.ReadHaplotypeLikelihoodCache;
 import org.broadinstitute.sting.utils.SampleUtils;
 import org.broadinstitute.sting.utils.baq.BAQ;
 import org.broadinstitute.sting.utils.classloader.GATKLiteUtils;
@@ -268,6 +269,9 @@ public class UnifiedGenotyper extends LocusWalker<List<VariantCallContext>, Unif
         if ( UAC.MAX_ALTERNATE_ALLELES > GenotypeLikelihoods.MAX_ALT_ALLELES_THAT_CAN_BE_GENOTYPED)
             throw new UserException.BadArgumentValue("max_alternate_alleles", "the maximum possible value is " + GenotypeLikelihoods.MAX_ALT_ALLELES_THAT_CAN_BE_GENOTYPED);
 
+        if ( UAC.PAIR_HMM_THREADS < 1 )
+            throw new UserException.BadArgumentValue("pair_hmm_threads", "at least one thread is required");
+
         // warn the user for misusing EMIT_ALL_SITES
         if ( UAC.OutputMode == UnifiedGenotyperEngine.OUTPUT_MODE.EMIT_ALL_SITES &&
                 UAC.GenotypingMode == GenotypeLikelihoodsCalculationModel.GENOTYPING_MODE.DISCOVERY &&
@@ -410,5 +414,28 @@ public class UnifiedGenotyper extends LocusWalker<List<VariantCallContext>, Unif
             metricsWriter.println(String.format("%% confidently called bases of callable loci  %3.3f", sum.percentCalledOfCallable()));
             metricsWriter.println(String.format("Actual calls made                            %d", sum.nCallsMade));
         }
+
+        printIndelLikelihoodCacheSummary();
+    }
+
+    private void printIndelLikelihoodCacheSummary() {
+        final List<ReadHaplotypeLikelihoodCache> caches = UG_engine.getIndelLikelihoodCaches();
+        if ( caches.isEmpty() )
+            return;
+
+        long nHits = 0, nMisses = 0, nEvictions = 0, peakBytes = 0;
+        for ( final ReadHaplotypeLikelihoodCache cache : caches ) {
+            nHits += cache.getNumHits();
+            nMisses += cache.getNumMisses();
+            nEvictions += cache.getNumEvictions();
+            peakBytes += cache.getPeakSizeInBytes();
+        }
+
+        final double hitRate = nHits + nMisses == 0 ? 0.0 : 100.0 * nHits / (nHits + nMisses);
+        final String summary = String.format("Indel read likelihood cache: %d lookups, %.2f%% hits, %d evictions, %.1f MB peak memory across %d thread(s)",
+                nHits + nMisses, hitRate, nEvictions, peakBytes / (1024.0 * 1024.0), caches.size());
+        logger.info(summary);
+        if ( metricsWriter != null )
+            metricsWriter.println(summary);
     }
 }
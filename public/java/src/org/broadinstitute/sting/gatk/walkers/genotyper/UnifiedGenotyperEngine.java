@@ -34,6 +34,7 @@ import org.broadinstitute.sting.gatk.contexts.AlignmentContextUtils;
 import org.broadinstitute.sting.gatk.contexts.ReferenceContext;
 import org.broadinstitute.sting.gatk.refdata.RefMetaDataTracker;
 import org.broadinstitute.sting.gatk.walkers.annotator.VariantAnnotatorEngine;
+import org.broadinstitute.sting.gatk.walkers.indels.ReadHaplotypeLikelihoodCache;
 import org.broadinstitute.sting.utils.*;
 import org.broadinstitute.sting.utils.baq.BAQ;
 import org.broadinstitute.sting.utils.classloader.PluginManager;
@@ -78,6 +79,9 @@ public class UnifiedGenotyperEngine {
     // the model used for calculating genotypes
     private ThreadLocal<Map<String, GenotypeLikelihoodsCalculationModel>> glcm = new ThreadLocal<Map<String, GenotypeLikelihoodsCalculationModel>>();
 
+    // the models of every thread, so we can summarize them at the end of the run
+    private final List<Map<String, GenotypeLikelihoodsCalculationModel>> allGLCMs = Collections.synchronizedList(new ArrayList<Map<String, GenotypeLikelihoodsCalculationModel>>());
+
     // the model used for calculating p(non-ref)
     private ThreadLocal<AlleleFrequencyCalculationModel> afcm = new ThreadLocal<AlleleFrequencyCalculationModel>();
 
@@ -259,6 +263,25 @@ public class UnifiedGenotyperEngine {
         return calculateGenotypes(tracker, refContext, rawContext, stratifiedContexts, vc, model);
     }
 
+    /**
+     * @return the read likelihood caches of the indel models of all threads that have genotyped indels
+     */
+    public List<ReadHaplotypeLikelihoodCache> getIndelLikelihoodCaches() {
+        final List<ReadHaplotypeLikelihoodCache> caches = new ArrayList<ReadHaplotypeLikelihoodCache>();
+        synchronized (allGLCMs) {
+            for ( final Map<String, GenotypeLikelihoodsCalculationModel> models : allGLCMs ) {
+                for ( final GenotypeLikelihoodsCalculationModel model : models.values() ) {
+                    if ( model instanceof IndelGenotypeLikelihoodsCalculationModel ) {
+                        final ReadHaplotypeLikelihoodCache cache = ((IndelGenotypeLikelihoodsCalculationModel)model).getLikelihoodCache();
+                        if ( cache != null )
+                            caches.add(cache);
+                    }
+                }
+            }
+        }
+        return caches;
+    }
+
 
     // ---------------------------------------------------------------------------------------------------------
     //
@@ -272,6 +295,7 @@ public class UnifiedGenotyperEngine {
         // initialize the data for this thread if that hasn't been done yet
         if ( glcm.get() == null ) {
             glcm.set(getGenotypeLikelihoodsCalculationObject(logger, UAC));
+            allGLCMs.add(glcm.get());
         }
 
         return glcm.get().get(model.name()).getLikelihoods(tracker, refContext, stratifiedContexts, type, alternateAllelesToUse, useBAQedPileup && BAQEnabledOnCMDLine, genomeLocParser);
@@ -246,6 +246,15 @@ public class IndelRealigner extends ReadWalker<Integer, Integer> {
 
     // DEBUGGING OPTIONS FOLLOW
 
+    /**
+     * By default each read is aligned against the whole reference window to generate alternate consenses.  With a
+     * non-negative band width, only alignments within this many diagonals of the read's current alignment are
+     * considered, which is much faster for wide windows but cannot find indels larger than the band.
+     */
+    @Hidden
+    @Argument(fullName="swBandWidth", shortName="swBandWidth", required=false, doc="Restrict the Smith-Waterman alignments used to generate consenses to this many diagonals around the original alignment; -1 means no restriction")
+    protected int SW_BAND_WIDTH = -1;
+
     @Hidden
     @Argument(fullName="check_early",shortName="check_early",required=false,doc="Do early check of reads against existing consensuses")
     protected boolean CHECKEARLY = false;
@@ -295,10 +304,10 @@ public class IndelRealigner extends ReadWalker<Integer, Integer> {
     // fraction of mismatches that need to no longer mismatch for a column to be considered cleaned
     private static final double MISMATCH_COLUMN_CLEANED_FRACTION = 0.75;
 
-    private static final double SW_MATCH = 30.0;      // 1.0;
-    private static final double SW_MISMATCH = -10.0;  //-1.0/3.0;
-    private static final double SW_GAP = -10.0;       //-1.0-1.0/3.0;
-    private static final double SW_GAP_EXTEND = -2.0; //-1.0/.0;
+    private static final int SW_MATCH = 30;      // 1.0;
+    private static final int SW_MISMATCH = -10;  //-1.0/3.0;
+    private static final int SW_GAP = -10;       //-1.0-1.0/3.0;
+    private static final int SW_GAP_EXTEND = -2; //-1.0/.0;
 
     // reference base padding size
     // TODO -- make this a command-line argument if the need arises
@@ -948,7 +957,7 @@ public class IndelRealigner extends ReadWalker<Integer, Integer> {
         if ( altAlignmentsToTest.size() <= MAX_READS_FOR_CONSENSUSES ) {
             for ( AlignedRead aRead : altAlignmentsToTest ) {
                 if ( CHECKEARLY ) createAndAddAlternateConsensus1(aRead, altConsensesToPopulate, reference,leftmostIndex);
-                else createAndAddAlternateConsensus(aRead.getReadBases(), altConsensesToPopulate, reference);
+                else createAndAddAlternateConsensus(aRead, altConsensesToPopulate, reference, leftmostIndex);
             }
         }
         // otherwise, choose reads for alternate consenses randomly
@@ -958,16 +967,22 @@ public class IndelRealigner extends ReadWalker<Integer, Integer> {
                 int index = GenomeAnalysisEngine.getRandomGenerator().nextInt(altAlignmentsToTest.size());
                 AlignedRead aRead = altAlignmentsToTest.remove(index);
                 if ( CHECKEARLY ) createAndAddAlternateConsensus1(aRead, altConsensesToPopulate, reference,leftmostIndex);
-                else createAndAddAlternateConsensus(aRead.getReadBases(), altConsensesToPopulate, reference);
+                else createAndAddAlternateConsensus(aRead, altConsensesToPopulate, reference, leftmostIndex);
             }
         }
     }
 
-    private void createAndAddAlternateConsensus(final byte[] read, final Set<Consensus> altConsensesToPopulate, final byte[] reference) {
+    private BandedSWPairwiseAlignment alignToReference(final AlignedRead read, final byte[] reference, final int leftmostIndex) {
+        return new BandedSWPairwiseAlignment(reference, read.getReadBases(), SW_MATCH, SW_MISMATCH, SW_GAP, SW_GAP_EXTEND,
+                read.getRead().getAlignmentStart() - leftmostIndex, SW_BAND_WIDTH);
+    }
+
+    private void createAndAddAlternateConsensus(final AlignedRead read, final Set<Consensus> altConsensesToPopulate,
+                                                final byte[] reference, final int leftmostIndex) {
 
         // do a pairwise alignment against the reference
-         SWPairwiseAlignment swConsensus = new SWPairwiseAlignment(reference, read, SW_MATCH, SW_MISMATCH, SW_GAP, SW_GAP_EXTEND);
-         Consensus c = createAlternateConsensus(swConsensus.getAlignmentStart2wrt1(), swConsensus.getCigar(), reference, read);
+         BandedSWPairwiseAlignment swConsensus = alignToReference(read, reference, leftmostIndex);
+         Consensus c = createAlternateConsensus(swConsensus.getAlignmentStart2wrt1(), swConsensus.getCigar(), reference, read.getReadBases());
          if ( c != null )
              altConsensesToPopulate.add(c);
     }
@@ -983,7 +998,7 @@ public class IndelRealigner extends ReadWalker<Integer, Integer> {
          }
          // do a pairwise alignment against the reference
          SWalignmentRuns++;
-         SWPairwiseAlignment swConsensus = new SWPairwiseAlignment(reference, read.getReadBases(), SW_MATCH, SW_MISMATCH, SW_GAP, SW_GAP_EXTEND);
+         BandedSWPairwiseAlignment swConsensus = alignToReference(read, reference, leftmostIndex);
          Consensus c = createAlternateConsensus(swConsensus.getAlignmentStart2wrt1(), swConsensus.getCigar(), reference, read.getReadBases());
          if ( c != null ) {
              altConsensesToPopulate.add(c);
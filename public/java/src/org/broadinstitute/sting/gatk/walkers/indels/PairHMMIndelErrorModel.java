@@ -26,9 +26,11 @@
 package org.broadinstitute.sting.gatk.walkers.indels;
 
 import org.broadinstitute.sting.gatk.contexts.ReferenceContext;
+import org.broadinstitute.sting.utils.BatchPairHMM;
 import org.broadinstitute.sting.utils.Haplotype;
 import org.broadinstitute.sting.utils.MathUtils;
-import org.broadinstitute.sting.utils.PairHMM;
+import org.broadinstitute.sting.utils.PairHMMEngine;
+import org.broadinstitute.sting.utils.PairHMMRead;
 import org.broadinstitute.sting.utils.clipping.ReadClipper;
 import org.broadinstitute.sting.utils.pileup.PileupElement;
 import org.broadinstitute.sting.utils.pileup.ReadBackedPileup;
@@ -36,9 +38,11 @@ import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
 import org.broadinstitute.sting.utils.sam.ReadUtils;
 import org.broadinstitute.sting.utils.variantcontext.Allele;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 
 
 public class PairHMMIndelErrorModel {
@@ -64,6 +68,12 @@ public class PairHMMIndelErrorModel {
     private final byte[] GAP_OPEN_PROB_TABLE;
     private final byte[] GAP_CONT_PROB_TABLE;
 
+    // likelihoods of reads given haplotypes computed at previous sites, or null if we aren't caching them
+    private final ReadHaplotypeLikelihoodCache likelihoodCache;
+
+    // the pair HMM, which computes the likelihoods of all of the reads at a site in one batch
+    private final BatchPairHMM pairHMM;
+
     /////////////////////////////
     // Private Member Variables
     /////////////////////////////
@@ -83,8 +93,20 @@ public class PairHMMIndelErrorModel {
     }
 
     public PairHMMIndelErrorModel(byte indelGOP, byte indelGCP, boolean deb, boolean bandedLikelihoods) {
+        this(indelGOP, indelGCP, deb, bandedLikelihoods, ReadHaplotypeLikelihoodCache.DEFAULT_MAX_SIZE_IN_MB, PairHMMEngine.Implementation.ORIGINAL, 1);
+    }
+
+    /**
+     * @param likelihoodCacheSizeInMB the maximum memory to use for caching read likelihoods across sites; 0 disables the cache
+     * @param pairHMMImplementation the implementation of the pair HMM to use
+     * @param nPairHMMThreads the number of threads to split the pair HMM calculations of each site between
+     */
+    public PairHMMIndelErrorModel(byte indelGOP, byte indelGCP, boolean deb, boolean bandedLikelihoods, int likelihoodCacheSizeInMB,
+                                  PairHMMEngine.Implementation pairHMMImplementation, int nPairHMMThreads) {
         this.DEBUG = deb;
         this.bandedLikelihoods = bandedLikelihoods;
+        this.pairHMM = new BatchPairHMM(pairHMMImplementation, nPairHMMThreads);
+        this.likelihoodCache = likelihoodCacheSizeInMB > 0 ? new ReadHaplotypeLikelihoodCache(likelihoodCacheSizeInMB * 1024L * 1024L) : null;
 
         // fill gap penalty table, affine naive model:
         this.GAP_CONT_PROB_TABLE = new byte[MAX_HRUN_GAP_IDX];
@@ -117,6 +139,13 @@ public class PairHMMIndelErrorModel {
 
     }
 
+    /**
+     * @return the cache of read likelihoods shared across sites, or null if caching is disabled
+     */
+    public ReadHaplotypeLikelihoodCache getLikelihoodCache() {
+        return likelihoodCache;
+    }
+
     static private void getContextHomopolymerLength(final byte[] refBytes, final int[] hrunArray) {
         // compute forward hrun length, example:
         // AGGTGACCCCCCTGAGAG
@@ -182,7 +211,9 @@ public class PairHMMIndelErrorModel {
                                                                           final HashMap<PileupElement, LinkedHashMap<Allele, Double>> indelLikelihoodMap,
                                                                           final int[] readCounts) {
         final double readLikelihoods[][] = new double[pileup.getNumberOfElements()][haplotypeMap.size()];
-        final PairHMM pairHMM = new PairHMM(bandedLikelihoods);
+
+        // the reads whose likelihoods we still need to compute, all of which we hand to the pair HMM in one batch at the end
+        final List<ReadToAlign> readsToAlign = new ArrayList<ReadToAlign>();
 
         int readIdx=0;
         for (PileupElement p: pileup) {
@@ -293,11 +324,7 @@ public class PairHMMIndelErrorModel {
                 else {
                     final byte[] readBases = Arrays.copyOfRange(unclippedReadBases,numStartSoftClippedBases, unclippedReadBases.length-numEndSoftClippedBases);
                     final byte[] readQuals = Arrays.copyOfRange(unclippedReadQuals,numStartSoftClippedBases, unclippedReadBases.length-numEndSoftClippedBases);
-                    int j=0;
 
-                    // initialize path metric and traceback memories for likelihood computation
-                    double[][] matchMetricArray = null, XMetricArray = null, YMetricArray = null;
-                    byte[] previousHaplotypeSeen = null;
                     final byte[] contextLogGapOpenProbabilities = new byte[readBases.length];
                     final byte[] contextLogGapContinuationProbabilities  = new byte[readBases.length];
 
@@ -306,7 +333,10 @@ public class PairHMMIndelErrorModel {
                     getContextHomopolymerLength(readBases,hrunProfile);
                     fillGapProbabilities(hrunProfile, contextLogGapOpenProbabilities, contextLogGapContinuationProbabilities);
 
+                    final ReadToAlign readToAlign = new ReadToAlign(readIdx, readEl, readBases,
+                            likelihoodCache == null ? null : likelihoodCache.getReadKey(p.getRead(), readBases, readQuals), haplotypeMap.size());
 
+                    int j=0;
                     for (Allele a: haplotypeMap.keySet()) {
 
                         Haplotype haplotype = haplotypeMap.get(a);
@@ -320,47 +350,26 @@ public class PairHMMIndelErrorModel {
                         final long indStart = startLocationInRefForHaplotypes - haplotype.getStartPosition();
                         final long indStop =  stopLocationInRefForHaplotypes - haplotype.getStartPosition();
 
-                        double readLikelihood;
                         if (DEBUG)
                             System.out.format("indStart: %d indStop: %d WinStart:%d WinStop:%d start: %d stop: %d readLength: %d C:%s\n",
                                     indStart, indStop, ref.getWindow().getStart(), ref.getWindow().getStop(), startLocationInRefForHaplotypes, stopLocationInRefForHaplotypes, read.getReadLength(), read.getCigar().toString());
 
+                        final byte[] haplotypeBases = Arrays.copyOfRange(haplotype.getBases(), (int)indStart, (int)indStop);
+                        readToAlign.haplotypeBases[j] = haplotypeBases;
 
+                        final Double cachedLikelihood = readToAlign.readKey == null ? null : likelihoodCache.get(readToAlign.readKey, haplotypeBases);
+                        if (cachedLikelihood != null)
+                            readLikelihoods[readIdx][j] = cachedLikelihood;
+                        else
+                            readToAlign.uncachedHaplotypes.add(j);
+                        j++;
+                    }
 
-                            final byte[] haplotypeBases = Arrays.copyOfRange(haplotype.getBases(),
-                                    (int)indStart, (int)indStop);
-
-                            final int X_METRIC_LENGTH = readBases.length+2;
-                            final int Y_METRIC_LENGTH = haplotypeBases.length+2;
-
-                            if (matchMetricArray == null) {
-                                //no need to reallocate arrays for each new haplotype, as length won't change
-                                matchMetricArray = new double[X_METRIC_LENGTH][Y_METRIC_LENGTH];
-                                XMetricArray = new double[X_METRIC_LENGTH][Y_METRIC_LENGTH];
-                                YMetricArray = new double[X_METRIC_LENGTH][Y_METRIC_LENGTH];
-
-
-                                PairHMM.initializeArrays(matchMetricArray, XMetricArray, YMetricArray, X_METRIC_LENGTH);
-                            }
-
-                            int startIndexInHaplotype = 0;
-                            if (previousHaplotypeSeen != null)
-                                startIndexInHaplotype = computeFirstDifferingPosition(haplotypeBases, previousHaplotypeSeen);
-                            previousHaplotypeSeen = haplotypeBases.clone();
-
-                            readLikelihood = pairHMM.computeReadLikelihoodGivenHaplotype(haplotypeBases, readBases, readQuals,
-                                    contextLogGapOpenProbabilities, contextLogGapOpenProbabilities, contextLogGapContinuationProbabilities,
-                                    startIndexInHaplotype, matchMetricArray, XMetricArray, YMetricArray);
-
-
-                            if (DEBUG) {
-                                System.out.println("H:"+new String(haplotypeBases));
-                                System.out.println("R:"+new String(readBases));
-                                System.out.format("L:%4.2f\n",readLikelihood);
-                                System.out.format("StPos:%d\n", startIndexInHaplotype);
-                            }
-                        readEl.put(a,readLikelihood);
-                        readLikelihoods[readIdx][j++] = readLikelihood;
+                    if (readToAlign.uncachedHaplotypes.isEmpty())
+                        readToAlign.finish(readLikelihoods[readIdx], haplotypeMap);
+                    else {
+                        readToAlign.hmmRead = new PairHMMRead(readBases, readQuals, contextLogGapOpenProbabilities, contextLogGapOpenProbabilities, contextLogGapContinuationProbabilities);
+                        readsToAlign.add(readToAlign);
                     }
                 }
                 indelLikelihoodMap.put(p,readEl);
@@ -368,6 +377,8 @@ public class PairHMMIndelErrorModel {
             readIdx++;
         }
 
+        computeUncachedLikelihoods(readsToAlign, readLikelihoods, haplotypeMap);
+
         if (DEBUG) {
             System.out.println("\nLikelihood summary");
             for (readIdx=0; readIdx < pileup.getNumberOfElements(); readIdx++) {
@@ -382,19 +393,76 @@ public class PairHMMIndelErrorModel {
         return readLikelihoods;
     }
 
-    private boolean useSoftClippedBases(GATKSAMRecord read, long eventStartPos, int eventLength) {
-        return !((read.getAlignmentStart() >= eventStartPos-eventLength && read.getAlignmentStart() <= eventStartPos+1) || (read.getAlignmentEnd() >= eventStartPos && read.getAlignmentEnd() <= eventStartPos + eventLength));
+    /**
+     * Compute the likelihoods of all of the reads at this site that weren't in the cache in one pair HMM batch
+     */
+    private void computeUncachedLikelihoods(final List<ReadToAlign> readsToAlign, final double[][] readLikelihoods, final LinkedHashMap<Allele, Haplotype> haplotypeMap) {
+        if (readsToAlign.isEmpty())
+            return;
+
+        final List<PairHMMRead> hmmReads = new ArrayList<PairHMMRead>(readsToAlign.size());
+        final byte[][][] hmmHaplotypes = new byte[readsToAlign.size()][][];
+        for (int i = 0; i < readsToAlign.size(); i++) {
+            final ReadToAlign readToAlign = readsToAlign.get(i);
+            hmmReads.add(readToAlign.hmmRead);
+            hmmHaplotypes[i] = new byte[readToAlign.uncachedHaplotypes.size()][];
+            for (int k = 0; k < hmmHaplotypes[i].length; k++)
+                hmmHaplotypes[i][k] = readToAlign.haplotypeBases[readToAlign.uncachedHaplotypes.get(k)];
+        }
+
+        final double[][] likelihoods = pairHMM.computeLikelihoods(hmmReads, hmmHaplotypes);
+
+        for (int i = 0; i < readsToAlign.size(); i++) {
+            final ReadToAlign readToAlign = readsToAlign.get(i);
+            for (int k = 0; k < likelihoods[i].length; k++) {
+                final int j = readToAlign.uncachedHaplotypes.get(k);
+                readLikelihoods[readToAlign.readIdx][j] = likelihoods[i][k];
+                if (readToAlign.readKey != null)
+                    likelihoodCache.put(readToAlign.readKey, readToAlign.haplotypeBases[j], likelihoods[i][k]);
+            }
+            readToAlign.finish(readLikelihoods[readToAlign.readIdx], haplotypeMap);
+        }
     }
 
-    private int computeFirstDifferingPosition(byte[] b1, byte[] b2) {
-        if (b1.length != b2.length)
-            return 0; // sanity check
+    /**
+     * A read at the current site, with the parts of the haplotypes it overlaps, waiting for its likelihoods
+     */
+    private final class ReadToAlign {
+        final int readIdx;
+        final LinkedHashMap<Allele, Double> readEl;
+        final byte[] readBases;
+        final ReadHaplotypeLikelihoodCache.ReadKey readKey;
+        final byte[][] haplotypeBases;
+        final List<Integer> uncachedHaplotypes = new ArrayList<Integer>();
+        PairHMMRead hmmRead = null;
+
+        private ReadToAlign(final int readIdx, final LinkedHashMap<Allele, Double> readEl, final byte[] readBases,
+                            final ReadHaplotypeLikelihoodCache.ReadKey readKey, final int numHaplotypes) {
+            this.readIdx = readIdx;
+            this.readEl = readEl;
+            this.readBases = readBases;
+            this.readKey = readKey;
+            this.haplotypeBases = new byte[numHaplotypes][];
+        }
 
-        for (int i=0; i < b1.length; i++ ){
-            if ( b1[i]!= b2[i] )
-                return i;
+        /**
+         * Record the likelihoods of this read, now that they are all known, in its map from alleles to likelihoods
+         */
+        private void finish(final double[] likelihoods, final LinkedHashMap<Allele, Haplotype> haplotypeMap) {
+            int j=0;
+            for (Allele a: haplotypeMap.keySet()) {
+                if (DEBUG) {
+                    System.out.println("H:"+new String(haplotypeBases[j]));
+                    System.out.println("R:"+new String(readBases));
+                    System.out.format("L:%4.2f\n",likelihoods[j]);
+                }
+                readEl.put(a, likelihoods[j++]);
+            }
         }
-        return b1.length;
+    }
+
+    private boolean useSoftClippedBases(GATKSAMRecord read, long eventStartPos, int eventLength) {
+        return !((read.getAlignmentStart() >= eventStartPos-eventLength && read.getAlignmentStart() <= eventStartPos+1) || (read.getAlignmentEnd() >= eventStartPos && read.getAlignmentEnd() <= eventStartPos + eventLength));
     }
 
     private static double[] getDiploidHaplotypeLikelihoods(final int numHaplotypes, final int readCounts[], final double readLikelihoods[][]) {
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.indels;
+
+import com.google.java.contract.Requires;
+import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the likelihoods of reads given haplotypes, shared across the candidate indel sites visited
+ * by one PairHMMIndelErrorModel
+ *
+ * Adjacent candidate sites in the same repeat share nearly all of their reads, and after clipping a read to the
+ * reference window the same read is often aligned to exactly the same haplotype bases at each of them.  This
+ * cache remembers those likelihoods, keyed by the read, the clipped read bases and quals used for the alignment,
+ * and the haplotype bases the read was aligned to, so the pair HMM only needs to run once for each.
+ *
+ * The keys compare all of the bases and quals, so a hit always returns exactly the likelihood the pair HMM would
+ * have computed.  Once the estimated memory used by the cache exceeds its limit the least recently used
+ * likelihoods are evicted, so the cache naturally tracks the reads near the current site.
+ *
+ * Since the keys compare reads by identity they keep the reads themselves alive for as long as any of their
+ * likelihoods are cached, so the estimate includes each of those reads once, on top of the keys themselves.
+ */
+public class ReadHaplotypeLikelihoodCache {
+    /** the default maximum memory used by each cache */
+    public final static int DEFAULT_MAX_SIZE_IN_MB = 32;
+
+    // rough JVM overheads of the key, its entry in the map, and the boxed likelihood
+    private final static int ENTRY_OVERHEAD_IN_BYTES = 128;
+    private final static int ARRAY_OVERHEAD_IN_BYTES = 16;
+
+    // rough JVM overhead of a read, its cigar, and its attributes, excluding the per-base arrays
+    private final static int READ_OVERHEAD_IN_BYTES = 512;
+
+    private final long maxSizeInBytes;
+    private long sizeInBytes = 0, peakSizeInBytes = 0;
+    private long nHits = 0, nMisses = 0, nEvictions = 0;
+
+    // in access order, so the least recently used likelihoods come first
+    private final LinkedHashMap<Key, Double> likelihoods = new LinkedHashMap<Key, Double>(1024, 0.75f, true);
+
+    // the number of cached likelihoods that keep each read alive
+    private final Map<GATKSAMRecord, Integer> pinnedReads = new IdentityHashMap<GATKSAMRecord, Integer>();
+
+    /**
+     * @param maxSizeInBytes the maximum estimated memory to use for cached likelihoods
+     */
+    @Requires("maxSizeInBytes > 0")
+    public ReadHaplotypeLikelihoodCache(final long maxSizeInBytes) {
+        this.maxSizeInBytes = maxSizeInBytes;
+    }
+
+    /**
+     * Returns the read key used to look up all of the likelihoods of read, given clipped bases and quals,
+     * against the haplotypes at one site.  The caller must not modify readBases or readQuals afterwards.
+     *
+     * @param read the original, unclipped read from the pileup; compared by identity
+     * @param readBases the clipped bases of read used for the alignment
+     * @param readQuals the clipped quals of read used for the alignment
+     * @return a non-null ReadKey
+     */
+    public ReadKey getReadKey(final GATKSAMRecord read, final byte[] readBases, final byte[] readQuals) {
+        return new ReadKey(read, readBases, readQuals);
+    }
+
+    /**
+     * @return the cached likelihood of readKey given haplotypeBases, or null if there isn't one
+     */
+    public Double get(final ReadKey readKey, final byte[] haplotypeBases) {
+        final Double likelihood = likelihoods.get(new Key(readKey, haplotypeBases));
+        if ( likelihood == null )
+            nMisses++;
+        else
+            nHits++;
+        return likelihood;
+    }
+
+    /**
+     * Remember the likelihood of readKey given haplotypeBases.  The caller must not modify haplotypeBases afterwards.
+     */
+    public void put(final ReadKey readKey, final byte[] haplotypeBases, final double likelihood) {
+        final Key key = new Key(readKey, haplotypeBases);
+        if ( likelihoods.put(key, likelihood) == null ) {
+            sizeInBytes += key.sizeInBytes();
+            pin(readKey.read);
+            evictLeastRecentlyUsed();
+            peakSizeInBytes = Math.max(peakSizeInBytes, sizeInBytes);
+        }
+    }
+
+    private void evictLeastRecentlyUsed() {
+        final Iterator<Key> it = likelihoods.keySet().iterator();
+        while ( sizeInBytes > maxSizeInBytes && it.hasNext() ) {
+            final Key key = it.next();
+            sizeInBytes -= key.sizeInBytes();
+            unpin(key.readKey.read);
+            it.remove();
+            nEvictions++;
+        }
+    }
+
+    private void pin(final GATKSAMRecord read) {
+        final Integer nKeys = pinnedReads.get(read);
+        if ( nKeys == null ) {
+            pinnedReads.put(read, 1);
+            sizeInBytes += readSizeInBytes(read);
+        } else {
+            pinnedReads.put(read, nKeys + 1);
+        }
+    }
+
+    private void unpin(final GATKSAMRecord read) {
+        final int nKeys = pinnedReads.get(read);
+        if ( nKeys == 1 ) {
+            pinnedReads.remove(read);
+            sizeInBytes -= readSizeInBytes(read);
+        } else {
+            pinnedReads.put(read, nKeys - 1);
+        }
+    }
+
+    /**
+     * A rough estimate of the memory used by read, counting its bases and quals along with the insertion and
+     * deletion quals it may carry
+     */
+    private static long readSizeInBytes(final GATKSAMRecord read) {
+        final int nameLength = read.getReadName() == null ? 0 : read.getReadNameLength();
+        return READ_OVERHEAD_IN_BYTES + 4 * (ARRAY_OVERHEAD_IN_BYTES + read.getReadLength()) + 2 * nameLength;
+    }
+
+    public void clear() {
+        likelihoods.clear();
+        pinnedReads.clear();
+        sizeInBytes = 0;
+    }
+
+    public int size() { return likelihoods.size(); }
+
+    /** @return the number of distinct reads kept alive by the likelihoods currently in the cache */
+    public int getNumPinnedReads() { return pinnedReads.size(); }
+    public long getNumHits() { return nHits; }
+    public long getNumMisses() { return nMisses; }
+    public long getNumEvictions() { return nEvictions; }
+
+    /** @return the estimated memory used by the likelihoods currently in the cache, and the reads they keep alive */
+    public long getSizeInBytes() { return sizeInBytes; }
+
+    /** @return the largest estimated memory used by the cache at any point */
+    public long getPeakSizeInBytes() { return peakSizeInBytes; }
+
+    /** @return the fraction of lookups that found a cached likelihood, or 0 if there weren't any */
+    public double getHitRate() {
+        final long nLookups = nHits + nMisses;
+        return nLookups == 0 ? 0.0 : nHits / (double)nLookups;
+    }
+
+    /**
+     * The read-specific part of the cache keys, shared by all of the keys for one read at a site
+     */
+    public static final class ReadKey {
+        private final GATKSAMRecord read;
+        private final byte[] readBases, readQuals;
+        private final int hashCode;
+
+        private ReadKey(final GATKSAMRecord read, final byte[] readBases, final byte[] readQuals) {
+            this.read = read;
+            this.readBases = readBases;
+            this.readQuals = readQuals;
+            this.hashCode = 31 * (31 * System.identityHashCode(read) + Arrays.hashCode(readBases)) + Arrays.hashCode(readQuals);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if ( this == o ) return true;
+            if ( ! (o instanceof ReadKey) ) return false;
+            final ReadKey other = (ReadKey)o;
+            return read == other.read && hashCode == other.hashCode
+                    && Arrays.equals(readBases, other.readBases) && Arrays.equals(readQuals, other.readQuals);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final class Key {
+        private final ReadKey readKey;
+        private final byte[] haplotypeBases;
+        private final int hashCode;
+
+        private Key(final ReadKey readKey, final byte[] haplotypeBases) {
+            this.readKey = readKey;
+            this.haplotypeBases = haplotypeBases;
+            this.hashCode = 31 * readKey.hashCode + Arrays.hashCode(haplotypeBases);
+        }
+
+        /**
+         * A conservative estimate of the memory used by this key and its likelihood, counting the read bases
+         * and quals in full even though they are shared with the other keys of the same read
+         */
+        private long sizeInBytes() {
+            return ENTRY_OVERHEAD_IN_BYTES + 3 * ARRAY_OVERHEAD_IN_BYTES
+                    + haplotypeBases.length + readKey.readBases.length + readKey.readQuals.length;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if ( this == o ) return true;
+            if ( ! (o instanceof Key) ) return false;
+            final Key other = (Key)o;
+            return hashCode == other.hashCode && readKey.equals(other.readKey) && Arrays.equals(haplotypeBases, other.haplotypeBases);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
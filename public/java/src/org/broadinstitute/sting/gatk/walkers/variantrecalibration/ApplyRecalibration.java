@@ -62,7 +62,8 @@ import java.util.*;
  * <p>
  * The input raw variants to be recalibrated.
  * <p>
- * The recalibration table file in VCF format that was generated by the VariantRecalibrator walker.
+ * The recalibration table file in VCF format that was generated by the VariantRecalibrator walker, or the same table
+ * in the binary format written by VariantRecalibrator with -binaryRecalFile.
  * <p>
  * The tranches file that was generated by the VariantRecalibrator walker.
  *
@@ -97,8 +98,14 @@ public class ApplyRecalibration extends RodWalker<Integer, Integer> implements T
      */
     @Input(fullName="input", shortName = "input", doc="The raw input variants to be recalibrated", required=true)
     public List<RodBinding<VariantContext>> input;
-    @Input(fullName="recal_file", shortName="recalFile", doc="The input recal file used by ApplyRecalibration", required=true)
+    @Input(fullName="recal_file", shortName="recalFile", doc="The input recal file used by ApplyRecalibration", required=false)
     protected RodBinding<VariantContext> recal;
+    /**
+     * The binary recal file written by VariantRecalibrator with -binaryRecalFile, which may be given instead of the
+     * recal file.  It is merge-joined against the input variants rather than read as a ROD, which is much faster.
+     */
+    @Input(fullName="binary_recal_file", shortName="binaryRecalFile", doc="The input binary recal file, which may be given instead of the recal file", required=false)
+    protected File BINARY_RECAL_FILE = null;
     @Input(fullName="tranches_file", shortName="tranchesFile", doc="The input tranches file describing where to cut the data", required=true)
     protected File TRANCHES_FILE;
 
@@ -124,6 +131,7 @@ public class ApplyRecalibration extends RodWalker<Integer, Integer> implements T
     final private List<Tranche> tranches = new ArrayList<Tranche>();
     final private Set<String> inputNames = new HashSet<String>();
     final private Set<String> ignoreInputFilterSet = new TreeSet<String>();
+    private BinaryRecalFile.Reader binaryRecal = null;
 
     //---------------------------------------------------------------------------------------------------------------
     //
@@ -132,6 +140,14 @@ public class ApplyRecalibration extends RodWalker<Integer, Integer> implements T
     //---------------------------------------------------------------------------------------------------------------
 
     public void initialize() {
+        final boolean hasRecalFile = recal != null && recal.isBound();
+        if( hasRecalFile == (BINARY_RECAL_FILE != null) ) {
+            throw new UserException.CommandLineException("Exactly one of the recal file (-recalFile) and the binary recal file (-binaryRecalFile) must be given");
+        }
+        if( BINARY_RECAL_FILE != null ) {
+            binaryRecal = new BinaryRecalFile.Reader(BINARY_RECAL_FILE);
+        }
+
         for ( final Tranche t : Tranche.readTranches(TRANCHES_FILE) ) {
             if ( t.ts >= TS_FILTER_LEVEL ) {
                 tranches.add(t);
@@ -192,20 +208,32 @@ public class ApplyRecalibration extends RodWalker<Integer, Integer> implements T
         }
 
         final List<VariantContext> VCs =  tracker.getValues(input, context.getLocation());
-        final List<VariantContext> recals =  tracker.getValues(recal, context.getLocation());
+        final List<VariantContext> recals = ( binaryRecal == null ? tracker.getValues(recal, context.getLocation()) : Collections.<VariantContext>emptyList() );
 
         for( final VariantContext vc : VCs ) {
 
             if( VariantDataManager.checkVariationClass( vc, MODE ) && (vc.isNotFiltered() || ignoreInputFilterSet.containsAll(vc.getFilters())) ) {
 
-                final VariantContext recalDatum = getMatchingRecalVC(vc, recals);
-                if( recalDatum == null ) {
-                    throw new UserException("Encountered input variant which isn't found in the input recal file. Please make sure VariantRecalibrator and ApplyRecalibration were run on the same set of input variants. First seen at: " + vc );
-                }
+                final String lodString;
+                final Object culprit;
+                if( binaryRecal != null ) {
+                    final int record = binaryRecal.find(vc);
+                    if( record == -1 ) {
+                        throw new UserException("Encountered input variant which isn't found in the input recal file. Please make sure VariantRecalibrator and ApplyRecalibration were run on the same set of input variants. First seen at: " + vc );
+                    }
+                    lodString = String.format("%.4f", binaryRecal.getLod(record)); // as written to the VCF recal file
+                    culprit = binaryRecal.getCulprit(record);
+                } else {
+                    final VariantContext recalDatum = getMatchingRecalVC(vc, recals);
+                    if( recalDatum == null ) {
+                        throw new UserException("Encountered input variant which isn't found in the input recal file. Please make sure VariantRecalibrator and ApplyRecalibration were run on the same set of input variants. First seen at: " + vc );
+                    }
 
-                final String lodString = recalDatum.getAttributeAsString(VariantRecalibrator.VQS_LOD_KEY, null);
-                if( lodString == null ) {
-                    throw new UserException("Encountered a malformed record in the input recal file. There is no lod for the record at: " + vc );
+                    lodString = recalDatum.getAttributeAsString(VariantRecalibrator.VQS_LOD_KEY, null);
+                    if( lodString == null ) {
+                        throw new UserException("Encountered a malformed record in the input recal file. There is no lod for the record at: " + vc );
+                    }
+                    culprit = recalDatum.getAttribute(VariantRecalibrator.CULPRIT_KEY);
                 }
                 final double lod;
                 try {
@@ -219,7 +247,7 @@ public class ApplyRecalibration extends RodWalker<Integer, Integer> implements T
 
                 // Annotate the new record with its VQSLOD and the worst performing annotation
                 builder.attribute(VariantRecalibrator.VQS_LOD_KEY, lodString); // use the String representation so that we don't lose precision on output
-                builder.attribute(VariantRecalibrator.CULPRIT_KEY, recalDatum.getAttribute(VariantRecalibrator.CULPRIT_KEY));
+                builder.attribute(VariantRecalibrator.CULPRIT_KEY, culprit);
 
                 for( int i = tranches.size() - 1; i >= 0; i-- ) {
                     final Tranche tranche = tranches.get(i);
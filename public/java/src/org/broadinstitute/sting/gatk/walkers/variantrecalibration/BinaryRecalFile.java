@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.variantrecalibration;
+
+import net.sf.samtools.SAMSequenceDictionary;
+import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
+import org.broadinstitute.sting.utils.exceptions.UserException;
+import org.broadinstitute.sting.utils.variantcontext.Allele;
+import org.broadinstitute.sting.utils.variantcontext.VariantContext;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary alternative to the VCF recal file written by the VariantRecalibrator.
+ *
+ * Reading the VCF recal file back in as a ROD means parsing a VCF as large as the input callset, just to find the
+ * VQSLOD and culprit of each input variant.  The binary recal file stores them as fixed-size records sorted by
+ * position, so ApplyRecalibration can memory-map it and merge-join it against the input variants:
+ *
+ *   magic, version
+ *   contigs:   count, name*              -- in the order of the sequence dictionary
+ *   culprits:  count, annotation name*
+ *   records:   count, (contig, start, stop, alleles hash, VQSLOD, culprit)*   -- sorted by contig and start
+ *
+ * A variant is matched to the record with the same position and alleles hash, so the record of a SNP isn't mistaken
+ * for that of an indel starting at the same position.  The culprit of a record is an index into the culprits, or -1.
+ */
+public final class BinaryRecalFile {
+    private static final byte[] MAGIC = {'V', 'Q', 'S', 'R', 'B', 'I', 'N', '\n'};
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 4 * 4 + 8 + 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * While merge-joining, a lookup at most this many records past the previous one just walks forward to it; a
+     * lookup further ahead, or behind, binary searches for it instead
+     */
+    private static final int MAX_RECORDS_TO_WALK = 64;
+
+    private BinaryRecalFile() {}
+
+    /**
+     * @return a hash of the alleles of vc, which is the same across runs
+     */
+    public static int allelesHash(final VariantContext vc) {
+        int hash = 1;
+        for ( final Allele allele : vc.getAlleles() )
+            hash = 31 * hash + allele.getDisplayString().hashCode();
+        return hash;
+    }
+
+    /**
+     * Writes the variants of data to file in the binary format
+     *
+     * @param data            the variants, which must be sorted by location
+     * @param annotationKeys  the names of the annotations, for the culprits of the variants
+     * @param dictionary      the sequence dictionary of the contig indices of the variants
+     * @param file            the file to write
+     */
+    public static void write(final VariantDataMatrix data, final List<String> annotationKeys, final SAMSequenceDictionary dictionary, final File file) {
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+
+                out.writeInt(dictionary.size());
+                for ( int i = 0; i < dictionary.size(); i++ )
+                    writeString(out, dictionary.getSequence(i).getSequenceName());
+
+                out.writeInt(annotationKeys.size());
+                for ( final String key : annotationKeys )
+                    writeString(out, key);
+
+                out.writeInt(data.size());
+                for ( int row = 0; row < data.size(); row++ ) {
+                    if ( row > 0 && compare(data.getContigIndex(row - 1), data.getStart(row - 1), data.getContigIndex(row), data.getStart(row)) > 0 )
+                        throw new ReviewedStingException("BUG: variants must be sorted by location to be written to a binary recal file");
+                    out.writeInt(data.getContigIndex(row));
+                    out.writeInt(data.getStart(row));
+                    out.writeInt(data.getStop(row));
+                    out.writeInt(data.getAllelesHash(row));
+                    out.writeDouble(data.getLod(row));
+                    out.writeInt(data.getWorstAnnotation(row));
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new UserException.CouldNotCreateOutputFile(file, "could not be written", e);
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        final byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static int compare(final int contig1, final int start1, final int contig2, final int start2) {
+        if ( contig1 != contig2 )
+            return contig1 < contig2 ? -1 : 1;
+        return start1 < start2 ? -1 : (start1 > start2 ? 1 : 0);
+    }
+
+    /**
+     * A binary recal file mapped into memory.  Lookups may be made from several threads at once; each thread keeps
+     * its own position in the file, so a thread looking up the variants of its shard in order reads the records in
+     * a single forward pass.
+     */
+    public static final class Reader {
+        private final File file;
+        private final ByteBuffer buffer;
+        private final Map<String, Integer> contigIndices = new HashMap<String, Integer>();
+        private final String[] culprits;
+        private final int recordsStart;
+        private final int numRecords;
+
+        private final ThreadLocal<int[]> lastRecord = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[]{0};
+            }
+        };
+
+        public Reader(final File file) {
+            this.file = file;
+            try {
+                final RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    final FileChannel channel = raf.getChannel();
+                    if ( channel.size() > Integer.MAX_VALUE )
+                        throw new UserException.CouldNotReadInputFile(file, "binary recal files larger than 2Gb are not supported");
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                throw new UserException.CouldNotReadInputFile(file, e);
+            }
+
+            try {
+                final byte[] magic = new byte[MAGIC.length];
+                buffer.get(magic);
+                if ( ! Arrays.equals(magic, MAGIC) )
+                    throw new UserException.MalformedFile(file, "is not a binary recal file");
+                final int version = buffer.getInt();
+                if ( version != VERSION )
+                    throw new UserException.MalformedFile(file, "is a binary recal file of version " + version + " but only version " + VERSION + " is supported");
+
+                final int numContigs = buffer.getInt();
+                for ( int i = 0; i < numContigs; i++ )
+                    contigIndices.put(readString(), i);
+
+                culprits = new String[buffer.getInt()];
+                for ( int i = 0; i < culprits.length; i++ )
+                    culprits[i] = readString();
+
+                numRecords = buffer.getInt();
+                recordsStart = buffer.position();
+                if ( (long)recordsStart + (long)numRecords * RECORD_SIZE != buffer.limit() )
+                    throw new UserException.MalformedFile(file, "is a binary recal file of the wrong size (" + buffer.limit() + " bytes where " + ((long)recordsStart + (long)numRecords * RECORD_SIZE) + " were expected)");
+            } catch (BufferUnderflowException e) {
+                throw new UserException.MalformedFile(file, "is a truncated binary recal file");
+            }
+        }
+
+        private String readString() {
+            final byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        public int size() {
+            return numRecords;
+        }
+
+        /**
+         * @return the index of the record of vc, or -1 if there isn't one
+         */
+        public int find(final VariantContext vc) {
+            return find(vc.getChr(), vc.getStart(), vc.getEnd(), allelesHash(vc));
+        }
+
+        /**
+         * @return the index of the record with the given position and alleles hash, or -1 if there isn't one
+         */
+        public int find(final String contig, final int start, final int stop, final int allelesHash) {
+            final Integer contigIndex = contigIndices.get(contig);
+            if ( contigIndex == null )
+                return -1;
+
+            // find the first record at contig:start, walking forward from the last lookup of this thread if it's close
+            final int[] last = lastRecord.get();
+            int record = last[0];
+            if ( record < numRecords && compareTo(record, contigIndex, start) <= 0 ) {
+                final int maxRecord = Math.min(numRecords, record + MAX_RECORDS_TO_WALK);
+                while ( record < maxRecord && compareTo(record, contigIndex, start) < 0 )
+                    record++;
+                if ( record == maxRecord && record < numRecords && compareTo(record, contigIndex, start) < 0 )
+                    record = lowerBound(record, numRecords, contigIndex, start);
+            } else {
+                record = lowerBound(0, numRecords, contigIndex, start);
+            }
+            last[0] = record;
+
+            for ( ; record < numRecords && compareTo(record, contigIndex, start) == 0; record++ ) {
+                if ( getInt(record, 2) == stop && getInt(record, 3) == allelesHash )
+                    return record;
+            }
+            return -1;
+        }
+
+        /**
+         * @return the first record in [from, to) that isn't before contigIndex:start, or to if there isn't one
+         */
+        private int lowerBound(int from, int to, final int contigIndex, final int start) {
+            while ( from < to ) {
+                final int mid = (from + to) >>> 1;
+                if ( compareTo(mid, contigIndex, start) < 0 )
+                    from = mid + 1;
+                else
+                    to = mid;
+            }
+            return from;
+        }
+
+        private int compareTo(final int record, final int contigIndex, final int start) {
+            return compare(getInt(record, 0), getInt(record, 1), contigIndex, start);
+        }
+
+        private int getInt(final int record, final int field) {
+            return buffer.getInt(recordsStart + record * RECORD_SIZE + 4 * field);
+        }
+
+        public int getStart(final int record) {
+            return getInt(record, 1);
+        }
+
+        public int getStop(final int record) {
+            return getInt(record, 2);
+        }
+
+        public double getLod(final int record) {
+            return buffer.getDouble(recordsStart + record * RECORD_SIZE + 16);
+        }
+
+        /**
+         * @return the culprit of the record, or "NULL" if it doesn't have one, as in the VCF recal file
+         */
+        public String getCulprit(final int record) {
+            final int culprit = buffer.getInt(recordsStart + record * RECORD_SIZE + 24);
+            if ( culprit == -1 )
+                return "NULL";
+            if ( culprit < 0 || culprit >= culprits.length )
+                throw new UserException.MalformedFile(file, "has a record with an unknown culprit " + culprit);
+            return culprits[culprit];
+        }
+    }
+}
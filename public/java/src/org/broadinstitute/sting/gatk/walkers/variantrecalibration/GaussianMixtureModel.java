@@ -30,10 +30,12 @@ import cern.jet.random.Normal;
 import org.apache.log4j.Logger;
 import org.broadinstitute.sting.gatk.GenomeAnalysisEngine;
 import org.broadinstitute.sting.utils.MathUtils;
+import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * Created by IntelliJ IDEA.
@@ -45,6 +47,11 @@ public class GaussianMixtureModel {
 
     protected final static Logger logger = Logger.getLogger(GaussianMixtureModel.class);
 
+    // The k-means and EM steps split the data into partitions of this many variants, which may be processed by
+    // different threads.  Their partial sums are always added up in the same order, so the model doesn't depend on
+    // the number of threads, and with a single partition it is exactly the model of a single pass over the data.
+    private final static int PARTITION_SIZE = 10000;
+
     private final ArrayList<MultivariateGaussian> gaussians;
     private final double shrinkage;
     private final double dirichletParameter;
@@ -54,8 +61,22 @@ public class GaussianMixtureModel {
     public boolean isModelReadyForEvaluation;
     public boolean failedToConverge = false;
 
+    /**
+     * If not null, the threads that process the partitions of the data during training
+     */
+    private final ThreadPoolExecutor threads;
+
     public GaussianMixtureModel( final int numGaussians, final int numAnnotations,
                                  final double shrinkage, final double dirichletParameter, final double priorCounts ) {
+        this( numGaussians, numAnnotations, shrinkage, dirichletParameter, priorCounts, 1 );
+    }
+
+    /**
+     * @param nThreads the number of threads to split the data between during training
+     */
+    public GaussianMixtureModel( final int numGaussians, final int numAnnotations,
+                                 final double shrinkage, final double dirichletParameter, final double priorCounts,
+                                 final int nThreads ) {
 
         gaussians = new ArrayList<MultivariateGaussian>( numGaussians );
         for( int iii = 0; iii < numGaussians; iii++ ) {
@@ -70,9 +91,42 @@ public class GaussianMixtureModel {
         isModelReadyForEvaluation = false;
         Arrays.fill(empiricalMu, 0.0);
         empiricalSigma.setMatrix(0, empiricalMu.length - 1, 0, empiricalMu.length - 1, Matrix.identity(empiricalMu.length, empiricalMu.length).times(200.0).inverse());
+
+        if( nThreads > 1 ) {
+            threads = new ThreadPoolExecutor(nThreads, nThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread( final Runnable runnable ) {
+                    final Thread thread = new Thread(runnable, "GaussianMixtureModel worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            threads.allowCoreThreadTimeOut(true); // so that idle workers don't outlive the training
+        } else {
+            threads = null;
+        }
     }
 
-    public void initializeRandomModel( final List<VariantDatum> data, final int numKMeansIterations ) {
+    /**
+     * A trained model made of the given Gaussians, such as one read back from a VQSRModelFile, which can only be evaluated
+     */
+    protected GaussianMixtureModel( final List<MultivariateGaussian> gaussians ) {
+        this.gaussians = new ArrayList<MultivariateGaussian>( gaussians );
+        final int numAnnotations = gaussians.get(0).mu.length;
+        shrinkage = 0.0;
+        dirichletParameter = 0.0;
+        priorCounts = 0.0;
+        empiricalMu = new double[numAnnotations];
+        empiricalSigma = new Matrix(numAnnotations, numAnnotations);
+        isModelReadyForEvaluation = false;
+        threads = null;
+    }
+
+    protected List<MultivariateGaussian> getGaussians() {
+        return gaussians;
+    }
+
+    public void initializeRandomModel( final VariantDataMatrix data, final int numKMeansIterations ) {
 
         // initialize random Gaussian means // BUGBUG: this is broken up this way to match the order of calls to rand.nextDouble() in the old code
         for( final MultivariateGaussian gaussian : gaussians ) {
@@ -94,37 +148,53 @@ public class GaussianMixtureModel {
         }
     }
 
-    private void initializeMeansUsingKMeans( final List<VariantDatum> data, final int numIterations ) {
+    private void initializeMeansUsingKMeans( final VariantDataMatrix data, final int numIterations ) {
 
+        final double[] annotations = data.getAnnotations();
+        final int[] assignments = new int[data.size()]; // the index of the gaussian each variant is assigned to
         int ttt = 0;
         while( ttt++ < numIterations ) {
             // E step: assign each variant to the nearest cluster
-            for( final VariantDatum datum : data ) {
-                double minDistance = Double.MAX_VALUE;
-                MultivariateGaussian minGaussian = null;
-                datum.assignment = minGaussian;
-                for( final MultivariateGaussian gaussian : gaussians ) {
-                    final double dist = gaussian.calculateDistanceFromMeanSquared( datum );
-                    if( dist < minDistance ) {
-                        minDistance = dist;
-                        minGaussian = gaussian;
+            forEachPartition( data, new PartitionFunction<Void>() {
+                public Void apply( final int partition, final int start, final int stop ) {
+                    for( int iii = start; iii < stop; iii++ ) {
+                        double minDistance = Double.MAX_VALUE;
+                        int minGaussian = -1;
+                        for( int gaussianIndex = 0; gaussianIndex < gaussians.size(); gaussianIndex++ ) {
+                            final double dist = gaussians.get(gaussianIndex).calculateDistanceFromMeanSquared( annotations, iii * empiricalMu.length );
+                            if( dist < minDistance ) {
+                                minDistance = dist;
+                                minGaussian = gaussianIndex;
+                            }
+                        }
+                        assignments[iii] = minGaussian;
                     }
+                    return null;
                 }
-                datum.assignment = minGaussian;
-            }
+            });
 
             // M step: update gaussian means based on assigned variants
-            for( final MultivariateGaussian gaussian : gaussians ) {
-                gaussian.zeroOutMu();
-                int numAssigned = 0;
-
-                for( final VariantDatum datum : data ) {
-                    if( datum.assignment.equals(gaussian) ) {
-                        numAssigned++;
-                        gaussian.incrementMu( datum );
+            final List<double[][]> partialSums = forEachPartition( data, new PartitionFunction<double[][]>() {
+                public double[][] apply( final int partition, final int start, final int stop ) {
+                    // the sum of the annotations of the variants assigned to each gaussian, followed by their number
+                    final double[][] sums = new double[gaussians.size()][empiricalMu.length + 1];
+                    for( int iii = start; iii < stop; iii++ ) {
+                        final double[] sum = sums[assignments[iii]];
+                        for( int jjj = 0; jjj < empiricalMu.length; jjj++ ) {
+                            sum[jjj] += annotations[iii * empiricalMu.length + jjj];
+                        }
+                        sum[empiricalMu.length]++;
                     }
+                    return sums;
                 }
+            });
+
+            int gaussianIndex = 0;
+            for( final MultivariateGaussian gaussian : gaussians ) {
+                final double[] sum = addPartialSums( partialSums, gaussianIndex++ );
+                final int numAssigned = (int) sum[empiricalMu.length];
                 if( numAssigned != 0 ) {
+                    System.arraycopy( sum, 0, gaussian.mu, 0, empiricalMu.length );
                     gaussian.divideEqualsMu( ((double) numAssigned) );
                 } else {
                     gaussian.initializeRandomMu( GenomeAnalysisEngine.getRandomGenerator() );
@@ -133,33 +203,167 @@ public class GaussianMixtureModel {
         }
     }
 
-    public void expectationStep( final List<VariantDatum> data ) {
+    public void expectationStep( final VariantDataMatrix data ) {
 
         for( final MultivariateGaussian gaussian : gaussians ) {
             gaussian.precomputeDenominatorForVariationalBayes( getSumHyperParameterLambda() );
+            gaussian.initializePVarInGaussian( data.size() );
         }
 
-        for( final VariantDatum datum : data ) {
-            final double[] pVarInGaussianLog10 = new double[gaussians.size()];
-            int gaussianIndex = 0;
-            for( final MultivariateGaussian gaussian : gaussians ) {
-                final double pVarLog10 = gaussian.evaluateDatumLog10( datum );
-                pVarInGaussianLog10[gaussianIndex++] = pVarLog10;
-            }
-            final double[] pVarInGaussianNormalized = MathUtils.normalizeFromLog10( pVarInGaussianLog10, false );
-            gaussianIndex = 0;
-            for( final MultivariateGaussian gaussian : gaussians ) {
-                gaussian.assignPVarInGaussian( pVarInGaussianNormalized[gaussianIndex++] );
+        final double[] annotations = data.getAnnotations();
+        forEachPartition( data, new PartitionFunction<Void>() {
+            public Void apply( final int partition, final int start, final int stop ) {
+                final double[] pVarInGaussianLog10 = new double[gaussians.size()];
+                for( int iii = start; iii < stop; iii++ ) {
+                    int gaussianIndex = 0;
+                    for( final MultivariateGaussian gaussian : gaussians ) {
+                        final double pVarLog10 = gaussian.evaluateDatumLog10( annotations, iii * empiricalMu.length );
+                        pVarInGaussianLog10[gaussianIndex++] = pVarLog10;
+                    }
+                    final double[] pVarInGaussianNormalized = MathUtils.normalizeFromLog10( pVarInGaussianLog10, false );
+                    gaussianIndex = 0;
+                    for( final MultivariateGaussian gaussian : gaussians ) {
+                        gaussian.assignPVarInGaussian( iii, pVarInGaussianNormalized[gaussianIndex++] );
+                    }
+                }
+                return null;
             }
+        });
+    }
+
+    public void maximizationStep( final VariantDataMatrix data ) {
+        maximizationStep( data, 1.0 );
+    }
+
+    /**
+     * The maximization step, with the weight of each variant multiplied by scale.  With mini-batch EM, data is a
+     * random sample of the training data and scale is the inverse of the sampling fraction, so that the
+     * hyperparameters reflect the size of the full training set.
+     */
+    public void maximizationStep( final VariantDataMatrix data, final double scale ) {
+        calculateWeightedMeans( data, scale, MultivariateGaussian.MIN_SUM_PROB );
+        final List<double[][][]> partialSigmaSums = calculateWeightedScatter( data, scale );
+        int gaussianIndex = 0;
+        for( final MultivariateGaussian gaussian : gaussians ) {
+            gaussian.maximizeGaussian( addPartialSigmaSums( partialSigmaSums, gaussianIndex++ ), empiricalMu, empiricalSigma, shrinkage, dirichletParameter, priorCounts );
         }
     }
 
-    public void maximizationStep( final List<VariantDatum> data ) {
+    /**
+     * Sets the mean of each Gaussian to the mean of the data weighted by their probability of being in it
+     */
+    private void calculateWeightedMeans( final VariantDataMatrix data, final double scale, final double initialSumProb ) {
+        final List<double[][]> partialSums = forEachPartition( data, new PartitionFunction<double[][]>() {
+            public double[][] apply( final int partition, final int start, final int stop ) {
+                // the weighted sum of the annotations of each gaussian, followed by the sum of the weights
+                final double[][] sums = new double[gaussians.size()][empiricalMu.length + 1];
+                int gaussianIndex = 0;
+                for( final MultivariateGaussian gaussian : gaussians ) {
+                    final double[] sum = sums[gaussianIndex++];
+                    sum[empiricalMu.length] = gaussian.accumulateWeightedMu( data, start, stop, scale, partition == 0 ? initialSumProb : 0.0, sum );
+                }
+                return sums;
+            }
+        });
+
+        int gaussianIndex = 0;
         for( final MultivariateGaussian gaussian : gaussians ) {
-            gaussian.maximizeGaussian( data, empiricalMu, empiricalSigma, shrinkage, dirichletParameter, priorCounts);
+            final double[] sum = addPartialSums( partialSums, gaussianIndex++ );
+            gaussian.setWeightedMu( sum[empiricalMu.length], sum );
         }
     }
 
+    /**
+     * @return for each partition of the data, the weighted scatter of its data around the mean of each Gaussian
+     */
+    private List<double[][][]> calculateWeightedScatter( final VariantDataMatrix data, final double scale ) {
+        return forEachPartition( data, new PartitionFunction<double[][][]>() {
+            public double[][][] apply( final int partition, final int start, final int stop ) {
+                final double[][][] sums = new double[gaussians.size()][empiricalMu.length][empiricalMu.length];
+                int gaussianIndex = 0;
+                for( final MultivariateGaussian gaussian : gaussians ) {
+                    gaussian.accumulateWeightedSigma( data, start, stop, scale, sums[gaussianIndex++] );
+                }
+                return sums;
+            }
+        });
+    }
+
+    /**
+     * Work on the data in [start, stop), the partition-th partition of the data
+     */
+    private interface PartitionFunction<T> {
+        public T apply( final int partition, final int start, final int stop );
+    }
+
+    /**
+     * Applies function to each partition of data, on the training threads if there are any
+     *
+     * @return the results of function for each partition, in order
+     */
+    private <T> List<T> forEachPartition( final VariantDataMatrix data, final PartitionFunction<T> function ) {
+        final int numPartitions = Math.max( 1, (data.size() + PARTITION_SIZE - 1) / PARTITION_SIZE );
+        final List<T> results = new ArrayList<T>( numPartitions );
+
+        if( threads == null || numPartitions == 1 ) {
+            for( int partition = 0; partition < numPartitions; partition++ ) {
+                results.add( function.apply( partition, partition * PARTITION_SIZE, Math.min( data.size(), (partition + 1) * PARTITION_SIZE ) ) );
+            }
+            return results;
+        }
+
+        final List<Callable<T>> tasks = new ArrayList<Callable<T>>( numPartitions );
+        for( int partition = 0; partition < numPartitions; partition++ ) {
+            final int thisPartition = partition;
+            tasks.add( new Callable<T>() {
+                public T call() {
+                    return function.apply( thisPartition, thisPartition * PARTITION_SIZE, Math.min( data.size(), (thisPartition + 1) * PARTITION_SIZE ) );
+                }
+            });
+        }
+
+        try {
+            for( final Future<T> result : threads.invokeAll( tasks ) ) {
+                results.add( result.get() );
+            }
+        } catch( InterruptedException e ) {
+            throw new ReviewedStingException("Interrupted while training the Gaussian mixture model", e);
+        } catch( ExecutionException e ) {
+            if( e.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ReviewedStingException("Failed to train the Gaussian mixture model", e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * @return the sum over the partitions, in order, of the partial sums of the gaussianIndex-th Gaussian
+     */
+    private static double[] addPartialSums( final List<double[][]> partialSums, final int gaussianIndex ) {
+        final double[] sum = partialSums.get(0)[gaussianIndex];
+        for( int partition = 1; partition < partialSums.size(); partition++ ) {
+            final double[] partialSum = partialSums.get(partition)[gaussianIndex];
+            for( int iii = 0; iii < sum.length; iii++ ) {
+                sum[iii] += partialSum[iii];
+            }
+        }
+        return sum;
+    }
+
+    private static double[][] addPartialSigmaSums( final List<double[][][]> partialSums, final int gaussianIndex ) {
+        final double[][] sum = partialSums.get(0)[gaussianIndex];
+        for( int partition = 1; partition < partialSums.size(); partition++ ) {
+            final double[][] partialSum = partialSums.get(partition)[gaussianIndex];
+            for( int iii = 0; iii < sum.length; iii++ ) {
+                for( int jjj = 0; jjj < sum[iii].length; jjj++ ) {
+                    sum[iii][jjj] += partialSum[iii][jjj];
+                }
+            }
+        }
+        return sum;
+    }
+
     private double getSumHyperParameterLambda() {
         double sum = 0.0;
         for( final MultivariateGaussian gaussian : gaussians ) {
@@ -168,9 +372,12 @@ public class GaussianMixtureModel {
         return sum;
     }
 
-    public void evaluateFinalModelParameters( final List<VariantDatum> data ) {
+    public void evaluateFinalModelParameters( final VariantDataMatrix data ) {
+        calculateWeightedMeans( data, 1.0, 0.0 );
+        final List<double[][][]> partialSigmaSums = calculateWeightedScatter( data, 1.0 );
+        int gaussianIndex = 0;
         for( final MultivariateGaussian gaussian : gaussians ) {
-            gaussian.evaluateFinalModelParameters(data);
+            gaussian.evaluateFinalModelParameters( addPartialSigmaSums( partialSigmaSums, gaussianIndex++ ) );
         }
         normalizePMixtureLog10();
     }
@@ -205,49 +412,47 @@ public class GaussianMixtureModel {
         isModelReadyForEvaluation = true;
     }
 
-    public double evaluateDatum( final VariantDatum datum ) {
-        for( final boolean isNull : datum.isNull ) {
-            if( isNull ) { return evaluateDatumMarginalized( datum ); }
-        }
+    public double evaluateDatum( final VariantDataMatrix data, final int row ) {
+        if( data.hasNullAnnotation(row) ) { return evaluateDatumMarginalized( data, row ); }
         // Fill an array with the log10 probability coming from each Gaussian and then use MathUtils to sum them up correctly
         final double[] pVarInGaussianLog10 = new double[gaussians.size()];
         int gaussianIndex = 0;
         for( final MultivariateGaussian gaussian : gaussians ) {
-            pVarInGaussianLog10[gaussianIndex++] = gaussian.pMixtureLog10 + gaussian.evaluateDatumLog10( datum );
+            pVarInGaussianLog10[gaussianIndex++] = gaussian.pMixtureLog10 + gaussian.evaluateDatumLog10( data.getAnnotations(), row * data.getNumAnnotations() );
         }
         return MathUtils.log10sumLog10(pVarInGaussianLog10); // Sum(pi_k * p(v|n,k))
     }
 
     // Used only to decide which covariate dimension is most divergent in order to report in the culprit info field annotation
-    public Double evaluateDatumInOneDimension( final VariantDatum datum, final int iii ) {
-        if(datum.isNull[iii]) { return null; }
+    public Double evaluateDatumInOneDimension( final VariantDataMatrix data, final int row, final int iii ) {
+        if(data.isNull(row, iii)) { return null; }
 
         final Normal normal = new Normal(0.0, 1.0, null);
         final double[] pVarInGaussianLog10 = new double[gaussians.size()];
         int gaussianIndex = 0;
         for( final MultivariateGaussian gaussian : gaussians ) {
             normal.setState( gaussian.mu[iii], gaussian.sigma.get(iii, iii) );
-            pVarInGaussianLog10[gaussianIndex++] = gaussian.pMixtureLog10 + Math.log10( normal.pdf( datum.annotations[iii] ) );
+            pVarInGaussianLog10[gaussianIndex++] = gaussian.pMixtureLog10 + Math.log10( normal.pdf( data.getAnnotation(row, iii) ) );
         }
         return MathUtils.log10sumLog10(pVarInGaussianLog10); // Sum(pi_k * p(v|n,k))
     }
 
-    public double evaluateDatumMarginalized( final VariantDatum datum ) {
+    public double evaluateDatumMarginalized( final VariantDataMatrix data, final int row ) {
         int numRandomDraws = 0;
         double sumPVarInGaussian = 0.0;
         final int numIterPerMissingAnnotation = 10; // Trade off here between speed of computation and accuracy of the marginalization
         final double[] pVarInGaussianLog10 = new double[gaussians.size()];
         // for each dimension
-        for( int iii = 0; iii < datum.annotations.length; iii++ ) {
+        for( int iii = 0; iii < data.getNumAnnotations(); iii++ ) {
             // if it is missing marginalize over the missing dimension by drawing X random values for the missing annotation and averaging the lod
-            if( datum.isNull[iii] ) {
+            if( data.isNull(row, iii) ) {
                 for( int ttt = 0; ttt < numIterPerMissingAnnotation; ttt++ ) {
-                    datum.annotations[iii] = GenomeAnalysisEngine.getRandomGenerator().nextGaussian(); // draw a random sample from the standard normal distribution
+                    data.setAnnotation(row, iii, GenomeAnalysisEngine.getRandomGenerator().nextGaussian()); // draw a random sample from the standard normal distribution
 
                     // evaluate this random data point
                     int gaussianIndex = 0;
                     for( final MultivariateGaussian gaussian : gaussians ) {
-                        pVarInGaussianLog10[gaussianIndex++] = gaussian.pMixtureLog10 + gaussian.evaluateDatumLog10( datum );
+                        pVarInGaussianLog10[gaussianIndex++] = gaussian.pMixtureLog10 + gaussian.evaluateDatumLog10( data.getAnnotations(), row * data.getNumAnnotations() );
                     }
 
                     // add this sample's probability to the pile in order to take an average in the end
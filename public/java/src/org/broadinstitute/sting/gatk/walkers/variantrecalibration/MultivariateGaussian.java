@@ -27,12 +27,9 @@ package org.broadinstitute.sting.gatk.walkers.variantrecalibration;
 
 import Jama.Matrix;
 import org.apache.commons.math.special.Gamma;
-import org.broadinstitute.sting.utils.MathUtils;
-import org.broadinstitute.sting.utils.collections.ExpandingArrayList;
 import org.broadinstitute.sting.utils.exceptions.UserException;
 
 import java.util.Arrays;
-import java.util.List;
 import java.util.Random;
 
 /**
@@ -51,12 +48,14 @@ public class MultivariateGaussian {
     public double hyperParameter_lambda;
     private double cachedDenomLog10;
     private Matrix cachedSigmaInverse;
-    final private ExpandingArrayList<Double> pVarInGaussian;
+    private double[] pVarInGaussian; // the probability of each datum of the last expectation step being in this Gaussian
+
+    // the sum of the probabilities in the maximization step starts from this, so a Gaussian without data doesn't divide by zero
+    public final static double MIN_SUM_PROB = 1E-10;
 
     public MultivariateGaussian( final int numAnnotations ) {
         mu = new double[numAnnotations];
         sigma = new Matrix(numAnnotations, numAnnotations);
-        pVarInGaussian = new ExpandingArrayList<Double>();
     }
 
     public void zeroOutMu() {
@@ -94,18 +93,15 @@ public class MultivariateGaussian {
         sigma.setMatrix(0, mu.length - 1, 0, mu.length - 1, tmp);
     }
 
-    public double calculateDistanceFromMeanSquared( final VariantDatum datum ) {
-        return MathUtils.distanceSquared( datum.annotations, mu );
-    }
-
-    public void incrementMu( final VariantDatum datum ) {
-        incrementMu( datum, 1.0 );
-    }
-    
-    public void incrementMu( final VariantDatum datum, final double prob ) {
+    /**
+     * @return the squared distance of mu from the annotations in annotations[offset, offset + mu.length)
+     */
+    public double calculateDistanceFromMeanSquared( final double[] annotations, final int offset ) {
+        double dist = 0.0;
         for( int jjj = 0; jjj < mu.length; jjj++ ) {
-            mu[jjj] += prob * datum.annotations[jjj];
+            dist += (annotations[offset + jjj] - mu[jjj]) * (annotations[offset + jjj] - mu[jjj]);
         }
+        return dist;
     }
 
     public void divideEqualsMu( final double x ) {
@@ -145,64 +141,100 @@ public class MultivariateGaussian {
         cachedDenomLog10 = (pi / Math.log(10.0)) + (lambda / Math.log(10.0)) + (beta / Math.log(10.0));
     }
 
-    public double evaluateDatumLog10( final VariantDatum datum ) {
+    /**
+     * @return the log10 density of this Gaussian at the annotations in annotations[offset, offset + mu.length)
+     */
+    public double evaluateDatumLog10( final double[] annotations, final int offset ) {
         double sumKernel = 0.0;
         final double[] crossProdTmp = new double[mu.length];
         Arrays.fill(crossProdTmp, 0.0);
         for( int iii = 0; iii < mu.length; iii++ ) {
             for( int jjj = 0; jjj < mu.length; jjj++ ) {
-                crossProdTmp[iii] += (datum.annotations[jjj] - mu[jjj]) * cachedSigmaInverse.get(jjj, iii);
+                crossProdTmp[iii] += (annotations[offset + jjj] - mu[jjj]) * cachedSigmaInverse.get(jjj, iii);
             }
         }
         for( int iii = 0; iii < mu.length; iii++ ) {
-            sumKernel += crossProdTmp[iii] * (datum.annotations[iii] - mu[iii]);
+            sumKernel += crossProdTmp[iii] * (annotations[offset + iii] - mu[iii]);
         }
         
         return (( -0.5 * sumKernel ) / Math.log(10.0)) + cachedDenomLog10; // This is the definition of a Gaussian PDF Log10
     }
 
-    public void assignPVarInGaussian( final double pVar ) {
-        pVarInGaussian.add( pVar );
+    /**
+     * Makes room for the probabilities of numData data being in this Gaussian, which are then set with assignPVarInGaussian
+     */
+    public void initializePVarInGaussian( final int numData ) {
+        if( pVarInGaussian == null || pVarInGaussian.length != numData ) {
+            pVarInGaussian = new double[numData];
+        }
+    }
+
+    public void assignPVarInGaussian( final int datumIndex, final double pVar ) {
+        pVarInGaussian[datumIndex] = pVar;
     }
 
     public void resetPVarInGaussian() {
-        pVarInGaussian.clear();
+        pVarInGaussian = null;
     }
 
-    public void maximizeGaussian( final List<VariantDatum> data, final double[] empiricalMu, final Matrix empiricalSigma,
-                                  final double SHRINKAGE, final double DIRICHLET_PARAMETER, final double DEGREES_OF_FREEDOM ) {
-        sumProb = 1E-10;
-        final Matrix wishart = new Matrix(mu.length, mu.length);
-        zeroOutMu();
-        zeroOutSigma();
-        
-        int datumIndex = 0;
-        for( final VariantDatum datum : data ) {
-            final double prob = pVarInGaussian.get(datumIndex++);
+    /**
+     * Adds the annotations of data[start, stop), weighted by their probability of being in this Gaussian times scale,
+     * to muSum and returns sumProb plus their weights.  The sums of all of the data are passed to setWeightedMu().
+     */
+    public double accumulateWeightedMu( final VariantDataMatrix data, final int start, final int stop, final double scale,
+                                        double sumProb, final double[] muSum ) {
+        final double[] annotations = data.getAnnotations();
+        for( int iii = start; iii < stop; iii++ ) {
+            final double prob = pVarInGaussian[iii] * scale;
+            final int offset = iii * mu.length;
             sumProb += prob;
-            incrementMu( datum, prob );
-        }
-        divideEqualsMu( sumProb );
-
-        final double shrinkageFactor = (SHRINKAGE * sumProb) / (SHRINKAGE + sumProb);
-        for( int iii = 0; iii < mu.length; iii++ ) {
             for( int jjj = 0; jjj < mu.length; jjj++ ) {
-                wishart.set(iii, jjj, shrinkageFactor * (mu[iii] - empiricalMu[iii]) * (mu[jjj] - empiricalMu[jjj]));
+                muSum[jjj] += prob * annotations[offset + jjj];
             }
         }
+        return sumProb;
+    }
+
+    /**
+     * Sets mu to the weighted mean of the data, given the sums of accumulateWeightedMu()
+     */
+    public void setWeightedMu( final double sumProb, final double[] muSum ) {
+        this.sumProb = sumProb;
+        System.arraycopy( muSum, 0, mu, 0, mu.length );
+        divideEqualsMu( sumProb );
+    }
 
-        datumIndex = 0;
-        final Matrix pVarSigma = new Matrix(mu.length, mu.length);
-        for( final VariantDatum datum : data ) {
-            final double prob = pVarInGaussian.get(datumIndex++);
+    /**
+     * Adds the weighted scatter of data[start, stop) around mu to sigmaSum, with the weights of accumulateWeightedMu()
+     */
+    public void accumulateWeightedSigma( final VariantDataMatrix data, final int start, final int stop, final double scale, final double[][] sigmaSum ) {
+        final double[] annotations = data.getAnnotations();
+        for( int datumIndex = start; datumIndex < stop; datumIndex++ ) {
+            final double prob = pVarInGaussian[datumIndex] * scale;
+            final int offset = datumIndex * mu.length;
             for( int iii = 0; iii < mu.length; iii++ ) {
                 for( int jjj = 0; jjj < mu.length; jjj++ ) {
-                    pVarSigma.set(iii, jjj, prob * (datum.annotations[iii]-mu[iii]) * (datum.annotations[jjj]-mu[jjj]));
+                    sigmaSum[iii][jjj] += prob * (annotations[offset + iii]-mu[iii]) * (annotations[offset + jjj]-mu[jjj]);
                 }
             }
-            sigma.plusEquals( pVarSigma );
+        }
+    }
+
+    /**
+     * The variational Bayes maximization step for this Gaussian, once setWeightedMu() has been given the sums of
+     * accumulateWeightedMu() starting from MIN_SUM_PROB, and sigmaSum holds the sums of accumulateWeightedSigma()
+     */
+    public void maximizeGaussian( final double[][] sigmaSum, final double[] empiricalMu, final Matrix empiricalSigma,
+                                  final double SHRINKAGE, final double DIRICHLET_PARAMETER, final double DEGREES_OF_FREEDOM ) {
+        final Matrix wishart = new Matrix(mu.length, mu.length);
+        final double shrinkageFactor = (SHRINKAGE * sumProb) / (SHRINKAGE + sumProb);
+        for( int iii = 0; iii < mu.length; iii++ ) {
+            for( int jjj = 0; jjj < mu.length; jjj++ ) {
+                wishart.set(iii, jjj, shrinkageFactor * (mu[iii] - empiricalMu[iii]) * (mu[jjj] - empiricalMu[jjj]));
+            }
         }
 
+        sigma.setMatrix(0, mu.length - 1, 0, mu.length - 1, new Matrix(sigmaSum));
         sigma.plusEquals( empiricalSigma );
         sigma.plusEquals( wishart );
 
@@ -217,30 +249,12 @@ public class MultivariateGaussian {
         resetPVarInGaussian(); // clean up some memory
     }
 
-    public void evaluateFinalModelParameters( final List<VariantDatum> data ) {
-        sumProb = 0.0;
-        zeroOutMu();
-        zeroOutSigma();
-
-        int datumIndex = 0;
-        for( final VariantDatum datum : data ) {
-            final double prob = pVarInGaussian.get(datumIndex++);
-            sumProb += prob;
-            incrementMu( datum, prob );
-        }
-        divideEqualsMu( sumProb );
-
-        datumIndex = 0;
-        final Matrix pVarSigma = new Matrix(mu.length, mu.length);
-        for( final VariantDatum datum : data ) {
-            final double prob = pVarInGaussian.get(datumIndex++);
-            for( int iii = 0; iii < mu.length; iii++ ) {
-                for( int jjj = 0; jjj < mu.length; jjj++ ) {
-                    pVarSigma.set(iii, jjj, prob * (datum.annotations[iii]-mu[iii]) * (datum.annotations[jjj]-mu[jjj]));
-                }
-            }
-            sigma.plusEquals( pVarSigma );
-        }
+    /**
+     * Sets sigma to the weighted covariance of the data, once setWeightedMu() has been given the sums of
+     * accumulateWeightedMu() starting from zero, and sigmaSum holds the sums of accumulateWeightedSigma()
+     */
+    public void evaluateFinalModelParameters( final double[][] sigmaSum ) {
+        sigma.setMatrix(0, mu.length - 1, 0, mu.length - 1, new Matrix(sigmaSum));
         sigma.timesEquals( 1.0 / sumProb );
 
         resetPVarInGaussian(); // clean up some memory
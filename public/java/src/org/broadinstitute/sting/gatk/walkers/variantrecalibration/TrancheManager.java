@@ -32,7 +32,6 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -47,7 +46,7 @@ public class TrancheManager {
 
     // ---------------------------------------------------------------------------------------------------------
     //
-    // Code to determine FDR tranches for VariantDatum[]
+    // Code to determine FDR tranches for a VariantDataMatrix
     //
     // ---------------------------------------------------------------------------------------------------------
 
@@ -62,9 +61,9 @@ public class TrancheManager {
 
         public abstract double getThreshold(double tranche);
         public abstract double getTarget();
-        public abstract void calculateRunningMetric(List<VariantDatum> data);
+        public abstract void calculateRunningMetric(VariantDataMatrix data);
         public abstract double getRunningMetric(int i);
-        public abstract int datumValue(VariantDatum d);
+        public abstract int datumValue(VariantDataMatrix data, int i);
     }
 
     public static class NovelTiTvMetric extends SelectionMetric {
@@ -82,14 +81,13 @@ public class TrancheManager {
 
         public double getTarget() { return targetTiTv; }
 
-        public void calculateRunningMetric(List<VariantDatum> data) {
+        public void calculateRunningMetric(VariantDataMatrix data) {
             int ti = 0, tv = 0;
             runningTiTv = new double[data.size()];
 
             for ( int i = data.size() - 1; i >= 0; i-- ) {
-                VariantDatum datum = data.get(i);
-                if ( ! datum.isKnown ) {
-                    if ( datum.isTransition ) { ti++; } else { tv++; }
+                if ( ! data.isKnown(i) ) {
+                    if ( data.isTransition(i) ) { ti++; } else { tv++; }
                     runningTiTv[i] = ti / Math.max(1.0 * tv, 1.0);
                 }
             }
@@ -99,8 +97,8 @@ public class TrancheManager {
             return runningTiTv[i];
         }
 
-        public int datumValue(VariantDatum d) {
-            return d.isTransition ? 1 : 0;
+        public int datumValue(VariantDataMatrix data, int i) {
+            return data.isTransition(i) ? 1 : 0;
         }
     }
 
@@ -119,13 +117,12 @@ public class TrancheManager {
 
         public double getTarget() { return 1.0; }
 
-        public void calculateRunningMetric(List<VariantDatum> data) {
+        public void calculateRunningMetric(VariantDataMatrix data) {
             int nCalledAtTruth = 0;
             runningSensitivity = new double[data.size()];
 
             for ( int i = data.size() - 1; i >= 0; i-- ) {
-                VariantDatum datum = data.get(i);
-                nCalledAtTruth += datum.atTruthSite ? 1 : 0;
+                nCalledAtTruth += data.isAtTruthSite(i) ? 1 : 0;
                 runningSensitivity[i] = 1 - nCalledAtTruth / (1.0 * nTrueSites);
             }
         }
@@ -134,19 +131,19 @@ public class TrancheManager {
             return runningSensitivity[i];
         }
 
-        public int datumValue(VariantDatum d) {
-            return d.atTruthSite ? 1 : 0;
+        public int datumValue(VariantDataMatrix data, int i) {
+            return data.isAtTruthSite(i) ? 1 : 0;
         }
     }
 
-    public static List<Tranche> findTranches( final ArrayList<VariantDatum> data, final double[] tranches, final SelectionMetric metric, final VariantRecalibratorArgumentCollection.Mode model ) {
+    public static List<Tranche> findTranches( final VariantDataMatrix data, final double[] tranches, final SelectionMetric metric, final VariantRecalibratorArgumentCollection.Mode model ) {
         return findTranches( data, tranches, metric, model, null );
     }
 
-    public static List<Tranche> findTranches( final ArrayList<VariantDatum> data, final double[] trancheThresholds, final SelectionMetric metric, final VariantRecalibratorArgumentCollection.Mode model, final File debugFile ) {
+    public static List<Tranche> findTranches( final VariantDataMatrix data, final double[] trancheThresholds, final SelectionMetric metric, final VariantRecalibratorArgumentCollection.Mode model, final File debugFile ) {
         logger.info(String.format("Finding %d tranches for %d variants", trancheThresholds.length, data.size()));
 
-        Collections.sort(data);
+        data.sortByLod();
         metric.calculateRunningMetric(data);
 
         if ( debugFile != null) { writeTranchesDebuggingInfo(debugFile, data, metric); }
@@ -167,22 +164,21 @@ public class TrancheManager {
         return tranches;
     }
 
-    private static void writeTranchesDebuggingInfo(File f, List<VariantDatum> tranchesData, SelectionMetric metric ) {
+    private static void writeTranchesDebuggingInfo(File f, VariantDataMatrix tranchesData, SelectionMetric metric ) {
         try {
             PrintStream out = new PrintStream(f);
             out.println("Qual metricValue runningValue");
             for ( int i = 0; i < tranchesData.size(); i++ ) {
-                VariantDatum  d = tranchesData.get(i);
-                int score = metric.datumValue(d);
+                int score = metric.datumValue(tranchesData, i);
                 double runningValue = metric.getRunningMetric(i);
-                out.printf("%.4f %d %.4f%n", d.lod, score, runningValue);
+                out.printf("%.4f %d %.4f%n", tranchesData.getLod(i), score, runningValue);
             }
         } catch (FileNotFoundException e) {
             throw new UserException.CouldNotCreateOutputFile(f, e);
         }
     }
 
-    public static Tranche findTranche( final List<VariantDatum> data, final SelectionMetric metric, final double trancheThreshold, final VariantRecalibratorArgumentCollection.Mode model ) {
+    public static Tranche findTranche( final VariantDataMatrix data, final SelectionMetric metric, final double trancheThreshold, final VariantRecalibratorArgumentCollection.Mode model ) {
         logger.info(String.format("  Tranche threshold %.2f => selection metric threshold %.3f", trancheThreshold, metric.getThreshold(trancheThreshold)));
 
         double metricThreshold = metric.getThreshold(trancheThreshold);
@@ -201,22 +197,21 @@ public class TrancheManager {
         return null;
     }
 
-    public static Tranche trancheOfVariants( final List<VariantDatum> data, int minI, double ts, final VariantRecalibratorArgumentCollection.Mode model ) {
+    public static Tranche trancheOfVariants( final VariantDataMatrix data, int minI, double ts, final VariantRecalibratorArgumentCollection.Mode model ) {
         int numKnown = 0, numNovel = 0, knownTi = 0, knownTv = 0, novelTi = 0, novelTv = 0;
 
-        double minLod = data.get(minI).lod;
-        for ( final VariantDatum datum : data ) {
-            if ( datum.lod >= minLod ) {
-                //if( ! datum.isKnown ) System.out.println(datum.pos);
-                if ( datum.isKnown ) {
+        double minLod = data.getLod(minI);
+        for ( int i = 0; i < data.size(); i++ ) {
+            if ( data.getLod(i) >= minLod ) {
+                if ( data.isKnown(i) ) {
                     numKnown++;
-                    if( datum.isSNP ) {
-                        if ( datum.isTransition ) { knownTi++; } else { knownTv++; }
+                    if( data.isSNP(i) ) {
+                        if ( data.isTransition(i) ) { knownTi++; } else { knownTv++; }
                     }
                 } else {
                     numNovel++;
-                    if( datum.isSNP ) {
-                        if ( datum.isTransition ) { novelTi++; } else { novelTv++; }
+                    if( data.isSNP(i) ) {
+                        if ( data.isTransition(i) ) { novelTi++; } else { novelTv++; }
                     }
                 }
             }
@@ -235,9 +230,9 @@ public class TrancheManager {
             return (1.0 - desiredFDR / 100.0) * (targetTiTv - 0.5) + 0.5;
     }
 
-    public static int countCallsAtTruth(final List<VariantDatum> data, double minLOD ) {
+    public static int countCallsAtTruth(final VariantDataMatrix data, double minLOD ) {
         int n = 0;
-        for ( VariantDatum d : data ) { n += (d.atTruthSite && d.lod >= minLOD ? 1 : 0); }
+        for ( int i = 0; i < data.size(); i++ ) { n += (data.isAtTruthSite(i) && data.getLod(i) >= minLOD ? 1 : 0); }
         return n;
     }
 }
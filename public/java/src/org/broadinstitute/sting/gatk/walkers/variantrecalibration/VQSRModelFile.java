@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.variantrecalibration;
+
+import org.broadinstitute.sting.utils.exceptions.UserException;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The trained positive and negative models of a VariantRecalibrator run, saved so that other batches of variants
+ * called against the same resources can be scored with them instead of training new ones.
+ *
+ * Besides the models, the file holds the annotations they were trained on and the means and standard deviations
+ * used to normalize them, since new data have to be normalized the same way for the models to apply:
+ *
+ *   magic, version
+ *   annotations:  count, (name, mean, standard deviation)*
+ *   good model:   number of Gaussians, (log10 mixture weight, mu*, sigma*)*   -- sigma row by row
+ *   bad model:    as the good model
+ */
+public final class VQSRModelFile {
+    private static final byte[] MAGIC = {'V', 'Q', 'S', 'R', 'M', 'D', 'L', '\n'};
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<String> annotationKeys;
+    private final double[] means;
+    private final double[] standardDeviations;
+    private final GaussianMixtureModel goodModel;
+    private final GaussianMixtureModel badModel;
+
+    private VQSRModelFile(final List<String> annotationKeys, final double[] means, final double[] standardDeviations,
+                          final GaussianMixtureModel goodModel, final GaussianMixtureModel badModel) {
+        this.annotationKeys = Collections.unmodifiableList(annotationKeys);
+        this.means = means;
+        this.standardDeviations = standardDeviations;
+        this.goodModel = goodModel;
+        this.badModel = badModel;
+    }
+
+    public List<String> getAnnotationKeys() {
+        return annotationKeys;
+    }
+
+    public double[] getMeans() {
+        return means;
+    }
+
+    public double[] getStandardDeviations() {
+        return standardDeviations;
+    }
+
+    public GaussianMixtureModel getGoodModel() {
+        return goodModel;
+    }
+
+    public GaussianMixtureModel getBadModel() {
+        return badModel;
+    }
+
+    /**
+     * Writes the trained models to file
+     *
+     * @param file                the file to write
+     * @param annotationKeys      the annotations the models were trained on, in order
+     * @param means               the means the annotations were normalized with
+     * @param standardDeviations  the standard deviations the annotations were normalized with
+     * @param goodModel           the positive model
+     * @param badModel            the negative model
+     */
+    public static void write(final File file, final List<String> annotationKeys, final double[] means, final double[] standardDeviations,
+                             final GaussianMixtureModel goodModel, final GaussianMixtureModel badModel) {
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+
+                out.writeInt(annotationKeys.size());
+                for ( int i = 0; i < annotationKeys.size(); i++ ) {
+                    final byte[] name = annotationKeys.get(i).getBytes(UTF8);
+                    out.writeInt(name.length);
+                    out.write(name);
+                    out.writeDouble(means[i]);
+                    out.writeDouble(standardDeviations[i]);
+                }
+
+                writeModel(out, goodModel);
+                writeModel(out, badModel);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new UserException.CouldNotCreateOutputFile(file, "could not be written", e);
+        }
+    }
+
+    private static void writeModel(final DataOutputStream out, final GaussianMixtureModel model) throws IOException {
+        out.writeInt(model.getGaussians().size());
+        for ( final MultivariateGaussian gaussian : model.getGaussians() ) {
+            out.writeDouble(gaussian.pMixtureLog10);
+            for ( final double mu : gaussian.mu )
+                out.writeDouble(mu);
+            for ( int i = 0; i < gaussian.mu.length; i++ )
+                for ( int j = 0; j < gaussian.mu.length; j++ )
+                    out.writeDouble(gaussian.sigma.get(i, j));
+        }
+    }
+
+    /**
+     * Reads back the models written to file by write()
+     */
+    public static VQSRModelFile read(final File file) {
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                final byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if ( ! Arrays.equals(magic, MAGIC) )
+                    throw new UserException.MalformedFile(file, "is not a VQSR model file");
+                final int version = in.readInt();
+                if ( version != VERSION )
+                    throw new UserException.MalformedFile(file, "is a VQSR model file of version " + version + " but only version " + VERSION + " is supported");
+
+                final int numAnnotations = in.readInt();
+                if ( numAnnotations <= 0 )
+                    throw new UserException.MalformedFile(file, "is a VQSR model file without annotations");
+                final List<String> annotationKeys = new ArrayList<String>(numAnnotations);
+                final double[] means = new double[numAnnotations];
+                final double[] standardDeviations = new double[numAnnotations];
+                for ( int i = 0; i < numAnnotations; i++ ) {
+                    final byte[] name = new byte[in.readInt()];
+                    in.readFully(name);
+                    annotationKeys.add(new String(name, UTF8));
+                    means[i] = in.readDouble();
+                    standardDeviations[i] = in.readDouble();
+                }
+
+                final GaussianMixtureModel goodModel = readModel(in, file, numAnnotations);
+                final GaussianMixtureModel badModel = readModel(in, file, numAnnotations);
+                if ( in.read() != -1 )
+                    throw new UserException.MalformedFile(file, "has unexpected data after the models");
+
+                return new VQSRModelFile(annotationKeys, means, standardDeviations, goodModel, badModel);
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            throw new UserException.MalformedFile(file, "is a truncated VQSR model file");
+        } catch (IOException e) {
+            throw new UserException.CouldNotReadInputFile(file, e);
+        }
+    }
+
+    private static GaussianMixtureModel readModel(final DataInputStream in, final File file, final int numAnnotations) throws IOException {
+        final int numGaussians = in.readInt();
+        if ( numGaussians <= 0 )
+            throw new UserException.MalformedFile(file, "has a model with " + numGaussians + " Gaussians");
+        final List<MultivariateGaussian> gaussians = new ArrayList<MultivariateGaussian>(numGaussians);
+        for ( int g = 0; g < numGaussians; g++ ) {
+            final MultivariateGaussian gaussian = new MultivariateGaussian(numAnnotations);
+            gaussian.pMixtureLog10 = in.readDouble();
+            for ( int i = 0; i < numAnnotations; i++ )
+                gaussian.mu[i] = in.readDouble();
+            for ( int i = 0; i < numAnnotations; i++ )
+                for ( int j = 0; j < numAnnotations; j++ )
+                    gaussian.sigma.set(i, j, in.readDouble());
+            gaussians.add(gaussian);
+        }
+        return new GaussianMixtureModel(gaussians);
+    }
+}
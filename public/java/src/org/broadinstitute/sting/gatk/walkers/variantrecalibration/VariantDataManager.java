@@ -29,16 +29,17 @@ import org.apache.log4j.Logger;
 import org.broadinstitute.sting.gatk.GenomeAnalysisEngine;
 import org.broadinstitute.sting.gatk.refdata.RefMetaDataTracker;
 import org.broadinstitute.sting.utils.GenomeLoc;
+import org.broadinstitute.sting.utils.GenomeLocParser;
 import org.broadinstitute.sting.utils.MathUtils;
 import org.broadinstitute.sting.utils.codecs.vcf.VCFConstants;
 import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
 import org.broadinstitute.sting.utils.variantcontext.writer.VariantContextWriter;
-import org.broadinstitute.sting.utils.collections.ExpandingArrayList;
 import org.broadinstitute.sting.utils.exceptions.UserException;
 import org.broadinstitute.sting.utils.variantcontext.Allele;
 import org.broadinstitute.sting.utils.variantcontext.VariantContext;
 import org.broadinstitute.sting.utils.variantcontext.VariantContextBuilder;
 
+import java.io.File;
 import java.util.*;
 
 /**
@@ -48,7 +49,7 @@ import java.util.*;
  */
 
 public class VariantDataManager {
-    private ExpandingArrayList<VariantDatum> data;
+    private VariantDataMatrix data;
     private final double[] meanVector;
     private final double[] varianceVector; // this is really the standard deviation
     public final List<String> annotationKeys;
@@ -65,15 +66,25 @@ public class VariantDataManager {
         trainingSets = new ArrayList<TrainingSet>();
     }
 
-    public void setData( final ExpandingArrayList<VariantDatum> data ) {
+    public void setData( final VariantDataMatrix data ) {
         this.data = data;
     }
 
-    public ExpandingArrayList<VariantDatum> getData() {
+    public VariantDataMatrix getData() {
         return data;
     }
 
+    public double[] getMeanVector() {
+        return meanVector;
+    }
+
+    public double[] getStandardDeviationVector() {
+        return varianceVector;
+    }
+
     public void normalizeData() {
+        final double[] means = new double[meanVector.length];
+        final double[] standardDeviations = new double[varianceVector.length];
         boolean foundZeroVarianceAnnotation = false;
         for( int iii = 0; iii < meanVector.length; iii++ ) {
             final double theMean = mean(iii);
@@ -84,24 +95,37 @@ public class VariantDataManager {
             }
 
             foundZeroVarianceAnnotation = foundZeroVarianceAnnotation || (theSTD < 1E-6);
-            meanVector[iii] = theMean;
-            varianceVector[iii] = theSTD;
-            for( final VariantDatum datum : data ) {
-                // Transform each data point via: (x - mean) / standard deviation
-                datum.annotations[iii] = ( datum.isNull[iii] ? GenomeAnalysisEngine.getRandomGenerator().nextGaussian() : ( datum.annotations[iii] - theMean ) / theSTD );
-            }
+            means[iii] = theMean;
+            standardDeviations[iii] = theSTD;
         }
         if( foundZeroVarianceAnnotation ) {
             throw new UserException.BadInput( "Found annotations with zero variance. They must be excluded before proceeding." );
         }
 
+        normalizeData( means, standardDeviations );
+    }
+
+    /**
+     * Normalizes the data with the given means and standard deviations of the annotations, such as those of the
+     * training data of a previous run whose models are being reused, rather than those of this data
+     */
+    public void normalizeData( final double[] means, final double[] standardDeviations ) {
+        System.arraycopy( means, 0, meanVector, 0, meanVector.length );
+        System.arraycopy( standardDeviations, 0, varianceVector, 0, varianceVector.length );
+        for( int iii = 0; iii < meanVector.length; iii++ ) {
+            for( int row = 0; row < data.size(); row++ ) {
+                // Transform each data point via: (x - mean) / standard deviation
+                data.setAnnotation( row, iii, ( data.isNull(row, iii) ? GenomeAnalysisEngine.getRandomGenerator().nextGaussian() : ( data.getAnnotation(row, iii) - meanVector[iii] ) / varianceVector[iii] ) );
+            }
+        }
+
         // trim data by standard deviation threshold and mark failing data for exclusion later
-        for( final VariantDatum datum : data ) {
+        for( int row = 0; row < data.size(); row++ ) {
             boolean remove = false;
-            for( final double val : datum.annotations ) {
-                remove = remove || (Math.abs(val) > VRAC.STD_THRESHOLD);
+            for( int iii = 0; iii < data.getNumAnnotations(); iii++ ) {
+                remove = remove || (Math.abs(data.getAnnotation(row, iii)) > VRAC.STD_THRESHOLD);
             }
-            datum.failingSTDThreshold = remove;
+            data.setFailingSTDThreshold( row, remove );
         }
     }
 
@@ -130,11 +154,11 @@ public class VariantDataManager {
          return false;
      }
 
-    public ExpandingArrayList<VariantDatum> getTrainingData() {
-        final ExpandingArrayList<VariantDatum> trainingData = new ExpandingArrayList<VariantDatum>();
-        for( final VariantDatum datum : data ) {
-            if( datum.atTrainingSite && !datum.failingSTDThreshold && datum.originalQual > VRAC.QUAL_THRESHOLD ) {
-                trainingData.add( datum );
+    public VariantDataMatrix getTrainingData() {
+        final VariantDataMatrix trainingData = new VariantDataMatrix( data.getNumAnnotations() );
+        for( int row = 0; row < data.size(); row++ ) {
+            if( data.isAtTrainingSite(row) && !data.isFailingSTDThreshold(row) && data.getOriginalQual(row) > VRAC.QUAL_THRESHOLD ) {
+                trainingData.add( data, row );
             }
         }
         logger.info( "Training with " + trainingData.size() + " variants after standard deviation thresholding." );
@@ -144,55 +168,75 @@ public class VariantDataManager {
         return trainingData;
     }
 
-    public ExpandingArrayList<VariantDatum> selectWorstVariants( double bottomPercentage, final int minimumNumber ) {
-        // The return value is the list of training variants
-        final ExpandingArrayList<VariantDatum> trainingData = new ExpandingArrayList<VariantDatum>();
-
+    /**
+     * Selects the variants used to train the negative model: those at bad sites, followed by the worst of the rest.
+     * Sorts the data by lod and marks all of the selected variants as being at anti-training sites.
+     *
+     * The variants are returned as rows of the data rather than as a copy, since evaluating a model redraws their
+     * missing annotations in the data; the negative model has to be trained on a fresh subset of the data each time
+     * to see the latest values.
+     *
+     * @return the rows of the selected variants in the data once it has been sorted
+     */
+    public int[] selectWorstVariants( double bottomPercentage, final int minimumNumber ) {
         // First add to the training list all sites overlapping any bad sites training tracks
-        for( final VariantDatum datum : data ) {
-            if( datum.atAntiTrainingSite && !datum.failingSTDThreshold && !Double.isInfinite(datum.lod) ) {
-                trainingData.add( datum );
+        final BitSet badSites = new BitSet();
+        for( int row = 0; row < data.size(); row++ ) {
+            if( data.isAtAntiTrainingSite(row) && !data.isFailingSTDThreshold(row) && !Double.isInfinite(data.getLod(row)) ) {
+                badSites.set( row );
             }
         }
-        final int numBadSitesAdded = trainingData.size();
+        final int numBadSitesAdded = badSites.cardinality();
         logger.info( "Found " + numBadSitesAdded + " variants overlapping bad sites training tracks." );
 
         // Next sort the variants by the LOD coming from the positive model and add to the list the bottom X percent of variants
-        Collections.sort( data );
-        final int numToAdd = Math.max( minimumNumber - trainingData.size(), Math.round((float)bottomPercentage * data.size()) );
+        final int[] previousRows = data.sortByLod();
+        final int numToAdd = Math.max( minimumNumber - numBadSitesAdded, Math.round((float)bottomPercentage * data.size()) );
         if( numToAdd > data.size() ) {
             throw new UserException.BadInput( "Error during negative model training. Minimum number of variants to use in training is larger than the whole call set. One can attempt to lower the --minNumBadVariants arugment but this is unsafe." );
-        } else if( numToAdd == minimumNumber - trainingData.size() ) {
+        } else if( numToAdd == minimumNumber - numBadSitesAdded ) {
             logger.warn( "WARNING: Training with very few variant sites! Please check the model reporting PDF to ensure the quality of the model is reliable." );
             bottomPercentage = ((float) numToAdd) / ((float) data.size());
         }
+
+        // the bad sites stay in the order they were found in, before the sort
+        final int[] sortedRows = new int[data.size()];
+        for( int row = 0; row < data.size(); row++ ) {
+            sortedRows[previousRows[row]] = row;
+        }
+        final int[] trainingRows = new int[numBadSitesAdded + numToAdd];
+        int numTrainingRows = 0;
+        for( int row = badSites.nextSetBit(0); row >= 0; row = badSites.nextSetBit(row + 1) ) {
+            trainingRows[numTrainingRows++] = sortedRows[row];
+        }
+
         int index = 0, numAdded = 0;
         while( numAdded < numToAdd && index < data.size() ) {
-            final VariantDatum datum = data.get(index++);
-            if( datum != null && !datum.atAntiTrainingSite && !datum.failingSTDThreshold && !Double.isInfinite(datum.lod) ) {
-                datum.atAntiTrainingSite = true;
-                trainingData.add( datum );
+            final int row = index++;
+            if( !data.isAtAntiTrainingSite(row) && !data.isFailingSTDThreshold(row) && !Double.isInfinite(data.getLod(row)) ) {
+                data.setAtAntiTrainingSite( row, true );
+                trainingRows[numTrainingRows++] = row;
                 numAdded++;
             }
         }
-        logger.info( "Additionally training with worst " + String.format("%.3f", (float) bottomPercentage * 100.0f) + "% of passing data --> " + (trainingData.size() - numBadSitesAdded) + " variants with LOD <= " + String.format("%.4f", data.get(index).lod) + "." );
-        return trainingData;
+        logger.info( "Additionally training with worst " + String.format("%.3f", (float) bottomPercentage * 100.0f) + "% of passing data --> " + numAdded + " variants with LOD <= " + String.format("%.4f", data.getLod(index)) + "." );
+        return Arrays.copyOf( trainingRows, numTrainingRows );
     }
 
-    public ExpandingArrayList<VariantDatum> getRandomDataForPlotting( int numToAdd ) {
+    public VariantDataMatrix getRandomDataForPlotting( int numToAdd ) {
         numToAdd = Math.min(numToAdd, data.size());
-        final ExpandingArrayList<VariantDatum> returnData = new ExpandingArrayList<VariantDatum>();
+        final VariantDataMatrix returnData = new VariantDataMatrix( data.getNumAnnotations() );
         for( int iii = 0; iii < numToAdd; iii++) {
-            final VariantDatum datum = data.get(GenomeAnalysisEngine.getRandomGenerator().nextInt(data.size()));
-            if( !datum.failingSTDThreshold ) {
-                returnData.add(datum);
+            final int row = GenomeAnalysisEngine.getRandomGenerator().nextInt(data.size());
+            if( !data.isFailingSTDThreshold(row) ) {
+                returnData.add(data, row);
             }
         }
 
         // Add an extra 5% of points from bad training set, since that set is small but interesting
         for( int iii = 0; iii < Math.floor(0.05*numToAdd); iii++) {
-            final VariantDatum datum = data.get(GenomeAnalysisEngine.getRandomGenerator().nextInt(data.size()));
-            if( datum.atAntiTrainingSite && !datum.failingSTDThreshold ) { returnData.add(datum); }
+            final int row = GenomeAnalysisEngine.getRandomGenerator().nextInt(data.size());
+            if( data.isAtAntiTrainingSite(row) && !data.isFailingSTDThreshold(row) ) { returnData.add(data, row); }
             else { iii--; }
         }
 
@@ -202,8 +246,8 @@ public class VariantDataManager {
     private double mean( final int index ) {
         double sum = 0.0;
         int numNonNull = 0;
-        for( final VariantDatum datum : data ) {
-            if( datum.atTrainingSite && !datum.isNull[index] ) { sum += datum.annotations[index]; numNonNull++; }
+        for( int row = 0; row < data.size(); row++ ) {
+            if( data.isAtTrainingSite(row) && !data.isNull(row, index) ) { sum += data.getAnnotation(row, index); numNonNull++; }
         }
         return sum / ((double) numNonNull);
     }
@@ -211,8 +255,8 @@ public class VariantDataManager {
     private double standardDeviation( final double mean, final int index ) {
         double sum = 0.0;
         int numNonNull = 0;
-        for( final VariantDatum datum : data ) {
-            if( datum.atTrainingSite && !datum.isNull[index] ) { sum += ((datum.annotations[index] - mean)*(datum.annotations[index] - mean)); numNonNull++; }
+        for( int row = 0; row < data.size(); row++ ) {
+            if( data.isAtTrainingSite(row) && !data.isNull(row, index) ) { sum += ((data.getAnnotation(row, index) - mean)*(data.getAnnotation(row, index) - mean)); numNonNull++; }
         }
         return Math.sqrt( sum / ((double) numNonNull) );
     }
@@ -305,12 +349,9 @@ public class VariantDataManager {
         }
     }
 
-    public void writeOutRecalibrationTable( final VariantContextWriter recalWriter ) {
+    public void writeOutRecalibrationTable( final VariantContextWriter recalWriter, final GenomeLocParser genomeLocParser ) {
         // we need to sort in coordinate order in order to produce a valid VCF
-        Collections.sort( data, new Comparator<VariantDatum>() {
-            public int compare(VariantDatum vd1, VariantDatum vd2) {
-                return vd1.loc.compareTo(vd2.loc);
-            }} );
+        data.sortByLocation();
 
         // create dummy alleles to be used
         final List<Allele> alleles = new ArrayList<Allele>(2);
@@ -320,13 +361,22 @@ public class VariantDataManager {
         // to be used for the important INFO tags
         final HashMap<String, Object> attributes = new HashMap<String, Object>(3);
 
-        for( final VariantDatum datum : data ) {
-            attributes.put(VCFConstants.END_KEY, datum.loc.getStop());
-            attributes.put(VariantRecalibrator.VQS_LOD_KEY, String.format("%.4f", datum.lod));
-            attributes.put(VariantRecalibrator.CULPRIT_KEY, (datum.worstAnnotation != -1 ? annotationKeys.get(datum.worstAnnotation) : "NULL"));
+        for( int row = 0; row < data.size(); row++ ) {
+            final String contig = genomeLocParser.getContigs().getSequence(data.getContigIndex(row)).getSequenceName();
+            attributes.put(VCFConstants.END_KEY, data.getStop(row));
+            attributes.put(VariantRecalibrator.VQS_LOD_KEY, String.format("%.4f", data.getLod(row)));
+            attributes.put(VariantRecalibrator.CULPRIT_KEY, (data.getWorstAnnotation(row) != -1 ? annotationKeys.get(data.getWorstAnnotation(row)) : "NULL"));
 
-            VariantContextBuilder builder = new VariantContextBuilder("VQSR", datum.loc.getContig(), datum.loc.getStart(), datum.loc.getStop(), alleles).attributes(attributes);
+            VariantContextBuilder builder = new VariantContextBuilder("VQSR", contig, data.getStart(row), data.getStop(row), alleles).attributes(attributes);
             recalWriter.add(builder.make());
         }
     }
+
+    /**
+     * Writes the recalibration table to file as a binary recal file, which ApplyRecalibration can use instead of the VCF
+     */
+    public void writeOutBinaryRecalibrationTable( final File file, final GenomeLocParser genomeLocParser ) {
+        data.sortByLocation();
+        BinaryRecalFile.write( data, annotationKeys, genomeLocParser.getContigs(), file );
+    }
 }
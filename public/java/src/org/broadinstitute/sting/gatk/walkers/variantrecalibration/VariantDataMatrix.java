@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.variantrecalibration;
+
+import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+
+/**
+ * The variants seen by the VariantRecalibrator, stored column by column in primitive arrays instead of as one
+ * VariantDatum object per variant.  The annotations are a single row-major matrix, so the annotations of variant i
+ * are getAnnotations()[i * getNumAnnotations(), (i + 1) * getNumAnnotations()), and the per-variant flags are bitsets.
+ *
+ * VariantDatum is only used to gather the values of a single variant, which are then copied in with add().
+ */
+public class VariantDataMatrix {
+    private final static int MIN_CAPACITY = 16;
+
+    private final int numAnnotations;
+    private int size = 0;
+    private int capacity = 0;
+
+    private double[] annotations = new double[0];
+    private BitSet isNull = new BitSet(); // indexed like annotations
+    private BitSet isKnown = new BitSet();
+    private BitSet atTruthSite = new BitSet();
+    private BitSet atTrainingSite = new BitSet();
+    private BitSet atAntiTrainingSite = new BitSet();
+    private BitSet isTransition = new BitSet();
+    private BitSet isSNP = new BitSet();
+    private BitSet failingSTDThreshold = new BitSet();
+    private double[] lod = new double[0];
+    private double[] originalQual = new double[0];
+    private double[] prior = new double[0];
+    private int[] worstAnnotation = new int[0];
+    private int[] contigIndex = new int[0]; // -1 for variants without a location
+    private int[] start = new int[0];
+    private int[] stop = new int[0];
+    private int[] allelesHash = new int[0];
+
+    public VariantDataMatrix( final int numAnnotations ) {
+        this.numAnnotations = numAnnotations;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getNumAnnotations() {
+        return numAnnotations;
+    }
+
+    /**
+     * Appends the values of datum
+     */
+    public void add( final VariantDatum datum ) {
+        if( datum.annotations.length != numAnnotations ) {
+            throw new ReviewedStingException("Variant has " + datum.annotations.length + " annotations but this data has " + numAnnotations);
+        }
+        ensureCapacity( size + 1 );
+        final int row = size++;
+        System.arraycopy( datum.annotations, 0, annotations, row * numAnnotations, numAnnotations );
+        for( int iii = 0; iii < numAnnotations; iii++ ) {
+            isNull.set( row * numAnnotations + iii, datum.isNull[iii] );
+        }
+        isKnown.set( row, datum.isKnown );
+        atTruthSite.set( row, datum.atTruthSite );
+        atTrainingSite.set( row, datum.atTrainingSite );
+        atAntiTrainingSite.set( row, datum.atAntiTrainingSite );
+        isTransition.set( row, datum.isTransition );
+        isSNP.set( row, datum.isSNP );
+        failingSTDThreshold.set( row, datum.failingSTDThreshold );
+        lod[row] = datum.lod;
+        originalQual[row] = datum.originalQual;
+        prior[row] = datum.prior;
+        worstAnnotation[row] = datum.worstAnnotation;
+        contigIndex[row] = ( datum.loc == null ? -1 : datum.loc.getContigIndex() );
+        start[row] = ( datum.loc == null ? 0 : datum.loc.getStart() );
+        stop[row] = ( datum.loc == null ? 0 : datum.loc.getStop() );
+        allelesHash[row] = datum.allelesHash;
+    }
+
+    /**
+     * Appends a copy of the row-th variant of other
+     */
+    public void add( final VariantDataMatrix other, final int row ) {
+        if( other.numAnnotations != numAnnotations ) {
+            throw new ReviewedStingException("Variant has " + other.numAnnotations + " annotations but this data has " + numAnnotations);
+        }
+        ensureCapacity( size + 1 );
+        copyRow( other, row, this, size++ );
+    }
+
+    /**
+     * Appends all of the variants of other
+     */
+    public void addAll( final VariantDataMatrix other ) {
+        ensureCapacity( size + other.size );
+        for( int row = 0; row < other.size; row++ ) {
+            add( other, row );
+        }
+    }
+
+    /**
+     * @return a copy of the given variants, in the given order
+     */
+    public VariantDataMatrix subset( final int[] rows ) {
+        final VariantDataMatrix subset = new VariantDataMatrix( numAnnotations );
+        subset.ensureCapacity( rows.length );
+        for( final int row : rows ) {
+            subset.add( this, row );
+        }
+        return subset;
+    }
+
+    private void ensureCapacity( final int minCapacity ) {
+        if( minCapacity <= capacity ) {
+            return;
+        }
+        capacity = Math.max( MIN_CAPACITY, Math.max( minCapacity, 2 * capacity ) );
+        annotations = Arrays.copyOf( annotations, capacity * numAnnotations );
+        lod = Arrays.copyOf( lod, capacity );
+        originalQual = Arrays.copyOf( originalQual, capacity );
+        prior = Arrays.copyOf( prior, capacity );
+        worstAnnotation = Arrays.copyOf( worstAnnotation, capacity );
+        contigIndex = Arrays.copyOf( contigIndex, capacity );
+        start = Arrays.copyOf( start, capacity );
+        stop = Arrays.copyOf( stop, capacity );
+        allelesHash = Arrays.copyOf( allelesHash, capacity );
+    }
+
+    private static void copyRow( final VariantDataMatrix from, final int fromRow, final VariantDataMatrix to, final int toRow ) {
+        final int numAnnotations = from.numAnnotations;
+        System.arraycopy( from.annotations, fromRow * numAnnotations, to.annotations, toRow * numAnnotations, numAnnotations );
+        for( int iii = 0; iii < numAnnotations; iii++ ) {
+            to.isNull.set( toRow * numAnnotations + iii, from.isNull.get(fromRow * numAnnotations + iii) );
+        }
+        to.isKnown.set( toRow, from.isKnown.get(fromRow) );
+        to.atTruthSite.set( toRow, from.atTruthSite.get(fromRow) );
+        to.atTrainingSite.set( toRow, from.atTrainingSite.get(fromRow) );
+        to.atAntiTrainingSite.set( toRow, from.atAntiTrainingSite.get(fromRow) );
+        to.isTransition.set( toRow, from.isTransition.get(fromRow) );
+        to.isSNP.set( toRow, from.isSNP.get(fromRow) );
+        to.failingSTDThreshold.set( toRow, from.failingSTDThreshold.get(fromRow) );
+        to.lod[toRow] = from.lod[fromRow];
+        to.originalQual[toRow] = from.originalQual[fromRow];
+        to.prior[toRow] = from.prior[fromRow];
+        to.worstAnnotation[toRow] = from.worstAnnotation[fromRow];
+        to.contigIndex[toRow] = from.contigIndex[fromRow];
+        to.start[toRow] = from.start[fromRow];
+        to.stop[toRow] = from.stop[fromRow];
+        to.allelesHash[toRow] = from.allelesHash[fromRow];
+    }
+
+    // ---------------------------------------------------------------------------------------------------------
+    //
+    // accessors
+    //
+    // ---------------------------------------------------------------------------------------------------------
+
+    /**
+     * @return the row-major matrix of the annotations, which may be longer than size() * getNumAnnotations()
+     */
+    public double[] getAnnotations() {
+        return annotations;
+    }
+
+    public double getAnnotation( final int row, final int annotation ) {
+        return annotations[row * numAnnotations + annotation];
+    }
+
+    public void setAnnotation( final int row, final int annotation, final double value ) {
+        annotations[row * numAnnotations + annotation] = value;
+    }
+
+    public boolean isNull( final int row, final int annotation ) {
+        return isNull.get( row * numAnnotations + annotation );
+    }
+
+    /**
+     * @return true if any of the annotations of the row-th variant are missing
+     */
+    public boolean hasNullAnnotation( final int row ) {
+        final int nextNull = isNull.nextSetBit( row * numAnnotations );
+        return nextNull != -1 && nextNull < (row + 1) * numAnnotations;
+    }
+
+    public boolean isKnown( final int row ) { return isKnown.get(row); }
+    public boolean isAtTruthSite( final int row ) { return atTruthSite.get(row); }
+    public boolean isAtTrainingSite( final int row ) { return atTrainingSite.get(row); }
+    public boolean isAtAntiTrainingSite( final int row ) { return atAntiTrainingSite.get(row); }
+    public void setAtAntiTrainingSite( final int row, final boolean value ) { atAntiTrainingSite.set(row, value); }
+    public boolean isTransition( final int row ) { return isTransition.get(row); }
+    public boolean isSNP( final int row ) { return isSNP.get(row); }
+    public boolean isFailingSTDThreshold( final int row ) { return failingSTDThreshold.get(row); }
+    public void setFailingSTDThreshold( final int row, final boolean value ) { failingSTDThreshold.set(row, value); }
+
+    public double getLod( final int row ) { return lod[row]; }
+    public void setLod( final int row, final double value ) { lod[row] = value; }
+    public double getOriginalQual( final int row ) { return originalQual[row]; }
+    public double getPrior( final int row ) { return prior[row]; }
+    public int getWorstAnnotation( final int row ) { return worstAnnotation[row]; }
+    public void setWorstAnnotation( final int row, final int value ) { worstAnnotation[row] = value; }
+
+    public int getContigIndex( final int row ) { return contigIndex[row]; }
+    public int getStart( final int row ) { return start[row]; }
+    public int getStop( final int row ) { return stop[row]; }
+    public int getAllelesHash( final int row ) { return allelesHash[row]; }
+
+    // ---------------------------------------------------------------------------------------------------------
+    //
+    // sorting
+    //
+    // ---------------------------------------------------------------------------------------------------------
+
+    /**
+     * Sorts the variants by increasing lod, keeping the order of variants with equal lods
+     *
+     * @return the row each variant was in before the sort, indexed by its new row
+     */
+    public int[] sortByLod() {
+        return sort( new Comparator<Integer>() {
+            public int compare( final Integer row1, final Integer row2 ) {
+                return Double.compare( lod[row1], lod[row2] );
+            }
+        });
+    }
+
+    /**
+     * Sorts the variants by their contig, in the order of the sequence dictionary, and then by their start
+     */
+    public void sortByLocation() {
+        sort( new Comparator<Integer>() {
+            public int compare( final Integer row1, final Integer row2 ) {
+                if( contigIndex[row1] != contigIndex[row2] ) {
+                    return contigIndex[row1] < contigIndex[row2] ? -1 : 1;
+                }
+                return start[row1] < start[row2] ? -1 : ( start[row1] > start[row2] ? 1 : 0 );
+            }
+        });
+    }
+
+    private int[] sort( final Comparator<Integer> comparator ) {
+        final Integer[] order = new Integer[size];
+        for( int row = 0; row < size; row++ ) {
+            order[row] = row;
+        }
+        Arrays.sort( order, comparator ); // a stable merge sort, like Collections.sort() was on the list of VariantDatum
+
+        final VariantDataMatrix sorted = new VariantDataMatrix( numAnnotations );
+        sorted.ensureCapacity( size );
+        for( final int row : order ) {
+            sorted.add( this, row );
+        }
+
+        capacity = sorted.capacity;
+        annotations = sorted.annotations;
+        isNull = sorted.isNull;
+        isKnown = sorted.isKnown;
+        atTruthSite = sorted.atTruthSite;
+        atTrainingSite = sorted.atTrainingSite;
+        atAntiTrainingSite = sorted.atAntiTrainingSite;
+        isTransition = sorted.isTransition;
+        isSNP = sorted.isSNP;
+        failingSTDThreshold = sorted.failingSTDThreshold;
+        lod = sorted.lod;
+        originalQual = sorted.originalQual;
+        prior = sorted.prior;
+        worstAnnotation = sorted.worstAnnotation;
+        contigIndex = sorted.contigIndex;
+        start = sorted.start;
+        stop = sorted.stop;
+        allelesHash = sorted.allelesHash;
+
+        final int[] previousRows = new int[size];
+        for( int row = 0; row < size; row++ ) {
+            previousRows[row] = order[row];
+        }
+        return previousRows;
+    }
+}
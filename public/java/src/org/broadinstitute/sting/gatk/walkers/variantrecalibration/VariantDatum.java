@@ -49,8 +49,8 @@ public class VariantDatum implements Comparable<VariantDatum> {
     public double prior;
     public int consensusCount;
     public GenomeLoc loc;
+    public int allelesHash;
     public int worstAnnotation;
-    public MultivariateGaussian assignment; // used in K-means implementation 
 
     public int compareTo( final VariantDatum other ) {
         return Double.compare(this.lod, other.lod);
@@ -83,6 +83,10 @@ import java.util.*;
  * <h2>Output</h2>
  * <p>
  * A recalibration table file in VCF format that is used by the ApplyRecalibration walker.
+ * Optionally, the same table in a compact binary format (-binaryRecalFile), which ApplyRecalibration reads much faster.
+ * <p>
+ * Optionally, the trained models (-outputModel), with which later runs can score other batches of variants (-inputModel)
+ * instead of training new models.
  * <p>
  * A tranches file which shows various metrics of the recalibration callset as a function of making several slices through the data.
  *
@@ -106,7 +110,7 @@ import java.util.*;
 
 @DocumentedGATKFeature( groupName = "Variant Discovery Tools", extraDocs = {CommandLineGATK.class} )
 @PartitionBy(PartitionType.NONE)
-public class VariantRecalibrator extends RodWalker<ExpandingArrayList<VariantDatum>, ExpandingArrayList<VariantDatum>> implements TreeReducible<ExpandingArrayList<VariantDatum>> {
+public class VariantRecalibrator extends RodWalker<ExpandingArrayList<VariantDatum>, VariantDataMatrix> implements TreeReducible<VariantDataMatrix> {
 
     public static final String VQS_LOD_KEY = "VQSLOD"; // Log odds ratio of being a true variant versus being false under the trained gaussian mixture model
     public static final String CULPRIT_KEY = "culprit"; // The annotation which was the worst performing in the Gaussian mixture model, likely the reason why the variant was filtered out
@@ -142,6 +146,13 @@ public class VariantRecalibrator extends RodWalker<ExpandingArrayList<VariantDat
     @Output(fullName="tranches_file", shortName="tranchesFile", doc="The output tranches file used by ApplyRecalibration", required=true)
     protected File TRANCHES_FILE;
 
+    /**
+     * The recalibration table in a compact binary format, which ApplyRecalibration can read with -binaryRecalFile much
+     * faster than the VCF recal file.
+     */
+    @Output(fullName="binary_recal_file", shortName="binaryRecalFile", doc="The output binary recal file, which may be used by ApplyRecalibration instead of the recal file", required=false)
+    protected File BINARY_RECAL_FILE = null;
+
     /////////////////////////////
     // Additional Command Line Arguments
     /////////////////////////////
@@ -174,6 +185,22 @@ public class VariantRecalibrator extends RodWalker<ExpandingArrayList<VariantDat
     @Argument(fullName="ts_filter_level", shortName="ts_filter_level", doc="The truth sensitivity level at which to start filtering, used here to indicate filtered variants in the model reporting plots", required=false)
     protected double TS_FILTER_LEVEL = 99.0;
 
+    /**
+     * The trained positive and negative models, along with the normalization of the annotations, which may be given
+     * to later runs with -inputModel to score other batches of variants of the same project without training again.
+     */
+    @Output(fullName="output_model", shortName="outputModel", doc="The output file to which the trained models are saved", required=false)
+    protected File OUTPUT_MODEL_FILE = null;
+
+    /**
+     * Models saved by a previous run with -outputModel, with which the input variants are scored instead of training
+     * new models.  The annotations given with -an must be the ones the models were trained on, in the same order.  The
+     * input variants are normalized as the training data of the models were, and the tranches are found as usual
+     * from the truth sites among them.
+     */
+    @Input(fullName="input_model", shortName="inputModel", doc="Models saved by a previous run with -outputModel, to use instead of training new ones", required=false)
+    protected File INPUT_MODEL_FILE = null;
+
     /////////////////////////////
     // Debug Arguments
     /////////////////////////////
@@ -188,6 +215,7 @@ public class VariantRecalibrator extends RodWalker<ExpandingArrayList<VariantDat
     private PrintStream tranchesStream;
     private final Set<String> ignoreInputFilterSet = new TreeSet<String>();
     private final VariantRecalibratorEngine engine = new VariantRecalibratorEngine( VRAC );
+    private VQSRModelFile inputModel = null;
 
     //---------------------------------------------------------------------------------------------------------------
     //
@@ -217,7 +245,14 @@ public class VariantRecalibrator extends RodWalker<ExpandingArrayList<VariantDat
             dataManager.addTrainingSet( new TrainingSet( rod ) );
         }
 
-        if( !dataManager.checkHasTrainingSet() ) {
+        if( INPUT_MODEL_FILE != null ) {
+            inputModel = VQSRModelFile.read( INPUT_MODEL_FILE );
+            if( !inputModel.getAnnotationKeys().equals( dataManager.annotationKeys ) ) {
+                throw new UserException.BadArgumentValue( "input_model", "the models were trained on the annotations " + inputModel.getAnnotationKeys() + " but the annotations " + dataManager.annotationKeys + " were requested with -an" );
+            }
+        }
+
+        if( inputModel == null && !dataManager.checkHasTrainingSet() ) {
             throw new UserException.CommandLineException( "No training set found! Please provide sets of known polymorphic loci marked with the training=true ROD binding tag. For example, -resource:hapmap,VCF,known=false,training=true,truth=true,prior=12.0 hapmapFile.vcf" );
         }
         if( !dataManager.checkHasTruthSet() ) {
@@ -251,6 +286,7 @@ public class VariantRecalibrator extends RodWalker<ExpandingArrayList<VariantDat
                     // Populate the datum with lots of fields from the VariantContext, unfortunately the VC is too big so we just pull in only the things we absolutely need.
                     dataManager.decodeAnnotations( datum, vc, true ); //BUGBUG: when run with HierarchicalMicroScheduler this is non-deterministic because order of calls depends on load of machine
                     datum.loc = getToolkit().getGenomeLocParser().createGenomeLoc(vc);
+                    datum.allelesHash = BinaryRecalFile.allelesHash(vc);
                     datum.originalQual = vc.getPhredScaledQual();
                     datum.isSNP = vc.isSNP() && vc.isBiallelic();
                     datum.isTransition = datum.isSNP && VariantContextUtils.isTransition(vc);
@@ -274,16 +310,18 @@ public class VariantRecalibrator extends RodWalker<ExpandingArrayList<VariantDat
     //
     //---------------------------------------------------------------------------------------------------------------
 
-    public ExpandingArrayList<VariantDatum> reduceInit() {
-        return new ExpandingArrayList<VariantDatum>();
+    public VariantDataMatrix reduceInit() {
+        return new VariantDataMatrix( USE_ANNOTATIONS.length );
     }
 
-    public ExpandingArrayList<VariantDatum> reduce( final ExpandingArrayList<VariantDatum> mapValue, final ExpandingArrayList<VariantDatum> reduceSum ) {
-        reduceSum.addAll( mapValue );
+    public VariantDataMatrix reduce( final ExpandingArrayList<VariantDatum> mapValue, final VariantDataMatrix reduceSum ) {
+        for( final VariantDatum datum : mapValue ) {
+            reduceSum.add( datum );
+        }
         return reduceSum;
     }
 
-    public ExpandingArrayList<VariantDatum> treeReduce( final ExpandingArrayList<VariantDatum> lhs, final ExpandingArrayList<VariantDatum> rhs ) {
+    public VariantDataMatrix treeReduce( final VariantDataMatrix lhs, final VariantDataMatrix rhs ) {
         rhs.addAll( lhs );
         return rhs;
     }
@@ -294,32 +332,50 @@ public class VariantRecalibrator extends RodWalker<ExpandingArrayList<VariantDat
     //
     //---------------------------------------------------------------------------------------------------------------
 
-    public void onTraversalDone( final ExpandingArrayList<VariantDatum> reduceSum ) {
+    public void onTraversalDone( final VariantDataMatrix reduceSum ) {
         dataManager.setData( reduceSum );
-        dataManager.normalizeData(); // Each data point is now (x - mean) / standard deviation
-
-        // Generate the positive model using the training data and evaluate each variant
-        final GaussianMixtureModel goodModel = engine.generateModel( dataManager.getTrainingData() );
-        engine.evaluateData( dataManager.getData(), goodModel, false );
-
-        // Generate the negative model using the worst performing data and evaluate each variant contrastively
-        final ExpandingArrayList<VariantDatum> negativeTrainingData = dataManager.selectWorstVariants( VRAC.PERCENT_BAD_VARIANTS, VRAC.MIN_NUM_BAD_VARIANTS );
-        GaussianMixtureModel badModel = engine.generateModel( negativeTrainingData );
-        engine.evaluateData( dataManager.getData(), badModel, true );
-
-        // Detect if the negative model failed to converge because of too few points and/or too many Gaussians and try again
-        while( badModel.failedToConverge && VRAC.MAX_GAUSSIANS > 4 ) {
-            logger.info("Negative model failed to converge. Retrying...");
-            VRAC.MAX_GAUSSIANS--;
-            badModel = engine.generateModel( negativeTrainingData );
+
+        final GaussianMixtureModel goodModel;
+        GaussianMixtureModel badModel;
+        if( inputModel != null ) {
+            // Score the data with the saved models, normalizing it as their training data were
+            logger.info( "Scoring the variants with the models from " + INPUT_MODEL_FILE );
+            dataManager.normalizeData( inputModel.getMeans(), inputModel.getStandardDeviations() );
+            goodModel = inputModel.getGoodModel();
+            badModel = inputModel.getBadModel();
+            engine.evaluateData( dataManager.getData(), goodModel, false );
+            engine.evaluateData( dataManager.getData(), badModel, true );
+        } else {
+            dataManager.normalizeData(); // Each data point is now (x - mean) / standard deviation
+
+            // Generate the positive model using the training data and evaluate each variant
+            goodModel = engine.generateModel( dataManager.getTrainingData() );
             engine.evaluateData( dataManager.getData(), goodModel, false );
+
+            // Generate the negative model using the worst performing data and evaluate each variant contrastively
+            final int[] negativeTrainingRows = dataManager.selectWorstVariants( VRAC.PERCENT_BAD_VARIANTS, VRAC.MIN_NUM_BAD_VARIANTS );
+            badModel = engine.generateModel( dataManager.getData().subset( negativeTrainingRows ) );
             engine.evaluateData( dataManager.getData(), badModel, true );
+
+            // Detect if the negative model failed to converge because of too few points and/or too many Gaussians and try again
+            while( badModel.failedToConverge && VRAC.MAX_GAUSSIANS > 4 ) {
+                logger.info("Negative model failed to converge. Retrying...");
+                VRAC.MAX_GAUSSIANS--;
+                badModel = engine.generateModel( dataManager.getData().subset( negativeTrainingRows ) ); // with the missing annotations redrawn by the evaluations
+                engine.evaluateData( dataManager.getData(), goodModel, false );
+                engine.evaluateData( dataManager.getData(), badModel, true );
+            }
         }
 
         if( badModel.failedToConverge || goodModel.failedToConverge ) {
             throw new UserException("NaN LOD value assigned. Clustering with this few variants and these annotations is unsafe. Please consider raising the number of variants used to train the negative model (via --percentBadVariants 0.05, for example) or lowering the maximum number of Gaussians to use in the model (via --maxGaussians 4, for example)");
         }
 
+        if( OUTPUT_MODEL_FILE != null ) {
+            logger.info( "Writing out the trained models..." );
+            VQSRModelFile.write( OUTPUT_MODEL_FILE, dataManager.annotationKeys, dataManager.getMeanVector(), dataManager.getStandardDeviationVector(), goodModel, badModel );
+        }
+
         engine.calculateWorstPerformingAnnotation( dataManager.getData(), goodModel, badModel );
 
         // Find the VQSLOD cutoff values which correspond to the various tranches of calls requested by the user
@@ -337,7 +393,10 @@ public class VariantRecalibrator extends RodWalker<ExpandingArrayList<VariantDat
         }
 
         logger.info( "Writing out recalibration table..." );
-        dataManager.writeOutRecalibrationTable( recalWriter );
+        dataManager.writeOutRecalibrationTable( recalWriter, getToolkit().getGenomeLocParser() );
+        if( BINARY_RECAL_FILE != null ) {
+            dataManager.writeOutBinaryRecalibrationTable( BINARY_RECAL_FILE, getToolkit().getGenomeLocParser() );
+        }
         if( RSCRIPT_FILE != null ) {
             logger.info( "Writing out visualization Rscript file...");
             createVisualizationScript( dataManager.getRandomDataForPlotting( 6000 ), goodModel, badModel, lodCutoff );
@@ -352,7 +411,7 @@ public class VariantRecalibrator extends RodWalker<ExpandingArrayList<VariantDat
         executor.exec();
     }
 
-    private void createVisualizationScript( final ExpandingArrayList<VariantDatum> randomData, final GaussianMixtureModel goodModel, final GaussianMixtureModel badModel, final double lodCutoff ) {
+    private void createVisualizationScript( final VariantDataMatrix randomData, final GaussianMixtureModel goodModel, final GaussianMixtureModel badModel, final double lodCutoff ) {
         PrintStream stream;
         try {
             stream = new PrintStream(RSCRIPT_FILE);
@@ -376,21 +435,21 @@ public class VariantRecalibrator extends RodWalker<ExpandingArrayList<VariantDat
             for( int jjj = iii + 1; jjj < USE_ANNOTATIONS.length; jjj++) {
                 logger.info( "Building " + USE_ANNOTATIONS[iii] + " x " + USE_ANNOTATIONS[jjj] + " plot...");
 
-                final ExpandingArrayList<VariantDatum> fakeData = new ExpandingArrayList<VariantDatum>();
+                final VariantDataMatrix fakeData = new VariantDataMatrix( randomData.getNumAnnotations() );
                 double minAnn1 = 100.0, maxAnn1 = -100.0, minAnn2 = 100.0, maxAnn2 = -100.0;
-                for( final VariantDatum datum : randomData ) {
-                    minAnn1 = Math.min(minAnn1, datum.annotations[iii]);
-                    maxAnn1 = Math.max(maxAnn1, datum.annotations[iii]);
-                    minAnn2 = Math.min(minAnn2, datum.annotations[jjj]);
-                    maxAnn2 = Math.max(maxAnn2, datum.annotations[jjj]);
+                for( int row = 0; row < randomData.size(); row++ ) {
+                    minAnn1 = Math.min(minAnn1, randomData.getAnnotation(row, iii));
+                    maxAnn1 = Math.max(maxAnn1, randomData.getAnnotation(row, iii));
+                    minAnn2 = Math.min(minAnn2, randomData.getAnnotation(row, jjj));
+                    maxAnn2 = Math.max(maxAnn2, randomData.getAnnotation(row, jjj));
                 }
                 // Create a fake set of data which spans the full extent of these two annotation dimensions in order to calculate the model PDF projected to 2D
                 for(double ann1 = minAnn1; ann1 <= maxAnn1; ann1+=0.1) {
                     for(double ann2 = minAnn2; ann2 <= maxAnn2; ann2+=0.1) {
                         final VariantDatum datum = new VariantDatum();
                         datum.prior = 0.0;
-                        datum.annotations = new double[randomData.get(0).annotations.length];
-                        datum.isNull = new boolean[randomData.get(0).annotations.length];
+                        datum.annotations = new double[randomData.getNumAnnotations()];
+                        datum.isNull = new boolean[randomData.getNumAnnotations()];
                         for(int ann=0; ann< datum.annotations.length; ann++) {
                             datum.annotations[ann] = 0.0;
                             datum.isNull[ann] = true;
@@ -407,16 +466,16 @@ public class VariantRecalibrator extends RodWalker<ExpandingArrayList<VariantDat
                 engine.evaluateData( fakeData, badModel, true );
 
                 stream.print("surface <- c(");
-                for( final VariantDatum datum : fakeData ) {
-                    stream.print(String.format("%.3f, %.3f, %.3f, ", datum.annotations[iii], datum.annotations[jjj], Math.min(4.0, Math.max(-4.0, datum.lod))));
+                for( int row = 0; row < fakeData.size(); row++ ) {
+                    stream.print(String.format("%.3f, %.3f, %.3f, ", fakeData.getAnnotation(row, iii), fakeData.getAnnotation(row, jjj), Math.min(4.0, Math.max(-4.0, fakeData.getLod(row)))));
                 }
                 stream.println("NA,NA,NA)");
                 stream.println("s <- matrix(surface,ncol=3,byrow=T)");
 
                 stream.print("data <- c(");
-                for( final VariantDatum datum : randomData ) {
-                    stream.print(String.format("%.3f, %.3f, %.3f, %d, %d,", datum.annotations[iii], datum.annotations[jjj], (datum.lod < lodCutoff ? -1.0 : 1.0),
-                            (datum.atAntiTrainingSite ? -1 : (datum.atTrainingSite ? 1 : 0)), (datum.isKnown ? 1 : -1)));
+                for( int row = 0; row < randomData.size(); row++ ) {
+                    stream.print(String.format("%.3f, %.3f, %.3f, %d, %d,", randomData.getAnnotation(row, iii), randomData.getAnnotation(row, jjj), (randomData.getLod(row) < lodCutoff ? -1.0 : 1.0),
+                            (randomData.isAtAntiTrainingSite(row) ? -1 : (randomData.isAtTrainingSite(row) ? 1 : 0)), (randomData.isKnown(row) ? 1 : -1)));
                 }
                 stream.println("NA,NA,NA,NA,1)");
                 stream.println("d <- matrix(data,ncol=5,byrow=T)");
@@ -57,6 +57,10 @@ public class VariantRecalibratorArgumentCollection {
     public int MAX_ITERATIONS = 100;
     @Argument(fullName="numKMeans", shortName="nKM", doc="The number of k-means iterations to perform in order to initialize the means of the Gaussians in the Gaussian mixture model.", required=false)
     public int NUM_KMEANS_ITERATIONS = 30;
+    @Argument(fullName="numTrainingThreads", shortName="ntt", doc="The number of threads to use for the k-means and VBEM iterations. The model doesn't depend on the number of threads.", required=false)
+    public int NUM_TRAINING_THREADS = 1;
+    @Argument(fullName="miniBatchSize", shortName="miniBatch", doc="If positive and smaller than the training set, each k-means and VBEM iteration uses a fresh random sample of this many training variants instead of all of them. For very large training sets; the final model parameters are still calculated from all of the training variants.", required=false)
+    public int MINI_BATCH_SIZE = 0;
     @Argument(fullName="stdThreshold", shortName="std", doc="If a variant has annotations more than -std standard deviations away from mean then don't use it for building the Gaussian mixture model.", required=false)
     public double STD_THRESHOLD = 14.0;
     @Argument(fullName="qualThreshold", shortName="qual", doc="If a known variant has raw QUAL value less than -qual then don't use it for building the Gaussian mixture model.", required=false)
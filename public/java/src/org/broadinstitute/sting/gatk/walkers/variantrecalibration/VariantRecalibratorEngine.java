@@ -28,7 +28,7 @@ package org.broadinstitute.sting.gatk.walkers.variantrecalibration;
 import org.apache.log4j.Logger;
 import org.broadinstitute.sting.gatk.GenomeAnalysisEngine;
 
-import java.util.List;
+import java.util.Random;
 
 /**
  * Created by IntelliJ IDEA.
@@ -58,13 +58,13 @@ public class VariantRecalibratorEngine {
         this.VRAC = VRAC;
     }
 
-    public GaussianMixtureModel generateModel( final List<VariantDatum> data ) {
-        final GaussianMixtureModel model = new GaussianMixtureModel( VRAC.MAX_GAUSSIANS, data.get(0).annotations.length, VRAC.SHRINKAGE, VRAC.DIRICHLET_PARAMETER, VRAC.PRIOR_COUNTS );
+    public GaussianMixtureModel generateModel( final VariantDataMatrix data ) {
+        final GaussianMixtureModel model = new GaussianMixtureModel( VRAC.MAX_GAUSSIANS, data.getNumAnnotations(), VRAC.SHRINKAGE, VRAC.DIRICHLET_PARAMETER, VRAC.PRIOR_COUNTS, VRAC.NUM_TRAINING_THREADS );
         variationalBayesExpectationMaximization( model, data );
         return model;
     }
 
-    public void evaluateData( final List<VariantDatum> data, final GaussianMixtureModel model, final boolean evaluateContrastively ) {
+    public void evaluateData( final VariantDataMatrix data, final GaussianMixtureModel model, final boolean evaluateContrastively ) {
         if( !model.isModelReadyForEvaluation ) {
             try {
                 model.precomputeDenominatorForEvaluation();
@@ -75,34 +75,35 @@ public class VariantRecalibratorEngine {
         }
         
         logger.info("Evaluating full set of " + data.size() + " variants...");
-        for( final VariantDatum datum : data ) {
-            final double thisLod = evaluateDatum( datum, model );
+        for( int row = 0; row < data.size(); row++ ) {
+            final double thisLod = evaluateDatum( data, row, model );
             if( Double.isNaN(thisLod) ) {
                 model.failedToConverge = true;
                 return;
             }
 
-            datum.lod = ( evaluateContrastively ?
-                            ( Double.isInfinite(datum.lod) ? // positive model said negative infinity
+            final double lod = data.getLod(row);
+            data.setLod( row, ( evaluateContrastively ?
+                            ( Double.isInfinite(lod) ? // positive model said negative infinity
                                     ( MIN_ACCEPTABLE_LOD_SCORE + GenomeAnalysisEngine.getRandomGenerator().nextDouble() * MIN_ACCEPTABLE_LOD_SCORE ) // Negative infinity lod values are possible when covariates are extremely far away from their tight Gaussians
-                                    : datum.prior + datum.lod - thisLod) // contrastive evaluation: (prior + positive model - negative model)
-                            : thisLod ); // positive model only so set the lod and return
+                                    : data.getPrior(row) + lod - thisLod) // contrastive evaluation: (prior + positive model - negative model)
+                            : thisLod ) ); // positive model only so set the lod and return
         }
     }
 
-    public void calculateWorstPerformingAnnotation( final List<VariantDatum> data, final GaussianMixtureModel goodModel, final GaussianMixtureModel badModel ) {
-        for( final VariantDatum datum : data ) {
+    public void calculateWorstPerformingAnnotation( final VariantDataMatrix data, final GaussianMixtureModel goodModel, final GaussianMixtureModel badModel ) {
+        for( int row = 0; row < data.size(); row++ ) {
             int worstAnnotation = -1;
             double minProb = Double.MAX_VALUE;
-            for( int iii = 0; iii < datum.annotations.length; iii++ ) {
-                final Double goodProbLog10 = goodModel.evaluateDatumInOneDimension(datum, iii);
-                final Double badProbLog10 = badModel.evaluateDatumInOneDimension(datum, iii);
+            for( int iii = 0; iii < data.getNumAnnotations(); iii++ ) {
+                final Double goodProbLog10 = goodModel.evaluateDatumInOneDimension(data, row, iii);
+                final Double badProbLog10 = badModel.evaluateDatumInOneDimension(data, row, iii);
                 if( goodProbLog10 != null && badProbLog10 != null ) {
                     final double prob = goodProbLog10 - badProbLog10;
                     if(prob < minProb) { minProb = prob; worstAnnotation = iii; }
                 }
             }
-            datum.worstAnnotation = worstAnnotation;
+            data.setWorstAnnotation( row, worstAnnotation );
         }
     }
 
@@ -111,21 +112,29 @@ public class VariantRecalibratorEngine {
     // Private Methods used for generating a GaussianMixtureModel
     /////////////////////////////
 
-    private void variationalBayesExpectationMaximization( final GaussianMixtureModel model, final List<VariantDatum> data ) {
+    private void variationalBayesExpectationMaximization( final GaussianMixtureModel model, final VariantDataMatrix data ) {
 
-        model.initializeRandomModel( data, VRAC.NUM_KMEANS_ITERATIONS );
+        final boolean useMiniBatches = VRAC.MINI_BATCH_SIZE > 0 && VRAC.MINI_BATCH_SIZE < data.size();
+        if( useMiniBatches ) {
+            logger.info("Training with random mini-batches of " + VRAC.MINI_BATCH_SIZE + " of the " + data.size() + " training variants...");
+        }
+        VariantDataMatrix batch = ( useMiniBatches ? drawMiniBatch( data ) : data );
+        final double scale = ((double) data.size()) / ((double) batch.size()); // each variant of a mini-batch stands for this many training variants
+
+        model.initializeRandomModel( batch, VRAC.NUM_KMEANS_ITERATIONS );
 
         // The VBEM loop
         model.normalizePMixtureLog10();
-        model.expectationStep( data );
+        model.expectationStep( batch );
         double currentChangeInMixtureCoefficients;
         int iteration = 0;
         logger.info("Finished iteration " + iteration + ".");
         while( iteration < VRAC.MAX_ITERATIONS ) {
             iteration++;
-            model.maximizationStep( data );
+            model.maximizationStep( batch, scale );
             currentChangeInMixtureCoefficients = model.normalizePMixtureLog10();
-            model.expectationStep( data );
+            if( useMiniBatches ) { batch = drawMiniBatch( data ); }
+            model.expectationStep( batch );
             if( iteration % 5 == 0 ) { // cut down on the number of output lines so that users can read the warning messages
                 logger.info("Finished iteration " + iteration + ". \tCurrent change in mixture coefficients = " + String.format("%.5f", currentChangeInMixtureCoefficients));
             }
@@ -135,14 +144,30 @@ public class VariantRecalibratorEngine {
             }
         }
 
+        if( useMiniBatches ) { model.expectationStep( data ); }
         model.evaluateFinalModelParameters( data );
     }
 
+    /**
+     * @return a random sample of MINI_BATCH_SIZE of the data, in their original order
+     */
+    private VariantDataMatrix drawMiniBatch( final VariantDataMatrix data ) {
+        final Random rand = GenomeAnalysisEngine.getRandomGenerator();
+        final int[] rows = new int[VRAC.MINI_BATCH_SIZE];
+        int numChosen = 0;
+        for( int iii = 0; iii < data.size() && numChosen < rows.length; iii++ ) {
+            if( rand.nextInt( data.size() - iii ) < rows.length - numChosen ) { // selection sampling: each of the remaining data is taken with probability needed / remaining
+                rows[numChosen++] = iii;
+            }
+        }
+        return data.subset( rows );
+    }
+
     /////////////////////////////
     // Private Methods used for evaluating data given a GaussianMixtureModel
     /////////////////////////////
 
-    private double evaluateDatum( final VariantDatum datum, final GaussianMixtureModel model ) {
-        return model.evaluateDatum( datum );
+    private double evaluateDatum( final VariantDataMatrix data, final int row, final GaussianMixtureModel model ) {
+        return model.evaluateDatum( data, row );
     }
 }
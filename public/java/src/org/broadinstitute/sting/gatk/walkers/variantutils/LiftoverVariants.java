@@ -51,7 +51,7 @@ import java.io.File;
 import java.util.*;
 
 /**
- * Lifts a VCF file over from one build to another.  Note that the resulting VCF could be mis-sorted.
+ * Lifts a VCF file over from one build to another.  Note that the resulting VCF could be mis-sorted unless -sortOutput is given.
  */
 @DocumentedGATKFeature( groupName = "Variant Evaluation and Manipulation Tools", extraDocs = {CommandLineGATK.class} )
 public class LiftoverVariants extends RodWalker<Integer, Integer> {
@@ -72,6 +72,13 @@ public class LiftoverVariants extends RodWalker<Integer, Integer> {
     @Argument(fullName="recordOriginalLocation", shortName="recordOriginalLocation", doc="Should we record what the original location was in the INFO field?", required=false)
     protected Boolean RECORD_ORIGINAL_LOCATION = false;
 
+    /**
+     * Records that lift over out of order are sorted by the new sequence dictionary, spilling them to temporary files
+     * as needed, so the output doesn't need to be sorted afterwards.
+     */
+    @Argument(fullName="sortOutput", shortName="sortOutput", doc="Should we sort the output by the new sequence dictionary?", required=false)
+    protected boolean SORT_OUTPUT = false;
+
     private LiftOver liftOver;
 
     private long successfulIntervals = 0, failedIntervals = 0;
@@ -85,8 +92,9 @@ public class LiftoverVariants extends RodWalker<Integer, Integer> {
 
         liftOver.setLiftOverMinMatch(LiftOver.DEFAULT_LIFTOVER_MINMATCH);
 
+        final SAMFileHeader toHeader;
         try {
-            final SAMFileHeader toHeader = new SAMFileReader(NEW_SEQ_DICT).getFileHeader();
+            toHeader = new SAMFileReader(NEW_SEQ_DICT).getFileHeader();
             liftOver.validateToSequences(toHeader.getSequenceDictionary());
         } catch (RuntimeException e) {
             throw new UserException.BadInput("the chain file you are using is not compatible with the reference you are trying to lift over to; please use the appropriate chain file for the given reference");    
@@ -107,6 +115,8 @@ public class LiftoverVariants extends RodWalker<Integer, Integer> {
 
         final VCFHeader vcfHeader = new VCFHeader(metaData, samples);
         writer = VariantContextWriterFactory.create(file, getMasterSequenceDictionary(), VariantContextWriterFactory.NO_OPTIONS);
+        if ( SORT_OUTPUT )
+            writer = VariantContextWriterFactory.sortExternally(writer, toHeader.getSequenceDictionary(), true);
         writer.writeHeader(vcfHeader);
     }
 
@@ -30,6 +30,7 @@ import org.broadinstitute.sting.gatk.GenomeAnalysisEngine;
 import org.broadinstitute.sting.gatk.arguments.StandardVariantContextInputArgumentCollection;
 import org.broadinstitute.sting.gatk.contexts.AlignmentContext;
 import org.broadinstitute.sting.gatk.contexts.ReferenceContext;
+import org.broadinstitute.sting.gatk.datasources.rmd.ReferenceOrderedDataSource;
 import org.broadinstitute.sting.gatk.refdata.RefMetaDataTracker;
 import org.broadinstitute.sting.gatk.samples.Sample;
 import org.broadinstitute.sting.gatk.walkers.RodWalker;
@@ -414,6 +415,14 @@ public class SelectVariants extends RodWalker<Integer, Integer> implements TreeR
             for ( String sample : samples )
             logger.info("Including sample '" + sample + "'");
 
+        // we only ever look at the genotypes of the selected samples, unless we are checking for mendelian
+        // violations which needs the genotypes of the whole family, so don't bother decoding the others
+        if ( ! NO_SAMPLES_SPECIFIED && ! MENDELIAN_VIOLATIONS && outMVFile == null ) {
+            for ( final ReferenceOrderedDataSource dataSource : getToolkit().getRodDataSources() )
+                if ( rodNames.contains(dataSource.getName()) )
+                    dataSource.setSamplesToDecode(samples);
+        }
+
         // if user specified types to include, add these, otherwise, add all possible variant context types to list of vc types to include
         if (TYPES_TO_INCLUDE.isEmpty()) {
 
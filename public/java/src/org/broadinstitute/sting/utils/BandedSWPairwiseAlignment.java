@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils;
+
+import net.sf.samtools.Cigar;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.CigarOperator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A Smith-Waterman aligner with the same semantics as SWPairwiseAlignment, but with integer scores and optional
+ * banding around an expected alignment offset
+ *
+ * Without a band this gives exactly the same alignments as SWPairwiseAlignment with the same (integer) weights: the
+ * recurrences, the tie-breaking and the backtracking are the same, but the scores are ints, only two rows of them are
+ * kept, and the backtrack matrix is the only (n+1) x (m+1) array.
+ *
+ * With a band only the cells within bandWidth diagonals of the expected offset of seq2 in seq1 are computed, so the
+ * cost is O(n * bandWidth) rather than O(n * m) in both time and memory.  Everything outside of the band is treated
+ * as unreachable, so the result is the same as SWPairwiseAlignment's whenever its best alignment stays inside the
+ * band, as it does for a read realigned near its original position with indels shorter than the band width.
+ */
+public class BandedSWPairwiseAlignment {
+    // scores of cells outside of the band, far below any real score but with plenty of room to subtract penalties
+    private final static int OUT_OF_BAND = Integer.MIN_VALUE / 4;
+
+    private static final int MSTATE = 0;
+    private static final int ISTATE = 1;
+    private static final int DSTATE = 2;
+    private static final int CLIP = 3;
+
+    private final int w_match;
+    private final int w_mismatch;
+    private final int w_open;
+    private final int w_extend;
+
+    private int alignment_offset; // offset of s2 w/respect to s1
+    private Cigar alignmentCigar;
+
+    // the backtrack entries of row i are stored from column rowStart(i), for bandSize columns
+    private int expectedOffset, bandWidth, bandSize;
+    private int[] btrack;
+
+    /**
+     * Align seq2 against all of seq1, exactly as SWPairwiseAlignment does
+     */
+    public BandedSWPairwiseAlignment(final byte[] seq1, final byte[] seq2, final int match, final int mismatch, final int open, final int extend) {
+        this(seq1, seq2, match, mismatch, open, extend, 0, -1);
+    }
+
+    /**
+     * Align seq2 against seq1, considering only alignments within bandWidth diagonals of seq2 starting at
+     * expectedOffset in seq1
+     *
+     * @param expectedOffset the expected offset of the first base of seq2 in seq1
+     * @param bandWidth the largest distance from the expected diagonal to consider, or a negative value to consider all of them
+     */
+    public BandedSWPairwiseAlignment(final byte[] seq1, final byte[] seq2, final int match, final int mismatch, final int open, final int extend,
+                                     final int expectedOffset, final int bandWidth) {
+        w_match = match;
+        w_mismatch = mismatch;
+        w_open = open;
+        w_extend = extend;
+        align(seq1, seq2, expectedOffset, bandWidth);
+    }
+
+    public Cigar getCigar() { return alignmentCigar ; }
+
+    public int getAlignmentStart2wrt1() { return alignment_offset; }
+
+    private int rowStart(final int i) {
+        return bandWidth < 0 ? 0 : i - expectedOffset - bandWidth;
+    }
+
+    /**
+     * @return the backtrack entry of cell [i][j]; cells in the first row and column, and those outside of the band, have 0
+     */
+    private int getBacktrack(final int i, final int j) {
+        final int k = j - rowStart(i);
+        return i <= 0 || j <= 0 || k < 0 || k >= bandSize ? 0 : btrack[i * bandSize + k];
+    }
+
+    private void align(final byte[] a, final byte[] b, final int expectedOffset, final int bandWidth) {
+        final int n = a.length;
+        final int m = b.length;
+
+        this.expectedOffset = expectedOffset;
+        this.bandWidth = bandWidth;
+        this.bandSize = bandWidth < 0 ? m + 1 : 2 * bandWidth + 1;
+        btrack = new int[(n + 1) * bandSize];
+
+        // the scores of the previous and current rows; the first row and column are all 0
+        int[] previousRow = new int[m + 1];
+        int[] currentRow = new int[m + 1];
+
+        // the scores of the last column and (once we get there) of the last row, from which the backtracking starts
+        final int[] lastColumn = new int[n + 1];
+        final int[] lastRow = new int[m + 1];
+
+        // the best vertical gap ending in each column, as in SWPairwiseAlignment
+        final int[] best_gap_v = new int[m + 1];
+        Arrays.fill(best_gap_v, OUT_OF_BAND);
+        final int[] gap_size_v = new int[m + 1];
+
+        int previousHi = m; // the first row is in the band everywhere
+        for ( int i = 1; i < n + 1; i++ ) {
+            final byte a_base = a[i-1]; // letter in a at the current pos
+            final int lo = Math.max(1, rowStart(i));
+            final int hi = Math.min(m, rowStart(i) + bandSize - 1);
+            final int row_offset = i * bandSize - rowStart(i);
+
+            int best_gap_h = OUT_OF_BAND;
+            int gap_size_h = 0;
+            int left = lo == 1 ? 0 : OUT_OF_BAND; // the score of the cell to the left of the current one
+
+            for ( int j = lo; j <= hi; j++ ) {
+                final byte b_base = b[j-1]; // letter in b at the current pos
+
+                // the diagonal is always in the band (or in the first row or column), but the cell above only if it's not the newest column
+                final int step_diag = previousRow[j-1] + (a_base == b_base ? w_match : w_mismatch);
+                final int up = j <= previousHi ? previousRow[j] : OUT_OF_BAND;
+                if ( j > previousHi ) {
+                    // this column just entered the band, so there is no gap above
+                    best_gap_v[j] = OUT_OF_BAND;
+                    gap_size_v[j] = 0;
+                }
+
+                // see SWPairwiseAlignment.calculateMatrix for the optimized traversal of the gaps, which we follow exactly
+                int prev_gap = up + w_open;
+                best_gap_v[j] += w_extend;
+                if ( prev_gap > best_gap_v[j] ) {
+                    best_gap_v[j] = prev_gap;
+                    gap_size_v[j] = 1;
+                } else {
+                    gap_size_v[j]++;
+                }
+                final int step_down = best_gap_v[j];
+                final int kd = gap_size_v[j];
+
+                prev_gap = left + w_open;
+                best_gap_h += w_extend;
+                if ( prev_gap > best_gap_h ) {
+                    best_gap_h = prev_gap;
+                    gap_size_h = 1;
+                } else {
+                    gap_size_h++;
+                }
+                final int step_right = best_gap_h;
+                final int ki = gap_size_h;
+
+                final int score;
+                if ( step_down > step_right ) {
+                    if ( step_down > step_diag ) {
+                        score = step_down;
+                        btrack[row_offset + j] = kd ; // positive=vertical
+                    } else {
+                        score = step_diag;
+                        btrack[row_offset + j] = 0; // 0 = diagonal
+                    }
+                } else {
+                    // step_down <= step_right
+                    if ( step_right > step_diag ) {
+                        score = step_right;
+                        btrack[row_offset + j] = -ki; // negative = horizontal
+                    } else {
+                        score = step_diag;
+                        btrack[row_offset + j] = 0; // 0 = diagonal
+                    }
+                }
+
+                currentRow[j] = score;
+                left = score;
+            }
+
+            // the next row must see the cell just right of the band as unreachable
+            if ( hi + 1 >= 1 && hi + 1 <= m )
+                currentRow[hi + 1] = OUT_OF_BAND;
+
+            lastColumn[i] = m == 0 ? 0 : (lo <= m && hi == m ? currentRow[m] : OUT_OF_BAND); // an empty seq2 leaves only the first column
+            if ( i == n ) {
+                for ( int j = 1; j < m + 1; j++ )
+                    lastRow[j] = j >= lo && j <= hi ? currentRow[j] : OUT_OF_BAND;
+            }
+
+            final int[] tmp = previousRow;
+            previousRow = currentRow;
+            currentRow = tmp;
+            previousHi = hi;
+        }
+
+        calculateCigar(n, m, lastColumn, lastRow);
+    }
+
+    /**
+     * Backtrack from the best cell in the last column or row, exactly as SWPairwiseAlignment.calculateCigar does
+     */
+    private void calculateCigar(final int n, final int m, final int[] lastColumn, final int[] lastRow) {
+        int p1 = 0, p2 = 0;
+
+        int maxscore = 0;
+        int segment_length = 0; // length of the segment (continuous matches, insertions or deletions)
+
+        // look for largest score. we use >= combined with the traversal direction
+        // to ensure that if two scores are equal, the one closer to diagonal gets picked
+        for ( int i = 1; i < n + 1; i++ ) {
+            if ( lastColumn[i] >= maxscore ) {
+                p1 = i; p2 = m; maxscore = lastColumn[i];
+            }
+        }
+
+        for ( int j = 1; j < m + 1; j++ ) {
+            if ( lastRow[j] > maxscore || lastRow[j] == maxscore && Math.abs(n-j) < Math.abs(p1 - p2) ) {
+                p1 = n;
+                p2 = j;
+                maxscore = lastRow[j];
+                segment_length = m - j; // end of sequence 2 is overhanging; we will just record it as 'M' segment
+            }
+        }
+
+        final List<CigarElement> lce = new ArrayList<CigarElement>(5);
+
+        if ( segment_length > 0 ) {
+            lce.add(makeElement(CLIP, segment_length));
+            segment_length = 0;
+        }
+
+        // we will be placing all insertions and deletions into sequence b, so the states are named w/regard
+        // to that sequence
+        int state = MSTATE;
+        do {
+            final int btr = getBacktrack(p1, p2);
+
+            int new_state;
+            int step_length = 1;
+            if ( btr > 0 ) {
+                new_state = DSTATE;
+                step_length = btr;
+            } else if ( btr < 0 ) {
+                new_state = ISTATE;
+                step_length = (-btr);
+            } else new_state = MSTATE; // and step_length =1, already set above
+
+            // move to next best location in the sw matrix:
+            switch( new_state ) {
+                case MSTATE: p1--; p2--; break; // move back along the diag in the sw matrix
+                case ISTATE: p2 -= step_length; break; // move left
+                case DSTATE: p1 -= step_length; break; // move up
+            }
+
+            // now let's see if the state actually changed:
+            if ( new_state == state ) segment_length+=step_length;
+            else {
+                // state changed, lets emit previous segment, whatever it was (Insertion Deletion, or (Mis)Match).
+                lce.add(makeElement(state, segment_length));
+                segment_length = step_length;
+                state = new_state;
+            }
+        } while ( p1 > 0 && p2 > 0 );
+
+        // post-process the last segment we are still keeping; bases of seq2 sticking out to the left of seq1 are soft clipped
+        lce.add(makeElement(state, segment_length));
+        if ( p2 > 0 ) lce.add(makeElement(CLIP, p2));
+        alignment_offset = p1;
+
+        Collections.reverse(lce);
+        alignmentCigar = new Cigar(lce);
+    }
+
+    private CigarElement makeElement(final int state, final int segment_length) {
+        CigarOperator o = null;
+        switch(state) {
+            case MSTATE: o = CigarOperator.M; break;
+            case ISTATE: o = CigarOperator.I; break;
+            case DSTATE: o = CigarOperator.D; break;
+            case CLIP: o = CigarOperator.S; break;
+        }
+        return new CigarElement(segment_length,o);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils;
+
+import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
+import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Computes the likelihoods of many reads given many haplotypes with the pair HMM
+ *
+ * Rather than aligning one read against one haplotype at a time, this takes a batch of reads and the haplotypes to
+ * align each of them against and returns the whole matrix of likelihoods.  Each read is prepared for the pair HMM
+ * once, by the caller, as a PairHMMRead, and its haplotypes are aligned in sorted order so that consecutive
+ * haplotypes share the longest possible prefixes, whose columns the engine doesn't need to recompute.  Identical
+ * haplotypes are only aligned once.  With more than one thread the reads are split between them, each thread
+ * using its own engine.
+ *
+ * The likelihoods are the same as those computed by aligning each read against each haplotype with a single engine
+ * of the same implementation.
+ */
+public class BatchPairHMM {
+    // below this many reads per thread it isn't worth handing reads to other threads
+    private final static int MIN_READS_PER_TASK = 8;
+
+    // haplotypes are sorted by length first, as engines can only reuse columns between haplotypes of the same length
+    private final static Comparator<byte[]> HAPLOTYPE_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(final byte[] h1, final byte[] h2) {
+            if ( h1.length != h2.length )
+                return h1.length < h2.length ? -1 : 1;
+            for ( int i = 0; i < h1.length; i++ )
+                if ( h1[i] != h2[i] )
+                    return h1[i] < h2[i] ? -1 : 1;
+            return 0;
+        }
+    };
+
+    private final int nThreads;
+
+    /**
+     * If not null, the threads we use to align the reads of large batches
+     */
+    private final ThreadPoolExecutor threads;
+
+    /**
+     * Each thread, including the calling one, aligns its reads with its own engine
+     */
+    private final ThreadLocal<PairHMMEngine> threadEngine;
+
+    /**
+     * @param implementation the implementation of the pair HMM to use
+     * @param nThreads the number of threads to split the reads of large batches between
+     */
+    @Requires({"implementation != null", "nThreads > 0"})
+    public BatchPairHMM(final PairHMMEngine.Implementation implementation, final int nThreads) {
+        this.nThreads = nThreads;
+        this.threadEngine = new ThreadLocal<PairHMMEngine>() {
+            @Override
+            protected PairHMMEngine initialValue() {
+                return implementation.makeEngine();
+            }
+        };
+
+        if ( nThreads > 1 ) {
+            threads = new ThreadPoolExecutor(nThreads, nThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "PairHMM worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            threads.allowCoreThreadTimeOut(true); // so that idle workers don't outlive their batches
+        } else {
+            threads = null;
+        }
+    }
+
+    /**
+     * Computes the likelihood of each read given each haplotype
+     *
+     * @param reads the reads, prepared for the pair HMM
+     * @param haplotypes the bases of the haplotypes to align every read against
+     * @return a reads.size() x haplotypes.size() matrix of log10 likelihoods
+     */
+    @Requires({"reads != null", "haplotypes != null"})
+    @Ensures({"result.length == reads.size()"})
+    public double[][] computeLikelihoods(final List<PairHMMRead> reads, final List<byte[]> haplotypes) {
+        final byte[][][] haplotypesOfEachRead = new byte[reads.size()][][];
+        Arrays.fill(haplotypesOfEachRead, haplotypes.toArray(new byte[haplotypes.size()][]));
+        return computeLikelihoods(reads, haplotypesOfEachRead);
+    }
+
+    /**
+     * Computes the likelihood of each read given its own haplotypes, such as the parts of a common set of
+     * haplotypes that overlap each read
+     *
+     * @param reads the reads, prepared for the pair HMM
+     * @param haplotypesOfEachRead the bases of the haplotypes to align each read against, in the order of reads
+     * @return the log10 likelihoods of each read given each of its haplotypes, with result[i][j] the likelihood of
+     *         reads.get(i) given haplotypesOfEachRead[i][j]
+     */
+    @Requires({"reads != null", "haplotypesOfEachRead != null", "reads.size() == haplotypesOfEachRead.length"})
+    @Ensures({"result.length == reads.size()"})
+    public double[][] computeLikelihoods(final List<PairHMMRead> reads, final byte[][][] haplotypesOfEachRead) {
+        final double[][] likelihoods = new double[reads.size()][];
+
+        final int nTasks = threads == null ? 1 : Math.max(1, Math.min(nThreads, reads.size() / MIN_READS_PER_TASK));
+        if ( nTasks == 1 ) {
+            new ReadRange(reads, haplotypesOfEachRead, likelihoods, 0, reads.size()).call();
+        } else {
+            final List<ReadRange> tasks = new ArrayList<ReadRange>(nTasks);
+            for ( int i = 0; i < nTasks; i++ )
+                tasks.add(new ReadRange(reads, haplotypesOfEachRead, likelihoods, i * reads.size() / nTasks, (i + 1) * reads.size() / nTasks));
+            for ( final Future<Void> done : runTasks(tasks) )
+                waitForTask(done);
+        }
+
+        return likelihoods;
+    }
+
+    private List<Future<Void>> runTasks(final List<ReadRange> tasks) {
+        try {
+            return threads.invokeAll(tasks);
+        } catch ( InterruptedException e ) {
+            throw new ReviewedStingException("Interrupted while computing pair HMM likelihoods", e);
+        }
+    }
+
+    private void waitForTask(final Future<Void> done) {
+        try {
+            done.get();
+        } catch ( InterruptedException e ) {
+            throw new ReviewedStingException("Interrupted while computing pair HMM likelihoods", e);
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException )
+                throw (RuntimeException)e.getCause();
+            throw new ReviewedStingException("Failed to compute pair HMM likelihoods", e.getCause());
+        }
+    }
+
+    /**
+     * Aligns the reads in [start, stop) of a batch against their haplotypes with the engine of the current thread
+     */
+    private final class ReadRange implements Callable<Void> {
+        private final List<PairHMMRead> reads;
+        private final byte[][][] haplotypesOfEachRead;
+        private final double[][] likelihoods;
+        private final int start, stop;
+
+        private ReadRange(final List<PairHMMRead> reads, final byte[][][] haplotypesOfEachRead, final double[][] likelihoods, final int start, final int stop) {
+            this.reads = reads;
+            this.haplotypesOfEachRead = haplotypesOfEachRead;
+            this.likelihoods = likelihoods;
+            this.start = start;
+            this.stop = stop;
+        }
+
+        @Override
+        public Void call() {
+            final PairHMMEngine engine = threadEngine.get();
+            for ( int i = start; i < stop; i++ )
+                likelihoods[i] = computeLikelihoods(engine, reads.get(i), haplotypesOfEachRead[i]);
+            return null;
+        }
+    }
+
+    /**
+     * @return the likelihoods of read given each of haplotypes, aligning the haplotypes in sorted order
+     */
+    private static double[] computeLikelihoods(final PairHMMEngine engine, final PairHMMRead read, final byte[][] haplotypes) {
+        final Integer[] order = new Integer[haplotypes.length];
+        for ( int i = 0; i < order.length; i++ )
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer i1, final Integer i2) {
+                return HAPLOTYPE_ORDER.compare(haplotypes[i1], haplotypes[i2]);
+            }
+        });
+
+        final double[] likelihoods = new double[haplotypes.length];
+        byte[] previousHaplotype = null;
+        double previousLikelihood = 0.0;
+        for ( final int i : order ) {
+            final byte[] haplotype = haplotypes[i];
+            final int startIndex = previousHaplotype == null ? 0 : computeFirstDifferingPosition(haplotype, previousHaplotype);
+
+            // the sort puts identical haplotypes next to each other, and they have identical likelihoods
+            if ( previousHaplotype == null || HAPLOTYPE_ORDER.compare(haplotype, previousHaplotype) != 0 )
+                previousLikelihood = engine.computeReadLikelihoodGivenHaplotype(haplotype, read, startIndex);
+            likelihoods[i] = previousLikelihood;
+            previousHaplotype = haplotype;
+        }
+
+        return likelihoods;
+    }
+
+    /**
+     * @return the number of leading bases h1 and h2 share, or 0 if they have different lengths
+     */
+    private static int computeFirstDifferingPosition(final byte[] h1, final byte[] h2) {
+        if ( h1.length != h2.length )
+            return 0;
+
+        for ( int i = 0; i < h1.length; i++ )
+            if ( h1[i] != h2[i] )
+                return i;
+        return h1.length;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils;
+
+import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
+
+/**
+ * A pair HMM that computes in probability space rather than log10 space, reusing its matrices between calls
+ *
+ * This computes the same model as PairHMM, but rather than summing log10 probabilities with approximateLog10SumLog10
+ * in every cell it works directly with probabilities, starting from a large initial condition so that they don't
+ * underflow, and takes a single log10 at the end.  The three state matrices are flat 1D arrays that only ever grow,
+ * so a single engine doesn't allocate matrices once it has seen the longest read and haplotype, and the transition
+ * and emission probabilities of each read are those computed once by PairHMMRead rather than once per cell.  The
+ * quals given to this engine are never modified.
+ *
+ * When consecutive haplotypes share a prefix the columns computed for that prefix are reused, as described in
+ * PairHMMEngine.
+ *
+ * Optionally the matrices are kept in floats, which halves their memory traffic.  Float precision covers a far
+ * smaller range of likelihoods, so reads whose likelihood would underflow it are recomputed in double precision,
+ * and those that would underflow even that fall back to the original log10 PairHMM.
+ */
+public class CachingPairHMM implements PairHMMEngine {
+    // the initial conditions are as large as possible, to leave the most room for the probabilities to shrink
+    protected final static double INITIAL_CONDITION = Math.pow(2, 1020);
+    protected final static float INITIAL_CONDITION_FLOAT = (float)Math.pow(2, 120);
+    private final static double LOG10_INITIAL_CONDITION = Math.log10(INITIAL_CONDITION);
+    private final static double LOG10_INITIAL_CONDITION_FLOAT = Math.log10(INITIAL_CONDITION_FLOAT);
+
+    // final sums below these have lost too much precision to denormalization, so we recompute them
+    protected final static double MIN_ACCEPTED_DOUBLE = 1e-290;
+    protected final static float MIN_ACCEPTED_FLOAT = 1e-28f;
+
+    private final boolean useFloats;
+
+    // the flat state matrices, indexed by readIndex * paddedHaplotypeLength + haplotypeIndex
+    private double[] matchMatrix = new double[0], insertionMatrix = new double[0], deletionMatrix = new double[0];
+    private float[] matchMatrixFloat = new float[0], insertionMatrixFloat = new float[0], deletionMatrixFloat = new float[0];
+
+    // the transition and emission probabilities of the current read for each row of the float matrices
+    private float[] matchToMatchFloat = new float[0], indelToMatchFloat = new float[0];
+    private float[] matchToInsertionFloat = new float[0], insertionToInsertionFloat = new float[0];
+    private float[] matchToDeletionFloat = new float[0], deletionToDeletionFloat = new float[0];
+    private float[] baseMatchFloat = new float[0], baseMismatchFloat = new float[0];
+
+    // the read and dimensions of the matrices in the previous call, and whether the double matrices hold its haplotype
+    private PairHMMRead currentRead = null;
+    private int previousReadLength = -1, previousHaplotypeLength = -1;
+    private boolean doubleMatricesHoldPreviousHaplotype = false;
+
+    // used for the rare reads whose likelihoods are too small even for double precision
+    private PairHMM log10PairHMM = null;
+
+    /**
+     * @param useFloats should we compute in float precision where it is accurate enough?
+     */
+    public CachingPairHMM(final boolean useFloats) {
+        this.useFloats = useFloats;
+    }
+
+    @Override
+    @Requires({"readBases.length == readQuals.length","readBases.length == insertionGOP.length","readBases.length == deletionGOP.length","readBases.length == overallGCP.length", "hapStartIndex >= 0"})
+    @Ensures({"!Double.isInfinite(result)", "!Double.isNaN(result)"}) // Result should be a proper log10 probability
+    public double computeReadLikelihoodGivenHaplotype( final byte[] haplotypeBases, final byte[] readBases, final byte[] readQuals,
+                                                       final byte[] insertionGOP, final byte[] deletionGOP, final byte[] overallGCP,
+                                                       final int hapStartIndex ) {
+        // the caller promises that the read hasn't changed whenever hapStartIndex > 0, but we can't reuse anything anyway if the dimensions changed
+        final boolean sameRead = hapStartIndex > 0 && currentRead != null && readBases.length == previousReadLength && haplotypeBases.length == previousHaplotypeLength;
+        final PairHMMRead read = sameRead ? currentRead : new PairHMMRead(readBases, readQuals, insertionGOP, deletionGOP, overallGCP);
+        return computeReadLikelihoodGivenHaplotype(haplotypeBases, read, hapStartIndex);
+    }
+
+    @Override
+    @Requires({"read != null", "hapStartIndex >= 0"})
+    @Ensures({"!Double.isInfinite(result)", "!Double.isNaN(result)"}) // Result should be a proper log10 probability
+    public double computeReadLikelihoodGivenHaplotype( final byte[] haplotypeBases, final PairHMMRead read, final int hapStartIndex ) {
+        // M, X, and Y arrays are of size read and haplotype + 1 because of an extra column for initial conditions and + 1 to consider the final base in a non-global alignment
+        final int X_METRIC_LENGTH = read.getLength() + 2;
+        final int Y_METRIC_LENGTH = haplotypeBases.length + 2;
+
+        // we can only reuse columns if the matrices still have the same layout
+        int startIndex = hapStartIndex;
+        if ( read.getLength() != previousReadLength || haplotypeBases.length != previousHaplotypeLength ) {
+            previousReadLength = read.getLength();
+            previousHaplotypeLength = haplotypeBases.length;
+            ensureCapacity(X_METRIC_LENGTH, Y_METRIC_LENGTH);
+            startIndex = 0;
+        }
+
+        // a new read, so nothing computed for the previous one applies
+        if ( read != currentRead ) {
+            currentRead = read;
+            if ( useFloats )
+                initializeFloatProbabilities(read);
+            startIndex = 0;
+        }
+
+        if ( useFloats ) {
+            final float result = computeFloatLikelihood(haplotypeBases, read.bases, startIndex, X_METRIC_LENGTH, Y_METRIC_LENGTH);
+            if ( result >= MIN_ACCEPTED_FLOAT ) {
+                doubleMatricesHoldPreviousHaplotype = false;
+                return Math.log10(result) - LOG10_INITIAL_CONDITION_FLOAT;
+            }
+        }
+
+        final double result = computeDoubleLikelihood(haplotypeBases, read, doubleMatricesHoldPreviousHaplotype ? startIndex : 0, X_METRIC_LENGTH, Y_METRIC_LENGTH);
+        doubleMatricesHoldPreviousHaplotype = true;
+        if ( result >= MIN_ACCEPTED_DOUBLE )
+            return Math.log10(result) - LOG10_INITIAL_CONDITION;
+
+        if ( log10PairHMM == null )
+            log10PairHMM = new PairHMM();
+        return log10PairHMM.computeReadLikelihoodGivenHaplotype(haplotypeBases, read, 0);
+    }
+
+    /**
+     * Grow the matrices and probability arrays if needed to hold a read and haplotype of these padded lengths
+     */
+    private void ensureCapacity(final int X_METRIC_LENGTH, final int Y_METRIC_LENGTH) {
+        final int matrixSize = X_METRIC_LENGTH * Y_METRIC_LENGTH;
+        if ( useFloats && matchMatrixFloat.length < matrixSize ) {
+            matchMatrixFloat = new float[matrixSize];
+            insertionMatrixFloat = new float[matrixSize];
+            deletionMatrixFloat = new float[matrixSize];
+        }
+        if ( matchMatrix.length < matrixSize ) {
+            // the double matrices are needed even with floats, but only for the rare reads that underflow them
+            matchMatrix = new double[matrixSize];
+            insertionMatrix = new double[matrixSize];
+            deletionMatrix = new double[matrixSize];
+        }
+
+        if ( useFloats && matchToMatchFloat.length < X_METRIC_LENGTH ) {
+            matchToMatchFloat = new float[X_METRIC_LENGTH];
+            indelToMatchFloat = new float[X_METRIC_LENGTH];
+            matchToInsertionFloat = new float[X_METRIC_LENGTH];
+            insertionToInsertionFloat = new float[X_METRIC_LENGTH];
+            matchToDeletionFloat = new float[X_METRIC_LENGTH];
+            deletionToDeletionFloat = new float[X_METRIC_LENGTH];
+            baseMatchFloat = new float[X_METRIC_LENGTH];
+            baseMismatchFloat = new float[X_METRIC_LENGTH];
+        }
+    }
+
+    /**
+     * Copy the transition and emission probabilities of each row of read into float precision
+     */
+    private void initializeFloatProbabilities(final PairHMMRead read) {
+        final int X_METRIC_LENGTH = read.getLength() + 2;
+        for ( int iii = 1; iii < X_METRIC_LENGTH; iii++ ) {
+            baseMatchFloat[iii] = (float)read.baseMatch[iii];
+            baseMismatchFloat[iii] = (float)read.baseMismatch[iii];
+            matchToMatchFloat[iii] = (float)read.matchToMatch[iii];
+            indelToMatchFloat[iii] = (float)read.indelToMatch[iii];
+            matchToInsertionFloat[iii] = (float)read.matchToInsertion[iii];
+            insertionToInsertionFloat[iii] = (float)read.insertionToInsertion[iii];
+            matchToDeletionFloat[iii] = (float)read.matchToDeletion[iii];
+            deletionToDeletionFloat[iii] = (float)read.deletionToDeletion[iii];
+        }
+    }
+
+    /**
+     * @return the scaled likelihood of the read given the haplotype, computed in double precision
+     */
+    private double computeDoubleLikelihood(final byte[] haplotypeBases, final PairHMMRead read, final int startIndex,
+                                           final int X_METRIC_LENGTH, final int Y_METRIC_LENGTH) {
+        final double[] M = matchMatrix, X = insertionMatrix, Y = deletionMatrix;
+        final byte[] readBases = read.bases;
+        final double[] matchToMatch = read.matchToMatch, indelToMatch = read.indelToMatch;
+        final double[] matchToInsertion = read.matchToInsertion, insertionToInsertion = read.insertionToInsertion;
+        final double[] matchToDeletion = read.matchToDeletion, deletionToDeletion = read.deletionToDeletion;
+        final double[] baseMatch = read.baseMatch, baseMismatch = read.baseMismatch;
+
+        if ( startIndex == 0 ) {
+            // the first row and column hold the initial conditions, and everything else is computed below
+            for ( int jjj = 0; jjj < Y_METRIC_LENGTH; jjj++ )
+                M[jjj] = X[jjj] = Y[jjj] = 0.0;
+            for ( int iii = 1; iii < X_METRIC_LENGTH; iii++ )
+                M[iii * Y_METRIC_LENGTH] = X[iii * Y_METRIC_LENGTH] = Y[iii * Y_METRIC_LENGTH] = 0.0;
+            M[Y_METRIC_LENGTH + 1] = INITIAL_CONDITION;
+            X[Y_METRIC_LENGTH + 1] = Y[Y_METRIC_LENGTH + 1] = 0.0;
+        }
+
+        for ( int iii = 1; iii < X_METRIC_LENGTH; iii++ ) {
+            final int row = iii * Y_METRIC_LENGTH, previousRow = row - Y_METRIC_LENGTH;
+            final double d0 = matchToMatch[iii], e0 = indelToMatch[iii];
+            final double d1 = matchToInsertion[iii], e1 = insertionToInsertion[iii];
+            final double d2 = matchToDeletion[iii], e2 = deletionToDeletion[iii];
+            final byte readBase = iii > 1 ? readBases[iii - 2] : 0;
+
+            for ( int jjj = (iii == 1 ? Math.max(startIndex + 1, 2) : startIndex + 1); jjj < Y_METRIC_LENGTH; jjj++ ) {
+                double prior = 1.0;
+                if ( iii > 1 && jjj > 1 ) {
+                    final byte haplotypeBase = haplotypeBases[jjj - 2];
+                    prior = ( readBase == haplotypeBase || readBase == (byte)'N' || haplotypeBase == (byte)'N' ? baseMatch[iii] : baseMismatch[iii] );
+                }
+
+                final int cell = row + jjj, diagonal = previousRow + jjj - 1, up = previousRow + jjj;
+                M[cell] = prior * (M[diagonal] * d0 + (X[diagonal] + Y[diagonal]) * e0);
+                X[cell] = M[up] * d1 + X[up] * e1;
+                Y[cell] = M[cell - 1] * d2 + Y[cell - 1] * e2;
+            }
+        }
+
+        final int end = X_METRIC_LENGTH * Y_METRIC_LENGTH - 1;
+        return M[end] + X[end] + Y[end];
+    }
+
+    /**
+     * @return the scaled likelihood of the read given the haplotype, computed in float precision
+     */
+    private float computeFloatLikelihood(final byte[] haplotypeBases, final byte[] readBases, final int startIndex,
+                                         final int X_METRIC_LENGTH, final int Y_METRIC_LENGTH) {
+        final float[] M = matchMatrixFloat, X = insertionMatrixFloat, Y = deletionMatrixFloat;
+
+        if ( startIndex == 0 ) {
+            // the first row and column hold the initial conditions, and everything else is computed below
+            for ( int jjj = 0; jjj < Y_METRIC_LENGTH; jjj++ )
+                M[jjj] = X[jjj] = Y[jjj] = 0.0f;
+            for ( int iii = 1; iii < X_METRIC_LENGTH; iii++ )
+                M[iii * Y_METRIC_LENGTH] = X[iii * Y_METRIC_LENGTH] = Y[iii * Y_METRIC_LENGTH] = 0.0f;
+            M[Y_METRIC_LENGTH + 1] = INITIAL_CONDITION_FLOAT;
+            X[Y_METRIC_LENGTH + 1] = Y[Y_METRIC_LENGTH + 1] = 0.0f;
+        }
+
+        for ( int iii = 1; iii < X_METRIC_LENGTH; iii++ ) {
+            final int row = iii * Y_METRIC_LENGTH, previousRow = row - Y_METRIC_LENGTH;
+            final float d0 = matchToMatchFloat[iii], e0 = indelToMatchFloat[iii];
+            final float d1 = matchToInsertionFloat[iii], e1 = insertionToInsertionFloat[iii];
+            final float d2 = matchToDeletionFloat[iii], e2 = deletionToDeletionFloat[iii];
+            final byte readBase = iii > 1 ? readBases[iii - 2] : 0;
+
+            for ( int jjj = (iii == 1 ? Math.max(startIndex + 1, 2) : startIndex + 1); jjj < Y_METRIC_LENGTH; jjj++ ) {
+                float prior = 1.0f;
+                if ( iii > 1 && jjj > 1 ) {
+                    final byte haplotypeBase = haplotypeBases[jjj - 2];
+                    prior = ( readBase == haplotypeBase || readBase == (byte)'N' || haplotypeBase == (byte)'N' ? baseMatchFloat[iii] : baseMismatchFloat[iii] );
+                }
+
+                final int cell = row + jjj, diagonal = previousRow + jjj - 1, up = previousRow + jjj;
+                M[cell] = prior * (M[diagonal] * d0 + (X[diagonal] + Y[diagonal]) * e0);
+                X[cell] = M[up] * d1 + X[up] * e1;
+                Y[cell] = M[cell - 1] * d2 + Y[cell - 1] * e2;
+            }
+        }
+
+        final int end = X_METRIC_LENGTH * Y_METRIC_LENGTH - 1;
+        return M[end] + X[end] + Y[end];
+    }
+}
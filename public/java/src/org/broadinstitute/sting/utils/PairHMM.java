@@ -35,13 +35,14 @@ import java.util.*;
  * Date: 3/1/12
  */
 
-public class PairHMM {
-    private static final int MAX_CACHED_QUAL = (int)Byte.MAX_VALUE;
-    private static final byte DEFAULT_GOP = (byte) 45;
-    private static final byte DEFAULT_GCP = (byte) 10;
-    private static final double BANDING_TOLERANCE = 22.0;
-    private static final int BANDING_CLUSTER_WINDOW = 12;
-    private final boolean noBanded;
+public class PairHMM implements PairHMMEngine {
+    protected static final int MAX_CACHED_QUAL = (int)Byte.MAX_VALUE;
+    protected static final byte DEFAULT_GOP = (byte) 45;
+    protected static final byte DEFAULT_GCP = (byte) 10;
+    private final boolean noBanded; // banding isn't currently implemented, so this has no effect
+
+    // the metric arrays of the previous call to the PairHMMEngine interface, reused while their dimensions don't change
+    private double[][] matchMetricArray = null, XMetricArray = null, YMetricArray = null;
 
     public PairHMM() {
         noBanded = false;
@@ -85,6 +86,64 @@ public class PairHMM {
         return computeReadLikelihoodGivenHaplotype(haplotypeBases, readBases, readQuals, insertionGOP, deletionGOP, overallGCP, 0, matchMetricArray, XMetricArray, YMetricArray);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Note that, like the other versions of this function, this clamps readQuals in place to valid values.
+     */
+    @Override
+    public double computeReadLikelihoodGivenHaplotype( final byte[] haplotypeBases, final byte[] readBases, final byte[] readQuals,
+                                                       final byte[] insertionGOP, final byte[] deletionGOP, final byte[] overallGCP, final int hapStartIndex ) {
+        final int X_METRIC_LENGTH = readBases.length + 2;
+        final int Y_METRIC_LENGTH = haplotypeBases.length + 2;
+
+        int startIndex = hapStartIndex;
+        if( matchMetricArray == null || matchMetricArray.length != X_METRIC_LENGTH || matchMetricArray[0].length != Y_METRIC_LENGTH ) {
+            matchMetricArray = new double[X_METRIC_LENGTH][Y_METRIC_LENGTH];
+            XMetricArray = new double[X_METRIC_LENGTH][Y_METRIC_LENGTH];
+            YMetricArray = new double[X_METRIC_LENGTH][Y_METRIC_LENGTH];
+            initializeArrays(matchMetricArray, XMetricArray, YMetricArray, X_METRIC_LENGTH);
+            startIndex = 0; // nothing to reuse
+        }
+
+        return computeReadLikelihoodGivenHaplotype(haplotypeBases, readBases, readQuals, insertionGOP, deletionGOP, overallGCP, startIndex,
+                matchMetricArray, XMetricArray, YMetricArray);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This gives exactly the same results as the other versions of this function, but leaves the read's quals alone.
+     */
+    @Override
+    @Requires({"read != null", "hapStartIndex >= 0"})
+    @Ensures({"!Double.isInfinite(result)", "!Double.isNaN(result)"}) // Result should be a proper log10 probability
+    public double computeReadLikelihoodGivenHaplotype( final byte[] haplotypeBases, final PairHMMRead read, final int hapStartIndex ) {
+        final int X_METRIC_LENGTH = read.getLength() + 2;
+        final int Y_METRIC_LENGTH = haplotypeBases.length + 2;
+
+        int startIndex = hapStartIndex;
+        if( matchMetricArray == null || matchMetricArray.length != X_METRIC_LENGTH || matchMetricArray[0].length != Y_METRIC_LENGTH ) {
+            matchMetricArray = new double[X_METRIC_LENGTH][Y_METRIC_LENGTH];
+            XMetricArray = new double[X_METRIC_LENGTH][Y_METRIC_LENGTH];
+            YMetricArray = new double[X_METRIC_LENGTH][Y_METRIC_LENGTH];
+            initializeArrays(matchMetricArray, XMetricArray, YMetricArray, X_METRIC_LENGTH);
+            startIndex = 0; // nothing to reuse
+        }
+
+        for( int iii = 1; iii < X_METRIC_LENGTH; iii++ ) {
+            for( int jjj = startIndex + 1; jjj < Y_METRIC_LENGTH; jjj++ ) {
+                if( (iii == 1 && jjj == 1) ) { continue; }
+                updateCell(iii, jjj, haplotypeBases, read, matchMetricArray, XMetricArray, YMetricArray);
+            }
+        }
+
+        // final probability is the log10 sum of the last element in all three state arrays
+        final int endI = X_METRIC_LENGTH - 1;
+        final int endJ = Y_METRIC_LENGTH - 1;
+        return MathUtils.approximateLog10SumLog10(matchMetricArray[endI][endJ], XMetricArray[endI][endJ], YMetricArray[endI][endJ]);
+    }
+
     @Requires({"readBases.length == readQuals.length","readBases.length == insertionGOP.length","readBases.length == deletionGOP.length","readBases.length == overallGCP.length"})
     @Ensures({"!Double.isInfinite(result)", "!Double.isNaN(result)"}) // Result should be a proper log10 probability
     public double computeReadLikelihoodGivenHaplotype( final byte[] haplotypeBases, final byte[] readBases, final byte[] readQuals,
@@ -100,110 +159,12 @@ public class PairHMM {
             readQuals[iii] = ( readQuals[iii] < QualityUtils.MIN_USABLE_Q_SCORE ? QualityUtils.MIN_USABLE_Q_SCORE : (readQuals[iii] > MAX_CACHED_QUAL ? MAX_CACHED_QUAL : readQuals[iii]) );
         }
 
-        if( false ) {
-            final ArrayList<Integer> workQueue = new ArrayList<Integer>(); // holds a queue of starting work location (indices along the diagonal). Will be sorted each step
-            final ArrayList<Integer> workToBeAdded = new ArrayList<Integer>();
-            final ArrayList<Double> calculatedValues = new ArrayList<Double>();
-            final int numDiags = X_METRIC_LENGTH + Y_METRIC_LENGTH - 1;
-            workQueue.add( 1 ); // Always start a new thread at the baseline because of partially repeating sequences that match better in the latter half of the haplotype
-
-            for(int diag = 3; diag < numDiags; diag++) { // diag = 3 is the (1,2) element of the metric arrays. (1,1) is the initial condition and is purposefully skipped over
-                //Collections.sort(workQueue); // no need to sort because elements are guaranteed to be in ascending order
-                int el = 1;
-                for( int work : workQueue ) {
-                    // choose the appropriate diagonal baseline location
-                    int iii = 0;
-                    int jjj = diag;
-                    if( diag > Y_METRIC_LENGTH ) {
-                        iii = diag - Y_METRIC_LENGTH;
-                        jjj = Y_METRIC_LENGTH;
-                    }
-                    // move to the starting work location along the diagonal
-                    iii += work;
-                    jjj -= work;
-                    while( iii >= X_METRIC_LENGTH || jjj <= 0 ) {
-                        iii--;
-                        jjj++;
-                        work--;
-                    }
-                    if( !detectClusteredStartLocations(workToBeAdded, work ) ) {
-                        workToBeAdded.add(work); // keep this thread going once it has started
-                    }
-
-                    if( work >= el - 3 ) {
-                        // step along the diagonal in the forward direction, updating the match matrices and looking for a drop off from the maximum observed value
-                        double maxElement = Double.NEGATIVE_INFINITY;
-                        for( el = work; el < numDiags + 1; el++ ) {
-                            updateCell(iii, jjj, haplotypeBases, readBases, readQuals,
-                                insertionGOP, deletionGOP, overallGCP,  matchMetricArray,  XMetricArray, YMetricArray);
-                            final double bestMetric = MathUtils.max(matchMetricArray[iii][jjj], XMetricArray[iii][jjj], YMetricArray[iii][jjj]);
-                            calculatedValues.add(bestMetric);
-                            if( bestMetric > maxElement ) {
-                                maxElement = bestMetric;
-                            } else if( maxElement - bestMetric > BANDING_TOLERANCE ) {
-                                break;
-                            }
-                            if( ++iii >= X_METRIC_LENGTH ) { // don't walk off the edge of the matrix
-                                break;
-                            }
-                            if( --jjj <= 0 ) { // don't walk off the edge of the matrix
-                                break;
-                            }
-                        }
-
-                        // find a local maximum to start a new band in the work queue
-                        double localMaxElement = Double.NEGATIVE_INFINITY;
-                        int localMaxElementIndex = 0;
-                        for(int kkk = calculatedValues.size()-1; kkk >= 1; kkk--) {
-                            final double bestMetric = calculatedValues.get(kkk);
-                            if( bestMetric > localMaxElement ) {
-                                localMaxElement = bestMetric;
-                                localMaxElementIndex = kkk;
-                            } else if( localMaxElement - bestMetric > BANDING_TOLERANCE * 0.5 ) { // find a local maximum
-                                if( !detectClusteredStartLocations(workToBeAdded, work + localMaxElementIndex ) ) {
-                                    workToBeAdded.add( work + localMaxElementIndex );
-                                }
-                                break;
-                            }
-                        }
-                        calculatedValues.clear();
-
-                        // reset iii and jjj to the appropriate diagonal baseline location
-                        iii = 0;
-                        jjj = diag;
-                        if( diag > Y_METRIC_LENGTH ) {
-                            iii = diag - Y_METRIC_LENGTH;
-                            jjj = Y_METRIC_LENGTH;
-                        }
-                        // move to the starting work location along the diagonal
-                        iii += work-1;
-                        jjj -= work-1;
-
-                        // step along the diagonal in the reverse direction, updating the match matrices and looking for a drop off from the maximum observed value
-                        for( int traceBack = work - 1; traceBack > 0 && iii > 0 && jjj < Y_METRIC_LENGTH; traceBack--,iii--,jjj++ ) {
-                            updateCell(iii, jjj, haplotypeBases, readBases, readQuals,
-                                    insertionGOP, deletionGOP, overallGCP,  matchMetricArray,  XMetricArray, YMetricArray);
-                            final double bestMetric = MathUtils.max(matchMetricArray[iii][jjj], XMetricArray[iii][jjj], YMetricArray[iii][jjj]);
-                            if( bestMetric > maxElement ) {
-                                maxElement = bestMetric;
-                            } else if( maxElement - bestMetric > BANDING_TOLERANCE ) {
-                                break;
-                            }
-                        }
-                    }
-                }
-                workQueue.clear();
-                workQueue.addAll(workToBeAdded);
-                workToBeAdded.clear();
-            }
-        } else {
-            // simple rectangular version of update loop, slow
-            for( int iii = 1; iii < X_METRIC_LENGTH; iii++ ) {
-                for( int jjj = hapStartIndex + 1; jjj < Y_METRIC_LENGTH; jjj++ ) {
-                    if( (iii == 1 && jjj == 1) ) { continue; }
-                    updateCell(iii, jjj, haplotypeBases, readBases, readQuals, insertionGOP, deletionGOP, overallGCP,
-                        matchMetricArray, XMetricArray, YMetricArray);
-                }
+        // simple rectangular version of update loop, slow
+        for( int iii = 1; iii < X_METRIC_LENGTH; iii++ ) {
+            for( int jjj = hapStartIndex + 1; jjj < Y_METRIC_LENGTH; jjj++ ) {
+                if( (iii == 1 && jjj == 1) ) { continue; }
+                updateCell(iii, jjj, haplotypeBases, readBases, readQuals, insertionGOP, deletionGOP, overallGCP,
+                    matchMetricArray, XMetricArray, YMetricArray);
             }
         }
 
@@ -247,13 +208,21 @@ public class PairHMM {
         YMetricArray[indI][indJ] = qBaseRefLog10 + MathUtils.approximateLog10SumLog10(matchMetricArray[indI][indJ-1] + d2, YMetricArray[indI][indJ-1] + e2);
     }
 
-    // private function used by the banded approach to ensure the proposed bands are sufficiently distinct from each other
-    private boolean detectClusteredStartLocations( final ArrayList<Integer> list, int loc ) {
-        for(int x : list) {
-            if( Math.abs(x-loc) <= BANDING_CLUSTER_WINDOW ) {
-                return true;
-            }
+    /**
+     * The same as the other updateCell(), but with the probabilities of the read computed in advance
+     */
+    private void updateCell( final int indI, final int indJ, final byte[] haplotypeBases, final PairHMMRead read,
+                             final double[][] matchMetricArray, final double[][] XMetricArray, final double[][] YMetricArray ) {
+        double pBaseReadLog10 = 0.0; // Math.log10(1.0);
+        if( indI > 1 && indJ > 1 ) { // the emission probability is applied when leaving the state
+            final byte x = read.bases[indI-2];
+            final byte y = haplotypeBases[indJ-2];
+            pBaseReadLog10 = ( x == y || x == (byte) 'N' || y == (byte) 'N' ? read.baseMatchLog10[indI] : read.baseMismatchLog10[indI] );
         }
-        return false;
+
+        final double e0 = read.indelToMatchLog10[indI];
+        matchMetricArray[indI][indJ] = pBaseReadLog10 + MathUtils.approximateLog10SumLog10(matchMetricArray[indI-1][indJ-1] + read.matchToMatchLog10[indI], XMetricArray[indI-1][indJ-1] + e0, YMetricArray[indI-1][indJ-1] + e0);
+        XMetricArray[indI][indJ] = MathUtils.approximateLog10SumLog10(matchMetricArray[indI-1][indJ] + read.matchToInsertionLog10[indI], XMetricArray[indI-1][indJ] + read.insertionToInsertionLog10[indI]);
+        YMetricArray[indI][indJ] = MathUtils.approximateLog10SumLog10(matchMetricArray[indI][indJ-1] + read.matchToDeletionLog10[indI], YMetricArray[indI][indJ-1] + read.deletionToDeletionLog10[indI]);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils;
+
+/**
+ * Computes the likelihood of a read given a haplotype with a pair HMM, as in Figure 4.3 of the Durbin 1998 book
+ *
+ * Engines may keep state between calls so that consecutive haplotypes aligned against the same read can reuse the
+ * work done for their shared prefix, so an engine must not be shared between threads.
+ */
+public interface PairHMMEngine {
+    /**
+     * The available implementations of the pair HMM
+     */
+    public enum Implementation {
+        /** the original log10 implementation */
+        ORIGINAL {
+            public PairHMMEngine makeEngine() { return new PairHMM(); }
+        },
+        /** probabilities in double precision scaled to avoid underflow, with reusable flat matrices */
+        CACHING {
+            public PairHMMEngine makeEngine() { return new CachingPairHMM(false); }
+        },
+        /** like CACHING but in float precision where it is accurate enough, falling back to double precision */
+        CACHING_FLOAT {
+            public PairHMMEngine makeEngine() { return new CachingPairHMM(true); }
+        };
+
+        /**
+         * @return a new engine of this implementation
+         */
+        public abstract PairHMMEngine makeEngine();
+    }
+
+    /**
+     * Computes the log10 likelihood of readBases given haplotypeBases.
+     *
+     * hapStartIndex allows the engine to reuse the work of the previous call: if it is > 0, the caller promises
+     * that the read, its quals and gap penalties are the same as in the previous call to this engine, and that
+     * the first hapStartIndex bases of haplotypeBases are the same as those of the previous haplotype.  Pass 0
+     * whenever this isn't known to be true.  Engines are free to ignore hapStartIndex.
+     *
+     * @param haplotypeBases the bases of the haplotype
+     * @param readBases the bases of the read
+     * @param readQuals the base qualities of the read
+     * @param insertionGOP the phred-scaled insertion gap open penalty at each read base
+     * @param deletionGOP the phred-scaled deletion gap open penalty at each read base
+     * @param overallGCP the phred-scaled gap continuation penalty at each read base
+     * @param hapStartIndex the number of leading haplotype bases shared with the previous call
+     * @return the log10 likelihood of the read given the haplotype
+     */
+    public double computeReadLikelihoodGivenHaplotype(final byte[] haplotypeBases, final byte[] readBases, final byte[] readQuals,
+                                                      final byte[] insertionGOP, final byte[] deletionGOP, final byte[] overallGCP,
+                                                      final int hapStartIndex);
+
+    /**
+     * Computes the log10 likelihood of a read prepared for the pair HMM given haplotypeBases.
+     *
+     * This is the same calculation as above, but the transition and emission probabilities of the read have already
+     * been computed, so this is the faster way to align one read against many haplotypes.  hapStartIndex has the
+     * same meaning as above, where the read is the same if it is the same PairHMMRead object.
+     *
+     * @param haplotypeBases the bases of the haplotype
+     * @param read the read, prepared for the pair HMM
+     * @param hapStartIndex the number of leading haplotype bases shared with the previous call
+     * @return the log10 likelihood of the read given the haplotype
+     */
+    public double computeReadLikelihoodGivenHaplotype(final byte[] haplotypeBases, final PairHMMRead read, final int hapStartIndex);
+}
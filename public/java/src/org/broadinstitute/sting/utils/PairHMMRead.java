@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils;
+
+import com.google.java.contract.Requires;
+
+/**
+ * A read prepared for the pair HMM: its bases together with the transition and emission probabilities of each row
+ *
+ * Everything the pair HMM needs to know about a read is a function of its bases, quals and gap penalties alone, so
+ * rather than having every engine look up the same probabilities for every haplotype the read is aligned against,
+ * they are computed once here, both in log10 space and as probabilities.  The arrays are indexed by the row of the
+ * pair HMM matrices, so row iii corresponds to read base iii - 2, and row 1 holds the initial conditions.
+ *
+ * Instances are immutable, so they may be shared between threads, and engines may recognize a read they have just
+ * seen by its identity.
+ */
+public final class PairHMMRead {
+    final byte[] bases;
+
+    // the probabilities of each row, as PairHMM.updateCell() computes them
+    final double[] matchToMatchLog10, indelToMatchLog10;
+    final double[] matchToInsertionLog10, insertionToInsertionLog10;
+    final double[] matchToDeletionLog10, deletionToDeletionLog10;
+    final double[] baseMatchLog10, baseMismatchLog10;
+
+    // the same probabilities, not in log10 space
+    final double[] matchToMatch, indelToMatch;
+    final double[] matchToInsertion, insertionToInsertion;
+    final double[] matchToDeletion, deletionToDeletion;
+    final double[] baseMatch, baseMismatch;
+
+    /**
+     * Prepare a read for the pair HMM.  None of the arrays are modified or kept.
+     *
+     * @param readBases the bases of the read
+     * @param readQuals the base qualities of the read
+     * @param insertionGOP the phred-scaled insertion gap open penalty at each read base
+     * @param deletionGOP the phred-scaled deletion gap open penalty at each read base
+     * @param overallGCP the phred-scaled gap continuation penalty at each read base
+     */
+    @Requires({"readBases.length == readQuals.length","readBases.length == insertionGOP.length","readBases.length == deletionGOP.length","readBases.length == overallGCP.length"})
+    public PairHMMRead(final byte[] readBases, final byte[] readQuals, final byte[] insertionGOP, final byte[] deletionGOP, final byte[] overallGCP) {
+        bases = readBases.clone();
+
+        final int X_METRIC_LENGTH = readBases.length + 2;
+        matchToMatchLog10 = new double[X_METRIC_LENGTH];
+        indelToMatchLog10 = new double[X_METRIC_LENGTH];
+        matchToInsertionLog10 = new double[X_METRIC_LENGTH];
+        insertionToInsertionLog10 = new double[X_METRIC_LENGTH];
+        matchToDeletionLog10 = new double[X_METRIC_LENGTH];
+        deletionToDeletionLog10 = new double[X_METRIC_LENGTH];
+        baseMatchLog10 = new double[X_METRIC_LENGTH];
+        baseMismatchLog10 = new double[X_METRIC_LENGTH];
+        matchToMatch = new double[X_METRIC_LENGTH];
+        indelToMatch = new double[X_METRIC_LENGTH];
+        matchToInsertion = new double[X_METRIC_LENGTH];
+        insertionToInsertion = new double[X_METRIC_LENGTH];
+        matchToDeletion = new double[X_METRIC_LENGTH];
+        deletionToDeletion = new double[X_METRIC_LENGTH];
+        baseMatch = new double[X_METRIC_LENGTH];
+        baseMismatch = new double[X_METRIC_LENGTH];
+
+        for ( int iii = 1; iii < X_METRIC_LENGTH; iii++ ) {
+            // the read index is offset by one because the state arrays have an extra column to hold the initial conditions
+            final int im1 = iii - 1;
+
+            // the emission probabilities, with the quals capped to valid values; they are only used once we've left row 1
+            if ( im1 > 0 ) {
+                final byte qual = readQuals[im1-1] < QualityUtils.MIN_USABLE_Q_SCORE ? QualityUtils.MIN_USABLE_Q_SCORE : (readQuals[im1-1] > PairHMM.MAX_CACHED_QUAL ? (byte)PairHMM.MAX_CACHED_QUAL : readQuals[im1-1]);
+                baseMatchLog10[iii] = QualityUtils.qualToProbLog10(qual);
+                baseMismatchLog10[iii] = QualityUtils.qualToErrorProbLog10(qual);
+                baseMatch[iii] = QualityUtils.qualToProb(qual);
+                baseMismatch[iii] = QualityUtils.qualToErrorProb(qual);
+            } else {
+                baseMatch[iii] = baseMismatch[iii] = 1.0;
+            }
+
+            final int qualIndexGOP = ( im1 == 0 ? PairHMM.DEFAULT_GOP + PairHMM.DEFAULT_GOP : Math.min(insertionGOP[im1-1] + deletionGOP[im1-1], PairHMM.MAX_CACHED_QUAL) );
+            final byte gcp = im1 == 0 ? PairHMM.DEFAULT_GCP : overallGCP[im1-1];
+            final byte insertionGapOpen = im1 == 0 ? PairHMM.DEFAULT_GOP : insertionGOP[im1-1];
+
+            matchToMatchLog10[iii] = QualityUtils.qualToProbLog10((byte)qualIndexGOP);
+            indelToMatchLog10[iii] = QualityUtils.qualToProbLog10(gcp);
+            matchToInsertionLog10[iii] = QualityUtils.qualToErrorProbLog10(insertionGapOpen);
+            insertionToInsertionLog10[iii] = QualityUtils.qualToErrorProbLog10(gcp);
+            matchToMatch[iii] = QualityUtils.qualToProb((byte)qualIndexGOP);
+            indelToMatch[iii] = QualityUtils.qualToProb(gcp);
+            matchToInsertion[iii] = QualityUtils.qualToErrorProb(insertionGapOpen);
+            insertionToInsertion[iii] = QualityUtils.qualToErrorProb(gcp);
+
+            // deletions on the left and right flanks are free, to allow for a local alignment within the haplotype
+            if ( im1 == 0 || im1 == readBases.length ) {
+                matchToDeletion[iii] = deletionToDeletion[iii] = 1.0;
+            } else {
+                matchToDeletionLog10[iii] = QualityUtils.qualToErrorProbLog10(deletionGOP[im1-1]);
+                deletionToDeletionLog10[iii] = QualityUtils.qualToErrorProbLog10(overallGCP[im1-1]);
+                matchToDeletion[iii] = QualityUtils.qualToErrorProb(deletionGOP[im1-1]);
+                deletionToDeletion[iii] = QualityUtils.qualToErrorProb(overallGCP[im1-1]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bases in the read
+     */
+    public int getLength() {
+        return bases.length;
+    }
+}
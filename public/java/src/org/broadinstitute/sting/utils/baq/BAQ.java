@@ -11,6 +11,8 @@ import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
 import org.broadinstitute.sting.utils.exceptions.UserException;
 import org.broadinstitute.sting.utils.sam.ReadUtils;
 
+import java.util.Arrays;
+
 /*
   The topology of the profile HMM:
 
@@ -106,6 +108,32 @@ public class BAQ {
         return cb;
     }
 
+    /**
+     * Sets the cache of reads already BAQ-ed on the fly used by baqRead, by default shared by all BAQs
+     *
+     * @param readCache the cache to use, or null to always run the HMM
+     */
+    public void setReadCache(final BAQReadCache readCache) {
+        this.readCache = readCache;
+    }
+
+    public BAQReadCache getReadCache() {
+        return readCache;
+    }
+
+    /**
+     * The cache of reads BAQ-ed on the fly by every BAQ in this run, so each read is only run through the HMM once
+     */
+    private final static BAQReadCache sharedReadCache = new BAQReadCache(BAQReadCache.DEFAULT_MAX_SIZE_IN_MB * 1024L * 1024L);
+
+    private BAQReadCache readCache = sharedReadCache;
+
+    /**
+     * The parameters of the HMM, distinguishing the reads BAQ-ed by this object from those BAQ-ed with other
+     * parameters in the read cache
+     */
+    private String settings;
+
     /**
      * Use defaults for everything
      */
@@ -132,30 +160,73 @@ public class BAQ {
     private final static double EM = 0.33333333333;
     private final static double EI = 0.25;
 
-    private double[][][] EPSILONS = new double[256][256][SAMUtils.MAX_PHRED_SCORE+1];
+    // the index of each base in EPSILONS; A, C, G and T in either case are 0-3, and anything else is 4
+    private final static int[] BASE_INDEX = new int[256];
+    private final static int N_BASE_INDICES = 5;
+    private final static int N_QUALS = SAMUtils.MAX_PHRED_SCORE + 1;
+    static {
+        Arrays.fill(BASE_INDEX, 4);
+        final String bases = "ACGT";
+        for ( int i = 0; i < bases.length(); i++ ) {
+            BASE_INDEX[bases.charAt(i)] = i;
+            BASE_INDEX[Character.toLowerCase(bases.charAt(i))] = i;
+        }
+    }
+
+    // the emission probabilities, indexed by (refIndex * N_BASE_INDICES + readIndex) * N_QUALS + qual
+    private final double[] EPSILONS = new double[N_BASE_INDICES * N_BASE_INDICES * N_QUALS];
 
     private void initializeCachedData() {
-        for ( int i = 0; i < 256; i++ )
-            for ( int j = 0; j < 256; j++ )
-                for ( int q = 0; q <= SAMUtils.MAX_PHRED_SCORE; q++ ) {
-                    EPSILONS[i][j][q] = 1.0;
-                }
+        settings = String.format("cd=%s ce=%s cb=%d minBQ=%d clipped=%b", cd, ce, cb, minBaseQual, includeClippedBases);
+        Arrays.fill(EPSILONS, 1.0); // ambiguous bases carry no information
 
-        for ( char b1 : "ACGTacgt".toCharArray() ) {
-            for ( char b2 : "ACGTacgt".toCharArray() ) {
+        for ( int b1 = 0; b1 < 4; b1++ ) {
+            for ( int b2 = 0; b2 < 4; b2++ ) {
                 for ( int q = 0; q <= SAMUtils.MAX_PHRED_SCORE; q++ ) {
                     double qual = qual2prob[q < minBaseQual ? minBaseQual : q];
-                    double e = Character.toLowerCase(b1) == Character.toLowerCase(b2) ? 1 - qual : qual * EM;
-                    EPSILONS[(byte)b1][(byte)b2][q] = e;
+                    double e = b1 == b2 ? 1 - qual : qual * EM;
+                    EPSILONS[(b1 * N_BASE_INDICES + b2) * N_QUALS + q] = e;
                 }
             }
         }
     }
 
     protected double calcEpsilon( byte ref, byte read, byte qualB ) {
-        return EPSILONS[ref][read][qualB];
+        return EPSILONS[(BASE_INDEX[ref & 0xff] * N_BASE_INDICES + BASE_INDEX[read & 0xff]) * N_QUALS + qualB];
     }
 
+    /**
+     * The forward and backward matrices and scaling factors of the HMM, reused by all of the reads BAQ-ed by one
+     * thread so that hmm_glocal doesn't allocate them for every read
+     */
+    private static final class HMMBuffers {
+        private double[] f = new double[0], b = new double[0], s = new double[0];
+        private final double[] m = new double[9];
+
+        /**
+         * Make sure the buffers can hold the band of each of the l_query+1 rows, and zero the parts that will be used
+         */
+        private void ensureCapacity(final int l_query, final int rowSize) {
+            final int size = (l_query + 1) * rowSize;
+            if ( f.length < size ) {
+                f = new double[size];
+                b = new double[size];
+            } else {
+                Arrays.fill(f, 0, size, 0.0);
+                Arrays.fill(b, 0, size, 0.0);
+            }
+            if ( s.length < l_query + 2 )
+                s = new double[l_query + 2];
+        }
+    }
+
+    private final static ThreadLocal<HMMBuffers> hmmBuffers = new ThreadLocal<HMMBuffers>() {
+        @Override
+        protected HMMBuffers initialValue() {
+            return new HMMBuffers();
+        }
+    };
+
     // ####################################################################################################
     //
     // NOTE -- THIS CODE IS SYNCHRONIZED WITH CODE IN THE SAMTOOLS REPOSITORY.  CHANGES TO THIS CODE SHOULD BE
@@ -195,150 +266,133 @@ public class BAQ {
         //System.out.printf("c->bw = %d, bw = %d, l_ref = %d, l_query = %d\n", cb, bw, l_ref, l_query);
 		bw2 = bw * 2 + 1;
 
-        // allocate the forward and backward matrices f[][] and b[][] and the scaling array s[]
-		double[][] f = new double[l_query+1][bw2*3 + 6];
-		double[][] b = new double[l_query+1][bw2*3 + 6];
-		double[] s = new double[l_query+2];
+        // get the flat forward and backward matrices f[] and b[] and the scaling array s[] of this thread, where
+        // the band of row i of the original matrices starts at i * rowSize
+        final int rowSize = bw2*3 + 6;
+        final HMMBuffers buffers = hmmBuffers.get();
+        buffers.ensureCapacity(l_query, rowSize);
+		final double[] f = buffers.f;
+		final double[] b = buffers.b;
+		final double[] s = buffers.s;
+		final double[] m = buffers.m;
 
 		// initialize transition probabilities
 		double sM, sI, bM, bI;
 		sM = sI = 1. / (2 * l_query + 2);
         bM = (1 - cd) / l_ref; bI = cd / l_ref; // (bM+bI)*l_ref==1
 
-		double[] m = new double[9];
 		m[0*3+0] = (1 - cd - cd) * (1 - sM); m[0*3+1] = m[0*3+2] = cd * (1 - sM);
 		m[1*3+0] = (1 - ce) * (1 - sI); m[1*3+1] = ce * (1 - sI); m[1*3+2] = 0.;
 		m[2*3+0] = 1 - ce; m[2*3+1] = 0.; m[2*3+2] = ce;
 
+        // the range of k in the last row that falls within the band
+        final int lastBeg = Math.max(1, Math.max(l_query - bw, 0)), lastEnd = Math.min(l_ref, Math.max(l_query - bw, 0) + bw2 - 1);
 
 		/*** forward ***/
 		// f[0]
-		f[0][set_u(bw, 0, 0)] = s[0] = 1.;
+		f[set_u(bw, 0, 0)] = s[0] = 1.;
 		{ // f[1]
-			double[] fi = f[1];
+			final int fi = rowSize;
 			double sum;
 			int beg = 1, end = l_ref < bw + 1? l_ref : bw + 1, _beg, _end;
 			for (k = beg, sum = 0.; k <= end; ++k) {
 				int u;
                 double e = calcEpsilon(ref[k-1], query[qstart], _iqual[qstart]);
-				u = set_u(bw, 1, k);
-				fi[u+0] = e * bM; fi[u+1] = EI * bI;
-				sum += fi[u] + fi[u+1];
+				u = fi + set_u(bw, 1, k);
+				f[u+0] = e * bM; f[u+1] = EI * bI;
+				sum += f[u] + f[u+1];
 			}
 			// rescale
 			s[1] = sum;
-			_beg = set_u(bw, 1, beg); _end = set_u(bw, 1, end); _end += 2;
-			for (k = _beg; k <= _end; ++k) fi[k] /= sum;
+			_beg = fi + set_u(bw, 1, beg); _end = fi + set_u(bw, 1, end); _end += 2;
+			for (k = _beg; k <= _end; ++k) f[k] /= sum;
 		}
 
 		// f[2..l_query]
 		for (i = 2; i <= l_query; ++i) {
-			double[] fi = f[i], fi1 = f[i-1];
+			final int fi = i * rowSize, fi1 = fi - rowSize;
 			double sum;
 			int beg = 1, end = l_ref, x, _beg, _end;
 			byte qyi = query[qstart+i-1];
+			byte qli = _iqual[qstart+i-1];
 			x = i - bw; beg = beg > x? beg : x; // band start
 			x = i + bw; end = end < x? end : x; // band end
 			for (k = beg, sum = 0.; k <= end; ++k) {
 				int u, v11, v01, v10;
-                double e = calcEpsilon(ref[k-1], qyi, _iqual[qstart+i-1]);
-				u = set_u(bw, i, k); v11 = set_u(bw, i-1, k-1); v10 = set_u(bw, i-1, k); v01 = set_u(bw, i, k-1);
-				fi[u+0] = e * (m[0] * fi1[v11+0] + m[3] * fi1[v11+1] + m[6] * fi1[v11+2]);
-				fi[u+1] = EI * (m[1] * fi1[v10+0] + m[4] * fi1[v10+1]);
-				fi[u+2] = m[2] * fi[v01+0] + m[8] * fi[v01+2];
-				sum += fi[u] + fi[u+1] + fi[u+2];
-				//System.out.println("("+i+","+k+";"+u+"): "+fi[u]+","+fi[u+1]+","+fi[u+2]);
+                double e = calcEpsilon(ref[k-1], qyi, qli);
+				u = fi + set_u(bw, i, k); v11 = fi1 + set_u(bw, i-1, k-1); v10 = fi1 + set_u(bw, i-1, k); v01 = fi + set_u(bw, i, k-1);
+				f[u+0] = e * (m[0] * f[v11+0] + m[3] * f[v11+1] + m[6] * f[v11+2]);
+				f[u+1] = EI * (m[1] * f[v10+0] + m[4] * f[v10+1]);
+				f[u+2] = m[2] * f[v01+0] + m[8] * f[v01+2];
+				sum += f[u] + f[u+1] + f[u+2];
 			}
 			// rescale
 			s[i] = sum;
-			_beg = set_u(bw, i, beg); _end = set_u(bw, i, end); _end += 2;
-			for (k = _beg, sum = 1./sum; k <= _end; ++k) fi[k] *= sum;
+			_beg = fi + set_u(bw, i, beg); _end = fi + set_u(bw, i, end); _end += 2;
+			for (k = _beg, sum = 1./sum; k <= _end; ++k) f[k] *= sum;
 		}
 		{ // f[l_query+1]
+			final int fl = l_query * rowSize;
 			double sum;
-			for (k = 1, sum = 0.; k <= l_ref; ++k) {
-				int u = set_u(bw, l_query, k);
-				if (u < 3 || u >= bw2*3+3) continue;
-				sum += f[l_query][u+0] * sM + f[l_query][u+1] * sI;
+			for (k = lastBeg, sum = 0.; k <= lastEnd; ++k) {
+				int u = fl + set_u(bw, l_query, k);
+				sum += f[u+0] * sM + f[u+1] * sI;
 			}
 			s[l_query+1] = sum; // the last scaling factor
 		}
 
-        //gdbebug+
-/*
-        double cac=0.;
-        // undo scaling of forward probabilities to obtain plain probability of observation given model
-        double[] su = new double[f[l_query].length];
-        {
-            double sum = 0.;
-            double[] logs = new double[s.length];
-            for (k=0; k < logs.length; k++) {
-                logs[k] = Math.log10(s[k]);
-                sum += logs[k];
-            }
-            for (k=0; k < f[l_query].length; k++)
-                su[k]= Math.log10(f[l_query][k])+ sum;
-
-            cac = MathUtils.softMax(su);
-        }                             
-        System.out.format("s:%f\n",cac);
-        // gdebug-
-       */
 		/*** backward ***/
 		// b[l_query] (b[l_query+1][0]=1 and thus \tilde{b}[][]=1/s[l_query+1]; this is where s[l_query+1] comes from)
-		for (k = 1; k <= l_ref; ++k) {
-			int u = set_u(bw, l_query, k);
-			double[] bi = b[l_query];
-			if (u < 3 || u >= bw2*3+3) continue;
-			bi[u+0] = sM / s[l_query] / s[l_query+1]; bi[u+1] = sI / s[l_query] / s[l_query+1];
+		for (k = lastBeg; k <= lastEnd; ++k) {
+			int u = l_query * rowSize + set_u(bw, l_query, k);
+			b[u+0] = sM / s[l_query] / s[l_query+1]; b[u+1] = sI / s[l_query] / s[l_query+1];
 		}
 		// b[l_query-1..1]
 		for (i = l_query - 1; i >= 1; --i) {
 			int beg = 1, end = l_ref, x, _beg, _end;
-			double[] bi = b[i], bi1 = b[i+1];
+			final int bi = i * rowSize, bi1 = bi + rowSize;
 			double y = (i > 1)? 1. : 0.;
 			byte qyi1 = query[qstart+i];
+			byte qli1 = _iqual[qstart+i];
 			x = i - bw; beg = beg > x? beg : x;
 			x = i + bw; end = end < x? end : x;
 			for (k = end; k >= beg; --k) {
 				int u, v11, v01, v10;
-				u = set_u(bw, i, k); v11 = set_u(bw, i+1, k+1); v10 = set_u(bw, i+1, k); v01 = set_u(bw, i, k+1);
-                double e = (k >= l_ref? 0 : calcEpsilon(ref[k], qyi1, _iqual[qstart+i])) * bi1[v11];
-                bi[u+0] = e * m[0] + EI * m[1] * bi1[v10+1] + m[2] * bi[v01+2]; // bi1[v11] has been foled into e.
-				bi[u+1] = e * m[3] + EI * m[4] * bi1[v10+1];
-				bi[u+2] = (e * m[6] + m[8] * bi[v01+2]) * y;
+				u = bi + set_u(bw, i, k); v11 = bi1 + set_u(bw, i+1, k+1); v10 = bi1 + set_u(bw, i+1, k); v01 = bi + set_u(bw, i, k+1);
+                double e = (k >= l_ref? 0 : calcEpsilon(ref[k], qyi1, qli1)) * b[v11];
+                b[u+0] = e * m[0] + EI * m[1] * b[v10+1] + m[2] * b[v01+2]; // b[v11] has been foled into e.
+				b[u+1] = e * m[3] + EI * m[4] * b[v10+1];
+				b[u+2] = (e * m[6] + m[8] * b[v01+2]) * y;
 			}
 			// rescale
-			_beg = set_u(bw, i, beg); _end = set_u(bw, i, end); _end += 2;
-			for (k = _beg, y = 1./s[i]; k <= _end; ++k) bi[k] *= y;
+			_beg = bi + set_u(bw, i, beg); _end = bi + set_u(bw, i, end); _end += 2;
+			for (k = _beg, y = 1./s[i]; k <= _end; ++k) b[k] *= y;
 		}
 
  		double pb;
 		{ // b[0]
-			int beg = 1, end = l_ref < bw + 1? l_ref : bw + 1;
+			int beg = 1, end = Math.min(l_ref < bw + 1? l_ref : bw + 1, Math.max(1 - bw, 0) + bw2 - 1); // stay within the band
 			double sum = 0.;
 			for (k = end; k >= beg; --k) {
-				int u = set_u(bw, 1, k);
+				int u = rowSize + set_u(bw, 1, k);
                 double e = calcEpsilon(ref[k-1], query[qstart], _iqual[qstart]);
-                if (u < 3 || u >= bw2*3+3) continue;
-				sum += e * b[1][u+0] * bM + EI * b[1][u+1] * bI;
+				sum += e * b[u+0] * bM + EI * b[u+1] * bI;
 			}
-			pb = b[0][set_u(bw, 0, 0)] = sum / s[0]; // if everything works as is expected, pb == 1.0
+			pb = b[set_u(bw, 0, 0)] = sum / s[0]; // if everything works as is expected, pb == 1.0
 		}
 
-        
 		/*** MAP ***/
 		for (i = 1; i <= l_query; ++i) {
 			double sum = 0., max = 0.;
-			double[] fi = f[i], bi = b[i];
+			final int fi = i * rowSize;
 			int beg = 1, end = l_ref, x, max_k = -1;
 			x = i - bw; beg = beg > x? beg : x;
 			x = i + bw; end = end < x? end : x;
 			for (k = beg; k <= end; ++k) {
-				int u = set_u(bw, i, k);
+				int u = fi + set_u(bw, i, k);
 				double z;
-				sum += (z = fi[u+0] * bi[u+0]); if (z > max) { max = z; max_k = (k-1)<<2 | 0; }
-				sum += (z = fi[u+1] * bi[u+1]); if (z > max) { max = z; max_k = (k-1)<<2 | 1; }
+				sum += (z = f[u+0] * b[u+0]); if (z > max) { max = z; max_k = (k-1)<<2 | 0; }
+				sum += (z = f[u+1] * b[u+1]); if (z > max) { max = z; max_k = (k-1)<<2 | 1; }
 			}
 			max /= sum; sum *= s[i]; // if everything works as is expected, sum == 1.0
 			if (state != null) state[qstart+i-1] = max_k;
@@ -346,7 +400,6 @@ public class BAQ {
 				k = (int)(-4.343 * Math.log(1. - max) + .499); // = 10*log10(1-max)
 				q[qstart+i-1] = (byte)(k > 100? 99 : (k < minBaseQual ? minBaseQual : k));
 			}
-			//System.out.println("("+pb+","+sum+")"+" ("+(i-1)+","+(max_k>>2)+","+(max_k&3)+","+max+")");
 		}
 
 		return 0;
@@ -635,7 +688,8 @@ public class BAQ {
     /**
      * Modifies read in place so that the base quality scores are capped by the BAQ calculation.  Uses the BAQ
      * tag if present already and alwaysRecalculate is false, otherwise fires up the HMM and does the BAQ on the fly
-     * using the refReader to obtain the reference bases as needed.
+     * using the refReader to obtain the reference bases as needed.  Reads that were already BAQ-ed on the fly
+     * take their qualities from the read cache instead of running the HMM again.
      * 
      * @param read
      * @param refReader
@@ -653,12 +707,20 @@ public class BAQ {
         } else {
             if ( calculationType == CalculationMode.RECALCULATE || ! hasBAQTag(read) ) {
                 if ( DEBUG ) System.out.printf("  Calculating BAQ on the fly%n");
-                BAQCalculationResult hmmResult = calcBAQFromHMM(read, refReader);
-                if ( hmmResult != null ) {
+                byte[] bq = readCache == null ? null : readCache.get(refReader, settings, read);
+                if ( bq == null ) {
+                    BAQCalculationResult hmmResult = calcBAQFromHMM(read, refReader);
+                    if ( hmmResult != null ) {
+                        bq = hmmResult.bq;
+                        if ( readCache != null ) readCache.put(refReader, settings, read, bq);
+                    }
+                } else if ( DEBUG ) System.out.printf("  Using cached BAQ%n");
+
+                if ( bq != null ) {
                     switch ( qmode ) {
-                        case ADD_TAG:         addBAQTag(read, hmmResult.bq); break;
-                        case OVERWRITE_QUALS: System.arraycopy(hmmResult.bq, 0, read.getBaseQualities(), 0, hmmResult.bq.length); break;
-                        case DONT_MODIFY:     BAQQuals = hmmResult.bq; break;
+                        case ADD_TAG:         addBAQTag(read, bq); break;
+                        case OVERWRITE_QUALS: System.arraycopy(bq, 0, read.getBaseQualities(), 0, bq.length); break;
+                        case DONT_MODIFY:     BAQQuals = bq; break;
                         default:              throw new ReviewedStingException("BUG: unexpected qmode " + qmode);
                     }
                 }
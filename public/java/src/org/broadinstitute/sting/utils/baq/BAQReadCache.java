@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils.baq;
+
+import com.google.java.contract.Requires;
+import net.sf.samtools.SAMRecord;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded cache of the BAQ-ed qualities of reads, shared by all of the BAQ calculations in one run
+ *
+ * The same read is often BAQ-ed more than once: it is read again by each shard it overlaps, and by each walker
+ * or output stream that asks for BAQ on the fly.  Since the BAQ of a read depends only on its bases, qualities,
+ * alignment, the reference and the parameters of the HMM, this cache remembers the result of the HMM for each
+ * of them so it only needs to run once.
+ *
+ * Keys compare all of the bases, qualities and the cigar, so a hit always returns exactly the qualities the HMM
+ * would have computed.  Lookups compare against the arrays of the read itself; only the keys that are stored
+ * copy them.  Once the estimated memory used by the cache exceeds its limit the least recently used qualities
+ * are evicted.
+ *
+ * The cache is split into stripes by the hash of the keys, each with its own lock, map and an equal share of the
+ * memory, so that many threads can share one cache without all of them waiting on a single lock.
+ */
+public class BAQReadCache {
+    /** the default maximum memory used by the cache */
+    public final static int DEFAULT_MAX_SIZE_IN_MB = 16;
+
+    /** the largest number of stripes used by default, each of which gets at least MIN_STRIPE_SIZE_IN_BYTES */
+    public final static int DEFAULT_MAX_STRIPES = 16;
+    private final static long MIN_STRIPE_SIZE_IN_BYTES = 64 * 1024;
+
+    // rough JVM overheads of the key, its entry in the map, and its arrays and strings
+    private final static int ENTRY_OVERHEAD_IN_BYTES = 128;
+    private final static int ARRAY_OVERHEAD_IN_BYTES = 16;
+
+    private final Stripe[] stripes;
+
+    /**
+     * @param maxSizeInBytes the maximum estimated memory to use for cached qualities
+     */
+    public BAQReadCache(final long maxSizeInBytes) {
+        this(maxSizeInBytes, (int)Math.max(1, Math.min(DEFAULT_MAX_STRIPES, maxSizeInBytes / MIN_STRIPE_SIZE_IN_BYTES)));
+    }
+
+    /**
+     * @param maxSizeInBytes the maximum estimated memory to use for cached qualities, split evenly between the stripes
+     * @param numStripes the number of independently locked parts of the cache
+     */
+    @Requires({"maxSizeInBytes > 0", "numStripes > 0"})
+    public BAQReadCache(final long maxSizeInBytes, final int numStripes) {
+        stripes = new Stripe[numStripes];
+        for ( int i = 0; i < numStripes; i++ )
+            stripes[i] = new Stripe(Math.max(1, maxSizeInBytes / numStripes));
+    }
+
+    /**
+     * @param reference an object identifying the reference read was aligned to; compared by identity
+     * @param settings the parameters of the HMM used to BAQ read
+     * @param read the read
+     * @return a copy of the cached BAQ-ed qualities of read, or null if there aren't any
+     */
+    public byte[] get(final Object reference, final String settings, final SAMRecord read) {
+        final Key key = new Key(reference, settings, read, false);
+        return stripeFor(key).get(key);
+    }
+
+    /**
+     * Remember the BAQ-ed qualities of read.  A copy of bq is kept, so the caller is free to modify it.
+     */
+    public void put(final Object reference, final String settings, final SAMRecord read, final byte[] bq) {
+        final Key key = new Key(reference, settings, read, true);
+        stripeFor(key).put(key, bq.clone());
+    }
+
+    private Stripe stripeFor(final Key key) {
+        final int h = key.hashCode ^ (key.hashCode >>> 16);
+        return stripes[(h & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    public void clear() {
+        for ( final Stripe stripe : stripes )
+            stripe.clear();
+    }
+
+    public int getNumStripes() { return stripes.length; }
+
+    public int size() {
+        int size = 0;
+        for ( final Stripe stripe : stripes )
+            size += stripe.size();
+        return size;
+    }
+
+    public long getNumHits() {
+        long nHits = 0;
+        for ( final Stripe stripe : stripes )
+            nHits += stripe.getNumHits();
+        return nHits;
+    }
+
+    public long getNumMisses() {
+        long nMisses = 0;
+        for ( final Stripe stripe : stripes )
+            nMisses += stripe.getNumMisses();
+        return nMisses;
+    }
+
+    public long getNumEvictions() {
+        long nEvictions = 0;
+        for ( final Stripe stripe : stripes )
+            nEvictions += stripe.getNumEvictions();
+        return nEvictions;
+    }
+
+    /** @return the estimated memory used by the qualities currently in the cache */
+    public long getSizeInBytes() {
+        long sizeInBytes = 0;
+        for ( final Stripe stripe : stripes )
+            sizeInBytes += stripe.getSizeInBytes();
+        return sizeInBytes;
+    }
+
+    /**
+     * One independently locked part of the cache, evicting its own least recently used qualities
+     */
+    private static final class Stripe {
+        private final long maxSizeInBytes;
+        private long sizeInBytes = 0;
+        private long nHits = 0, nMisses = 0, nEvictions = 0;
+
+        // in access order, so the least recently used qualities come first
+        private final LinkedHashMap<Key, byte[]> bqs = new LinkedHashMap<Key, byte[]>(64, 0.75f, true);
+
+        private Stripe(final long maxSizeInBytes) {
+            this.maxSizeInBytes = maxSizeInBytes;
+        }
+
+        private synchronized byte[] get(final Key key) {
+            final byte[] bq = bqs.get(key);
+            if ( bq == null ) {
+                nMisses++;
+                return null;
+            } else {
+                nHits++;
+                return bq.clone();
+            }
+        }
+
+        private synchronized void put(final Key key, final byte[] bq) {
+            if ( bqs.put(key, bq) == null ) {
+                sizeInBytes += key.sizeInBytes();
+                evictLeastRecentlyUsed();
+            }
+        }
+
+        private void evictLeastRecentlyUsed() {
+            final Iterator<Key> it = bqs.keySet().iterator();
+            while ( sizeInBytes > maxSizeInBytes && it.hasNext() ) {
+                sizeInBytes -= it.next().sizeInBytes();
+                it.remove();
+                nEvictions++;
+            }
+        }
+
+        private synchronized void clear() {
+            bqs.clear();
+            sizeInBytes = 0;
+        }
+
+        private synchronized int size() { return bqs.size(); }
+        private synchronized long getNumHits() { return nHits; }
+        private synchronized long getNumMisses() { return nMisses; }
+        private synchronized long getNumEvictions() { return nEvictions; }
+        private synchronized long getSizeInBytes() { return sizeInBytes; }
+    }
+
+    private static final class Key {
+        private final Object reference;
+        private final String settings, contig, cigar;
+        private final int alignmentStart;
+        private final byte[] bases, quals;
+        private final int hashCode;
+
+        /**
+         * @param copy if true the key keeps copies of the bases and quals of read, as it must when it is stored;
+         *             otherwise it refers to the arrays of read, which is enough to look it up
+         */
+        private Key(final Object reference, final String settings, final SAMRecord read, final boolean copy) {
+            this.reference = reference;
+            this.settings = settings;
+            this.contig = read.getReferenceName();
+            this.cigar = read.getCigarString();
+            this.alignmentStart = read.getAlignmentStart();
+            this.bases = copy ? read.getReadBases().clone() : read.getReadBases();
+            this.quals = copy ? read.getBaseQualities().clone() : read.getBaseQualities();
+
+            int h = System.identityHashCode(reference);
+            h = 31 * h + settings.hashCode();
+            h = 31 * h + contig.hashCode();
+            h = 31 * h + cigar.hashCode();
+            h = 31 * h + alignmentStart;
+            h = 31 * h + Arrays.hashCode(bases);
+            this.hashCode = 31 * h + Arrays.hashCode(quals);
+        }
+
+        /**
+         * A conservative estimate of the memory used by this key and its qualities
+         */
+        private long sizeInBytes() {
+            return ENTRY_OVERHEAD_IN_BYTES + 3 * ARRAY_OVERHEAD_IN_BYTES + 3L * bases.length + 2L * cigar.length();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if ( this == o ) return true;
+            if ( ! (o instanceof Key) ) return false;
+            final Key other = (Key)o;
+            return hashCode == other.hashCode && reference == other.reference && alignmentStart == other.alignmentStart
+                    && settings.equals(other.settings) && contig.equals(other.contig) && cigar.equals(other.cigar)
+                    && Arrays.equals(bases, other.bases) && Arrays.equals(quals, other.quals);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -41,15 +41,13 @@ import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.*;
 
 /**
  * Decode BCF2 files
  */
-public final class BCF2Codec implements FeatureCodec<VariantContext> {
+public final class BCF2Codec implements FeatureCodec<VariantContext>, SampleSubsetAwareCodec {
     final protected static Logger logger = Logger.getLogger(BCF2Codec.class);
     private final static boolean FORBID_SYMBOLICS = false;
 
@@ -90,6 +88,14 @@ public final class BCF2Codec implements FeatureCodec<VariantContext> {
      */
     private GenotypeBuilder[] builders = null;
 
+    /**
+     * If not null, the samples whose genotypes we decode.  The subset and its sample runs
+     * are created once we have both the samples and the header
+     */
+    private Collection<String> samplesToDecode = null;
+    private GenotypeSampleSubset sampleSubset = null;
+    private BCF2LazyGenotypesDecoder.SampleRun[] sampleRuns = null;
+
     // for error handling
     private int recordNo = 0;
     private int pos = 0;
@@ -108,20 +114,60 @@ public final class BCF2Codec implements FeatureCodec<VariantContext> {
 
     @Override
     public VariantContext decode( final PositionalBufferedStream inputStream ) {
-        recordNo++;
         final VariantContextBuilder builder = new VariantContextBuilder();
 
         final int sitesBlockSize = decoder.readBlockSize(inputStream);
         final int genotypeBlockSize = decoder.readBlockSize(inputStream);
-        decoder.readNextBlock(sitesBlockSize, inputStream);
-        decodeSiteLoc(builder);
-        final SitesInfoForDecoding info = decodeSitesExtendedInfo(builder);
 
+        // the sites block is completely decoded right away, so it can live in a reused buffer
+        decoder.readNextBlockIntoReusableBuffer(sitesBlockSize, inputStream);
+        final SitesInfoForDecoding info = decodeSites(builder);
+
+        // but the genotypes block is decoded lazily, and so needs its own bytes
         decoder.readNextBlock(genotypeBlockSize, inputStream);
         createLazyGenotypesDecoder(info, builder);
         return builder.fullyDecoded(true).make();
     }
 
+    /**
+     * Decode the next record directly out of buffer, advancing its position to the start of the following record.
+     *
+     * None of the bytes of the record are copied.  In particular the genotypes of the returned VariantContext are
+     * lazily decoded from a view of buffer, so the content of buffer must not change while the VariantContext is in
+     * use.  This is the case for a memory-mapped BCF2 file opened read-only, see MemoryMappedBCF2Iterator.
+     *
+     * @param buffer a buffer positioned at the start of a BCF2 record
+     * @return the decoded VariantContext
+     */
+    @Requires("buffer != null")
+    @Ensures("result != null")
+    public VariantContext decode( final ByteBuffer buffer ) {
+        final VariantContextBuilder builder = new VariantContextBuilder();
+
+        final int sitesBlockSize = decoder.readBlockSize(buffer);
+        final int genotypeBlockSize = decoder.readBlockSize(buffer);
+        if ( sitesBlockSize < 0 || genotypeBlockSize < 0 || (long)sitesBlockSize + genotypeBlockSize > buffer.remaining() )
+            throw new UserException.MalformedBCF2(String.format("Record %d has blocks of %d and %d bytes but only %d bytes remain",
+                    recordNo + 1, sitesBlockSize, genotypeBlockSize, buffer.remaining()));
+
+        decoder.setRecordBuffer(viewOfNextBytes(buffer, sitesBlockSize));
+        final SitesInfoForDecoding info = decodeSites(builder);
+
+        decoder.setRecordBuffer(viewOfNextBytes(buffer, genotypeBlockSize));
+        createLazyGenotypesDecoder(info, builder);
+        return builder.fullyDecoded(true).make();
+    }
+
+    /**
+     * @return a view of the next nBytes of buffer, after which buffer is positioned
+     */
+    private static ByteBuffer viewOfNextBytes(final ByteBuffer buffer, final int nBytes) {
+        final ByteBuffer view = buffer.duplicate();
+        view.limit(view.position() + nBytes);
+        buffer.position(buffer.position() + nBytes);
+        return view;
+    }
+
     @Override
     public Class<VariantContext> getFeatureType() {
         return VariantContext.class;
@@ -172,16 +218,38 @@ public final class BCF2Codec implements FeatureCodec<VariantContext> {
         gtFieldDecoders = new BCF2GenotypeFieldDecoders(header);
 
         // create and initialize the genotype builder array
-        final int nSamples = header.getNGenotypeSamples();
-        builders = new GenotypeBuilder[nSamples];
-        for ( int i = 0; i < nSamples; i++ ) {
-            builders[i] = new GenotypeBuilder(header.getGenotypeSamples().get(i));
-        }
+        initializeGenotypeBuilders();
 
         // position right before next line (would be right before first real record byte at end of header)
         return new FeatureCodecHeader(header, inputStream.getPosition());
     }
 
+    /**
+     * @see SampleSubsetAwareCodec#setSamplesToDecode(java.util.Collection)
+     */
+    @Override
+    public void setSamplesToDecode(final Collection<String> samples) {
+        this.samplesToDecode = samples;
+        if ( header != null )
+            initializeGenotypeBuilders();
+    }
+
+    /**
+     * Create the cached genotype builders for the samples we decode, which is all of the
+     * samples in the header unless we've been restricted to a subset of them
+     */
+    private void initializeGenotypeBuilders() {
+        sampleSubset = samplesToDecode == null ? null : new GenotypeSampleSubset(header, samplesToDecode);
+        final List<String> samples = sampleSubset == null ? header.getGenotypeSamples() : sampleSubset.getSamplesInFileOrder();
+
+        builders = new GenotypeBuilder[samples.size()];
+        for ( int i = 0; i < samples.size(); i++ ) {
+            builders[i] = new GenotypeBuilder(samples.get(i));
+        }
+
+        sampleRuns = sampleSubset == null ? null : BCF2LazyGenotypesDecoder.makeSampleRuns(sampleSubset, builders);
+    }
+
     @Override
     public boolean canDecode( final String path ) {
         FileInputStream fis = null;
@@ -214,6 +282,18 @@ public final class BCF2Codec implements FeatureCodec<VariantContext> {
     //
     // --------------------------------------------------------------------------------
 
+    /**
+     * Decode all of the sites level data in the current block of our decoder
+     *
+     * @param builder
+     * @return
+     */
+    private final SitesInfoForDecoding decodeSites(final VariantContextBuilder builder) {
+        recordNo++;
+        decodeSiteLoc(builder);
+        return decodeSitesExtendedInfo(builder);
+    }
+
     /**
      * Decode the sites level data from this classes decoder
      *
@@ -367,20 +447,21 @@ public final class BCF2Codec implements FeatureCodec<VariantContext> {
      * @param builder
      */
     private void decodeFilter( final VariantContextBuilder builder ) {
-        final Object value = decoder.decodeTypedValue();
+        final byte typeDescriptor = decoder.readTypeDescriptor();
+        final int[] offsets = decoder.decodeIntArray(typeDescriptor, decoder.decodeNumberOfElements(typeDescriptor));
 
-        if ( value == null )
+        if ( offsets == null )
             builder.unfiltered();
         else {
-            if ( value instanceof Integer ) {
+            if ( offsets.length == 1 ) {
                 // fast path for single integer result
-                final String filterString = getDictionaryString((Integer)value);
+                final String filterString = getDictionaryString(offsets[0]);
                 if ( VCFConstants.PASSES_FILTERS_v4.equals(filterString))
                     builder.passFilters();
                 else
                     builder.filter(filterString);
             } else {
-                for ( final int offset : (List<Integer>)value )
+                for ( final int offset : offsets )
                     builder.filter(getDictionaryString(offset));
             }
         }
@@ -427,11 +508,11 @@ public final class BCF2Codec implements FeatureCodec<VariantContext> {
                                              final VariantContextBuilder builder ) {
         if (siteInfo.nSamples > 0) {
             final LazyGenotypesContext.LazyParser lazyParser =
-                    new BCF2LazyGenotypesDecoder(this, siteInfo.alleles, siteInfo.nSamples, siteInfo.nFormatFields, builders);
+                    new BCF2LazyGenotypesDecoder(this, siteInfo.alleles, siteInfo.nSamples, siteInfo.nFormatFields, builders, sampleSubset, sampleRuns);
 
             LazyGenotypesContext lazy = new LazyGenotypesContext(lazyParser,
-                    new LazyData(siteInfo.nFormatFields, decoder.getRecordBytes()),
-                    header.getNGenotypeSamples());
+                    new LazyData(siteInfo.nFormatFields, decoder.getRecordBuffer()),
+                    builders.length);
 
             // did we resort the sample names?  If so, we need to load the genotype data
             if ( !header.samplesWereAlreadySorted() )
@@ -443,18 +524,36 @@ public final class BCF2Codec implements FeatureCodec<VariantContext> {
 
     public static class LazyData {
         final public int nGenotypeFields;
-        final public byte[] bytes;
+
+        /**
+         * The undecoded genotypes block, which may be a view of a larger (e.g. memory-mapped) buffer.
+         * Readers must not change its position; use duplicate() or getBytes() instead.
+         */
+        final public ByteBuffer bytes;
 
         @Requires({"nGenotypeFields > 0", "bytes != null"})
-        public LazyData(final int nGenotypeFields, final byte[] bytes) {
+        public LazyData(final int nGenotypeFields, final ByteBuffer bytes) {
             this.nGenotypeFields = nGenotypeFields;
             this.bytes = bytes;
         }
+
+        /**
+         * @return the bytes of the undecoded genotypes block, only copying them if we aren't backed by exactly that byte[]
+         */
+        @Ensures("result.length == bytes.remaining()")
+        public byte[] getBytes() {
+            if ( bytes.hasArray() && bytes.arrayOffset() == 0 && bytes.position() == 0 && bytes.array().length == bytes.remaining() )
+                return bytes.array();
+
+            final byte[] copy = new byte[bytes.remaining()];
+            bytes.duplicate().get(copy);
+            return copy;
+        }
     }
 
     @Ensures("result != null")
     private final String getDictionaryString() {
-        return getDictionaryString((Integer) decoder.decodeTypedValue());
+        return getDictionaryString(decoder.decodeTypedInt(-1));
     }
 
     @Requires("offset < dictionary.size()")
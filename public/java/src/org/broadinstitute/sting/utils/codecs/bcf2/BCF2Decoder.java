@@ -31,17 +31,43 @@ import org.broad.tribble.FeatureCodec;
 import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
 import org.broadinstitute.sting.utils.exceptions.UserException;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+/**
+ * Low-level decoder of the typed values in BCF2 records
+ *
+ * The decoder reads directly from a little-endian ByteBuffer over the current block, which can
+ * wrap a freshly read byte[], a reusable buffer owned by this decoder, or a slice of a memory-mapped
+ * BCF2 file.  In the latter cases decoding a block doesn't copy its bytes at all.
+ */
 public final class BCF2Decoder {
     final protected static Logger logger = Logger.getLogger(FeatureCodec.class);
 
-    byte[] recordBytes = null;
-    ByteArrayInputStream recordStream = null;
+    /**
+     * The block we are currently decoding, positioned at the next value to decode
+     */
+    ByteBuffer recordBuffer = null;
+
+    /**
+     * The offset in recordBuffer where the current block starts
+     */
+    int blockStart = 0;
+
+    /**
+     * Backing array for readNextBlockIntoReusableBuffer, grown as needed
+     */
+    private byte[] reusableBlock = new byte[0];
+
+    /**
+     * Scratch space for decoding strings from buffers that don't expose their backing array
+     */
+    private byte[] stringScratch = new byte[0];
 
     public BCF2Decoder() {
         // nothing to do
@@ -56,6 +82,15 @@ public final class BCF2Decoder {
         setRecordBytes(recordBytes);
     }
 
+    /**
+     * Create a new decoder ready to read BCF2 data from the remaining bytes of buffer
+     *
+     * @param buffer
+     */
+    protected BCF2Decoder(final ByteBuffer buffer) {
+        setRecordBuffer(buffer);
+    }
+
     // ----------------------------------------------------------------------
     //
     // Routines to load, set, skip blocks of underlying data we are decoding
@@ -73,6 +108,22 @@ public final class BCF2Decoder {
         setRecordBytes(readRecordBytes(blockSizeInBytes, stream));
     }
 
+    /**
+     * Reads the next record from input stream into a buffer owned by this decoder, which is reused
+     * for the next block read this way.  Only use this for blocks that are completely decoded before
+     * the next one is read, and never hand out the result of getRecordBuffer() for such a block.
+     *
+     * @param blockSizeInBytes
+     * @param stream
+     */
+    public void readNextBlockIntoReusableBuffer(final int blockSizeInBytes, final InputStream stream) {
+        if ( blockSizeInBytes < 0 ) throw new UserException.MalformedBCF2("Invalid block size " + blockSizeInBytes);
+        if ( reusableBlock.length < blockSizeInBytes )
+            reusableBlock = new byte[Math.max(blockSizeInBytes, 2 * reusableBlock.length)];
+        readRecordBytes(reusableBlock, blockSizeInBytes, stream);
+        setRecordBuffer(ByteBuffer.wrap(reusableBlock, 0, blockSizeInBytes));
+    }
+
     /**
      * Skips the next record from input stream, invalidating current block data
      *
@@ -86,16 +137,20 @@ public final class BCF2Decoder {
         } catch ( IOException e ) {
             throw new UserException.CouldNotReadInputFile("I/O error while reading BCF2 file", e);
         }
-        this.recordBytes = null;
-        this.recordStream = null;
+        this.recordBuffer = null;
     }
 
     /**
-     * Returns the byte[] for the block of data we are currently decoding
+     * Returns a buffer over all of the bytes of the block we are currently decoding, sharing its
+     * content with the underlying storage.  The returned buffer is independent of our position in the block.
+     *
      * @return
      */
-    public byte[] getRecordBytes() {
-        return recordBytes;
+    @Ensures({"result != null", "result.position() == 0", "result.remaining() == getBlockSize()"})
+    public ByteBuffer getRecordBuffer() {
+        final ByteBuffer block = recordBuffer.duplicate();
+        block.position(blockStart);
+        return block.slice();
     }
 
     /**
@@ -104,11 +159,11 @@ public final class BCF2Decoder {
      * @return
      */
     public int getBlockSize() {
-        return recordBytes.length;
+        return recordBuffer.limit() - blockStart;
     }
 
     public boolean blockIsFullyDecoded() {
-        return recordStream.available() == 0;
+        return ! recordBuffer.hasRemaining();
     }
 
     /**
@@ -117,10 +172,22 @@ public final class BCF2Decoder {
      * @param recordBytes
      */
     @Requires("recordBytes != null")
-    @Ensures({"this.recordBytes == recordBytes", "recordStream != null"})
+    @Ensures({"recordBuffer != null", "getBlockSize() == recordBytes.length"})
     public void setRecordBytes(final byte[] recordBytes) {
-        this.recordBytes = recordBytes;
-        this.recordStream = new ByteArrayInputStream(recordBytes);
+        setRecordBuffer(ByteBuffer.wrap(recordBytes));
+    }
+
+    /**
+     * Use the remaining bytes of buffer to read BCF2 records from now on.  The bytes aren't copied,
+     * and buffer's own position and byte order aren't changed.
+     *
+     * @param buffer
+     */
+    @Requires("buffer != null")
+    @Ensures({"recordBuffer != null", "getBlockSize() == buffer.remaining()"})
+    public void setRecordBuffer(final ByteBuffer buffer) {
+        this.recordBuffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.blockStart = recordBuffer.position();
     }
 
     // ----------------------------------------------------------------------
@@ -189,23 +256,33 @@ public final class BCF2Decoder {
     private final Object decodeLiteralString(final int size) {
         assert size > 0;
 
-        // TODO -- assumes size > 0
-        final byte[] bytes = new byte[size]; // TODO -- in principle should just grab bytes from underlying array
-        try {
-            recordStream.read(bytes);
+        if ( recordBuffer.remaining() < size )
+            throw prematureEndOfBlock();
 
-            int goodLength = 0;
-            for ( ; goodLength < bytes.length ; goodLength++ )
-                if ( bytes[goodLength] == 0 ) break;
+        // decode straight out of the backing array when we have one, otherwise copy into our scratch space
+        final byte[] bytes;
+        final int offset;
+        if ( recordBuffer.hasArray() ) {
+            bytes = recordBuffer.array();
+            offset = recordBuffer.arrayOffset() + recordBuffer.position();
+            recordBuffer.position(recordBuffer.position() + size);
+        } else {
+            if ( stringScratch.length < size )
+                stringScratch = new byte[Math.max(size, 2 * stringScratch.length)];
+            recordBuffer.get(stringScratch, 0, size);
+            bytes = stringScratch;
+            offset = 0;
+        }
 
-            if ( goodLength == 0 )
-                return null;
-            else {
-                final String s = new String(bytes, 0, goodLength);
-                return BCF2Utils.isCollapsedString(s) ? BCF2Utils.exploreStringList(s) : s;
-            }
-        } catch ( IOException e ) {
-            throw new ReviewedStingException("readByte failure", e);
+        int goodLength = 0;
+        for ( ; goodLength < size ; goodLength++ )
+            if ( bytes[offset + goodLength] == 0 ) break;
+
+        if ( goodLength == 0 )
+            return null;
+        else {
+            final String s = new String(bytes, offset, goodLength);
+            return BCF2Utils.isCollapsedString(s) ? BCF2Utils.exploreStringList(s) : s;
         }
     }
 
@@ -234,9 +311,31 @@ public final class BCF2Decoder {
         return i == type.getMissingBytes() ? missingValue : i;
     }
 
+    /**
+     * Decode a typed single int, such as an offset into the dictionary, without boxing it
+     *
+     * @param missingValue the value to return if the int is missing
+     * @return
+     */
+    public final int decodeTypedInt(final int missingValue) {
+        final byte typeDescriptor = readTypeDescriptor();
+        if ( BCF2Utils.decodeSize(typeDescriptor) != 1 )
+            throw new UserException.MalformedBCF2("Expected a single typed integer but saw " + BCF2Utils.decodeSize(typeDescriptor) + " elements");
+        return decodeInt(typeDescriptor, missingValue);
+    }
+
     @Requires("type != null")
     public final int decodeInt(final BCF2Type type) {
-        return BCF2Utils.readInt(type.getSizeInBytes(), recordStream);
+        try {
+            switch ( type.getSizeInBytes() ) {
+                case 1: return recordBuffer.get();
+                case 2: return recordBuffer.getShort();
+                case 4: return recordBuffer.getInt();
+                default: throw new ReviewedStingException("Unexpected size during decoding");
+            }
+        } catch ( BufferUnderflowException e ) {
+            throw prematureEndOfBlock();
+        }
     }
 
     /**
@@ -295,6 +394,25 @@ public final class BCF2Decoder {
         return decodeIntArray(size, type, null);
     }
 
+    /**
+     * Skip over nValues values of size elements each, all encoded as typeDescriptor, without decoding them
+     *
+     * @param typeDescriptor the type of the values we are skipping
+     * @param size the number of elements in each value
+     * @param nValues the number of values to skip
+     */
+    @Requires({"size >= 0", "nValues >= 0"})
+    public final void skipTypedValues(final byte typeDescriptor, final int size, final int nValues) {
+        skipTypedValues(BCF2Utils.decodeType(typeDescriptor), (long)size * nValues);
+    }
+
+    private final void skipTypedValues(final BCF2Type type, final long nElements) {
+        final long nBytes = type.getSizeInBytes() * nElements;
+        if ( nBytes > recordBuffer.remaining() )
+            throw new UserException.MalformedBCF2("Failed to skip " + nBytes + " bytes of genotype data: premature end of record");
+        recordBuffer.position(recordBuffer.position() + (int)nBytes);
+    }
+
     public final double rawFloatToFloat(final int rawFloat) {
         return (double)Float.intBitsToFloat(rawFloat);
     }
@@ -315,23 +433,39 @@ public final class BCF2Decoder {
         return BCF2Utils.readInt(4, inputStream);
     }
 
+    /**
+     * Read the size of the next block from buffer, which is encoded little-endian regardless of the buffer's byte order
+     *
+     * @param buffer
+     * @return
+     */
+    public final int readBlockSize(final ByteBuffer buffer) {
+        if ( buffer.remaining() < 4 )
+            throw new UserException.MalformedBCF2("Failed to read the size of the next block: premature end of input");
+        final int size = buffer.getInt();
+        return buffer.order() == ByteOrder.LITTLE_ENDIAN ? size : Integer.reverseBytes(size);
+    }
+
     /**
      *
      * @param inputStream
      * @return
      */
     private final static byte[] readRecordBytes(final int blockSizeInBytes, final InputStream inputStream) {
-        assert blockSizeInBytes >= 0;
-
         final byte[] record = new byte[blockSizeInBytes];
+        readRecordBytes(record, blockSizeInBytes, inputStream);
+        return record;
+    }
+
+    private final static void readRecordBytes(final byte[] record, final int blockSizeInBytes, final InputStream inputStream) {
+        assert blockSizeInBytes >= 0 && blockSizeInBytes <= record.length;
+
         try {
-            final int bytesRead = inputStream.read(record);
+            final int bytesRead = inputStream.read(record, 0, blockSizeInBytes);
             validateReadBytes(bytesRead, blockSizeInBytes);
         } catch ( IOException e ) {
             throw new UserException.CouldNotReadInputFile("I/O error while reading BCF2 file", e);
         }
-
-        return record;
     }
 
     private final static void validateReadBytes(final int actuallyRead, final int expected) {
@@ -346,6 +480,14 @@ public final class BCF2Decoder {
     }
 
     public final byte readTypeDescriptor() {
-        return BCF2Utils.readByte(recordStream);
+        try {
+            return recordBuffer.get();
+        } catch ( BufferUnderflowException e ) {
+            throw prematureEndOfBlock();
+        }
+    }
+
+    private final UserException prematureEndOfBlock() {
+        return new UserException.MalformedBCF2("Failed to decode value: premature end of record block of " + getBlockSize() + " bytes");
     }
 }
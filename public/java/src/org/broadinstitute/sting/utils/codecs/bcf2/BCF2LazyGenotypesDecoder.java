@@ -26,6 +26,7 @@ package org.broadinstitute.sting.utils.codecs.bcf2;
 
 import com.google.java.contract.Requires;
 import org.apache.log4j.Logger;
+import org.broadinstitute.sting.utils.codecs.vcf.GenotypeSampleSubset;
 import org.broadinstitute.sting.utils.exceptions.UserException;
 import org.broadinstitute.sting.utils.variantcontext.*;
 
@@ -49,14 +50,79 @@ class BCF2LazyGenotypesDecoder implements LazyGenotypesContext.LazyParser {
     private final int nFields;
     private final GenotypeBuilder[] builders;
 
+    // if not null, we only decode the samples in this subset, and skip over the bytes of all of the others
+    private final GenotypeSampleSubset sampleSubset;
+    private final SampleRun[] sampleRuns;
+
     @Requires("codec.getHeader().getNGenotypeSamples() == builders.length")
     BCF2LazyGenotypesDecoder(final BCF2Codec codec, final List<Allele> alleles, final int nSamples,
                              final int nFields, final GenotypeBuilder[] builders) {
+        this(codec, alleles, nSamples, nFields, builders, null, null);
+    }
+
+    /**
+     * Create a decoder that only decodes the genotypes of the samples in sampleSubset
+     *
+     * @param builders one builder for each sample in sampleSubset, in file order
+     * @param sampleRuns the runs of included and excluded samples in the file, as computed by makeSampleRuns
+     */
+    @Requires({"sampleSubset == null || sampleSubset.size() == builders.length",
+            "(sampleSubset == null) == (sampleRuns == null)"})
+    BCF2LazyGenotypesDecoder(final BCF2Codec codec, final List<Allele> alleles, final int nSamples,
+                             final int nFields, final GenotypeBuilder[] builders,
+                             final GenotypeSampleSubset sampleSubset, final SampleRun[] sampleRuns) {
         this.codec = codec;
         this.siteAlleles = alleles;
         this.nSamples = nSamples;
         this.nFields = nFields;
         this.builders = builders;
+        this.sampleSubset = sampleSubset;
+        this.sampleRuns = sampleRuns;
+    }
+
+    /**
+     * A run of consecutive samples in the file that are either all decoded or all skipped.  Genotype
+     * fields in BCF2 are stored field by field with a fixed width value for every sample, so a run of
+     * samples we don't want can be skipped with a single seek in the record bytes.
+     */
+    static class SampleRun {
+        final int nSamples;
+        // the builders of the samples in this run, or null if this run is skipped
+        final GenotypeBuilder[] builders;
+
+        SampleRun(final int nSamples, final GenotypeBuilder[] builders) {
+            this.nSamples = nSamples;
+            this.builders = builders;
+        }
+    }
+
+    /**
+     * Compute the runs of decoded and skipped samples for sampleSubset
+     *
+     * @param sampleSubset the samples we want to decode
+     * @param builders the builders for the samples in sampleSubset, in file order
+     * @return an array of runs covering every sample in the file
+     */
+    static SampleRun[] makeSampleRuns(final GenotypeSampleSubset sampleSubset, final GenotypeBuilder[] builders) {
+        final List<SampleRun> runs = new ArrayList<SampleRun>();
+        int nextBuilder = 0;
+        int runStart = 0;
+
+        for ( int i = 1; i <= sampleSubset.getNFileSamples(); i++ ) {
+            final boolean runEnds = i == sampleSubset.getNFileSamples() || sampleSubset.includes(i) != sampleSubset.includes(runStart);
+            if ( runEnds ) {
+                final int runLength = i - runStart;
+                if ( sampleSubset.includes(runStart) ) {
+                    runs.add(new SampleRun(runLength, Arrays.copyOfRange(builders, nextBuilder, nextBuilder + runLength)));
+                    nextBuilder += runLength;
+                } else {
+                    runs.add(new SampleRun(runLength, null));
+                }
+                runStart = i;
+            }
+        }
+
+        return runs.toArray(new SampleRun[runs.size()]);
     }
 
     @Override
@@ -64,15 +130,15 @@ class BCF2LazyGenotypesDecoder implements LazyGenotypesContext.LazyParser {
         if ( logger.isDebugEnabled() )
             logger.debug("Decoding BCF genotypes for " + nSamples + " samples with " + nFields + " fields each");
 
-        // load our byte[] data into the decoder
+        // decode directly from the bytes of the genotypes block, without copying them
         final BCF2Decoder decoder = new BCF2Decoder(((BCF2Codec.LazyData)data).bytes);
 
-        for ( int i = 0; i < nSamples; i++ )
-            builders[i].reset(true);
+        for ( final GenotypeBuilder gb : builders )
+            gb.reset(true);
 
         for ( int i = 0; i < nFields; i++ ) {
             // get the field name
-            final int offset = (Integer) decoder.decodeTypedValue();
+            final int offset = decoder.decodeTypedInt(-1);
             final String field = codec.getDictionaryString(offset);
 
             // the type of each element
@@ -80,17 +146,36 @@ class BCF2LazyGenotypesDecoder implements LazyGenotypesContext.LazyParser {
             final int numElements = decoder.decodeNumberOfElements(typeDescriptor);
             final BCF2GenotypeFieldDecoders.Decoder fieldDecoder = codec.getGenotypeFieldDecoder(field);
             try {
-                fieldDecoder.decode(siteAlleles, field, decoder, typeDescriptor, numElements, builders);
+                if ( sampleRuns == null )
+                    fieldDecoder.decode(siteAlleles, field, decoder, typeDescriptor, numElements, builders);
+                else {
+                    for ( final SampleRun run : sampleRuns ) {
+                        if ( run.builders == null )
+                            decoder.skipTypedValues(typeDescriptor, numElements, run.nSamples);
+                        else
+                            fieldDecoder.decode(siteAlleles, field, decoder, typeDescriptor, numElements, run.builders);
+                    }
+                }
             } catch ( ClassCastException e ) {
                 throw new UserException.MalformedBCF2("BUG: expected encoding of field " + field
                         + " inconsistent with the value observed in the decoded value");
             }
         }
 
-        final ArrayList<Genotype> genotypes = new ArrayList<Genotype>(nSamples);
+        final List<String> sampleNamesInOrder = sampleSubset == null ? codec.getHeader().getSampleNamesInOrder() : sampleSubset.getSampleNamesInOrder();
+        final Map<String, Integer> sampleNameToOffset = sampleSubset == null ? codec.getHeader().getSampleNameToOffset() : sampleSubset.getSampleNameToOffset();
+
+        if ( builders.length >= ColumnarGenotypesContext.MIN_SAMPLES_FOR_COLUMNAR_STORAGE ) {
+            // large cohorts are stored in columns, copied straight out of the builders without making a Genotype for each sample
+            final ColumnarGenotypesContext.Builder columns = new ColumnarGenotypesContext.Builder(siteAlleles, builders.length);
+            for ( final GenotypeBuilder gb : builders )
+                columns.add(gb);
+            return new LazyGenotypesContext.LazyData(columns.make(sampleNamesInOrder, sampleNameToOffset), sampleNamesInOrder, sampleNameToOffset);
+        }
+
+        final ArrayList<Genotype> genotypes = new ArrayList<Genotype>(builders.length);
         for ( final GenotypeBuilder gb : builders )
             genotypes.add(gb.make());
-
-        return new LazyGenotypesContext.LazyData(genotypes, codec.getHeader().getSampleNamesInOrder(), codec.getHeader().getSampleNameToOffset());
+        return new LazyGenotypesContext.LazyData(genotypes, sampleNamesInOrder, sampleNameToOffset);
     }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.broadinstitute.sting.utils.codecs.bcf2;
+
+import com.google.java.contract.Requires;
+import org.broad.tribble.CloseableTribbleIterator;
+import org.broad.tribble.FeatureCodecHeader;
+import org.broad.tribble.readers.PositionalBufferedStream;
+import org.broadinstitute.sting.utils.codecs.vcf.VCFHeader;
+import org.broadinstitute.sting.utils.exceptions.UserException;
+import org.broadinstitute.sting.utils.variantcontext.VariantContext;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over all of the records of an uncompressed BCF2 file by memory-mapping it
+ *
+ * The records are decoded by BCF2Codec directly out of the mapped pages, so no record bytes are ever
+ * copied onto the java heap.  The lazily decoded genotypes of each VariantContext keep a view of the
+ * mapping, which stays valid for as long as the VariantContext is reachable.
+ *
+ * Files are mapped in windows of about windowSize bytes, as a single mapping cannot exceed 2 GB.
+ */
+public class MemoryMappedBCF2Iterator implements CloseableTribbleIterator<VariantContext> {
+    /**
+     * Default number of bytes of the file mapped at a time
+     */
+    public final static int DEFAULT_WINDOW_SIZE = 1 << 28;
+
+    /**
+     * Each record starts with the int32 sizes of its sites and genotypes blocks
+     */
+    private final static int RECORD_PREFIX_SIZE = 8;
+
+    private final File file;
+    private final BCF2Codec codec;
+    private final VCFHeader header;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int windowSize;
+
+    /**
+     * The currently mapped window of the file, which starts at byte windowStart of the file
+     */
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    private VariantContext nextRecord = null;
+
+    /**
+     * Create an iterator over all of the records in file, mapping windows of DEFAULT_WINDOW_SIZE bytes
+     *
+     * @param file an uncompressed BCF2 file
+     * @param codec the codec used to decode the header and records of file
+     */
+    public MemoryMappedBCF2Iterator(final File file, final BCF2Codec codec) {
+        this(file, codec, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Create an iterator over all of the records in file, mapping windows of about windowSize bytes
+     *
+     * @param file an uncompressed BCF2 file
+     * @param codec the codec used to decode the header and records of file
+     * @param windowSize the number of bytes to map at a time.  Windows are extended when a record doesn't fit.
+     */
+    @Requires({"file != null", "codec != null", "windowSize > 0"})
+    public MemoryMappedBCF2Iterator(final File file, final BCF2Codec codec, final int windowSize) {
+        this.file = file;
+        this.codec = codec;
+        this.windowSize = windowSize;
+
+        try {
+            final PositionalBufferedStream headerStream = new PositionalBufferedStream(new FileInputStream(file));
+            final FeatureCodecHeader codecHeader = codec.readHeader(headerStream);
+            headerStream.close();
+            header = (VCFHeader)codecHeader.getHeaderValue();
+
+            randomAccessFile = new RandomAccessFile(file, "r");
+            channel = randomAccessFile.getChannel();
+            fileSize = channel.size();
+            mapWindow(codecHeader.getHeaderEnd(), 0);
+        } catch ( IOException e ) {
+            throw new UserException.CouldNotReadInputFile(file, "Unable to memory-map BCF2 file", e);
+        }
+
+        advance();
+    }
+
+    /**
+     * @return the header of the BCF2 file
+     */
+    public VCFHeader getHeader() {
+        return header;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextRecord != null;
+    }
+
+    @Override
+    public VariantContext next() {
+        if ( nextRecord == null ) throw new NoSuchElementException("No more records in " + file);
+        final VariantContext record = nextRecord;
+        advance();
+        return record;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Cannot remove records from a BCF2 file");
+    }
+
+    @Override
+    public Iterator<VariantContext> iterator() {
+        return this;
+    }
+
+    @Override
+    public void close() {
+        nextRecord = null;
+        window = null;
+        try {
+            channel.close();
+            randomAccessFile.close();
+        } catch ( IOException e ) {
+            throw new UserException.CouldNotReadInputFile(file, "Unable to close BCF2 file", e);
+        }
+    }
+
+    /**
+     * Decode the record at our position in the file into nextRecord, or set it to null at the end of the file
+     */
+    private void advance() {
+        final long recordStart = windowStart + window.position();
+        if ( recordStart >= fileSize ) {
+            nextRecord = null;
+            return;
+        }
+
+        if ( window.remaining() < RECORD_PREFIX_SIZE )
+            ensureMapped(recordStart, RECORD_PREFIX_SIZE);
+
+        final long sitesBlockSize = window.getInt(window.position()) & 0xFFFFFFFFL;
+        final long genotypesBlockSize = window.getInt(window.position() + 4) & 0xFFFFFFFFL;
+        final long recordSize = RECORD_PREFIX_SIZE + sitesBlockSize + genotypesBlockSize;
+        if ( window.remaining() < recordSize )
+            ensureMapped(recordStart, recordSize);
+
+        nextRecord = codec.decode(window);
+    }
+
+    /**
+     * Map a new window starting at recordStart that contains at least the next recordSize bytes of the file
+     */
+    private void ensureMapped(final long recordStart, final long recordSize) {
+        if ( recordStart + recordSize > fileSize )
+            throw new UserException.MalformedBCF2(String.format("Record at byte %d of %s needs %d bytes but the file ends after %d bytes",
+                    recordStart, file, recordSize, fileSize - recordStart));
+        if ( recordSize > Integer.MAX_VALUE )
+            throw new UserException.MalformedBCF2(String.format("Record at byte %d of %s is too large to decode (%d bytes)", recordStart, file, recordSize));
+
+        try {
+            mapWindow(recordStart, recordSize);
+        } catch ( IOException e ) {
+            throw new UserException.CouldNotReadInputFile(file, "Unable to memory-map BCF2 file", e);
+        }
+    }
+
+    private void mapWindow(final long start, final long minSize) throws IOException {
+        final long size = Math.min(Math.max(windowSize, minSize), fileSize - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        windowStart = start;
+    }
+}
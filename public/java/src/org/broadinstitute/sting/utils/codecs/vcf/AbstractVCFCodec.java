@@ -20,7 +20,7 @@ import java.util.*;
 import java.util.zip.GZIPInputStream;
 
 
-public abstract class AbstractVCFCodec extends AsciiFeatureCodec<VariantContext> implements NameAwareCodec {
+public abstract class AbstractVCFCodec extends AsciiFeatureCodec<VariantContext> implements NameAwareCodec, SampleSubsetAwareCodec {
     public final static int MAX_ALLELE_SIZE_BEFORE_WARNING = (int)Math.pow(2, 20);
 
     protected final static Logger log = Logger.getLogger(AbstractVCFCodec.class);
@@ -39,6 +39,9 @@ public abstract class AbstractVCFCodec extends AsciiFeatureCodec<VariantContext>
     protected String[] infoFieldArray = new String[1000];
     protected String[] infoValueArray = new String[1000];
 
+    // gathers the fields of each sample of records stored in columns, which are copied out of it without making a Genotype
+    protected final GenotypeBuilder columnarGenotypeBuilder = new GenotypeBuilder();
+
     // for performance testing purposes
     public static boolean validate = true;
 
@@ -60,6 +63,13 @@ public abstract class AbstractVCFCodec extends AsciiFeatureCodec<VariantContext>
 
     protected boolean warnedAboutNoEqualsForNonFlag = false;
 
+    /**
+     * The samples whose genotypes we should decode, or null to decode all of them.  The subset
+     * itself depends on the header, so it's only created once both are available
+     */
+    protected Collection<String> samplesToDecode = null;
+    protected GenotypeSampleSubset sampleSubset = null;
+
     /**
      * If true, then we'll magically fix up VCF headers on the fly when we read them in
      */
@@ -177,9 +187,24 @@ public abstract class AbstractVCFCodec extends AsciiFeatureCodec<VariantContext>
         this.header = new VCFHeader(metaData, sampleNames);
         if ( doOnTheFlyModifications )
             this.header = VCFStandardHeaderLines.repairStandardHeaderLines(this.header);
+        updateSampleSubset();
         return this.header;
     }
 
+    /**
+     * @see SampleSubsetAwareCodec#setSamplesToDecode(java.util.Collection)
+     */
+    @Override
+    public void setSamplesToDecode(final Collection<String> samples) {
+        this.samplesToDecode = samples;
+        updateSampleSubset();
+    }
+
+    protected void updateSampleSubset() {
+        sampleSubset = samplesToDecode == null || header == null ? null : new GenotypeSampleSubset(header, samplesToDecode);
+        genotypeParts = null; // the number of genotype columns we decode may have changed
+    }
+
     /**
      * the fast decode function
      * @param line the line of text for the record
@@ -198,6 +223,14 @@ public abstract class AbstractVCFCodec extends AsciiFeatureCodec<VariantContext>
         return decodeLine(line, true);
     }
 
+    /**
+     * Sets the number of lines of the file before the next line this codec decodes, for decoders that hand it
+     * lines from the middle of the file, so that errors report the real line numbers
+     */
+    void setLineNo(final int lineNo) {
+        this.lineNo = lineNo;
+    }
+
     private final VariantContext decodeLine(final String line, final boolean includeGenotypes) {
         // the same line reader is not used for parsing the header and parsing lines, if we see a #, we've seen a header line
         if (line.startsWith(VCFHeader.HEADER_INDICATOR)) return null;
@@ -263,7 +296,7 @@ public abstract class AbstractVCFCodec extends AsciiFeatureCodec<VariantContext>
         // do we have genotyping data
         if (parts.length > NUM_STANDARD_FIELDS && includeGenotypes) {
             final LazyGenotypesContext.LazyParser lazyParser = new LazyVCFGenotypesParser(alleles, chr, pos);
-            final int nGenotypes = header.getNGenotypeSamples();
+            final int nGenotypes = sampleSubset == null ? header.getNGenotypeSamples() : sampleSubset.size();
             LazyGenotypesContext lazy = new LazyGenotypesContext(lazyParser, parts[8], nGenotypes);
 
             // did we resort the sample names?  If so, we need to load the genotype data
@@ -592,21 +625,33 @@ public abstract class AbstractVCFCodec extends AsciiFeatureCodec<VariantContext>
                                                               final List<Allele> alleles,
                                                               final String chr,
                                                               final int pos) {
+        final int nFileColumns = header.getColumnCount() - NUM_STANDARD_FIELDS;
         if (genotypeParts == null)
-            genotypeParts = new String[header.getColumnCount() - NUM_STANDARD_FIELDS];
+            genotypeParts = new String[sampleSubset == null ? nFileColumns : sampleSubset.size() + 1];
+
+        final int nColumnsSeen;
+        final int nParts;
+        final List<String> sampleNames;
+        if ( sampleSubset == null ) {
+            nParts = nColumnsSeen = ParsingUtils.split(str, genotypeParts, VCFConstants.FIELD_SEPARATOR_CHAR);
+            sampleNames = header.getGenotypeSamples();
+        } else {
+            nColumnsSeen = splitSampleSubset(str, genotypeParts);
+            nParts = sampleSubset.size() + 1;
+            sampleNames = sampleSubset.getSamplesInFileOrder();
+        }
 
-        int nParts = ParsingUtils.split(str, genotypeParts, VCFConstants.FIELD_SEPARATOR_CHAR);
-        if ( nParts != genotypeParts.length )
-            generateException("there are " + (nParts-1) + " genotypes while the header requires that " + (genotypeParts.length-1) + " genotypes be present for all records", lineNo);
+        if ( nColumnsSeen != nFileColumns )
+            generateException("there are " + (nColumnsSeen-1) + " genotypes while the header requires that " + (nFileColumns-1) + " genotypes be present for all records", lineNo);
 
-        ArrayList<Genotype> genotypes = new ArrayList<Genotype>(nParts);
+        // large cohorts are stored in columns, to avoid holding onto tens of thousands of Genotype objects
+        final int nSamples = nParts - 1;
+        final ArrayList<Genotype> genotypes = nSamples < ColumnarGenotypesContext.MIN_SAMPLES_FOR_COLUMNAR_STORAGE ? new ArrayList<Genotype>(nParts) : null;
+        final ColumnarGenotypesContext.Builder columns = genotypes == null ? new ColumnarGenotypesContext.Builder(alleles, nSamples) : null;
 
         // get the format keys
         int nGTKeys = ParsingUtils.split(genotypeParts[0], genotypeKeyArray, VCFConstants.GENOTYPE_FIELD_SEPARATOR_CHAR);
 
-        // cycle through the sample names
-        Iterator<String> sampleNameIterator = header.getGenotypeSamples().iterator();
-
         // clear out our allele mapping
         alleleMap.clear();
 
@@ -614,8 +659,15 @@ public abstract class AbstractVCFCodec extends AsciiFeatureCodec<VariantContext>
         for (int genotypeOffset = 1; genotypeOffset < nParts; genotypeOffset++) {
             int GTValueSplitSize = ParsingUtils.split(genotypeParts[genotypeOffset], GTValueArray, VCFConstants.GENOTYPE_FIELD_SEPARATOR_CHAR);
 
-            final String sampleName = sampleNameIterator.next();
-            final GenotypeBuilder gb = new GenotypeBuilder(sampleName);
+            final String sampleName = sampleNames.get(genotypeOffset - 1);
+            final GenotypeBuilder gb;
+            if ( columns == null )
+                gb = new GenotypeBuilder(sampleName);
+            else {
+                gb = columnarGenotypeBuilder;
+                gb.reset(false);
+                gb.name(sampleName);
+            }
 
             // check to see if the value list is longer than the key list, which is a problem
             if (nGTKeys < GTValueSplitSize)
@@ -672,18 +724,54 @@ public abstract class AbstractVCFCodec extends AsciiFeatureCodec<VariantContext>
 
             // add it to the list
             try {
-                genotypes.add(gb.make());
+                if ( genotypes != null )
+                    genotypes.add(gb.make());
+                else
+                    columns.add(gb);
             } catch (TribbleException e) {
                 throw new TribbleException.InternalCodecException(e.getMessage() + ", at position " + chr+":"+pos);
             }
         }
 
-        return new LazyGenotypesContext.LazyData(genotypes, header.getSampleNamesInOrder(), header.getSampleNameToOffset());
+        final List<String> sampleNamesInOrder = sampleSubset == null ? header.getSampleNamesInOrder() : sampleSubset.getSampleNamesInOrder();
+        final Map<String, Integer> sampleNameToOffset = sampleSubset == null ? header.getSampleNameToOffset() : sampleSubset.getSampleNameToOffset();
+        if ( genotypes != null )
+            return new LazyGenotypesContext.LazyData(genotypes, sampleNamesInOrder, sampleNameToOffset);
+        else
+            return new LazyGenotypesContext.LazyData(columns.make(sampleNamesInOrder, sampleNameToOffset), sampleNamesInOrder, sampleNameToOffset);
+    }
+
+    /**
+     * Split the FORMAT column and the columns of the samples in sampleSubset out of the genotypes part of
+     * a VCF line.  The columns of all other samples are skipped over without creating any strings for them.
+     *
+     * @param str the FORMAT and sample columns of a VCF line
+     * @param columns where to put the FORMAT column followed by the columns of the samples in the subset
+     * @return the total number of columns in str, including those we skipped
+     */
+    private int splitSampleSubset(final String str, final String[] columns) {
+        int nColumns = 0, nKept = 0, start = 0;
+        final int length = str.length();
+
+        while ( start <= length ) {
+            int end = str.indexOf(VCFConstants.FIELD_SEPARATOR_CHAR, start);
+            if ( end == -1 ) end = length;
+
+            // column 0 is the FORMAT field, which we always need
+            if ( nColumns == 0 || (nColumns - 1 < sampleSubset.getNFileSamples() && sampleSubset.includes(nColumns - 1)) )
+                columns[nKept++] = str.substring(start, end);
+
+            nColumns++;
+            start = end + 1;
+        }
+
+        return nColumns;
     }
 
 
-    private final static String[] INT_DECODE_ARRAY = new String[10000];
-    private final static int[] decodeInts(final String string) {
+    // per codec rather than static, so that codecs running on different threads don't share it
+    private final String[] INT_DECODE_ARRAY = new String[10000];
+    private final int[] decodeInts(final String string) {
         final int nValues = ParsingUtils.split(string, INT_DECODE_ARRAY, ',');
         final int[] values = new int[nValues];
         for ( int i = 0; i < nValues; i++ )
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.broadinstitute.sting.utils.codecs.vcf;
+
+import com.google.java.contract.Requires;
+
+import java.util.*;
+
+/**
+ * The subset of the samples in a VCF or BCF2 file whose genotypes should actually be decoded
+ *
+ * Codecs use this to skip the genotype fields of samples that aren't needed by the analysis, so
+ * for example selecting 50 samples out of a 10k sample file costs us only the decoding of 50 samples.
+ * The decoded genotypes are in the same order as they appear in the file, restricted to the subset.
+ */
+public final class GenotypeSampleSubset {
+    private final boolean[] includeSample;
+    private final ArrayList<String> samplesInFileOrder;
+    private final ArrayList<String> sampleNamesInOrder;
+    private final HashMap<String, Integer> sampleNameToOffset;
+
+    /**
+     * Create the subset of samples from header that are in samplesToDecode.  Samples in samplesToDecode
+     * that aren't in the header are simply ignored.
+     *
+     * @param header the header of the file being decoded
+     * @param samplesToDecode the names of the samples whose genotypes we want
+     */
+    @Requires({"header != null", "samplesToDecode != null"})
+    public GenotypeSampleSubset(final VCFHeader header, final Collection<String> samplesToDecode) {
+        final Set<String> wanted = samplesToDecode instanceof Set ? (Set<String>)samplesToDecode : new HashSet<String>(samplesToDecode);
+        final List<String> fileSamples = header.getGenotypeSamples();
+
+        includeSample = new boolean[fileSamples.size()];
+        samplesInFileOrder = new ArrayList<String>();
+        sampleNameToOffset = new HashMap<String, Integer>();
+        for ( int i = 0; i < fileSamples.size(); i++ ) {
+            final String sample = fileSamples.get(i);
+            if ( wanted.contains(sample) ) {
+                includeSample[i] = true;
+                sampleNameToOffset.put(sample, samplesInFileOrder.size());
+                samplesInFileOrder.add(sample);
+            }
+        }
+
+        sampleNamesInOrder = new ArrayList<String>(samplesInFileOrder);
+        Collections.sort(sampleNamesInOrder);
+    }
+
+    /**
+     * @param sampleIndex the index of a sample among all of the samples in the file
+     * @return true if we should decode the genotype of the sampleIndex-th sample in the file
+     */
+    public boolean includes(final int sampleIndex) {
+        return includeSample[sampleIndex];
+    }
+
+    /**
+     * @return the number of samples in the file (not just in the subset)
+     */
+    public int getNFileSamples() {
+        return includeSample.length;
+    }
+
+    /**
+     * @return the number of samples whose genotypes will be decoded
+     */
+    public int size() {
+        return samplesInFileOrder.size();
+    }
+
+    /**
+     * @return the samples in the subset, in the order they appear in the file
+     */
+    public List<String> getSamplesInFileOrder() {
+        return samplesInFileOrder;
+    }
+
+    /**
+     * @return the samples in the subset in sorted order, for use by the GenotypesContext
+     */
+    public ArrayList<String> getSampleNamesInOrder() {
+        return sampleNamesInOrder;
+    }
+
+    /**
+     * @return a map from sample name to its offset among the decoded genotypes
+     */
+    public HashMap<String, Integer> getSampleNameToOffset() {
+        return sampleNameToOffset;
+    }
+}
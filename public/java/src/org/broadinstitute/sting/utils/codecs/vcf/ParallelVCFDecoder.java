@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.broadinstitute.sting.utils.codecs.vcf;
+
+import com.google.java.contract.Requires;
+import org.apache.log4j.Logger;
+import org.broad.tribble.CloseableTribbleIterator;
+import org.broad.tribble.readers.PositionalBufferedStream;
+import org.broad.tribble.util.BlockCompressedInputStream;
+import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
+import org.broadinstitute.sting.utils.exceptions.UserException;
+import org.broadinstitute.sting.utils.variantcontext.LazyGenotypesContext;
+import org.broadinstitute.sting.utils.variantcontext.VariantContext;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Read-ahead VCF decoder that spreads the work of turning lines into VariantContexts over a pool of threads
+ *
+ * The input is sliced into line-aligned chunks of roughly chunkSize bytes on the calling thread.  Each chunk
+ * is handed to a worker, which decodes every line in the chunk with its own codec (VCF codecs are not thread safe)
+ * and fully decodes the genotypes, so that the expensive genotype splitting never happens on the traversal thread.
+ * Chunks are consumed in submission order, so the records come out of this iterator in exactly the order in which
+ * they appear in the file.
+ *
+ * Works on plain text, gzipped and block-gzipped VCF files.
+ */
+public class ParallelVCFDecoder implements CloseableTribbleIterator<VariantContext> {
+    private final static Logger logger = Logger.getLogger(ParallelVCFDecoder.class);
+
+    /**
+     * Default approximate number of bytes of VCF text we hand to each worker at a time
+     */
+    public final static int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Creates fresh, fully configured (name, header repairs, etc) codecs for the worker threads
+     */
+    public interface CodecFactory {
+        public AbstractVCFCodec createCodec();
+    }
+
+    private final File file;
+    private final InputStream input;
+    private final byte[] headerBytes;
+    private final VCFHeader header;
+    private final ExecutorService workers;
+    private final int maxChunksInFlight;
+    private final int chunkSize;
+
+    /**
+     * Each worker thread gets its own codec, initialized from the header bytes of the file
+     */
+    private final ThreadLocal<AbstractVCFCodec> workerCodec;
+
+    /**
+     * Chunks waiting to be decoded (or already decoded), in file order
+     */
+    private final LinkedList<Future<List<VariantContext>>> pending = new LinkedList<Future<List<VariantContext>>>();
+
+    /**
+     * The trailing, incomplete line of the last chunk we read, which must be prepended to the next chunk
+     */
+    private byte[] carryOver = new byte[0];
+    private boolean inputExhausted = false;
+
+    /**
+     * The number of lines of the file, including the header, before the next chunk
+     */
+    private int linesBeforeNextChunk;
+
+    private Iterator<VariantContext> currentChunk = Collections.<VariantContext>emptyList().iterator();
+    private VariantContext nextRecord = null;
+
+    /**
+     * Create a new parallel decoder reading from file
+     *
+     * @param file the VCF file (plain, gzipped or block-gzipped) to read
+     * @param codecFactory a factory that produces a codec for each worker thread
+     * @param nThreads the number of decoding threads to use
+     */
+    public ParallelVCFDecoder(final File file, final CodecFactory codecFactory, final int nThreads) {
+        this(file, codecFactory, nThreads, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Create a new parallel decoder reading from file, handing chunks of about chunkSize bytes to each worker
+     *
+     * @param file the VCF file (plain, gzipped or block-gzipped) to read
+     * @param codecFactory a factory that produces a codec for each worker thread
+     * @param nThreads the number of decoding threads to use
+     * @param chunkSize the approximate number of bytes in each chunk
+     */
+    @Requires({"file != null", "codecFactory != null", "nThreads > 0", "chunkSize > 0"})
+    public ParallelVCFDecoder(final File file, final CodecFactory codecFactory, final int nThreads, final int chunkSize) {
+        this.file = file;
+        this.maxChunksInFlight = 2 * nThreads;
+        this.chunkSize = chunkSize;
+
+        try {
+            input = openInputStream(file);
+            headerBytes = readHeaderBytes(input);
+            linesBeforeNextChunk = countLines(headerBytes);
+        } catch ( IOException e ) {
+            throw new UserException.CouldNotReadInputFile(file, "Unable to read VCF header", e);
+        }
+
+        header = decodeHeader(codecFactory.createCodec());
+
+        workerCodec = new ThreadLocal<AbstractVCFCodec>() {
+            @Override
+            protected AbstractVCFCodec initialValue() {
+                final AbstractVCFCodec codec = codecFactory.createCodec();
+                decodeHeader(codec);
+                return codec;
+            }
+        };
+
+        workers = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ParallelVCFDecoder-" + file.getName());
+                thread.setDaemon(true); // never keep the JVM alive just because a reader wasn't closed
+                return thread;
+            }
+        });
+
+        logger.info(String.format("Decoding %s with %d threads", file, nThreads));
+        fillPipeline();
+        nextRecord = advance();
+    }
+
+    /**
+     * @return the VCF header of the file we are reading
+     */
+    public VCFHeader getHeader() {
+        return header;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextRecord != null;
+    }
+
+    @Override
+    public VariantContext next() {
+        if ( nextRecord == null ) throw new NoSuchElementException("No more records in " + file);
+        final VariantContext result = nextRecord;
+        nextRecord = advance();
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("ParallelVCFDecoder does not support remove");
+    }
+
+    @Override
+    public Iterator<VariantContext> iterator() {
+        return this;
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        pending.clear();
+        try {
+            input.close();
+        } catch ( IOException e ) {
+            // nothing to do, we are shutting down anyway
+        }
+    }
+
+    // --------------------------------------------------------------------------------
+    //
+    // chunk management
+    //
+    // --------------------------------------------------------------------------------
+
+    /**
+     * @return the next record in file order, or null if we have consumed all of the chunks
+     */
+    private VariantContext advance() {
+        while ( ! currentChunk.hasNext() ) {
+            if ( pending.isEmpty() )
+                return null;
+            currentChunk = waitForChunk(pending.removeFirst()).iterator();
+            fillPipeline();
+        }
+        return currentChunk.next();
+    }
+
+    /**
+     * Keep up to maxChunksInFlight chunks submitted to the workers, as long as there's input left
+     */
+    private void fillPipeline() {
+        while ( ! inputExhausted && pending.size() < maxChunksInFlight ) {
+            final byte[] chunk = readNextChunk();
+            if ( chunk.length > 0 ) {
+                pending.add(workers.submit(new ChunkDecoder(chunk, linesBeforeNextChunk)));
+                linesBeforeNextChunk += countLines(chunk);
+            }
+        }
+    }
+
+    private List<VariantContext> waitForChunk(final Future<List<VariantContext>> future) {
+        try {
+            return future.get();
+        } catch ( InterruptedException e ) {
+            throw new ReviewedStingException("Interrupted while waiting for VCF records to be decoded", e);
+        } catch ( ExecutionException e ) {
+            // propagate the original exception (such as MalformedVCF) when we can
+            if ( e.getCause() instanceof RuntimeException )
+                throw (RuntimeException)e.getCause();
+            throw new ReviewedStingException("Failed to decode VCF records from " + file, e.getCause());
+        }
+    }
+
+    /**
+     * Read the next line-aligned chunk of the input.  All lines in the returned chunk are complete; the
+     * remainder of the last line read is held in carryOver until the next call.  At the end of the input the
+     * final carry over is returned, whether or not it ends in a newline.
+     *
+     * @return a byte array containing only complete lines, possibly empty
+     */
+    private byte[] readNextChunk() {
+        try {
+            final byte[] buffer = new byte[carryOver.length + chunkSize];
+            System.arraycopy(carryOver, 0, buffer, 0, carryOver.length);
+            int size = carryOver.length;
+
+            while ( size < buffer.length ) {
+                final int nRead = input.read(buffer, size, buffer.length - size);
+                if ( nRead == -1 ) {
+                    inputExhausted = true;
+                    break;
+                }
+                size += nRead;
+            }
+
+            if ( inputExhausted ) {
+                carryOver = new byte[0];
+                return Arrays.copyOf(buffer, size);
+            }
+
+            int lastNewline = size - 1;
+            while ( lastNewline >= 0 && buffer[lastNewline] != '\n' )
+                lastNewline--;
+
+            // a single line longer than the buffer: keep reading until we find the end of the line
+            if ( lastNewline < 0 ) {
+                carryOver = Arrays.copyOf(buffer, size);
+                return new byte[0];
+            }
+
+            carryOver = Arrays.copyOfRange(buffer, lastNewline + 1, size);
+            return lastNewline + 1 == buffer.length ? buffer : Arrays.copyOf(buffer, lastNewline + 1);
+        } catch ( IOException e ) {
+            throw new UserException.CouldNotReadInputFile(file, "Unable to read VCF records", e);
+        }
+    }
+
+    private static int countLines(final byte[] bytes) {
+        int nLines = 0;
+        for ( final byte b : bytes )
+            if ( b == '\n' )
+                nLines++;
+        return nLines;
+    }
+
+    /**
+     * Decodes all of the lines in a single chunk on a worker thread
+     */
+    private class ChunkDecoder implements Callable<List<VariantContext>> {
+        private final byte[] chunk;
+        private final int linesBeforeChunk;
+
+        /**
+         * @param chunk the complete lines to decode
+         * @param linesBeforeChunk the number of lines of the file before chunk, so the codec can report real line numbers
+         */
+        private ChunkDecoder(final byte[] chunk, final int linesBeforeChunk) {
+            this.chunk = chunk;
+            this.linesBeforeChunk = linesBeforeChunk;
+        }
+
+        @Override
+        public List<VariantContext> call() {
+            final AbstractVCFCodec codec = workerCodec.get();
+            final List<VariantContext> records = new ArrayList<VariantContext>(chunk.length / 256 + 1);
+
+            int lineStart = 0, lineNo = linesBeforeChunk;
+            while ( lineStart < chunk.length ) {
+                codec.setLineNo(lineNo++);
+                int lineEnd = lineStart;
+                while ( lineEnd < chunk.length && chunk[lineEnd] != '\n' )
+                    lineEnd++;
+
+                // strip a windows-style carriage return, as the AsciiLineReader does
+                final int textEnd = lineEnd > lineStart && chunk[lineEnd-1] == '\r' ? lineEnd - 1 : lineEnd;
+                if ( textEnd > lineStart ) {
+                    final VariantContext vc = codec.decode(asciiString(chunk, lineStart, textEnd - lineStart));
+                    if ( vc != null ) {
+                        // decode the genotypes here, so the traversal thread never has to
+                        if ( vc.getGenotypes() instanceof LazyGenotypesContext )
+                            ((LazyGenotypesContext)vc.getGenotypes()).decode();
+                        records.add(vc);
+                    }
+                }
+
+                lineStart = lineEnd + 1;
+            }
+
+            return records;
+        }
+    }
+
+    // --------------------------------------------------------------------------------
+    //
+    // input and header handling
+    //
+    // --------------------------------------------------------------------------------
+
+    private static InputStream openInputStream(final File file) throws IOException {
+        final InputStream raw = new BufferedInputStream(new FileInputStream(file));
+        raw.mark(4096);
+        final boolean isBlockCompressed = BlockCompressedInputStream.isValidFile(raw);
+        raw.reset();
+        if ( isBlockCompressed )
+            return new BlockCompressedInputStream(raw);
+        else if ( file.getName().endsWith(".gz") )
+            return new BufferedInputStream(new GZIPInputStream(raw));
+        else
+            return raw;
+    }
+
+    /**
+     * Reads all of the header lines (those starting with #) from the start of input, leaving the
+     * stream positioned at the first record
+     *
+     * @param input the stream to read
+     * @return the raw bytes of the header
+     * @throws IOException if the stream cannot be read
+     */
+    private static byte[] readHeaderBytes(final InputStream input) throws IOException {
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+
+        while ( true ) {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ( (b = input.read()) != -1 ) {
+                line.write(b);
+                if ( b == '\n' ) break;
+            }
+
+            final byte[] lineBytes = line.toByteArray();
+            if ( lineBytes.length == 0 || lineBytes[0] != '#' )
+                throw new UserException.MalformedVCFHeader("We never saw the required CHROM header line (starting with one #) for the input VCF file");
+            header.write(lineBytes);
+
+            // the single # line (#CHROM...) is always the last line of the header
+            if ( lineBytes.length > 1 && lineBytes[1] != '#' )
+                return header.toByteArray();
+        }
+    }
+
+    private VCFHeader decodeHeader(final AbstractVCFCodec codec) {
+        try {
+            final PositionalBufferedStream pbs = new PositionalBufferedStream(new ByteArrayInputStream(headerBytes));
+            final VCFHeader vcfHeader = (VCFHeader)codec.readHeader(pbs).getHeaderValue();
+            pbs.close();
+            return vcfHeader;
+        } catch ( IOException e ) {
+            throw new UserException.CouldNotReadInputFile(file, "Unable to read VCF header", e);
+        }
+    }
+
+    /**
+     * Equivalent to the AsciiLineReader's conversion of bytes to chars
+     */
+    @SuppressWarnings("deprecation")
+    private static String asciiString(final byte[] bytes, final int offset, final int length) {
+        return new String(bytes, 0, offset, length);
+    }
+}
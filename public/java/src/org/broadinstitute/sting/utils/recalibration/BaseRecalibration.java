@@ -30,8 +30,6 @@ import net.sf.samtools.SAMUtils;
 import org.broadinstitute.sting.gatk.walkers.bqsr.*;
 import org.broadinstitute.sting.utils.MathUtils;
 import org.broadinstitute.sting.utils.QualityUtils;
-import org.broadinstitute.sting.utils.collections.NestedIntegerArray;
-import org.broadinstitute.sting.utils.collections.NestedHashMap;
 import org.broadinstitute.sting.utils.exceptions.UserException;
 import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
 
@@ -46,7 +44,16 @@ import java.io.File;
 
 public class BaseRecalibration {
     private final static int MAXIMUM_RECALIBRATED_READ_LENGTH = 5000;
-    private final ReadCovariates readCovariates;
+
+    /**
+     * Each thread recalibrating reads needs its own buffer for the covariates of the read
+     */
+    private final ThreadLocal<ReadCovariates> readCovariates = new ThreadLocal<ReadCovariates>() {
+        @Override
+        protected ReadCovariates initialValue() {
+            return new ReadCovariates(MAXIMUM_RECALIBRATED_READ_LENGTH, requestedCovariates.length);
+        }
+    };
 
     private final QuantizationInfo quantizationInfo;                                                                    // histogram containing the map for qual quantization (calculated after recalibration is done)
     private final RecalibrationTables recalibrationTables;
@@ -56,11 +63,17 @@ public class BaseRecalibration {
     private final int preserveQLessThan;
     private final boolean emitOriginalQuals;
 
-    private static final NestedHashMap[] qualityScoreByFullCovariateKey = new NestedHashMap[EventType.values().length]; // Caches the result of performSequentialQualityCalculation(..) for all sets of covariate values.
-    static {
-        for (int i = 0; i < EventType.values().length; i++)
-            qualityScoreByFullCovariateKey[i] = new NestedHashMap();
-    }
+    /**
+     * The parts of the recalibration that only depend on the read group, the reported quality and the event type,
+     * precomputed for every combination of them at load time and indexed like the quality score table:
+     * the reported quality shifted by the global and reported quality deltas, the shift itself, and the final
+     * quantized quality of a base none of whose optional covariates are in the tables
+     */
+    private final double[] shiftedQuals;
+    private final double[] qualShifts;
+    private final byte[] recalibratedQualsWithoutCovariates;
+
+    private final byte[] quantizedQuals;                                                                                // the quantization map as an array, recalibrated qual -> quantized qual
 
     /**
      * Constructor using a GATK Report file
@@ -81,7 +94,33 @@ public class BaseRecalibration {
         else if (quantizationLevels > 0 && quantizationLevels != quantizationInfo.getQuantizationLevels())              // any other positive value means, we want a different quantization than the one pre-calculated in the recalibration report. Negative values mean the user did not provide a quantization argument, and just wnats to use what's in the report.
             quantizationInfo.quantizeQualityScores(quantizationLevels);
 
-        readCovariates = new ReadCovariates(MAXIMUM_RECALIBRATED_READ_LENGTH, requestedCovariates.length);
+        quantizedQuals = new byte[quantizationInfo.getQuantizedQuals().size()];
+        for (int i = 0; i < quantizedQuals.length; i++)
+            quantizedQuals[i] = quantizationInfo.getQuantizedQuals().get(i);
+
+        for (int i = 0; i < recalibrationTables.numTables(); i++)                                                       // the tables are only read from now on, possibly by several threads
+            recalibrationTables.getTable(i).calculateEmpiricalQualities();
+
+        final RecalDatumTable qualTable = recalibrationTables.getTable(RecalibrationTables.TableType.QUALITY_SCORE_TABLE);
+        final int size = qualTable.getDimension(0) * qualTable.getDimension(1) * qualTable.getDimension(2);
+        shiftedQuals = new double[size];
+        qualShifts = new double[size];
+        recalibratedQualsWithoutCovariates = new byte[size];
+        final int[] key = new int[requestedCovariates.length];
+        for (final EventType errorModel : EventType.values()) {
+            for (key[0] = 0; key[0] < qualTable.getDimension(0); key[0]++) {
+                for (key[1] = 0; key[1] < qualTable.getDimension(1); key[1]++) {
+                    final int index = (int)qualTable.index(key[0], key[1], errorModel.index);
+                    final byte qualFromRead = (byte)key[1];
+                    final double globalDeltaQ = calculateGlobalDeltaQ(recalibrationTables.getTable(RecalibrationTables.TableType.READ_GROUP_TABLE), key, errorModel);
+                    final double deltaQReported = calculateDeltaQReported(qualTable, key, errorModel, globalDeltaQ, qualFromRead);
+                    shiftedQuals[index] = qualFromRead + globalDeltaQ + deltaQReported;
+                    qualShifts[index] = globalDeltaQ + deltaQReported;
+                    recalibratedQualsWithoutCovariates[index] = quantize(shiftedQuals[index]);
+                }
+            }
+        }
+
         this.disableIndelQuals = disableIndelQuals;
         this.preserveQLessThan = preserveQLessThan;
         this.emitOriginalQuals = emitOriginalQuals;
@@ -103,6 +142,7 @@ public class BaseRecalibration {
             }
         }
 
+        final ReadCovariates readCovariates = this.readCovariates.get();
         RecalDataManager.computeCovariates(read, requestedCovariates, readCovariates);                                  // compute all covariates for the read
         for (final EventType errorModel : EventType.values()) {                                                         // recalibrate all three quality strings
             if (disableIndelQuals && errorModel != EventType.BASE_SUBSTITUTION) {
@@ -148,55 +188,61 @@ public class BaseRecalibration {
     protected byte performSequentialQualityCalculation(final int[] key, final EventType errorModel) {
 
         final byte qualFromRead = (byte)(long)key[1];
-        final double globalDeltaQ = calculateGlobalDeltaQ(recalibrationTables.getTable(RecalibrationTables.TableType.READ_GROUP_TABLE), key, errorModel);
-        final double deltaQReported = calculateDeltaQReported(recalibrationTables.getTable(RecalibrationTables.TableType.QUALITY_SCORE_TABLE), key, errorModel, globalDeltaQ, qualFromRead);
-        final double deltaQCovariates = calculateDeltaQCovariates(recalibrationTables, key, errorModel, globalDeltaQ, deltaQReported, qualFromRead);
+        final int index = (int)recalibrationTables.getTable(RecalibrationTables.TableType.QUALITY_SCORE_TABLE).index(key[0], key[1], errorModel.index);
+        if (index < 0)                                                                                                  // neither the read group nor the quality are in the tables
+            return quantize(qualFromRead);
 
-        double recalibratedQual = qualFromRead + globalDeltaQ + deltaQReported + deltaQCovariates;                      // calculate the recalibrated qual using the BQSR formula
-        recalibratedQual = QualityUtils.boundQual(MathUtils.fastRound(recalibratedQual), QualityUtils.MAX_RECALIBRATED_Q_SCORE);     // recalibrated quality is bound between 1 and MAX_QUAL
+        double deltaQCovariates = 0.0;
+        boolean hasCovariateData = false;
+        for (int i = 2; i < requestedCovariates.length; i++) {                                                          // for all optional covariates
+            if (key[i] < 0)
+                continue;
 
-        return quantizationInfo.getQuantizedQuals().get((int) recalibratedQual);                                        // return the quantized version of the recalibrated quality
-    }
+            final RecalDatumTable table = recalibrationTables.getTable(i);
+            final long covariateIndex = table.index(key[0], key[1], key[i], errorModel.index);
+            if (table.contains(covariateIndex)) {
+                final double deltaQCovariateEmpirical = table.getEmpiricalQuality(covariateIndex);
+                deltaQCovariates += (deltaQCovariateEmpirical - qualFromRead - qualShifts[index]);
+                hasCovariateData = true;
+            }
+        }
 
-    private double calculateGlobalDeltaQ(final NestedIntegerArray<RecalDatum> table, final int[] key, final EventType errorModel) {
-        double result = 0.0;
+        if (!hasCovariateData)
+            return recalibratedQualsWithoutCovariates[index];
 
-        final RecalDatum empiricalQualRG = table.get(key[0], errorModel.index);
-        if (empiricalQualRG != null) {
-            final double globalDeltaQEmpirical = empiricalQualRG.getEmpiricalQuality();
-            final double aggregrateQReported = empiricalQualRG.getEstimatedQReported();
-            result = globalDeltaQEmpirical - aggregrateQReported;
-        }
+        return quantize(shiftedQuals[index] + deltaQCovariates);                                                        // calculate the recalibrated qual using the BQSR formula
+    }
 
-        return result;
+    /**
+     * @param recalibratedQual the unbounded recalibrated quality
+     * @return the quantized version of the recalibrated quality, bound between 1 and MAX_RECALIBRATED_Q_SCORE
+     */
+    private byte quantize(final double recalibratedQual) {
+        return quantizedQuals[QualityUtils.boundQual(MathUtils.fastRound(recalibratedQual), QualityUtils.MAX_RECALIBRATED_Q_SCORE)];
     }
 
-    private double calculateDeltaQReported(final NestedIntegerArray<RecalDatum> table, final int[] key, final EventType errorModel, final double globalDeltaQ, final byte qualFromRead) {
+    private double calculateGlobalDeltaQ(final RecalDatumTable table, final int[] key, final EventType errorModel) {
         double result = 0.0;
 
-        final RecalDatum empiricalQualQS = table.get(key[0], key[1], errorModel.index);
-        if (empiricalQualQS != null) {
-            final double deltaQReportedEmpirical = empiricalQualQS.getEmpiricalQuality();
-            result = deltaQReportedEmpirical - qualFromRead - globalDeltaQ;
+        final long index = table.index(key[0], errorModel.index);
+        if (table.contains(index)) {
+            final double globalDeltaQEmpirical = table.getEmpiricalQuality(index);
+            final double aggregrateQReported = table.getEstimatedQReported(index);
+            result = globalDeltaQEmpirical - aggregrateQReported;
         }
 
         return result;
     }
 
-    private double calculateDeltaQCovariates(final RecalibrationTables recalibrationTables, final int[] key, final EventType errorModel, final double globalDeltaQ, final double deltaQReported, final byte qualFromRead) {
+    private double calculateDeltaQReported(final RecalDatumTable table, final int[] key, final EventType errorModel, final double globalDeltaQ, final byte qualFromRead) {
         double result = 0.0;
 
-        // for all optional covariates
-        for (int i = 2; i < requestedCovariates.length; i++) {
-            if (key[i] < 0)
-                continue;
-
-            final RecalDatum empiricalQualCO = recalibrationTables.getTable(i).get(key[0], key[1], key[i], errorModel.index);
-            if (empiricalQualCO != null) {
-                final double deltaQCovariateEmpirical = empiricalQualCO.getEmpiricalQuality();
-                result += (deltaQCovariateEmpirical - qualFromRead - (globalDeltaQ + deltaQReported));
-            }
+        final long index = table.index(key[0], key[1], errorModel.index);
+        if (table.contains(index)) {
+            final double deltaQReportedEmpirical = table.getEmpiricalQuality(index);
+            result = deltaQReportedEmpirical - qualFromRead - globalDeltaQ;
         }
+
         return result;
     }
 }
@@ -27,8 +27,7 @@ package org.broadinstitute.sting.utils.recalibration;
 
 import org.broadinstitute.sting.gatk.walkers.bqsr.Covariate;
 import org.broadinstitute.sting.gatk.walkers.bqsr.EventType;
-import org.broadinstitute.sting.gatk.walkers.bqsr.RecalDatum;
-import org.broadinstitute.sting.utils.collections.NestedIntegerArray;
+import org.broadinstitute.sting.gatk.walkers.bqsr.RecalDatumTable;
 
 /**
  * Utility class to facilitate on-the-fly base quality score recalibration.
@@ -51,33 +50,45 @@ public class RecalibrationTables {
         }
     }
 
-    private final NestedIntegerArray[] tables;
+    private final RecalDatumTable[] tables;
+
+    private final Covariate[] covariates;
+    private final int numReadGroups;
 
     public RecalibrationTables(final Covariate[] covariates) {
         this(covariates, covariates[TableType.READ_GROUP_TABLE.index].maximumKeyValue() + 1);
     }
 
     public RecalibrationTables(final Covariate[] covariates, final int numReadGroups) {
-        tables = new NestedIntegerArray[covariates.length];
+        this.covariates = covariates;
+        this.numReadGroups = numReadGroups;
+        tables = new RecalDatumTable[covariates.length];
 
         final int qualDimension = covariates[TableType.QUALITY_SCORE_TABLE.index].maximumKeyValue() + 1;
         final int eventDimension = EventType.values().length;
 
-        tables[TableType.READ_GROUP_TABLE.index] = new NestedIntegerArray<RecalDatum>(numReadGroups, eventDimension);
-        tables[TableType.QUALITY_SCORE_TABLE.index] = new NestedIntegerArray<RecalDatum>(numReadGroups, qualDimension, eventDimension);
+        tables[TableType.READ_GROUP_TABLE.index] = new RecalDatumTable(numReadGroups, eventDimension);
+        tables[TableType.QUALITY_SCORE_TABLE.index] = new RecalDatumTable(numReadGroups, qualDimension, eventDimension);
         for (int i = TableType.OPTIONAL_COVARIATE_TABLES_START.index; i < covariates.length; i++)
-            tables[i] = new NestedIntegerArray<RecalDatum>(numReadGroups, qualDimension, covariates[i].maximumKeyValue()+1, eventDimension);
+            tables[i] = new RecalDatumTable(numReadGroups, qualDimension, covariates[i].maximumKeyValue()+1, eventDimension);
     }
 
-    public NestedIntegerArray<RecalDatum> getTable(final TableType type) {
-        return (NestedIntegerArray<RecalDatum>)tables[type.index];
+    public RecalDatumTable getTable(final TableType type) {
+        return tables[type.index];
     }
 
-    public NestedIntegerArray<RecalDatum> getTable(final int index) {
-        return (NestedIntegerArray<RecalDatum>)tables[index];
+    public RecalDatumTable getTable(final int index) {
+        return tables[index];
     }
 
     public int numTables() {
         return tables.length;
     }
+
+    /**
+     * @return a new set of empty tables with the same covariates and dimensions as these
+     */
+    public RecalibrationTables makeEmptyCopy() {
+        return new RecalibrationTables(covariates, numReadGroups);
+    }
 }
@@ -0,0 +1,568 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils.variantcontext;
+
+import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
+
+import java.util.*;
+
+/**
+ * A GenotypesContext that stores the genotypes of many samples in columns rather than as Genotype objects
+ *
+ * GT is stored as indices into a shared table of alleles, GQ and DP as int columns, AD and PL as flat int
+ * matrices, filters as a column of strings, and each extended attribute as a column of values.  With tens of
+ * thousands of samples this replaces a similar number of Genotype objects -- each with its own allele list,
+ * AD and PL arrays, and attribute map -- with a handful of arrays.
+ *
+ * Genotypes are created only on demand, as lightweight views onto the columns.  The view of each sample is
+ * created once and then reused, so the Genotypes returned by get() and iterator() behave like any others,
+ * and can be passed to GenotypeBuilder.  Any of the List operations that modify this context, or need the
+ * genotypes as a list, first create the views of all of the samples, after which this context behaves
+ * exactly like a regular GenotypesContext.
+ *
+ * Build one of these with a ColumnarGenotypesContext.Builder.
+ */
+public class ColumnarGenotypesContext extends GenotypesContext {
+    /**
+     * Decoders store the genotypes of records with at least this many samples in columns
+     */
+    public final static int MIN_SAMPLES_FOR_COLUMNAR_STORAGE = 1000;
+
+    /**
+     * Stands in for an extended attribute explicitly bound to null in an attribute column
+     */
+    private final static Object NULL_ATTRIBUTE_VALUE = new Object();
+
+    private final int nSamples;
+    private final String[] sampleNames;
+    private final Allele[] alleles;
+
+    /** the alleles of sample i are alleles[alleleIndices[alleleStarts[i]]] .. alleles[alleleIndices[alleleStarts[i+1]-1]] */
+    private final int[] alleleStarts;
+    private final int[] alleleIndices;
+    private final boolean[] phased;
+
+    private final int[] GQs;
+    private final int[] DPs;
+
+    /**
+     * the AD values of sample i are ADs[ADStarts[i]] .. ADs[offset(ADStarts[i+1])-1].  Samples without
+     * a value have a negative start of -(offset + 1), where offset is where their values would have started
+     */
+    private final int[] ADStarts;
+    private final int[] ADs;
+    private final int[] PLStarts;
+    private final int[] PLs;
+
+    /** null if no sample is filtered */
+    private final String[] filters;
+
+    /** one column for each extended attribute, with null entries for samples without a value */
+    private final Map<String, Object[]> attributes;
+
+    /** the views we have already created, indexed by sample */
+    private Genotype[] views = null;
+
+    /** true once we've switched to a regular list of views */
+    private boolean materialized = false;
+
+    private ColumnarGenotypesContext(final Builder builder,
+                                     final List<String> sampleNamesInOrder,
+                                     final Map<String, Integer> sampleNameToOffset) {
+        super(new ArrayList<Genotype>(0));
+        this.sampleNamesInOrder = sampleNamesInOrder;
+        this.sampleNameToOffset = sampleNameToOffset;
+
+        nSamples = builder.nSamples;
+        sampleNames = Arrays.copyOf(builder.sampleNames, nSamples);
+        alleles = builder.alleles.toArray(new Allele[builder.alleles.size()]);
+        alleleStarts = Arrays.copyOf(builder.alleleStarts, nSamples + 1);
+        alleleIndices = builder.alleleIndices.toArray();
+        phased = Arrays.copyOf(builder.phased, nSamples);
+        GQs = Arrays.copyOf(builder.GQs, nSamples);
+        DPs = Arrays.copyOf(builder.DPs, nSamples);
+        ADStarts = Arrays.copyOf(builder.ADStarts, nSamples + 1);
+        ADs = builder.ADs.toArray();
+        PLStarts = Arrays.copyOf(builder.PLStarts, nSamples + 1);
+        PLs = builder.PLs.toArray();
+        filters = builder.filters == null ? null : Arrays.copyOf(builder.filters, nSamples);
+        if ( builder.attributes.isEmpty() )
+            attributes = Collections.emptyMap();
+        else {
+            attributes = new LinkedHashMap<String, Object[]>(builder.attributes.size());
+            for ( final Map.Entry<String, Object[]> column : builder.attributes.entrySet() )
+                attributes.put(column.getKey(), Arrays.copyOf(column.getValue(), nSamples));
+        }
+    }
+
+    // ---------------------------------------------------------------------------
+    //
+    // Creating the views of the genotypes
+    //
+    // ---------------------------------------------------------------------------
+
+    /**
+     * @return the view onto the genotype of the ith sample, creating it if necessary
+     */
+    @Requires({"i >= 0", "i < nSamples"})
+    @Ensures("result != null")
+    private Genotype getView(final int i) {
+        if ( views == null )
+            views = new Genotype[nSamples];
+        if ( views[i] == null )
+            views[i] = new GenotypeView(i);
+        return views[i];
+    }
+
+    /**
+     * Switch to a regular GenotypesContext over the views of all of our samples.  The sample name
+     * caches remain valid, as the views are in the same order as our samples.
+     */
+    @Override
+    protected ArrayList<Genotype> getGenotypes() {
+        if ( ! materialized ) {
+            final ArrayList<Genotype> genotypes = new ArrayList<Genotype>(nSamples);
+            for ( int i = 0; i < nSamples; i++ )
+                genotypes.add(getView(i));
+            notToBeDirectlyAccessedGenotypes = genotypes;
+            views = null;
+            materialized = true;
+        }
+        return notToBeDirectlyAccessedGenotypes;
+    }
+
+    // ---------------------------------------------------------------------------
+    //
+    // The read operations, which work directly on the columns until we are materialized
+    //
+    // ---------------------------------------------------------------------------
+
+    @Override
+    protected void ensureSampleNameMap() {
+        if ( materialized || sampleNameToOffset != null )
+            super.ensureSampleNameMap();
+        else {
+            sampleNameToOffset = new HashMap<String, Integer>(nSamples);
+            for ( int i = 0; i < nSamples; i++ )
+                sampleNameToOffset.put(sampleNames[i], i);
+        }
+    }
+
+    @Override
+    protected void ensureSampleOrdering() {
+        if ( materialized || sampleNamesInOrder != null )
+            super.ensureSampleOrdering();
+        else {
+            sampleNamesInOrder = new ArrayList<String>(Arrays.asList(sampleNames));
+            Collections.sort(sampleNamesInOrder);
+        }
+    }
+
+    @Override
+    public int size() {
+        return materialized ? super.size() : nSamples;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return materialized ? super.isEmpty() : nSamples == 0;
+    }
+
+    @Override
+    public Genotype get(final int i) {
+        if ( materialized )
+            return super.get(i);
+        if ( i < 0 || i >= nSamples )
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + nSamples);
+        return getView(i);
+    }
+
+    @Override
+    public Genotype get(final String sampleName) {
+        if ( materialized )
+            return super.get(sampleName);
+        ensureSampleNameMap();
+        final Integer offset = sampleNameToOffset.get(sampleName);
+        return offset == null ? null : getView(offset);
+    }
+
+    @Override
+    public int getMaxPloidy() {
+        if ( materialized )
+            return super.getMaxPloidy();
+        int maxPloidy = 0;
+        for ( int i = 0; i < nSamples; i++ )
+            maxPloidy = Math.max(maxPloidy, alleleStarts[i + 1] - alleleStarts[i]);
+        return maxPloidy;
+    }
+
+    @Override
+    public Iterator<Genotype> iterator() {
+        if ( materialized )
+            return super.iterator();
+
+        return new Iterator<Genotype>() {
+            private int i = 0;
+
+            @Override public boolean hasNext() { return i < nSamples; }
+
+            @Override public Genotype next() {
+                if ( ! hasNext() ) throw new NoSuchElementException();
+                return getView(i++);
+            }
+
+            @Override public void remove() { throw new UnsupportedOperationException(); }
+        };
+    }
+
+    // ---------------------------------------------------------------------------
+    //
+    // The view onto a single sample
+    //
+    // ---------------------------------------------------------------------------
+
+    /**
+     * A Genotype whose values are read from the columns of the enclosing context.  The alleles list
+     * and the AD and PL arrays are only created when asked for, and then kept.
+     */
+    private final class GenotypeView extends Genotype {
+        private final int i;
+        private List<Allele> genotypeAlleles = null;
+        private int[] AD = null, PL = null;
+
+        private GenotypeView(final int i) {
+            super(sampleNames[i], filters == null ? null : filters[i]);
+            this.i = i;
+        }
+
+        @Override
+        public List<Allele> getAlleles() {
+            if ( genotypeAlleles == null ) {
+                final int ploidy = getPloidy();
+                if ( ploidy == 0 )
+                    genotypeAlleles = Collections.emptyList();
+                else {
+                    final Allele[] values = new Allele[ploidy];
+                    for ( int j = 0; j < ploidy; j++ )
+                        values[j] = getAllele(j);
+                    genotypeAlleles = Collections.unmodifiableList(Arrays.asList(values));
+                }
+            }
+            return genotypeAlleles;
+        }
+
+        @Override
+        public Allele getAllele(final int j) {
+            return alleles[alleleIndices[alleleStarts[i] + j]];
+        }
+
+        @Override
+        public int getPloidy() {
+            return alleleStarts[i + 1] - alleleStarts[i];
+        }
+
+        @Override public boolean isPhased() { return phased[i]; }
+        @Override public int getGQ() { return GQs[i]; }
+        @Override public int getDP() { return DPs[i]; }
+        @Override public boolean hasAD() { return ADStarts[i] >= 0; }
+        @Override public boolean hasPL() { return PLStarts[i] >= 0; }
+
+        @Override
+        public int[] getAD() {
+            if ( AD == null && hasAD() )
+                AD = slice(ADs, ADStarts, i);
+            return AD;
+        }
+
+        @Override
+        public int[] getPL() {
+            if ( PL == null && hasPL() )
+                PL = slice(PLs, PLStarts, i);
+            return PL;
+        }
+
+        /**
+         * The map is created on every call, so prefer hasExtendedAttribute() and getExtendedAttribute()
+         */
+        @Override
+        public Map<String, Object> getExtendedAttributes() {
+            if ( attributes.isEmpty() )
+                return Collections.emptyMap();
+
+            final Map<String, Object> values = new HashMap<String, Object>(attributes.size());
+            for ( final Map.Entry<String, Object[]> column : attributes.entrySet() ) {
+                final Object value = column.getValue()[i];
+                if ( value != null )
+                    values.put(column.getKey(), value == NULL_ATTRIBUTE_VALUE ? null : value);
+            }
+            return values;
+        }
+
+        @Override
+        public boolean hasExtendedAttribute(final String key) {
+            final Object[] column = attributes.get(key);
+            return column != null && column[i] != null;
+        }
+
+        @Override
+        public Object getExtendedAttribute(final String key, final Object defaultValue) {
+            final Object[] column = attributes.get(key);
+            if ( column == null || column[i] == null )
+                return defaultValue;
+            return column[i] == NULL_ATTRIBUTE_VALUE ? null : column[i];
+        }
+    }
+
+    /**
+     * @return a copy of the values of sample i in the flat matrix values, or null if it has none
+     */
+    private static int[] slice(final int[] values, final int[] starts, final int i) {
+        return starts[i] < 0 ? null : Arrays.copyOfRange(values, starts[i], offset(starts[i + 1]));
+    }
+
+    /**
+     * @return the offset encoded in an entry of ADStarts or PLStarts
+     */
+    private static int offset(final int start) {
+        return start >= 0 ? start : -start - 1;
+    }
+
+    // ---------------------------------------------------------------------------
+    //
+    // Building
+    //
+    // ---------------------------------------------------------------------------
+
+    /**
+     * Accumulates genotypes, one sample at a time, into the columns of a new ColumnarGenotypesContext
+     *
+     * Genotypes can be added either as Genotype objects, or straight from the GenotypeBuilder in which a
+     * decoder has gathered their fields, so that no Genotype needs to be made at all.  Neither is referenced
+     * after it has been added, so a single GenotypeBuilder can be reused for all of the samples.
+     */
+    public static class Builder {
+        private int nSamples = 0;
+        private String[] sampleNames;
+        private final List<Allele> alleles;
+
+        private int[] alleleStarts;
+        private final IntColumn alleleIndices;
+        private boolean[] phased;
+        private int[] GQs, DPs;
+        private int[] ADStarts, PLStarts;
+        private final IntColumn ADs = new IntColumn(), PLs = new IntColumn();
+        private String[] filters = null;
+        private final Map<String, Object[]> attributes = new LinkedHashMap<String, Object[]>();
+
+        /**
+         * Create a builder for about nSamples genotypes, whose alleles are usually among alleles
+         *
+         * @param alleles the alleles of the VariantContext that will hold these genotypes.  Genotypes may
+         *                contain other alleles as well, at a small cost
+         * @param nSamples the expected number of genotypes
+         */
+        @Requires({"alleles != null", "nSamples >= 0"})
+        public Builder(final List<Allele> alleles, final int nSamples) {
+            this.alleles = new ArrayList<Allele>(alleles);
+            final int capacity = Math.max(nSamples, 1);
+            sampleNames = new String[capacity];
+            alleleStarts = new int[capacity + 1];
+            alleleIndices = new IntColumn(2 * capacity);
+            phased = new boolean[capacity];
+            GQs = new int[capacity];
+            DPs = new int[capacity];
+            ADStarts = new int[capacity + 1];
+            PLStarts = new int[capacity + 1];
+        }
+
+        /**
+         * Add the genotype of the next sample
+         *
+         * @param g a genotype whose sample name differs from those of all previously added genotypes
+         * @return this builder
+         */
+        @Requires("g != null")
+        public Builder add(final Genotype g) {
+            return add(g.getSampleName(), g.getAlleles(), g.isPhased(), g.getGQ(), g.getDP(), g.getAD(), g.getPL(),
+                    g.isFiltered() ? g.getFilters() : null, g.getExtendedAttributes());
+        }
+
+        /**
+         * Add the genotype of the next sample, as currently set up in gb, without making a Genotype
+         *
+         * @param gb a builder whose sample name differs from those of all previously added genotypes.  It
+         *           isn't referenced afterwards, so it can be reset and reused for the next sample
+         * @return this builder
+         */
+        @Requires("gb != null")
+        public Builder add(final GenotypeBuilder gb) {
+            gb.addTo(this);
+            return this;
+        }
+
+        /**
+         * Add the genotype of the next sample from its fields, with the same meaning as the arguments of FastGenotype
+         */
+        @Requires({"sampleName != null", "genotypeAlleles != null", "extendedAttributes != null"})
+        Builder add(final String sampleName, final List<Allele> genotypeAlleles, final boolean isPhased,
+                    final int GQ, final int DP, final int[] AD, final int[] PL, final String filter,
+                    final Map<String, Object> extendedAttributes) {
+            if ( nSamples == sampleNames.length )
+                grow();
+
+            final int i = nSamples++;
+            sampleNames[i] = sampleName;
+
+            for ( int j = 0; j < genotypeAlleles.size(); j++ )
+                alleleIndices.add(indexOf(genotypeAlleles.get(j)));
+            alleleStarts[i + 1] = alleleIndices.size();
+            phased[i] = isPhased;
+            GQs[i] = GQ;
+            DPs[i] = DP;
+            ADStarts[i] = ADs.addAll(AD);
+            ADStarts[i + 1] = ADs.size();
+            PLStarts[i] = PLs.addAll(PL);
+            PLStarts[i + 1] = PLs.size();
+
+            if ( filter != null ) {
+                if ( filters == null )
+                    filters = new String[sampleNames.length];
+                filters[i] = filter;
+            }
+
+            for ( final Map.Entry<String, Object> attribute : extendedAttributes.entrySet() ) {
+                Object[] column = attributes.get(attribute.getKey());
+                if ( column == null ) {
+                    column = new Object[sampleNames.length];
+                    attributes.put(attribute.getKey(), column);
+                }
+                column[i] = attribute.getValue() == null ? NULL_ATTRIBUTE_VALUE : attribute.getValue();
+            }
+
+            return this;
+        }
+
+        /**
+         * Add all of genotypes, in order
+         */
+        @Requires("genotypes != null")
+        public Builder addAll(final Collection<Genotype> genotypes) {
+            for ( final Genotype g : genotypes )
+                add(g);
+            return this;
+        }
+
+        /**
+         * @return a new context holding all of the genotypes added so far
+         */
+        @Ensures("result.size() == nSamples")
+        public ColumnarGenotypesContext make() {
+            return new ColumnarGenotypesContext(this, null, null);
+        }
+
+        /**
+         * Like make(), but with sample lookup tables shared among many contexts, such as those of a VCF header
+         *
+         * @param sampleNamesInOrder the names of the samples added, in alphabetical order
+         * @param sampleNameToOffset the offset of each sample in the order the genotypes were added
+         * @return a new context holding all of the genotypes added so far
+         */
+        @Requires({"sampleNamesInOrder.size() == nSamples", "sampleNameToOffset.size() == nSamples"})
+        @Ensures("result.size() == nSamples")
+        public ColumnarGenotypesContext make(final List<String> sampleNamesInOrder, final Map<String, Integer> sampleNameToOffset) {
+            return new ColumnarGenotypesContext(this, sampleNamesInOrder, sampleNameToOffset);
+        }
+
+        private int indexOf(final Allele allele) {
+            for ( int j = 0; j < alleles.size(); j++ )
+                if ( alleles.get(j) == allele )
+                    return j;
+            final int index = alleles.indexOf(allele);
+            if ( index != -1 )
+                return index;
+            alleles.add(allele);
+            return alleles.size() - 1;
+        }
+
+        private void grow() {
+            final int capacity = 2 * sampleNames.length;
+            sampleNames = Arrays.copyOf(sampleNames, capacity);
+            alleleStarts = Arrays.copyOf(alleleStarts, capacity + 1);
+            phased = Arrays.copyOf(phased, capacity);
+            GQs = Arrays.copyOf(GQs, capacity);
+            DPs = Arrays.copyOf(DPs, capacity);
+            ADStarts = Arrays.copyOf(ADStarts, capacity + 1);
+            PLStarts = Arrays.copyOf(PLStarts, capacity + 1);
+            if ( filters != null )
+                filters = Arrays.copyOf(filters, capacity);
+            for ( final Map.Entry<String, Object[]> column : attributes.entrySet() )
+                column.setValue(Arrays.copyOf(column.getValue(), capacity));
+        }
+    }
+
+    /**
+     * A growable array of ints
+     */
+    private static final class IntColumn {
+        private int[] values;
+        private int size = 0;
+
+        private IntColumn() {
+            this(16);
+        }
+
+        private IntColumn(final int capacity) {
+            values = new int[Math.max(capacity, 1)];
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void add(final int value) {
+            if ( size == values.length )
+                values = Arrays.copyOf(values, 2 * values.length);
+            values[size++] = value;
+        }
+
+        /**
+         * @return the offset of the first of toAdd, or -(offset + 1) if toAdd is null
+         */
+        private int addAll(final int[] toAdd) {
+            if ( toAdd == null )
+                return -size - 1;
+            final int start = size;
+            for ( final int value : toAdd )
+                add(value);
+            return start;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
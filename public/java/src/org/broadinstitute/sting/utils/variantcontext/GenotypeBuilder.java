@@ -196,6 +196,16 @@ public final class GenotypeBuilder {
         }
     }
 
+    /**
+     * Add the genotype we are building to columns, without making a Genotype
+     *
+     * @param columns the columns to which we add the next sample
+     */
+    void addTo(final ColumnarGenotypesContext.Builder columns) {
+        final Map<String, Object> ea = extendedAttributes == null ? NO_ATTRIBUTES : extendedAttributes;
+        columns.add(sampleName, alleles, isPhased, GQ, DP, AD, PL, filters, ea);
+    }
+
     public GenotypeBuilder useFast(boolean useFast) {
         this.useFast = useFast;
         return this;
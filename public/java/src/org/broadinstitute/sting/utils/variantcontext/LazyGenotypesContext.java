@@ -28,6 +28,7 @@ import com.google.java.contract.Ensures;
 import com.google.java.contract.Requires;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -55,6 +56,12 @@ public class LazyGenotypesContext extends GenotypesContext {
      */
     boolean loaded = false;
 
+    /**
+     * If not null, the decoded genotypes stored in columns, to which we delegate the read operations until
+     * an operation needs the genotypes as a list, at which point we switch to the list of their views
+     */
+    private ColumnarGenotypesContext columns = null;
+
     private final static ArrayList<Genotype> EMPTY = new ArrayList<Genotype>(0);
 
     /**
@@ -77,6 +84,7 @@ public class LazyGenotypesContext extends GenotypesContext {
      */
     public static class LazyData {
         final ArrayList<Genotype> genotypes;
+        final ColumnarGenotypesContext columns;
         final Map<String, Integer> sampleNameToOffset;
         final List<String> sampleNamesInOrder;
 
@@ -85,6 +93,22 @@ public class LazyGenotypesContext extends GenotypesContext {
                         final List<String> sampleNamesInOrder,
                         final Map<String, Integer> sampleNameToOffset) {
             this.genotypes = genotypes;
+            this.columns = null;
+            this.sampleNamesInOrder = sampleNamesInOrder;
+            this.sampleNameToOffset = sampleNameToOffset;
+        }
+
+        /**
+         * Decoded genotypes stored in columns, which the lazy context keeps and reads from directly
+         *
+         * @param columns the genotypes, in the same order as the samples of sampleNameToOffset
+         */
+        @Requires({"columns != null", "sampleNamesInOrder != null", "sampleNameToOffset != null"})
+        public LazyData(final ColumnarGenotypesContext columns,
+                        final List<String> sampleNamesInOrder,
+                        final Map<String, Integer> sampleNameToOffset) {
+            this.genotypes = null;
+            this.columns = columns;
             this.sampleNamesInOrder = sampleNamesInOrder;
             this.sampleNameToOffset = sampleNameToOffset;
         }
@@ -118,9 +142,23 @@ public class LazyGenotypesContext extends GenotypesContext {
     @Ensures("result != null")
     protected ArrayList<Genotype> getGenotypes() {
         decode();
+        if ( columns != null ) {
+            // switch to the views of the columns, in the same order as our samples, so our caches remain valid
+            notToBeDirectlyAccessedGenotypes = columns.getGenotypes();
+            columns = null;
+        }
         return notToBeDirectlyAccessedGenotypes;
     }
 
+    /**
+     * @return true if our genotypes are decoded into columns, as are those of records with many samples, and
+     *         haven't yet been switched to a list by an operation that needs one, such as a modification
+     */
+    public boolean isColumnar() {
+        decode();
+        return columns != null;
+    }
+
     /**
      * Force us to decode the genotypes, if not already done
      */
@@ -128,7 +166,10 @@ public class LazyGenotypesContext extends GenotypesContext {
         if ( ! loaded ) {
             //System.out.printf("Loading genotypes... %s:%d%n", contig, start);
             LazyData parsed = parser.parse(unparsedGenotypeData);
-            notToBeDirectlyAccessedGenotypes = parsed.genotypes;
+            if ( parsed.columns != null )
+                columns = parsed.columns;
+            else
+                notToBeDirectlyAccessedGenotypes = parsed.genotypes;
             sampleNamesInOrder = parsed.sampleNamesInOrder;
             sampleNameToOffset = parsed.sampleNameToOffset;
             loaded = true;
@@ -181,14 +222,48 @@ public class LazyGenotypesContext extends GenotypesContext {
     public boolean isEmpty() {
         // optimization -- we know the number of samples in the unparsed data, so use it here to
         // avoid parsing just to know if the genotypes context is empty
-        return loaded ? super.isEmpty() : nUnparsedGenotypes == 0;
+        if ( ! loaded )
+            return nUnparsedGenotypes == 0;
+        return columns != null ? columns.isEmpty() : super.isEmpty();
     }
 
     @Override
     public int size() {
         // optimization -- we know the number of samples in the unparsed data, so use it here to
         // avoid parsing just to know the size of the context
-        return loaded ? super.size() : nUnparsedGenotypes;
+        if ( ! loaded )
+            return nUnparsedGenotypes;
+        return columns != null ? columns.size() : super.size();
+    }
+
+    // the read operations below go straight to the columns, if we have them, rather than to the views of all samples
+
+    @Override
+    public Genotype get(final int i) {
+        decode();
+        return columns != null ? columns.get(i) : super.get(i);
+    }
+
+    @Override
+    public Genotype get(final String sampleName) {
+        decode();
+        if ( columns == null )
+            return super.get(sampleName);
+        ensureSampleNameMap();
+        final Integer offset = sampleNameToOffset.get(sampleName);
+        return offset == null ? null : columns.get(offset);
+    }
+
+    @Override
+    public Iterator<Genotype> iterator() {
+        decode();
+        return columns != null ? columns.iterator() : super.iterator();
+    }
+
+    @Override
+    public int getMaxPloidy() {
+        decode();
+        return columns != null ? columns.getMaxPloidy() : super.getMaxPloidy();
     }
 
     public Object getUnparsedGenotypeData() {
@@ -58,6 +58,17 @@ public final class BCF2Encoder {
         return bytes;
     }
 
+    /**
+     * Append bytes produced by another encoder, so that pieces of a record encoded
+     * separately can be stitched back together
+     *
+     * @param encoded the bytes returned by getRecordBytes() of another encoder
+     */
+    @Requires("encoded != null")
+    public final void encodeRawBytes(final byte[] encoded) throws IOException {
+        encodeStream.write(encoded);
+    }
+
     // --------------------------------------------------------------------------------
     //
     // Writing typed values (have type byte)
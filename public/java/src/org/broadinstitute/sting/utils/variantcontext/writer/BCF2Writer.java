@@ -38,6 +38,7 @@ import org.broadinstitute.sting.utils.variantcontext.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * VariantContextWriter that emits BCF2 binary encoding
@@ -94,6 +95,17 @@ class BCF2Writer extends IndexingVariantContextWriter {
     final protected static Logger logger = Logger.getLogger(BCF2Writer.class);
     final private static boolean ALLOW_MISSING_CONTIG_LINES = false;
 
+    /**
+     * Records with fewer samples than this are always encoded on the calling thread, as the
+     * overhead of handing out the work exceeds the cost of encoding the genotypes
+     */
+    final static int MIN_SAMPLES_FOR_PARALLEL_ENCODING = 512;
+
+    /**
+     * The smallest number of samples of one field we encode in a single task
+     */
+    final static int MIN_SAMPLES_PER_ENCODING_TASK = 256;
+
     private final OutputStream outputStream;      // Note: do not flush until completely done writing, to avoid issues with eventual BGZF support
     private VCFHeader header;
     private final Map<String, Integer> contigDictionary = new HashMap<String, Integer>();
@@ -104,10 +116,43 @@ class BCF2Writer extends IndexingVariantContextWriter {
     private final BCF2Encoder encoder = new BCF2Encoder(); // initialized after the header arrives
     final BCF2FieldWriterManager fieldManager = new BCF2FieldWriterManager();
 
+    /**
+     * If not null, the threads we use to encode the genotype fields of records with many samples
+     */
+    private final ExecutorService encodingThreads;
+    private final int nEncodingThreads;
+
+    /**
+     * Each encoding thread writes its pieces of the genotypes block into its own encoder
+     */
+    private final ThreadLocal<BCF2Encoder> taskEncoder = new ThreadLocal<BCF2Encoder>() {
+        @Override
+        protected BCF2Encoder initialValue() {
+            return new BCF2Encoder();
+        }
+    };
+
     public BCF2Writer(final File location, final OutputStream output, final SAMSequenceDictionary refDict, final boolean enableOnTheFlyIndexing, final boolean doNotWriteGenotypes) {
+        this(location, output, refDict, enableOnTheFlyIndexing, doNotWriteGenotypes, 1);
+    }
+
+    /**
+     * Create a BCF2Writer that encodes the genotype fields of records with many samples on nEncodingThreads threads.
+     * The output is byte-for-byte identical to that of a single threaded writer.
+     */
+    public BCF2Writer(final File location, final OutputStream output, final SAMSequenceDictionary refDict, final boolean enableOnTheFlyIndexing, final boolean doNotWriteGenotypes, final int nEncodingThreads) {
         super(writerName(location, output), location, output, refDict, enableOnTheFlyIndexing);
         this.outputStream = getOutputStream();
         this.doNotWriteGenotypes = doNotWriteGenotypes;
+        this.nEncodingThreads = nEncodingThreads;
+        this.encodingThreads = nEncodingThreads > 1 ? Executors.newFixedThreadPool(nEncodingThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "BCF2 genotype encoder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
     }
 
     // --------------------------------------------------------------------------------
@@ -183,6 +228,9 @@ class BCF2Writer extends IndexingVariantContextWriter {
 
     @Override
     public void close() {
+        if ( encodingThreads != null )
+            encodingThreads.shutdownNow();
+
         try {
             outputStream.flush();
             outputStream.close();
@@ -310,11 +358,14 @@ class BCF2Writer extends IndexingVariantContextWriter {
         final BCF2Codec.LazyData lazyData = getLazyData(vc);  // has critical side effects
         if ( lazyData != null ) {
             // we never decoded any data from this BCF file, so just pass it back
-            return lazyData.bytes;
+            return lazyData.getBytes();
         }
 
         // we have to do work to convert the VC into a BCF2 byte stream
         final List<String> genotypeFields = VCFWriter.calcVCFGenotypeKeys(vc, header);
+        if ( encodingThreads != null && sampleNames.length >= MIN_SAMPLES_FOR_PARALLEL_ENCODING )
+            return buildSamplesDataInParallel(vc, genotypeFields);
+
         for ( final String field : genotypeFields ) {
             final BCF2FieldWriter.GenotypesWriter writer = fieldManager.getGenotypeFieldWriter(field);
             if ( writer == null ) errorUnexpectedFieldToWrite(vc, field, "FORMAT");
@@ -330,6 +381,100 @@ class BCF2Writer extends IndexingVariantContextWriter {
         return encoder.getRecordBytes();
     }
 
+    /**
+     * Encode the genotypes block of vc on our encoding threads.
+     *
+     * Each genotype field first determines its encoding type and size from all of the genotypes, and then
+     * ranges of samples of every field are encoded independently into separate buffers.  The buffers are
+     * stitched together in field and sample order, so the result is identical to encoding everything in turn.
+     *
+     * @param vc the fully decoded VariantContext whose genotypes we are encoding
+     * @param genotypeFields the FORMAT fields to encode, in order
+     * @return the bytes of the genotypes block
+     */
+    private byte[] buildSamplesDataInParallel(final VariantContext vc, final List<String> genotypeFields) throws IOException {
+        // resolve the genotypes and the max ploidy here, as neither the lazy genotypes nor the cached ploidy are thread safe
+        final Genotype[] genotypes = new Genotype[sampleNames.length];
+        for ( int i = 0; i < sampleNames.length; i++ ) {
+            genotypes[i] = vc.getGenotype(sampleNames[i]);
+            if ( genotypes[i] == null ) VCFWriter.missingSampleError(vc, header);
+        }
+        vc.getMaxPloidy();
+
+        final List<BCF2FieldWriter.GenotypesWriter> writers = new ArrayList<BCF2FieldWriter.GenotypesWriter>(genotypeFields.size());
+        for ( final String field : genotypeFields ) {
+            final BCF2FieldWriter.GenotypesWriter writer = fieldManager.getGenotypeFieldWriter(field);
+            if ( writer == null ) errorUnexpectedFieldToWrite(vc, field, "FORMAT");
+            writers.add(writer);
+        }
+
+        // the start of each field (key, type, and size) depends on all of the genotypes of that field
+        final List<Callable<byte[]>> fieldStarts = new ArrayList<Callable<byte[]>>(writers.size());
+        for ( final BCF2FieldWriter.GenotypesWriter writer : writers ) {
+            fieldStarts.add(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    final BCF2Encoder fieldEncoder = taskEncoder.get();
+                    writer.start(fieldEncoder, vc);
+                    return fieldEncoder.getRecordBytes();
+                }
+            });
+        }
+        final List<Future<byte[]>> startBytes = runEncodingTasks(fieldStarts);
+
+        // after which every range of samples of every field can be encoded independently
+        final int nRanges = Math.max(1, Math.min(nEncodingThreads, genotypes.length / MIN_SAMPLES_PER_ENCODING_TASK));
+        final int samplesPerRange = (genotypes.length + nRanges - 1) / nRanges;
+        final List<Callable<byte[]>> sampleRanges = new ArrayList<Callable<byte[]>>(writers.size() * nRanges);
+        for ( final BCF2FieldWriter.GenotypesWriter writer : writers ) {
+            for ( int start = 0; start < genotypes.length; start += samplesPerRange ) {
+                final int rangeStart = start;
+                final int rangeStop = Math.min(start + samplesPerRange, genotypes.length);
+                sampleRanges.add(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        final BCF2Encoder rangeEncoder = taskEncoder.get();
+                        for ( int i = rangeStart; i < rangeStop; i++ )
+                            writer.addGenotype(rangeEncoder, vc, genotypes[i]);
+                        return rangeEncoder.getRecordBytes();
+                    }
+                });
+            }
+        }
+        final List<Future<byte[]>> rangeBytes = runEncodingTasks(sampleRanges);
+
+        final int rangesPerField = sampleRanges.size() / writers.size();
+        for ( int f = 0; f < writers.size(); f++ ) {
+            encoder.encodeRawBytes(getEncodedBytes(startBytes.get(f)));
+            for ( int r = 0; r < rangesPerField; r++ )
+                encoder.encodeRawBytes(getEncodedBytes(rangeBytes.get(f * rangesPerField + r)));
+            writers.get(f).done(encoder, vc);
+        }
+        return encoder.getRecordBytes();
+    }
+
+    private List<Future<byte[]>> runEncodingTasks(final List<Callable<byte[]>> tasks) {
+        try {
+            return encodingThreads.invokeAll(tasks);
+        } catch ( InterruptedException e ) {
+            throw new ReviewedStingException("Interrupted while encoding BCF2 genotypes", e);
+        }
+    }
+
+    private byte[] getEncodedBytes(final Future<byte[]> encoded) throws IOException {
+        try {
+            return encoded.get();
+        } catch ( InterruptedException e ) {
+            throw new ReviewedStingException("Interrupted while encoding BCF2 genotypes", e);
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof IOException )
+                throw (IOException)e.getCause();
+            if ( e.getCause() instanceof RuntimeException )
+                throw (RuntimeException)e.getCause();
+            throw new ReviewedStingException("Failed to encode BCF2 genotypes", e.getCause());
+        }
+    }
+
     /**
      * Throws a meaningful error message when a field (INFO or FORMAT) is found when writing out a file
      * but there's no header line for it.
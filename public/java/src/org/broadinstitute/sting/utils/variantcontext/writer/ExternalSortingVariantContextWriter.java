@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.broadinstitute.sting.utils.variantcontext.writer;
+
+import com.google.java.contract.Requires;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+import org.broad.tribble.AbstractFeatureReader;
+import org.broad.tribble.CloseableTribbleIterator;
+import org.broad.tribble.FeatureReader;
+import org.broadinstitute.sting.utils.codecs.vcf.VCFCodec;
+import org.broadinstitute.sting.utils.codecs.vcf.VCFContigHeaderLine;
+import org.broadinstitute.sting.utils.codecs.vcf.VCFHeader;
+import org.broadinstitute.sting.utils.exceptions.UserException;
+import org.broadinstitute.sting.utils.variantcontext.VariantContext;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Writes VariantContexts to an inner writer in sorted order, no matter how far out of order they are added
+ *
+ * Unlike SortingVariantContextWriter, which only tolerates records out of order within a window, this writer
+ * sorts everything it's given, so nothing is passed to the inner writer until close().  At most
+ * maxRecordsInMemory records are held in memory; whenever the buffer fills up it is sorted and spilled to a
+ * temporary VCF file, and on close() the sorted runs are k-way merged into the inner writer.
+ *
+ * Spilling is not lossless.  Spilled records are written as VCF text and decoded again, so QUAL and
+ * floating point INFO and FORMAT values are rounded as the VCF writer formats them, and the INFO and FORMAT
+ * values come back as Strings until they are decoded with the header.  So that every record of the output is
+ * treated the same way, once anything has been spilled the records still in memory are spilled as well on
+ * close().  If nothing has been spilled, the records are passed to the inner writer exactly as they were
+ * added.  The output of a VCF inner writer is the same either way, but that of other writers, such as a
+ * BCF2Writer, is the same only for records whose values already have VCF text precision, such as those
+ * read from a VCF file.
+ *
+ * Records are ordered by contig and then start.  Contigs are ordered by the reference dictionary if one is
+ * provided, otherwise by the ##contig lines of the header, with any other contigs following in the order
+ * they were first seen.  Records at the same position are written in the order they were added.
+ */
+class ExternalSortingVariantContextWriter implements VariantContextWriter {
+    /**
+     * The number of records held in memory by default before spilling them to disk
+     */
+    public final static int DEFAULT_MAX_RECORDS_IN_MEMORY = 100000;
+
+    /**
+     * The maximum number of sorted runs we'll merge at once.  If there are more, they are first merged
+     * in groups into larger temporary runs.
+     */
+    protected final static int MAX_RUNS_PER_MERGE = 64;
+
+    private final static int SPILL_BUFFER_SIZE = 1 << 16;
+
+    // The writer to which to actually write the sorted records
+    private final VariantContextWriter innerWriter;
+
+    // Should we call innerWriter.close() in close()
+    private final boolean takeOwnershipOfInner;
+
+    private final SAMSequenceDictionary refDict;
+    private final int maxRecordsInMemory;
+
+    // the header of the records, which we need to write the spilled runs
+    private VCFHeader header = null;
+
+    // the sort order of each contig we know about
+    private final Map<String, Integer> contigOrder = new HashMap<String, Integer>();
+
+    // the records added since the last spill, and the sorted runs already spilled to disk
+    private final List<VariantContext> buffer;
+    private final List<File> runs = new ArrayList<File>();
+
+    private final Comparator<VariantContext> comparator = new Comparator<VariantContext>() {
+        @Override
+        public int compare(final VariantContext vc1, final VariantContext vc2) {
+            final int contigCmp = getContigOrder(vc1.getChr()) - getContigOrder(vc2.getChr());
+            return contigCmp != 0 ? contigCmp : vc1.getStart() - vc2.getStart();
+        }
+    };
+
+    /**
+     * create a sorting writer, given an inner writer to write to
+     *
+     * @param innerWriter the writer to write the sorted records to
+     * @param refDict the dictionary defining the order of the contigs, or null to use the ##contig lines of the header
+     * @param maxRecordsInMemory the maximum number of records to hold in memory before spilling them to disk
+     * @param takeOwnershipOfInner Should this Writer close innerWriter when it's done with it
+     */
+    @Requires({"innerWriter != null", "maxRecordsInMemory > 0"})
+    public ExternalSortingVariantContextWriter(final VariantContextWriter innerWriter,
+                                               final SAMSequenceDictionary refDict,
+                                               final int maxRecordsInMemory,
+                                               final boolean takeOwnershipOfInner) {
+        this.innerWriter = innerWriter;
+        this.refDict = refDict;
+        this.maxRecordsInMemory = maxRecordsInMemory;
+        this.takeOwnershipOfInner = takeOwnershipOfInner;
+        this.buffer = new ArrayList<VariantContext>(Math.min(maxRecordsInMemory, DEFAULT_MAX_RECORDS_IN_MEMORY));
+    }
+
+    // --------------------------------------------------------------------------------
+    //
+    // public interface functions
+    //
+    // --------------------------------------------------------------------------------
+
+    @Override
+    public void writeHeader(final VCFHeader header) {
+        this.header = header;
+
+        contigOrder.clear();
+        if ( refDict != null ) {
+            for ( final SAMSequenceRecord contig : refDict.getSequences() )
+                contigOrder.put(contig.getSequenceName(), contigOrder.size());
+        } else {
+            // the contig lines aren't necessarily kept in order, but they know their index
+            final List<VCFContigHeaderLine> contigs = new ArrayList<VCFContigHeaderLine>(header.getContigLines());
+            Collections.sort(contigs);
+            for ( final VCFContigHeaderLine contig : contigs )
+                if ( ! contigOrder.containsKey(contig.getID()) )
+                    contigOrder.put(contig.getID(), contigOrder.size());
+        }
+
+        innerWriter.writeHeader(header);
+    }
+
+    /**
+     * add a record to the file
+     *
+     * @param vc      the Variant Context object
+     */
+    @Override
+    public synchronized void add(final VariantContext vc) {
+        if ( header == null )
+            throw new IllegalStateException("The header must be written before records are added to " + this);
+
+        // unknown contigs sort after all of the others, in the order in which we first see them
+        if ( ! contigOrder.containsKey(vc.getChr()) )
+            contigOrder.put(vc.getChr(), contigOrder.size());
+
+        buffer.add(vc);
+        if ( buffer.size() >= maxRecordsInMemory )
+            spill();
+    }
+
+    /**
+     * merge all of the sorted runs into the inner writer and clean up our temporary files
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            if ( runs.isEmpty() ) {
+                Collections.sort(buffer, comparator);
+                for ( final VariantContext vc : buffer )
+                    innerWriter.add(vc);
+            } else {
+                // spill the rest of the records too, so that all of them go through the VCF encoding of the runs
+                if ( ! buffer.isEmpty() )
+                    spill();
+
+                // reduce the number of runs until we can merge all of them at once
+                while ( runs.size() > MAX_RUNS_PER_MERGE ) {
+                    final List<File> merged = new ArrayList<File>();
+                    for ( int start = 0; start < runs.size(); start += MAX_RUNS_PER_MERGE ) {
+                        final List<File> group = runs.subList(start, Math.min(start + MAX_RUNS_PER_MERGE, runs.size()));
+                        if ( group.size() == 1 ) {
+                            merged.add(group.get(0));
+                        } else {
+                            final File run = createRunFile();
+                            merged.add(run);
+                            final VariantContextWriter runWriter = createRunWriter(run);
+                            merge(group, runWriter);
+                            runWriter.close();
+                            deleteRuns(group);
+                        }
+                    }
+                    runs.clear();
+                    runs.addAll(merged);
+                }
+
+                merge(runs, innerWriter);
+            }
+        } finally {
+            buffer.clear();
+            deleteRuns(runs);
+            runs.clear();
+        }
+
+        if ( takeOwnershipOfInner )
+            innerWriter.close();
+    }
+
+    /**
+     * Gets a string representation of this object.
+     * @return a string representation of this object
+     */
+    @Override
+    public String toString() {
+        return getClass().getName();
+    }
+
+    /**
+     * @return the number of sorted runs currently spilled to disk
+     */
+    protected int getNumberOfSpilledRuns() {
+        return runs.size();
+    }
+
+    // --------------------------------------------------------------------------------
+    //
+    // private implementation functions
+    //
+    // --------------------------------------------------------------------------------
+
+    private int getContigOrder(final String contig) {
+        return contigOrder.get(contig);
+    }
+
+    /**
+     * Sort the buffered records and write them to a new temporary run
+     */
+    private void spill() {
+        Collections.sort(buffer, comparator);
+
+        final File run = createRunFile();
+        runs.add(run);
+        final VariantContextWriter runWriter = createRunWriter(run);
+        for ( final VariantContext vc : buffer )
+            runWriter.add(vc);
+        runWriter.close();
+
+        buffer.clear();
+    }
+
+    /**
+     * Merge the records of the sorted runs into writer.  Ties are broken by the order of the runs, so the merge is stable.
+     */
+    private void merge(final List<File> runsToMerge, final VariantContextWriter writer) {
+        final List<MergeSource> sources = new ArrayList<MergeSource>(runsToMerge.size());
+        final PriorityQueue<MergeSource> queue = new PriorityQueue<MergeSource>(runsToMerge.size(), new Comparator<MergeSource>() {
+            @Override
+            public int compare(final MergeSource s1, final MergeSource s2) {
+                final int cmp = comparator.compare(s1.current, s2.current);
+                return cmp != 0 ? cmp : s1.order - s2.order;
+            }
+        });
+
+        try {
+            for ( final File run : runsToMerge )
+                sources.add(new MergeSource(run, sources.size()));
+
+            for ( final MergeSource source : sources )
+                if ( source.advance() )
+                    queue.add(source);
+
+            while ( ! queue.isEmpty() ) {
+                final MergeSource source = queue.poll();
+                writer.add(source.current);
+                if ( source.advance() )
+                    queue.add(source);
+            }
+        } finally {
+            for ( final MergeSource source : sources )
+                source.close();
+        }
+    }
+
+    private File createRunFile() {
+        try {
+            final File run = File.createTempFile("ExternalSortingVariantContextWriter", ".vcf");
+            run.deleteOnExit();
+            return run;
+        } catch ( IOException e ) {
+            throw new UserException.CouldNotCreateOutputFile(new File(System.getProperty("java.io.tmpdir")), "Unable to create a temporary file for sorting variants", e);
+        }
+    }
+
+    /**
+     * Runs are written as VCF text, which, unlike BCF2, can hold any record whatever is in the header.  It
+     * rounds the floating point values, though, as described above.
+     */
+    private VariantContextWriter createRunWriter(final File run) {
+        final VariantContextWriter writer = new VCFWriter(run, new BufferedOutputStream(VariantContextWriterFactory.openOutputStream(run), SPILL_BUFFER_SIZE),
+                null, false, false, true);
+        writer.writeHeader(header);
+        return writer;
+    }
+
+    private static void deleteRuns(final List<File> runsToDelete) {
+        for ( final File run : runsToDelete )
+            run.delete();
+    }
+
+    /**
+     * A sorted stream of records being merged from a run on disk
+     */
+    private static class MergeSource {
+        final int order;
+        final FeatureReader<VariantContext> reader;
+        final Iterator<VariantContext> iterator;
+        VariantContext current = null;
+
+        public MergeSource(final File run, final int order) {
+            this.order = order;
+            try {
+                this.reader = AbstractFeatureReader.getFeatureReader(run.getAbsolutePath(), new VCFCodec(), false);
+                this.iterator = reader.iterator();
+            } catch ( IOException e ) {
+                throw new UserException.CouldNotReadInputFile(run, "Unable to read temporary file of sorted variants", e);
+            }
+        }
+
+        /**
+         * @return true if current was set to the next record of this source, false if there are no more
+         */
+        public boolean advance() {
+            current = iterator.hasNext() ? iterator.next() : null;
+            return current != null;
+        }
+
+        public void close() {
+            try {
+                if ( iterator instanceof CloseableTribbleIterator )
+                    ((CloseableTribbleIterator)iterator).close();
+                reader.close();
+            } catch ( IOException e ) {
+                throw new UserException.CouldNotReadInputFile("Unable to close temporary file of sorted variants", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils.variantcontext.writer;
+
+import com.google.java.contract.Ensures;
+import com.google.java.contract.Requires;
+import org.broadinstitute.sting.utils.codecs.vcf.VCFConstants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.List;
+
+/**
+ * A reusable buffer into which VCFWriter encodes the text of each record
+ *
+ * Numbers, strings, and attribute values are written directly as bytes into the buffer, without creating
+ * intermediate Strings.  The formatting of doubles exactly matches VCFWriter.formatVCFDouble(), which uses
+ * String.format.  As String.format rounds the shortest decimal representation of a double half-up, we round
+ * directly only when the scaled value isn't close to a tie, and use String.format for the rare remaining values.
+ */
+final class VCFTextEncoder {
+    private final static int INITIAL_BUFFER_SIZE = 16384;
+
+    private final static long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000};
+
+    /**
+     * Scaled doubles at least this large are formatted with String.format, as their fractional part isn't precise enough
+     */
+    private final static double MAX_DIRECTLY_ROUNDED_VALUE = 1e9;
+
+    /**
+     * Scaled doubles whose fractional part is this close to 0.5 are formatted with String.format
+     */
+    private final static double TIE_TOLERANCE = 1e-4;
+
+    private final static byte[] MIN_LONG_BYTES = String.valueOf(Long.MIN_VALUE).getBytes();
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int position = 0;
+
+    // --------------------------------------------------------------------------------
+    //
+    // Buffer management
+    //
+    // --------------------------------------------------------------------------------
+
+    /**
+     * Discard everything written into this encoder
+     */
+    public void reset() {
+        position = 0;
+    }
+
+    /**
+     * @return the number of bytes written into this encoder since the last reset
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Discard all of the bytes written after position
+     *
+     * @param position a position previously returned by getPosition()
+     */
+    @Requires({"position >= 0", "position <= getPosition()"})
+    public void truncate(final int position) {
+        this.position = position;
+    }
+
+    /**
+     * Write all of the bytes in this encoder to out
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(buffer, 0, position);
+    }
+
+    /**
+     * Are all of the bytes written since start missing values, as determined by VCFWriter?
+     *
+     * @param start a position previously returned by getPosition()
+     * @return true if every byte after start is either '.' or ','
+     */
+    public boolean isMissingValue(final int start) {
+        for ( int i = start; i < position; i++ )
+            if ( buffer[i] != VCFConstants.MISSING_VALUE_v4.charAt(0) && buffer[i] != ',' )
+                return false;
+        return true;
+    }
+
+    private void ensureCapacity(final int nBytes) {
+        if ( position + nBytes > buffer.length ) {
+            final byte[] larger = new byte[Math.max(2 * buffer.length, position + nBytes)];
+            System.arraycopy(buffer, 0, larger, 0, position);
+            buffer = larger;
+        }
+    }
+
+    // --------------------------------------------------------------------------------
+    //
+    // Writing text
+    //
+    // --------------------------------------------------------------------------------
+
+    @Requires("c < 128")
+    public void append(final char c) {
+        ensureCapacity(1);
+        buffer[position++] = (byte)c;
+    }
+
+    public void append(final byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * Append s, encoded in the platform's default charset like the Writer VCFWriter used to write through
+     */
+    public void append(final String s) {
+        final int length = s.length();
+        ensureCapacity(length);
+        for ( int i = 0; i < length; i++ ) {
+            final char c = s.charAt(i);
+            if ( c >= 128 ) {
+                // give up on the fast path for non-ASCII strings
+                append(s.substring(i).getBytes());
+                return;
+            }
+            buffer[position++] = (byte)c;
+        }
+    }
+
+    public void append(final int value) {
+        append((long)value);
+    }
+
+    public void append(long value) {
+        if ( value == Long.MIN_VALUE ) {
+            append(MIN_LONG_BYTES);
+            return;
+        }
+
+        if ( value < 0 ) {
+            append('-');
+            value = -value;
+        }
+
+        int nDigits = 1;
+        for ( long v = value / 10; v != 0; v /= 10 )
+            nDigits++;
+        appendDigits(value, nDigits);
+    }
+
+    // --------------------------------------------------------------------------------
+    //
+    // Writing VCF values
+    //
+    // --------------------------------------------------------------------------------
+
+    /**
+     * Append d exactly as VCFWriter.formatVCFDouble(d) would format it
+     */
+    public void appendVCFDouble(final double d) {
+        if ( d < 1 ) {
+            if ( d < 0.01 ) {
+                if ( Math.abs(d) >= 1e-20 ) {
+                    if ( ! appendScientific(d) )
+                        append(String.format("%.3e", d));
+                } else {
+                    // a zero
+                    append("0.00");
+                }
+            } else if ( ! appendFixed(d, 3) ) {
+                append(String.format("%.3f", d));
+            }
+        } else if ( ! appendFixed(d, 2) ) {
+            append(String.format("%.2f", d));
+        }
+    }
+
+    /**
+     * Append the phred-scaled quality qual with two decimal places, dropping them when they are both zero
+     */
+    public void appendQual(final double qual) {
+        if ( ! appendFixed(qual, 2) )
+            append(String.format("%.2f", qual));
+
+        if ( position >= 3 && buffer[position - 3] == '.' && buffer[position - 2] == '0' && buffer[position - 1] == '0' )
+            position -= 3;
+    }
+
+    /**
+     * Append val exactly as VCFWriter.formatVCFField(val) would format it
+     *
+     * @param val the value of an INFO or FORMAT field
+     * @return false if val is formatted as nothing at all (the Boolean false), in which case nothing was written
+     */
+    public boolean appendVCFField(final Object val) {
+        if ( val == null )
+            append(VCFConstants.MISSING_VALUE_v4);
+        else if ( val instanceof String )
+            append((String)val);
+        else if ( val instanceof Integer )
+            append(((Integer)val).intValue());
+        else if ( val instanceof Double )
+            appendVCFDouble((Double)val);
+        else if ( val instanceof Boolean )
+            return (Boolean)val; // empty string for true, nothing for false
+        else if ( val instanceof List ) {
+            final List list = (List)val;
+            if ( list.isEmpty() )
+                append(VCFConstants.MISSING_VALUE_v4);
+            for ( int i = 0; i < list.size(); i++ ) {
+                if ( i > 0 ) append(',');
+                appendVCFFieldElement(list.get(i));
+            }
+        } else if ( val instanceof int[] ) {
+            final int[] values = (int[])val;
+            if ( values.length == 0 )
+                append(VCFConstants.MISSING_VALUE_v4);
+            for ( int i = 0; i < values.length; i++ ) {
+                if ( i > 0 ) append(',');
+                append(values[i]);
+            }
+        } else if ( val instanceof double[] ) {
+            final double[] values = (double[])val;
+            if ( values.length == 0 )
+                append(VCFConstants.MISSING_VALUE_v4);
+            for ( int i = 0; i < values.length; i++ ) {
+                if ( i > 0 ) append(',');
+                appendVCFDouble(values[i]);
+            }
+        } else if ( val.getClass().isArray() ) {
+            final int length = Array.getLength(val);
+            if ( length == 0 )
+                append(VCFConstants.MISSING_VALUE_v4);
+            for ( int i = 0; i < length; i++ ) {
+                if ( i > 0 ) append(',');
+                appendVCFFieldElement(Array.get(val, i));
+            }
+        } else
+            append(val.toString());
+
+        return true;
+    }
+
+    /**
+     * Elements of lists that are formatted as nothing at all appear as "null", as they always have
+     */
+    private void appendVCFFieldElement(final Object element) {
+        if ( ! appendVCFField(element) )
+            append("null");
+    }
+
+    /**
+     * Append d rounded half-up to nDecimals decimal places, as String.format("%.<nDecimals>f") would
+     *
+     * @return false if d is too large or too close to a tie to be rounded directly, in which case nothing was written
+     */
+    @Requires({"nDecimals > 0", "nDecimals < POWERS_OF_TEN.length"})
+    private boolean appendFixed(final double d, final int nDecimals) {
+        final double scaled = Math.abs(d) * POWERS_OF_TEN[nDecimals];
+        if ( ! (scaled < MAX_DIRECTLY_ROUNDED_VALUE) ) // also catches NaN
+            return false;
+
+        final long rounded = roundScaled(scaled);
+        if ( rounded < 0 )
+            return false;
+
+        if ( isNegative(d) ) append('-');
+        append(rounded / POWERS_OF_TEN[nDecimals]);
+        append('.');
+        appendDigits(rounded % POWERS_OF_TEN[nDecimals], nDecimals);
+        return true;
+    }
+
+    /**
+     * Append d in scientific notation with three decimal places, as String.format("%.3e") would
+     *
+     * @return false if d cannot be rounded directly, in which case nothing was written
+     */
+    private boolean appendScientific(final double d) {
+        final double abs = Math.abs(d);
+        if ( ! (abs >= 1e-290 && abs <= 1e290) ) // also catches NaN and infinities
+            return false;
+
+        int exponent = (int)Math.floor(Math.log10(abs));
+        double mantissa = abs / Math.pow(10, exponent);
+        if ( mantissa >= 10 ) {
+            mantissa /= 10;
+            exponent++;
+        } else if ( mantissa < 1 ) {
+            mantissa *= 10;
+            exponent--;
+        }
+
+        long rounded = roundScaled(mantissa * 1000);
+        if ( rounded < 0 )
+            return false;
+        if ( rounded >= 10000 ) { // 9.9996 rounds up to 1.000e+1
+            rounded /= 10;
+            exponent++;
+        }
+
+        if ( isNegative(d) ) append('-');
+        append(rounded / 1000);
+        append('.');
+        appendDigits(rounded % 1000, 3);
+        append('e');
+        append(exponent < 0 ? '-' : '+');
+        appendDigits(Math.abs(exponent), Math.abs(exponent) < 100 ? 2 : 3);
+        return true;
+    }
+
+    /**
+     * Round the non-negative scaled half-up
+     *
+     * @return the rounded value, or -1 if scaled is too close to a tie to know how String.format would round it
+     */
+    @Ensures("result >= -1")
+    private static long roundScaled(final double scaled) {
+        final long floor = (long)scaled;
+        final double fraction = scaled - floor;
+        if ( Math.abs(fraction - 0.5) < TIE_TOLERANCE )
+            return -1;
+        return fraction > 0.5 ? floor + 1 : floor;
+    }
+
+    private static boolean isNegative(final double d) {
+        return d < 0 || (d == 0.0 && 1.0 / d < 0); // -0.0 is formatted with a sign too
+    }
+
+    /**
+     * Append the non-negative value as exactly nDigits digits, zero padded on the left
+     */
+    private void appendDigits(long value, final int nDigits) {
+        ensureCapacity(nDigits);
+        for ( int i = position + nDigits - 1; i >= position; i-- ) {
+            buffer[i] = (byte)('0' + (value % 10));
+            value /= 10;
+        }
+        position += nDigits;
+    }
+}
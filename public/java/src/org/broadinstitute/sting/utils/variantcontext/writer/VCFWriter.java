@@ -56,6 +56,16 @@ class VCFWriter extends IndexingVariantContextWriter {
 
     private IntGenotypeFieldAccessors intGenotypeFieldAccessors = new IntGenotypeFieldAccessors();
 
+    // records are encoded into this reusable buffer, and then written to the output stream in one go
+    private final VCFTextEncoder encoder = new VCFTextEncoder();
+
+    // reusable storage for sorting INFO keys and filters
+    private String[] keys = new String[16];
+
+    // the FORMAT column of the last record with genotypes, already encoded as bytes
+    private List<String> lastGenotypeFormatKeys = null;
+    private byte[] lastGenotypeFormatBytes = null;
+
     public VCFWriter(final File location, final OutputStream output, final SAMSequenceDictionary refDict,
                      final boolean enableOnTheFlyIndexing, boolean doNotWriteGenotypes,
                      final boolean allowMissingFieldsInHeader ) {
@@ -165,74 +175,55 @@ class VCFWriter extends IndexingVariantContextWriter {
             vc = VCFAlleleClipper.createVariantContextWithPaddedAlleles(vc);
             super.add(vc);
 
-            Map<Allele, String> alleleMap = buildAlleleMap(vc);
+            encoder.reset();
 
             // CHROM
-            mWriter.write(vc.getChr());
-            mWriter.write(VCFConstants.FIELD_SEPARATOR);
+            encoder.append(vc.getChr());
+            encoder.append(VCFConstants.FIELD_SEPARATOR_CHAR);
 
             // POS
-            mWriter.write(String.valueOf(vc.getStart()));
-            mWriter.write(VCFConstants.FIELD_SEPARATOR);
+            encoder.append(vc.getStart());
+            encoder.append(VCFConstants.FIELD_SEPARATOR_CHAR);
 
             // ID
-            String ID = vc.getID();
-            mWriter.write(ID);
-            mWriter.write(VCFConstants.FIELD_SEPARATOR);
+            encoder.append(vc.getID());
+            encoder.append(VCFConstants.FIELD_SEPARATOR_CHAR);
 
             // REF
-            String refString = vc.getReference().getDisplayString();
-            mWriter.write(refString);
-            mWriter.write(VCFConstants.FIELD_SEPARATOR);
+            encoder.append(vc.getReference().getDisplayBases());
+            encoder.append(VCFConstants.FIELD_SEPARATOR_CHAR);
 
             // ALT
             if ( vc.isVariant() ) {
-                Allele altAllele = vc.getAlternateAllele(0);
-                String alt = altAllele.getDisplayString();
-                mWriter.write(alt);
-
+                encoder.append(vc.getAlternateAllele(0).getDisplayBases());
                 for (int i = 1; i < vc.getAlternateAlleles().size(); i++) {
-                    altAllele = vc.getAlternateAllele(i);
-                    alt = altAllele.getDisplayString();
-                    mWriter.write(",");
-                    mWriter.write(alt);
+                    encoder.append(',');
+                    encoder.append(vc.getAlternateAllele(i).getDisplayBases());
                 }
             } else {
-                mWriter.write(VCFConstants.EMPTY_ALTERNATE_ALLELE_FIELD);
+                encoder.append(VCFConstants.EMPTY_ALTERNATE_ALLELE_FIELD);
             }
-            mWriter.write(VCFConstants.FIELD_SEPARATOR);
+            encoder.append(VCFConstants.FIELD_SEPARATOR_CHAR);
 
             // QUAL
             if ( !vc.hasLog10PError() )
-                mWriter.write(VCFConstants.MISSING_VALUE_v4);
+                encoder.append(VCFConstants.MISSING_VALUE_v4);
             else
-                mWriter.write(formatQualValue(vc.getPhredScaledQual()));
-            mWriter.write(VCFConstants.FIELD_SEPARATOR);
+                encoder.appendQual(vc.getPhredScaledQual());
+            encoder.append(VCFConstants.FIELD_SEPARATOR_CHAR);
 
             // FILTER
-            String filters = getFilterString(vc);
-            mWriter.write(filters);
-            mWriter.write(VCFConstants.FIELD_SEPARATOR);
+            writeFilters(vc);
+            encoder.append(VCFConstants.FIELD_SEPARATOR_CHAR);
 
             // INFO
-            Map<String, String> infoFields = new TreeMap<String, String>();
-            for ( Map.Entry<String, Object> field : vc.getAttributes().entrySet() ) {
-                String key = field.getKey();
-
-                if ( ! mHeader.hasInfoLine(key) )
-                    fieldIsMissingFromHeaderError(vc, key, "INFO");
-
-                String outputValue = formatVCFField(field.getValue());
-                if ( outputValue != null )
-                    infoFields.put(key, outputValue);
-            }
-            writeInfoString(infoFields);
+            writeInfoString(vc);
 
             // FORMAT
             final GenotypesContext gc = vc.getGenotypes();
             if ( gc.isLazyWithData() && ((LazyGenotypesContext)gc).getUnparsedGenotypeData() instanceof String ) {
-                mWriter.write(VCFConstants.FIELD_SEPARATOR);
-                mWriter.write(((LazyGenotypesContext)gc).getUnparsedGenotypeData().toString());
+                encoder.append(VCFConstants.FIELD_SEPARATOR_CHAR);
+                encoder.append(((LazyGenotypesContext)gc).getUnparsedGenotypeData().toString());
             } else {
                 List<String> genotypeAttributeKeys = calcVCFGenotypeKeys(vc, mHeader);
                 if ( ! genotypeAttributeKeys.isEmpty() ) {
@@ -240,94 +231,109 @@ class VCFWriter extends IndexingVariantContextWriter {
                         if ( ! mHeader.hasFormatLine(format) )
                             fieldIsMissingFromHeaderError(vc, format, "FORMAT");
 
-                    final String genotypeFormatString = ParsingUtils.join(VCFConstants.GENOTYPE_FIELD_SEPARATOR, genotypeAttributeKeys);
+                    encoder.append(VCFConstants.FIELD_SEPARATOR_CHAR);
+                    encoder.append(getGenotypeFormatBytes(genotypeAttributeKeys));
 
-                    mWriter.write(VCFConstants.FIELD_SEPARATOR);
-                    mWriter.write(genotypeFormatString);
-
-                    addGenotypeData(vc, alleleMap, genotypeAttributeKeys);
+                    addGenotypeData(vc, genotypeAttributeKeys);
                 }
             }
-            
-            mWriter.write("\n");
-            mWriter.flush();  // necessary so that writing to an output stream will work
+
+            encoder.append('\n');
+            encoder.writeTo(getOutputStream());
         } catch (IOException e) {
             throw new RuntimeException("Unable to write the VCF object to " + getStreamName());
         }
     }
 
-    private static Map<Allele, String> buildAlleleMap(final VariantContext vc) {
-        final Map<Allele, String> alleleMap = new HashMap<Allele, String>(vc.getAlleles().size()+1);
-        alleleMap.put(Allele.NO_CALL, VCFConstants.EMPTY_ALLELE); // convenience for lookup
-
-        final List<Allele> alleles = vc.getAlleles();
-        for ( int i = 0; i < alleles.size(); i++ ) {
-            alleleMap.put(alleles.get(i), String.valueOf(i));
-        }
-
-        return alleleMap;
-    }
-
     // --------------------------------------------------------------------------------
     //
     // implementation functions
     //
     // --------------------------------------------------------------------------------
 
-    private final String getFilterString(final VariantContext vc) {
+    private void writeFilters(final VariantContext vc) {
         if ( vc.isFiltered() ) {
             for ( final String filter : vc.getFilters() )
                 if ( ! mHeader.hasFilterLine(filter) )
                     fieldIsMissingFromHeaderError(vc, filter, "FILTER");
 
-            return ParsingUtils.join(";", ParsingUtils.sortList(vc.getFilters()));
+            final int nFilters = sortedKeys(vc.getFilters());
+            for ( int i = 0; i < nFilters; i++ ) {
+                if ( i > 0 ) encoder.append(';');
+                encoder.append(keys[i]);
+            }
         }
         else if ( vc.filtersWereApplied() )
-            return VCFConstants.PASSES_FILTERS_v4;
+            encoder.append(VCFConstants.PASSES_FILTERS_v4);
         else
-            return VCFConstants.UNFILTERED;
+            encoder.append(VCFConstants.UNFILTERED);
     }
 
-    private static final String QUAL_FORMAT_STRING = "%.2f";
-    private static final String QUAL_FORMAT_EXTENSION_TO_TRIM = ".00";
-
-    private String formatQualValue(double qual) {
-        String s = String.format(QUAL_FORMAT_STRING, qual);
-        if ( s.endsWith(QUAL_FORMAT_EXTENSION_TO_TRIM) )
-            s = s.substring(0, s.length() - QUAL_FORMAT_EXTENSION_TO_TRIM.length());
-        return s;
+    /**
+     * Copy values into our reusable keys array, in sorted order
+     *
+     * @return the number of keys
+     */
+    private int sortedKeys(final Collection<String> values) {
+        if ( keys.length < values.size() )
+            keys = new String[2 * values.size()];
+        int n = 0;
+        for ( final String value : values )
+            keys[n++] = value;
+        Arrays.sort(keys, 0, n);
+        return n;
     }
 
     /**
-     * create the info string; assumes that no values are null
-     *
-     * @param infoFields a map of info fields
-     * @throws IOException for writer
+     * @return the bytes of the FORMAT column for genotypeFormatKeys, which rarely change from record to record
      */
-    private void writeInfoString(Map<String, String> infoFields) throws IOException {
-        if ( infoFields.isEmpty() ) {
-            mWriter.write(VCFConstants.EMPTY_INFO_FIELD);
-            return;
+    private byte[] getGenotypeFormatBytes(final List<String> genotypeFormatKeys) {
+        if ( ! genotypeFormatKeys.equals(lastGenotypeFormatKeys) ) {
+            lastGenotypeFormatKeys = genotypeFormatKeys;
+            lastGenotypeFormatBytes = ParsingUtils.join(VCFConstants.GENOTYPE_FIELD_SEPARATOR, genotypeFormatKeys).getBytes();
         }
+        return lastGenotypeFormatBytes;
+    }
 
-        boolean isFirst = true;
-        for ( Map.Entry<String, String> entry : infoFields.entrySet() ) {
-            if ( isFirst )
-                isFirst = false;
-            else
-                mWriter.write(VCFConstants.INFO_FIELD_SEPARATOR);
-
-            String key = entry.getKey();
-            mWriter.write(key);
+    /**
+     * write the info string; assumes that no values are null
+     *
+     * @param vc the variant context whose attributes we are writing
+     */
+    private void writeInfoString(final VariantContext vc) {
+        final Map<String, Object> attributes = vc.getAttributes();
+        final int nKeys = sortedKeys(attributes.keySet());
+
+        boolean wroteField = false;
+        for ( int i = 0; i < nKeys; i++ ) {
+            final String key = keys[i];
+            if ( ! mHeader.hasInfoLine(key) )
+                fieldIsMissingFromHeaderError(vc, key, "INFO");
+
+            final int fieldStart = encoder.getPosition();
+            if ( wroteField )
+                encoder.append(VCFConstants.INFO_FIELD_SEPARATOR_CHAR);
+            encoder.append(key);
+
+            final int valueStart = encoder.getPosition();
+            encoder.append('=');
+            if ( ! encoder.appendVCFField(attributes.get(key)) ) {
+                encoder.truncate(fieldStart); // fields with no value at all are skipped entirely
+                continue;
+            }
 
-            if ( !entry.getValue().equals("") ) {
-                VCFInfoHeaderLine metaData = mHeader.getInfoHeaderLine(key);
-                if ( metaData == null || metaData.getCountType() != VCFHeaderLineCount.INTEGER || metaData.getCount() != 0 ) {
-                    mWriter.write("=");
-                    mWriter.write(entry.getValue());
-                }
+            if ( encoder.getPosition() == valueStart + 1 ) {
+                encoder.truncate(valueStart); // an empty value
+            } else {
+                final VCFInfoHeaderLine metaData = mHeader.getInfoHeaderLine(key);
+                if ( metaData != null && metaData.getCountType() == VCFHeaderLineCount.INTEGER && metaData.getCount() == 0 )
+                    encoder.truncate(valueStart); // a flag
             }
+            wroteField = true;
         }
+
+        if ( ! wroteField )
+            encoder.append(VCFConstants.EMPTY_INFO_FIELD);
     }
 
     /**
@@ -335,95 +341,96 @@ class VCFWriter extends IndexingVariantContextWriter {
      *
      * @param vc                     the variant context
      * @param genotypeFormatKeys  Genotype formatting string
-     * @param alleleMap              alleles for this context
-     * @throws IOException for writer
      */
-    private void addGenotypeData(VariantContext vc, Map<Allele, String> alleleMap, List<String> genotypeFormatKeys)
-    throws IOException {
-        for ( String sample : mHeader.getGenotypeSamples() ) {
-            mWriter.write(VCFConstants.FIELD_SEPARATOR);
+    private void addGenotypeData(final VariantContext vc, final List<String> genotypeFormatKeys) {
+        // look up everything that depends only on the field once per record, rather than once per sample
+        final int nFields = genotypeFormatKeys.size();
+        final IntGenotypeFieldAccessors.Accessor[] accessors = new IntGenotypeFieldAccessors.Accessor[nFields];
+        final int[] numInFormatFields = new int[nFields];
+        for ( int f = 0; f < nFields; f++ ) {
+            final String field = genotypeFormatKeys.get(f);
+            accessors[f] = intGenotypeFieldAccessors.getAccessor(field);
+            final VCFFormatHeaderLine metaData = mHeader.getFormatHeaderLine(field);
+            numInFormatFields[f] = metaData == null ? 1 : metaData.getCount(vc);
+        }
+        final boolean hasGT = genotypeFormatKeys.contains(VCFConstants.GENOTYPE_KEY);
+        final List<Allele> alleles = vc.getAlleles();
+        final GenotypesContext gc = vc.getGenotypes();
 
-            Genotype g = vc.getGenotype(sample);
+        int sampleIndex = 0;
+        for ( final String sample : mHeader.getGenotypeSamples() ) {
+            encoder.append(VCFConstants.FIELD_SEPARATOR_CHAR);
+
+            // the genotypes are usually in the same order as the header samples, which avoids a map lookup
+            Genotype g = sampleIndex < gc.size() ? gc.get(sampleIndex) : null;
+            sampleIndex++;
+            if ( g == null || ! g.getSampleName().equals(sample) )
+                g = vc.getGenotype(sample);
             if ( g == null ) {
                 missingSampleError(vc, mHeader);
             }
 
-            final List<String> attrs = new ArrayList<String>(genotypeFormatKeys.size());
-            for ( String field : genotypeFormatKeys ) {
+            // trailing missing values are stripped off, so we remember where the last non-missing value ended
+            int end = encoder.getPosition();
+            int nAttributes = 0;
+            for ( int f = 0; f < nFields; f++ ) {
+                final String field = genotypeFormatKeys.get(f);
                 if ( field.equals(VCFConstants.GENOTYPE_KEY) ) {
                     if ( !g.isAvailable() ) {
                         throw new ReviewedStingException("GTs cannot be missing for some samples if they are available for others in the record");
                     }
 
-                    writeAllele(g.getAllele(0), alleleMap);
+                    writeAllele(g.getAllele(0), alleles);
                     for (int i = 1; i < g.getPloidy(); i++) {
-                        mWriter.write(g.isPhased() ? VCFConstants.PHASED : VCFConstants.UNPHASED);
-                        writeAllele(g.getAllele(i), alleleMap);
+                        encoder.append(g.isPhased() ? VCFConstants.PHASED : VCFConstants.UNPHASED);
+                        writeAllele(g.getAllele(i), alleles);
                     }
-
+                    end = encoder.getPosition();
                     continue;
+                }
+
+                final int fieldStart = encoder.getPosition();
+                if ( nAttributes > 0 || hasGT )
+                    encoder.append(VCFConstants.GENOTYPE_FIELD_SEPARATOR_CHAR);
+                final int valueStart = encoder.getPosition();
+
+                if ( field.equals(VCFConstants.GENOTYPE_FILTER_KEY ) ) {
+                    encoder.append(g.isFiltered() ? g.getFilters() : VCFConstants.PASSES_FILTERS_v4);
+                } else if ( accessors[f] != null ) {
+                    final int[] intValues = accessors[f].getValues(g);
+                    if ( intValues == null )
+                        encoder.append(VCFConstants.MISSING_VALUE_v4);
+                    else {
+                        encoder.append(intValues[0]);
+                        for ( int i = 1; i < intValues.length; i++) {
+                            encoder.append(',');
+                            encoder.append(intValues[i]);
+                        }
+                    }
                 } else {
-                    String outputValue;
-                    if ( field.equals(VCFConstants.GENOTYPE_FILTER_KEY ) ) {
-                        outputValue = g.isFiltered() ? g.getFilters() : VCFConstants.PASSES_FILTERS_v4;
-                    } else {
-                        final IntGenotypeFieldAccessors.Accessor accessor = intGenotypeFieldAccessors.getAccessor(field);
-                        if ( accessor != null ) {
-                            final int[] intValues = accessor.getValues(g);
-                            if ( intValues == null )
-                                outputValue = VCFConstants.MISSING_VALUE_v4;
-                            else if ( intValues.length == 1 ) // fast path
-                                outputValue = Integer.toString(intValues[0]);
-                            else {
-                                StringBuilder sb = new StringBuilder();
-                                sb.append(intValues[0]);
-                                for ( int i = 1; i < intValues.length; i++) {
-                                    sb.append(",");
-                                    sb.append(intValues[i]);
-                                }
-                                outputValue = sb.toString();
-                            }
-                        } else {
-                            Object val = g.hasExtendedAttribute(field) ? g.getExtendedAttribute(field) : VCFConstants.MISSING_VALUE_v4;
-
-                            VCFFormatHeaderLine metaData = mHeader.getFormatHeaderLine(field);
-                            if ( metaData != null ) {
-                                int numInFormatField = metaData.getCount(vc);
-                                if ( numInFormatField > 1 && val.equals(VCFConstants.MISSING_VALUE_v4) ) {
-                                    // If we have a missing field but multiple values are expected, we need to construct a new string with all fields.
-                                    // For example, if Number=2, the string has to be ".,."
-                                    StringBuilder sb = new StringBuilder(VCFConstants.MISSING_VALUE_v4);
-                                    for ( int i = 1; i < numInFormatField; i++ ) {
-                                        sb.append(",");
-                                        sb.append(VCFConstants.MISSING_VALUE_v4);
-                                    }
-                                    val = sb.toString();
-                                }
-                            }
-
-                            // assume that if key is absent, then the given string encoding suffices
-                            outputValue = formatVCFField(val);
+                    final Object val = g.hasExtendedAttribute(field) ? g.getExtendedAttribute(field) : VCFConstants.MISSING_VALUE_v4;
+                    if ( numInFormatFields[f] > 1 && val.equals(VCFConstants.MISSING_VALUE_v4) ) {
+                        // If we have a missing field but multiple values are expected, we need to write all of them.
+                        // For example, if Number=2, the string has to be ".,."
+                        encoder.append(VCFConstants.MISSING_VALUE_v4);
+                        for ( int i = 1; i < numInFormatFields[f]; i++ ) {
+                            encoder.append(',');
+                            encoder.append(VCFConstants.MISSING_VALUE_v4);
                         }
+                    } else if ( ! encoder.appendVCFField(val) ) {
+                        // assume that if key is absent, then the given string encoding suffices
+                        encoder.truncate(fieldStart);
+                        continue;
                     }
-
-                    if ( outputValue != null )
-                        attrs.add(outputValue);
                 }
-            }
 
-            // strip off trailing missing values
-            for (int i = attrs.size()-1; i >= 0; i--) {
-                if ( isMissingValue(attrs.get(i)) )
-                    attrs.remove(i);
-                else
-                    break;
+                nAttributes++;
+                if ( ! encoder.isMissingValue(valueStart) )
+                    end = encoder.getPosition();
             }
 
-            for (int i = 0; i < attrs.size(); i++) {
-                if ( i > 0 || genotypeFormatKeys.contains(VCFConstants.GENOTYPE_KEY) )
-                    mWriter.write(VCFConstants.GENOTYPE_FIELD_SEPARATOR);
-                mWriter.write(attrs.get(i));
-            }
+            // strip off trailing missing values
+            encoder.truncate(end);
         }
     }
 
@@ -434,16 +441,21 @@ class VCFWriter extends IndexingVariantContextWriter {
         throw new ReviewedStingException("BUG: we now require all samples in VCFheader to have genotype objects.  Missing samples are " + Utils.join(",", badSampleNames));
     }
 
-    private boolean isMissingValue(String s) {
-        // we need to deal with the case that it's a list of missing values
-        return (countOccurrences(VCFConstants.MISSING_VALUE_v4.charAt(0), s) + countOccurrences(',', s) == s.length());
-    }
+    private void writeAllele(final Allele allele, final List<Allele> alleles) {
+        if ( allele.isNoCall() ) {
+            encoder.append(VCFConstants.EMPTY_ALLELE);
+            return;
+        }
 
-    private void writeAllele(Allele allele, Map<Allele, String> alleleMap) throws IOException {
-        String encoding = alleleMap.get(allele);
-        if ( encoding == null )
-            throw new TribbleException.InternalCodecException("Allele " + allele + " is not an allele in the variant context");
-        mWriter.write(encoding);
+        for ( int i = 0; i < alleles.size(); i++ ) {
+            final Allele candidate = alleles.get(i);
+            if ( candidate == allele || candidate.equals(allele) ) {
+                encoder.append(i);
+                return;
+            }
+        }
+
+        throw new TribbleException.InternalCodecException("Allele " + allele + " is not an allele in the variant context");
     }
 
     /**
@@ -550,14 +562,6 @@ class VCFWriter extends IndexingVariantContextWriter {
     }
 
 
-    private static int countOccurrences(char c, String s) {
-           int count = 0;
-           for (int i = 0; i < s.length(); i++) {
-               count += s.charAt(i) == c ? 1 : 0;
-           }
-           return count;
-    }
-
     private final void fieldIsMissingFromHeaderError(final VariantContext vc, final String id, final String field) {
         if ( !allowMissingFieldsInHeader)
             throw new UserException.MalformedVCFHeader("Key " + id + " found in VariantContext field " + field
@@ -70,12 +70,24 @@ public class VariantContextWriterFactory {
                                               final OutputStream output,
                                               final SAMSequenceDictionary refDict,
                                               final EnumSet<Options> options) {
+        return create(location, output, refDict, options, 1);
+    }
+
+    /**
+     * @param nBCF2EncodingThreads the number of threads a BCF2 writer uses to encode the genotypes of records with many samples
+     */
+    public static VariantContextWriter create(final File location,
+                                              final OutputStream output,
+                                              final SAMSequenceDictionary refDict,
+                                              final EnumSet<Options> options,
+                                              final int nBCF2EncodingThreads) {
         final boolean enableBCF = isBCFOutput(location, options);
 
         if ( enableBCF )
             return new BCF2Writer(location, output, refDict,
                     options.contains(Options.INDEX_ON_THE_FLY),
-                    options.contains(Options.DO_NOT_WRITE_GENOTYPES));
+                    options.contains(Options.DO_NOT_WRITE_GENOTYPES),
+                    nBCF2EncodingThreads);
         else {
             return new VCFWriter(location, output, refDict,
                     options.contains(Options.INDEX_ON_THE_FLY),
@@ -96,6 +108,28 @@ public class VariantContextWriterFactory {
         return new SortingVariantContextWriter(innerWriter, maxCachingStartDistance, takeOwnershipOfInner);
     }
 
+    /**
+     * Returns a writer that sorts all of the records added to it, however far out of order, and writes them to
+     * innerWriter on close().  At most maxRecordsInMemory records are kept in memory; the rest are spilled in
+     * sorted runs to temporary files.  Spilled runs are stored as VCF text, which rounds floating point values, so
+     * once anything has been spilled all of the records reach innerWriter as if they had been read from a VCF file.
+     *
+     * @param innerWriter the writer to write the sorted records to
+     * @param refDict the dictionary defining the order of the contigs, or null to use the ##contig lines of the header
+     * @param maxRecordsInMemory the maximum number of records to hold in memory before spilling them to disk
+     * @param takeOwnershipOfInner should the sorting writer close innerWriter when it's closed?
+     */
+    public static VariantContextWriter sortExternally(final VariantContextWriter innerWriter,
+                                                      final SAMSequenceDictionary refDict,
+                                                      final int maxRecordsInMemory,
+                                                      final boolean takeOwnershipOfInner) {
+        return new ExternalSortingVariantContextWriter(innerWriter, refDict, maxRecordsInMemory, takeOwnershipOfInner);
+    }
+
+    public static VariantContextWriter sortExternally(final VariantContextWriter innerWriter, final SAMSequenceDictionary refDict, final boolean takeOwnershipOfInner) {
+        return sortExternally(innerWriter, refDict, ExternalSortingVariantContextWriter.DEFAULT_MAX_RECORDS_IN_MEMORY, takeOwnershipOfInner);
+    }
+
     /**
      * Returns a output stream writing to location, or throws a UserException if this fails
      * @param location
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.bqsr;
+
+import net.sf.samtools.SAMFileHeader;
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.utils.sam.ArtificialSAMUtils;
+import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BaseRecalibratorByReadUnitTest extends BaseTest {
+    private final static SAMFileHeader header = ArtificialSAMUtils.createArtificialSamHeader(1, 1, 1000);
+
+    @Test
+    public void testSkipsAndErrors() {
+        final byte[] readBases = "TTACGTAAGGT".getBytes();
+        final byte[] refBases  =    "ACCAACCGGA".getBytes();
+        final boolean[] knownSites = new boolean[refBases.length];
+        knownSites[4] = true;       // masks the second base of the 2M, at offset 7 in the read
+
+        final GATKSAMRecord read = ArtificialSAMUtils.createArtificialRead(header, "read", 0, 10, readBases, new byte[readBases.length]);
+        read.setCigarString("2S3M1I2M2D3M");
+        Assert.assertEquals(read.getAlignmentEnd() - read.getAlignmentStart() + 1, refBases.length);
+
+        final boolean[] skip = new boolean[readBases.length];
+        final boolean[] isError = new boolean[readBases.length];
+        BaseRecalibratorByRead.calculateSkipsAndErrors(read, refBases, knownSites, skip, isError);
+
+        Assert.assertEquals(skip, new boolean[]{true, true, false, false, false, true, false, true, false, false, false});
+        final boolean[] expectedErrors = new boolean[readBases.length];
+        expectedErrors[4] = true;   // G aligned to C
+        expectedErrors[10] = true;  // T aligned to A, after the deletion
+        Assert.assertEquals(isError, expectedErrors);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.bqsr;
+
+import net.sf.samtools.SAMFileHeader;
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.utils.BaseUtils;
+import org.broadinstitute.sting.utils.collections.NestedIntegerArray;
+import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
+import org.broadinstitute.sting.utils.exceptions.UserException;
+import org.broadinstitute.sting.utils.recalibration.RecalibrationTables;
+import org.broadinstitute.sting.utils.sam.ArtificialSAMUtils;
+import org.broadinstitute.sting.utils.sam.GATKSAMReadGroupRecord;
+import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class BinaryRecalibrationReportUnitTest extends BaseTest {
+    private final static SAMFileHeader header = ArtificialSAMUtils.createArtificialSamHeader(1, 1, 1000);
+    private final static int READ_LENGTH = 76;
+
+    private static RecalibrationArgumentCollection makeRAC() {
+        final RecalibrationArgumentCollection RAC = new RecalibrationArgumentCollection();
+        RAC.NO_PLOTS = true;
+        return RAC;
+    }
+
+    private static Covariate[] makeCovariates(final RecalibrationArgumentCollection RAC) {
+        final Covariate[] covariates = new Covariate[]{new ReadGroupCovariate(), new QualityScoreCovariate(), new ContextCovariate(), new CycleCovariate()};
+        for ( final Covariate covariate : covariates )
+            covariate.initialize(RAC);
+        return covariates;
+    }
+
+    /**
+     * Random reads, cycling through the given read groups, which get their keys in the order they are given
+     */
+    private static List<GATKSAMRecord> makeReads(final int first, final int n, final String... readGroups) {
+        final List<GATKSAMRecord> reads = new ArrayList<GATKSAMRecord>(n);
+        for ( int i = first; i < first + n; i++ ) {
+            final Random random = new Random(i);
+            final byte[] bases = new byte[READ_LENGTH];
+            final byte[] quals = new byte[READ_LENGTH];
+            for ( int j = 0; j < READ_LENGTH; j++ ) {
+                bases[j] = BaseUtils.BASES[random.nextInt(4)];
+                quals[j] = (byte)(2 + random.nextInt(40));
+            }
+
+            final GATKSAMRecord read = ArtificialSAMUtils.createArtificialRead(header, "read" + i, 0, 1, bases, quals);
+            final GATKSAMReadGroupRecord rg = new GATKSAMReadGroupRecord(readGroups[(i - first) % readGroups.length]);
+            rg.setPlatform("illumina");
+            read.setReadGroup(rg);
+            read.setReadNegativeStrandFlag(i % 2 == 1);
+            reads.add(read);
+        }
+        return reads;
+    }
+
+    /**
+     * Adds the mismatches of the reads against a random reference to the tables
+     */
+    private static void addReads(final RecalibrationTables tables, final Covariate[] covariates, final List<GATKSAMRecord> reads) {
+        final RecalDatumTable rgTable = tables.getTable(RecalibrationTables.TableType.READ_GROUP_TABLE);
+        final RecalDatumTable qualTable = tables.getTable(RecalibrationTables.TableType.QUALITY_SCORE_TABLE);
+        final int eventIndex = EventType.BASE_SUBSTITUTION.index;
+
+        for ( final GATKSAMRecord read : reads ) {
+            final Random random = new Random(read.getReadName().hashCode());
+            final ReadCovariates readCovariates = RecalDataManager.computeCovariates(read, covariates);
+            for ( int offset = 0; offset < READ_LENGTH; offset++ ) {
+                final byte qual = read.getBaseQualities()[offset];
+                final boolean isError = random.nextInt(qual) == 0;
+                final int[] keys = readCovariates.getKeySet(offset, EventType.BASE_SUBSTITUTION);
+                rgTable.combine(rgTable.index(keys[0], eventIndex), 1, isError ? 1 : 0, qual);
+                qualTable.increment(qualTable.index(keys[0], keys[1], eventIndex), qual, isError);
+                for ( int j = 2; j < covariates.length; j++ ) {
+                    if ( keys[j] >= 0 )
+                        tables.getTable(j).increment(tables.getTable(j).index(keys[0], keys[1], keys[j], eventIndex), qual, isError);
+                }
+            }
+        }
+    }
+
+    private static File writeReport(final List<GATKSAMRecord> reads, final boolean binary) throws Exception {
+        final RecalibrationArgumentCollection RAC = makeRAC();
+        final Covariate[] covariates = makeCovariates(RAC);
+        final RecalibrationTables tables = new RecalibrationTables(covariates, 3);
+        addReads(tables, covariates, reads);
+        final QuantizationInfo quantizationInfo = new QuantizationInfo(tables, RAC.QUANTIZING_LEVELS);
+
+        final File file = createTempFile("BinaryRecalibrationReportUnitTest", binary ? ".bin" : ".grp");
+        if ( binary ) {
+            BinaryRecalibrationReport.write(RAC.generateReportTable(), quantizationInfo, tables, covariates, file);
+        } else {
+            final PrintStream output = new PrintStream(file);
+            RecalDataManager.outputRecalibrationReport(RAC, quantizationInfo, tables, covariates, output);
+            output.close();
+        }
+        return file;
+    }
+
+    /**
+     * Compares the tables of the same covariates, which needn't be in the same order
+     */
+    private static void assertTablesEqual(final RecalibrationTables actual, final Covariate[] actualCovariates, final RecalibrationTables expected, final Covariate[] expectedCovariates, final double estimatedQTolerance) {
+        Assert.assertEquals(actual.numTables(), expected.numTables());
+        for ( int t = 0; t < expected.numTables(); t++ ) {
+            int actualTable = -1;
+            for ( int i = 0; i < actualCovariates.length; i++ ) {
+                if ( actualCovariates[i].getClass() == expectedCovariates[t].getClass() )
+                    actualTable = i;
+            }
+            final List<NestedIntegerArray.Leaf> actualLeaves = actual.getTable(actualTable).getAllLeaves();
+            final List<NestedIntegerArray.Leaf> expectedLeaves = expected.getTable(t).getAllLeaves();
+            Assert.assertEquals(actualLeaves.size(), expectedLeaves.size(), "table " + t);
+            for ( int i = 0; i < expectedLeaves.size(); i++ ) {
+                final RecalDatum actualDatum = (RecalDatum)actualLeaves.get(i).value;
+                final RecalDatum expectedDatum = (RecalDatum)expectedLeaves.get(i).value;
+                Assert.assertEquals(actualLeaves.get(i).keys, expectedLeaves.get(i).keys, "table " + t);
+                Assert.assertEquals(actualDatum.numObservations, expectedDatum.numObservations, "table " + t);
+                Assert.assertEquals(actualDatum.numMismatches, expectedDatum.numMismatches, "table " + t);
+                Assert.assertEquals(actualDatum.getEstimatedQReported(), expectedDatum.getEstimatedQReported(), estimatedQTolerance, "table " + t);
+                Assert.assertEquals(actualDatum.getEmpiricalQuality(), expectedDatum.getEmpiricalQuality(), 1e-3, "table " + t);
+            }
+        }
+    }
+
+    @Test
+    public void testConvertToBinaryAndBack() throws Exception {
+        final File text = writeReport(makeReads(0, 300, "rg0", "rg1", "rg2"), false);
+        final RecalibrationReport textReport = new RecalibrationReport(text);
+        Assert.assertFalse(BinaryRecalibrationReport.isBinaryReport(text));
+
+        final File binary = createTempFile("BinaryRecalibrationReportUnitTest", ".bin");
+        textReport.outputBinary(binary);
+        Assert.assertTrue(BinaryRecalibrationReport.isBinaryReport(binary));
+        Assert.assertTrue(binary.length() < text.length());
+
+        final RecalibrationReport binaryReport = new RecalibrationReport(binary);
+        assertTablesEqual(binaryReport.getRecalibrationTables(), binaryReport.getRequestedCovariates(), textReport.getRecalibrationTables(), textReport.getRequestedCovariates(), 0.0);
+        Assert.assertEquals(binaryReport.getQuantizationInfo().getQuantizedQuals(), textReport.getQuantizationInfo().getQuantizedQuals());
+        Assert.assertEquals(binaryReport.getQuantizationInfo().getEmpiricalQualCounts(), textReport.getQuantizationInfo().getEmpiricalQualCounts());
+        Assert.assertEquals(binaryReport.getRAC().NO_PLOTS, true);
+        Assert.assertEquals(binaryReport.getRAC().MISMATCHES_CONTEXT_SIZE, textReport.getRAC().MISMATCHES_CONTEXT_SIZE);
+        Assert.assertEquals(Arrays.asList(binaryReport.getCovariates()[0].formatKey(0), binaryReport.getCovariates()[0].formatKey(2)), Arrays.asList("rg0", "rg2"));
+
+        final File textAgain = createTempFile("BinaryRecalibrationReportUnitTest", ".grp");
+        final PrintStream output = new PrintStream(textAgain);
+        binaryReport.output(output);
+        output.close();
+        final RecalibrationReport textReportAgain = new RecalibrationReport(textAgain);
+        assertTablesEqual(textReportAgain.getRecalibrationTables(), textReportAgain.getRequestedCovariates(), textReport.getRecalibrationTables(), textReport.getRequestedCovariates(), 0.0);
+    }
+
+    @Test
+    public void testGatherBinaryReports() throws Exception {
+        // the read groups are seen in different orders, so they have different keys in each report
+        final List<GATKSAMRecord> reads1 = makeReads(0, 200, "rg0", "rg1");
+        final List<GATKSAMRecord> reads2 = makeReads(200, 200, "rg2", "rg1");
+        final List<GATKSAMRecord> reads3 = makeReads(400, 100, "rg0");
+
+        final List<File> inputs = Arrays.asList(writeReport(reads1, true), writeReport(reads2, true), writeReport(reads3, true));
+        final File output = createTempFile("BinaryRecalibrationReportUnitTest", ".bin");
+        new BQSRGatherer().gather(inputs, output);
+        Assert.assertTrue(BinaryRecalibrationReport.isBinaryReport(output));
+
+        final Covariate[] covariates = makeCovariates(makeRAC());
+        final RecalibrationTables expected = new RecalibrationTables(covariates, 3);
+        addReads(expected, covariates, reads1);
+        addReads(expected, covariates, reads2);
+        addReads(expected, covariates, reads3);
+
+        final RecalibrationReport gathered = new RecalibrationReport(output);
+        assertTablesEqual(gathered.getRecalibrationTables(), gathered.getRequestedCovariates(), expected, covariates, 1e-6);
+        Assert.assertEquals(gathered.getQuantizationInfo().getQuantizedQuals(), new QuantizationInfo(expected, makeRAC().QUANTIZING_LEVELS).getQuantizedQuals());
+    }
+
+    @Test(expectedExceptions = ReviewedStingException.class)
+    public void testClosedReaderKeepsOnlyItsHeader() throws Exception {
+        final BinaryRecalibrationReport.Reader reader = new BinaryRecalibrationReport.Reader(writeReport(makeReads(0, 10, "rg1", "rg0"), true));
+        reader.close();
+        Assert.assertEquals(reader.getReadGroups(), Arrays.asList("rg1", "rg0"));
+
+        final Covariate[] covariates = makeCovariates(makeRAC());
+        reader.readTables(new RecalibrationTables(covariates, 2), covariates);
+    }
+
+    @Test(expectedExceptions = UserException.MalformedFile.class)
+    public void testTruncatedReport() throws Exception {
+        final File binary = writeReport(makeReads(0, 10, "rg0"), true);
+        final RandomAccessFile raf = new RandomAccessFile(binary, "rw");
+        raf.setLength(binary.length() - 7);
+        raf.close();
+        new RecalibrationReport(binary);
+    }
+}
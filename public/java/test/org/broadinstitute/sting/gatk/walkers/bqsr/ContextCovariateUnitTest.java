@@ -1,5 +1,6 @@
 package org.broadinstitute.sting.gatk.walkers.bqsr;
 
+import org.broadinstitute.sting.utils.BaseUtils;
 import org.broadinstitute.sting.utils.clipping.ClippingRepresentation;
 import org.broadinstitute.sting.utils.clipping.ReadClipper;
 import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
@@ -36,6 +37,35 @@ public class ContextCovariateUnitTest {
         verifyCovariateArray(readCovariates.getDeletionsKeySet(),  RAC.INDELS_CONTEXT_SIZE,  clippedRead, covariate);
     }
 
+    @Test(enabled = true)
+    public void testNegativeStrandContextsWithNs() {
+        GATKSAMRecord read = ReadUtils.createRandomRead(1000);
+        final byte[] bases = read.getReadBases();
+        final byte[] quals = read.getBaseQualities();
+        for (int i = 0; i < 3; i++) {                                       // low quality tails on both ends
+            quals[i] = RAC.LOW_QUAL_TAIL;
+            quals[quals.length - i - 1] = RAC.LOW_QUAL_TAIL;
+        }
+        for (int i = 10; i < bases.length; i += 97)
+            bases[i] = 'N';
+        read.setReadBases(bases);
+        read.setBaseQualities(quals);
+        read.setReadNegativeStrandFlag(true);
+
+        GATKSAMRecord clippedRead = ReadClipper.clipLowQualEnds(read, RAC.LOW_QUAL_TAIL, ClippingRepresentation.WRITE_NS);
+        final String sequencedBases = stringFrom(BaseUtils.simpleReverseComplement(clippedRead.getReadBases()));
+        ReadCovariates readCovariates = new ReadCovariates(read.getReadLength(), 1);
+        covariate.recordValues(read, readCovariates);
+
+        final int[][] mismatchKeys = readCovariates.getMismatchesKeySet();
+        final int[][] insertionKeys = readCovariates.getInsertionsKeySet();
+        for (int offset = 0; offset < mismatchKeys.length; offset++) {
+            final int cycle = mismatchKeys.length - offset - 1;
+            Assert.assertEquals(covariate.formatKey(mismatchKeys[offset][0]), expectedContext(sequencedBases, cycle, RAC.MISMATCHES_CONTEXT_SIZE));
+            Assert.assertEquals(covariate.formatKey(insertionKeys[offset][0]), expectedContext(sequencedBases, cycle, RAC.INDELS_CONTEXT_SIZE));
+        }
+    }
+
     public static void verifyCovariateArray(int[][] values, int contextSize, GATKSAMRecord read, Covariate contextCovariate) {
         for (int i = 0; i < values.length; i++)
             Assert.assertEquals(contextCovariate.formatKey(values[i][0]), expectedContext(read, i, contextSize));
@@ -43,7 +73,10 @@ public class ContextCovariateUnitTest {
     }
 
     public static String expectedContext (GATKSAMRecord read, int offset, int contextSize) {
-        final String bases = stringFrom(read.getReadBases());
+        return expectedContext(stringFrom(read.getReadBases()), offset, contextSize);
+    }
+
+    private static String expectedContext (String bases, int offset, int contextSize) {
         String expectedContext = null;
         if (offset - contextSize + 1 >= 0) {
             String context = bases.substring(offset - contextSize + 1, offset + 1);
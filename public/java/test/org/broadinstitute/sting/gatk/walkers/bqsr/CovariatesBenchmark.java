@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.bqsr;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+import com.google.caliper.runner.CaliperMain;
+import org.broadinstitute.sting.utils.BaseUtils;
+import org.broadinstitute.sting.utils.sam.ArtificialSAMUtils;
+import org.broadinstitute.sting.utils.sam.GATKSAMReadGroupRecord;
+import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Caliper microbenchmark of the calculation of the covariates of a read, for the context and cycle covariates
+ * on their own and for the full set of standard covariates BaseRecalibrator uses, over random reads with a few Ns
+ * and low quality tails, on both strands
+ */
+public class CovariatesBenchmark extends SimpleBenchmark {
+    @Param({"50", "100", "250"})
+    int readLength; // set automatically by framework
+
+    @Param({"illumina", "454"})
+    String platform; // set automatically by framework
+
+    private final static int N_READS = 1000;
+
+    private final List<GATKSAMRecord> reads = new ArrayList<GATKSAMRecord>();
+    private final ContextCovariate contextCovariate = new ContextCovariate();
+    private final CycleCovariate cycleCovariate = new CycleCovariate();
+    private Covariate[] allCovariates;
+    private ReadCovariates readCovariates;
+
+    @Override protected void setUp() {
+        final RecalibrationArgumentCollection RAC = new RecalibrationArgumentCollection();
+        allCovariates = new Covariate[]{new ReadGroupCovariate(), new QualityScoreCovariate(), contextCovariate, cycleCovariate};
+        for ( final Covariate covariate : allCovariates )
+            covariate.initialize(RAC);
+        readCovariates = new ReadCovariates(readLength, allCovariates.length);
+
+        final GATKSAMReadGroupRecord rg = new GATKSAMReadGroupRecord("rg");
+        rg.setPlatform(platform);
+
+        final Random random = new Random(42);
+        for ( int i = 0; i < N_READS; i++ ) {
+            final byte[] bases = new byte[readLength];
+            final byte[] quals = new byte[readLength];
+            for ( int j = 0; j < readLength; j++ ) {
+                bases[j] = random.nextInt(100) == 0 ? (byte)'N' : BaseUtils.BASES[random.nextInt(4)];
+                quals[j] = (byte)(j < 2 || j >= readLength - 5 ? 2 : 10 + random.nextInt(30));
+            }
+            final GATKSAMRecord read = ArtificialSAMUtils.createArtificialRead(bases, quals, readLength + "M");
+            read.setReadGroup(rg);
+            read.setReadNegativeStrandFlag(random.nextBoolean());
+            reads.add(read);
+        }
+    }
+
+    private void timeCovariate(final int rep, final Covariate covariate) {
+        readCovariates.setCovariateIndex(0);
+        int nKeys = 0;
+        for ( int i = 0; i < rep; i++ ) {
+            for ( final GATKSAMRecord read : reads ) {
+                covariate.recordValues(read, readCovariates);
+                if ( readCovariates.getMismatchesKeySet(readLength / 2)[0] >= 0 )
+                    nKeys++;
+            }
+        }
+        if ( nKeys < 0 ) throw new IllegalStateException("invalid covariates");
+    }
+
+    public void timeContextCovariate(int rep) {
+        timeCovariate(rep, contextCovariate);
+    }
+
+    public void timeCycleCovariate(int rep) {
+        timeCovariate(rep, cycleCovariate);
+    }
+
+    public void timeComputeCovariates(int rep) {
+        int nKeys = 0;
+        for ( int i = 0; i < rep; i++ ) {
+            for ( final GATKSAMRecord read : reads ) {
+                RecalDataManager.computeCovariates(read, allCovariates, readCovariates);
+                if ( readCovariates.getMismatchesKeySet(readLength / 2)[2] >= 0 )
+                    nKeys++;
+            }
+        }
+        if ( nKeys < 0 ) throw new IllegalStateException("invalid covariates");
+    }
+
+    public static void main(String[] args) {
+        CaliperMain.main(CovariatesBenchmark.class, args);
+    }
+}
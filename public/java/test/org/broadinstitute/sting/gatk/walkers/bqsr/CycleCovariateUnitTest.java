@@ -1,5 +1,6 @@
 package org.broadinstitute.sting.gatk.walkers.bqsr;
 
+import org.broadinstitute.sting.utils.sam.ArtificialSAMUtils;
 import org.broadinstitute.sting.utils.sam.GATKSAMReadGroupRecord;
 import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
 import org.broadinstitute.sting.utils.sam.ReadUtils;
@@ -47,6 +48,30 @@ public class CycleCovariateUnitTest {
         verifyCovariateArray(readCovariates.getMismatchesKeySet(), -1, -1);
     }
 
+    @Test
+    public void testFlowCycles() {
+        // the example in the CycleCovariate docs
+        final String bases = "AAACCCCGAAATTTTTACTG";
+        final String cycles = "11111111222333333344";
+        GATKSAMRecord read = ArtificialSAMUtils.createArtificialRead(bases.getBytes(), new byte[bases.length()], bases.length() + "M");
+        read.setReadGroup(new GATKSAMReadGroupRecord("MY.ID"));
+        read.getReadGroup().setPlatform("454");
+
+        ReadCovariates readCovariates = new ReadCovariates(read.getReadLength(), 1);
+        covariate.recordValues(read, readCovariates);
+        for (int i = 0; i < bases.length(); i++)
+            Assert.assertEquals(covariate.formatKey(readCovariates.getMismatchesKeySet()[i][0]), cycles.substring(i, i + 1));
+
+        // a base other than TACG moves on to the next cycle, and the flow order starts over after it
+        read.setReadBases("TANGNNT".getBytes());
+        read.setBaseQualities(new byte[7]);
+        read.setReadNegativeStrandFlag(true);
+        covariate.recordValues(read, readCovariates);
+        final String negativeStrandCycles = "5443321";
+        for (int i = 0; i < 7; i++)
+            Assert.assertEquals(covariate.formatKey(readCovariates.getMismatchesKeySet()[i][0]), negativeStrandCycles.substring(i, i + 1));
+    }
+
     private void verifyCovariateArray(int[][] values, int init, int increment) {
         for (short i = 0; i < values.length; i++) {
             short actual = Short.decode(covariate.formatKey(values[i][0]));
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.bqsr;
+
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.utils.collections.NestedIntegerArray;
+import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Random;
+
+public class RecalDatumTableUnitTest extends BaseTest {
+    private final static int[] DIMENSIONS = {3, 94, 2003, 3};
+
+    private static void assertSameDatum(final RecalDatum actual, final RecalDatum expected) {
+        Assert.assertEquals(actual.numObservations, expected.numObservations);
+        Assert.assertEquals(actual.numMismatches, expected.numMismatches);
+        Assert.assertEquals(actual.getEstimatedQReported(), expected.getEstimatedQReported());
+        Assert.assertEquals(actual.getEmpiricalQuality(), expected.getEmpiricalQuality());
+    }
+
+    @Test
+    public void testMatchesNestedIntegerArrayOfRecalDatums() {
+        final RecalDatumTable table = new RecalDatumTable(DIMENSIONS);
+        final NestedIntegerArray<RecalDatum> expected = new NestedIntegerArray<RecalDatum>(DIMENSIONS);
+
+        final Random random = new Random(13);
+        for ( int i = 0; i < 20000; i++ ) {
+            final int[] keys = {random.nextInt(3), 10 + random.nextInt(30), random.nextInt(300), random.nextInt(3)};
+            final byte qual = (byte)keys[1];
+            final boolean isError = random.nextInt(10) == 0;
+
+            if ( random.nextBoolean() ) {
+                table.increment(table.index(keys[0], keys[1], keys[2], keys[3]), qual, isError);
+                final RecalDatum datum = expected.get(keys);
+                if ( datum == null )
+                    expected.put(new RecalDatum(1, isError ? 1 : 0, qual), keys);
+                else
+                    datum.increment(isError);
+            } else {
+                final RecalDatum other = new RecalDatum(1 + random.nextInt(10), isError ? 1 : 0, (byte)(10 + random.nextInt(30)));
+                table.combine(table.index(keys), other);
+                final RecalDatum datum = expected.get(keys);
+                if ( datum == null )
+                    expected.put(new RecalDatum(other), keys);
+                else
+                    datum.combine(other);
+            }
+        }
+
+        final List<NestedIntegerArray.Leaf> expectedLeaves = expected.getAllLeaves();
+        final List<NestedIntegerArray.Leaf> actualLeaves = table.getAllLeaves();
+        Assert.assertEquals(actualLeaves.size(), expectedLeaves.size());
+        for ( int i = 0; i < expectedLeaves.size(); i++ ) {
+            Assert.assertEquals(actualLeaves.get(i).keys, expectedLeaves.get(i).keys);
+            assertSameDatum((RecalDatum)actualLeaves.get(i).value, (RecalDatum)expectedLeaves.get(i).value);
+
+            final long index = table.index(expectedLeaves.get(i).keys);
+            final RecalDatum expectedDatum = (RecalDatum)expectedLeaves.get(i).value;
+            Assert.assertTrue(table.contains(index));
+            Assert.assertEquals(table.getEmpiricalQuality(index), expectedDatum.getEmpiricalQuality());
+            Assert.assertEquals(table.getEstimatedQReported(index), expectedDatum.getEstimatedQReported());
+        }
+        Assert.assertEquals(table.getAllValues().size(), expectedLeaves.size());
+    }
+
+    @Test
+    public void testGetAndPut() {
+        final RecalDatumTable table = new RecalDatumTable(4, 3);
+        Assert.assertNull(table.get(1, 2));
+        Assert.assertNull(table.get(4, 0));
+        Assert.assertNull(table.get(-1, 0));
+        Assert.assertFalse(table.contains(table.index(5, 0)));
+
+        final RecalDatum datum = new RecalDatum(10, 2, (byte)20);
+        datum.setEmpiricalQuality(12.5);
+        table.put(datum, 1, 2);
+        assertSameDatum(table.get(1, 2), datum);
+        Assert.assertEquals(table.get(1, 2).getEmpiricalQuality(), 12.5);
+
+        // the datums returned are copies
+        table.get(1, 2).increment(true);
+        assertSameDatum(table.get(1, 2), datum);
+
+        // adding to a datum keeps its reported quality but recalculates its empirical quality
+        table.add(table.index(1, 2), new RecalDatum(5, 1, (byte)30));
+        final RecalDatum sum = table.get(1, 2);
+        Assert.assertEquals(sum.numObservations, 15);
+        Assert.assertEquals(sum.numMismatches, 3);
+        Assert.assertEquals(sum.getEstimatedQReported(), 20.0);
+        Assert.assertEquals(sum.getEmpiricalQuality(), new RecalDatum(15, 3, (byte)20).getEmpiricalQuality());
+    }
+
+    @Test
+    public void testNextIndex() {
+        final RecalDatumTable table = new RecalDatumTable(DIMENSIONS);
+        Assert.assertEquals(table.nextIndex(0), -1);
+        Assert.assertEquals(table.size(), 0);
+
+        final Random random = new Random(17);
+        for ( int i = 0; i < 1000; i++ )
+            table.put(table.index(random.nextInt(3), random.nextInt(94), random.nextInt(2003), random.nextInt(3)), 1 + i, i, 20.0, 30.0);
+
+        final List<NestedIntegerArray.Leaf> leaves = table.getAllLeaves();
+        Assert.assertEquals(table.size(), leaves.size());
+        int i = 0;
+        for ( long index = table.nextIndex(0); index >= 0; index = table.nextIndex(index + 1) ) {
+            Assert.assertEquals(index, table.index(leaves.get(i).keys));
+            Assert.assertEquals(table.getNumObservations(index), ((RecalDatum)leaves.get(i).value).numObservations);
+            Assert.assertEquals(table.getNumMismatches(index), ((RecalDatum)leaves.get(i).value).numMismatches);
+            i++;
+        }
+        Assert.assertEquals(i, leaves.size());
+    }
+
+    @Test(expectedExceptions = ReviewedStingException.class)
+    public void testPutKeyTooLarge() {
+        new RecalDatumTable(4, 3).put(new RecalDatum(1, 0, (byte)20), 1, 3);
+    }
+
+    @Test(expectedExceptions = ReviewedStingException.class)
+    public void testWrongNumberOfKeys() {
+        new RecalDatumTable(4, 3).get(1, 2, 0);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.bqsr;
+
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.utils.BaseUtils;
+import org.broadinstitute.sting.utils.collections.NestedIntegerArray;
+import org.broadinstitute.sting.utils.pileup.PileupElement;
+import org.broadinstitute.sting.utils.recalibration.RecalibrationTables;
+import org.broadinstitute.sting.utils.sam.GATKSAMReadGroupRecord;
+import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
+import org.broadinstitute.sting.utils.sam.ReadUtils;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class StandardRecalibrationEngineUnitTest extends BaseTest {
+    private Covariate[] covariates;
+    private final List<PileupElement> elements = new ArrayList<PileupElement>();
+    private final List<Byte> refBases = new ArrayList<Byte>();
+
+    @BeforeClass
+    public void setup() {
+        final RecalibrationArgumentCollection RAC = new RecalibrationArgumentCollection();
+        covariates = new Covariate[]{new ReadGroupCovariate(), new QualityScoreCovariate(), new ContextCovariate(), new CycleCovariate()};
+        for ( final Covariate covariate : covariates )
+            covariate.initialize(RAC);
+
+        final Random random = new Random(42);
+        for ( int i = 0; i < 200; i++ ) {
+            final GATKSAMReadGroupRecord rg = new GATKSAMReadGroupRecord("rg" + (i % 3));
+            rg.setPlatform("illumina");
+            final GATKSAMRecord read = ReadUtils.createRandomRead(50, false);
+            read.setReadGroup(rg);
+            read.setTemporaryAttribute(BaseRecalibrator.COVARS_ATTRIBUTE, RecalDataManager.computeCovariates(read, covariates));
+
+            for ( int offset = 0; offset < read.getReadLength(); offset++ ) {
+                elements.add(new PileupElement(read, offset, false, false, false, false, false, false));
+                refBases.add(random.nextInt(5) == 0 ? BaseUtils.BASES[random.nextInt(4)] : read.getReadBases()[offset]);
+            }
+        }
+    }
+
+    private RecalibrationTables runEngine(final int nThreads) throws Exception {
+        final RecalibrationTables tables = new RecalibrationTables(covariates);
+        final StandardRecalibrationEngine engine = new StandardRecalibrationEngine();
+        engine.initialize(covariates, tables);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for ( int thread = 0; thread < nThreads; thread++ ) {
+            final int myThread = thread;
+            futures.add(executor.submit(new Callable<Object>() {
+                public Object call() {
+                    for ( int i = myThread; i < elements.size(); i += nThreads )
+                        engine.updateDataForPileupElement(elements.get(i), refBases.get(i));
+                    return null;
+                }
+            }));
+        }
+        for ( final Future<Object> future : futures )
+            future.get();
+        executor.shutdown();
+
+        engine.finalizeData();
+        return tables;
+    }
+
+    @Test
+    public void testThreadedUpdatesMatchSingleThreaded() throws Exception {
+        assertTablesEqual(runEngine(4), runEngine(1));
+    }
+
+    @Test
+    public void testReadUpdatesMatchPileupUpdates() {
+        final RecalibrationTables expected = new RecalibrationTables(covariates);
+        final StandardRecalibrationEngine pileupEngine = new StandardRecalibrationEngine();
+        pileupEngine.initialize(covariates, expected);
+        for ( int i = 0; i < elements.size(); i++ ) {
+            if ( i % 7 != 0 )
+                pileupEngine.updateDataForPileupElement(elements.get(i), refBases.get(i));
+        }
+        pileupEngine.finalizeData();
+
+        final RecalibrationTables actual = new RecalibrationTables(covariates);
+        final StandardRecalibrationEngine readEngine = new StandardRecalibrationEngine();
+        readEngine.initialize(covariates, actual);
+        for ( int start = 0; start < elements.size(); ) {
+            final GATKSAMRecord read = elements.get(start).getRead();
+            final boolean[] skip = new boolean[read.getReadLength()];
+            final boolean[] isError = new boolean[read.getReadLength()];
+            for ( int offset = 0; offset < read.getReadLength(); offset++ ) {
+                skip[offset] = (start + offset) % 7 == 0;
+                isError[offset] = !BaseUtils.basesAreEqual(read.getReadBases()[offset], refBases.get(start + offset));
+            }
+            readEngine.updateDataForRead(read, skip, isError);
+            start += read.getReadLength();
+        }
+        readEngine.finalizeData();
+
+        assertTablesEqual(actual, expected);
+    }
+
+    private void assertTablesEqual(final RecalibrationTables actual, final RecalibrationTables expected) {
+        for ( int i = 0; i < expected.numTables(); i++ ) {
+            final RecalDatumTable actualTable = actual.getTable(i);
+            final List<NestedIntegerArray.Leaf> leaves = expected.getTable(i).getAllLeaves();
+            Assert.assertFalse(leaves.isEmpty());
+            Assert.assertEquals(actualTable.getAllLeaves().size(), leaves.size());
+
+            for ( final NestedIntegerArray.Leaf leaf : leaves ) {
+                final RecalDatum expectedDatum = (RecalDatum)leaf.value;
+                final RecalDatum actualDatum = actualTable.get(leaf.keys);
+                Assert.assertNotNull(actualDatum);
+                Assert.assertEquals(actualDatum.numObservations, expectedDatum.numObservations);
+                Assert.assertEquals(actualDatum.numMismatches, expectedDatum.numMismatches);
+                Assert.assertEquals(actualDatum.getEmpiricalQuality(), expectedDatum.getEmpiricalQuality());
+                if ( i == RecalibrationTables.TableType.READ_GROUP_TABLE.index )
+                    Assert.assertEquals(actualDatum.getEstimatedQReported(), expectedDatum.getEstimatedQReported(), 1e-6);
+                else
+                    Assert.assertEquals(actualDatum.getEstimatedQReported(), expectedDatum.getEstimatedQReported());
+            }
+        }
+    }
+
+    @Test
+    public void testFinalizeDataTwice() throws Exception {
+        final RecalibrationTables tables = new RecalibrationTables(covariates);
+        final StandardRecalibrationEngine engine = new StandardRecalibrationEngine();
+        engine.initialize(covariates, tables);
+
+        engine.updateDataForPileupElement(elements.get(0), refBases.get(0));
+        engine.finalizeData();
+        engine.updateDataForPileupElement(elements.get(0), refBases.get(0));
+        engine.finalizeData();
+
+        final List<RecalDatum> rgData = tables.getTable(RecalibrationTables.TableType.READ_GROUP_TABLE).getAllValues();
+        Assert.assertEquals(rgData.size(), 1);
+        Assert.assertEquals(rgData.get(0).numObservations, 2);
+    }
+}
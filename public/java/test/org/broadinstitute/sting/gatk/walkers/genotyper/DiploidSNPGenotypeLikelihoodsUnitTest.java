@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.broadinstitute.sting.gatk.walkers.genotyper;
+
+import net.sf.samtools.SAMFileHeader;
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.utils.BaseUtils;
+import org.broadinstitute.sting.utils.QualityUtils;
+import org.broadinstitute.sting.utils.pileup.PileupElement;
+import org.broadinstitute.sting.utils.sam.ArtificialSAMUtils;
+import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+public class DiploidSNPGenotypeLikelihoodsUnitTest extends BaseTest {
+    private final static SAMFileHeader header = ArtificialSAMUtils.createArtificialSamHeader(1, 1, 1000);
+
+    @DataProvider(name = "PCRErrorRates")
+    public Object[][] makePCRErrorRates() {
+        return new Object[][]{{DiploidSNPGenotypeLikelihoods.DEFAULT_PCR_ERROR_RATE}, {1e-2}, {0.0}};
+    }
+
+    @Test(dataProvider = "PCRErrorRates")
+    public void testTablesMatchDirectCalculation(final double PCR_error_rate) {
+        final DiploidSNPGenotypeLikelihoods gl = new DiploidSNPGenotypeLikelihoods(PCR_error_rate);
+        final DiploidSNPGenotypeLikelihoods.LikelihoodTables tables = gl.getTables();
+
+        for ( final byte base1 : BaseUtils.BASES ) {
+            for ( byte qual1 = 1; qual1 <= QualityUtils.MAX_QUAL_SCORE; qual1 += 7 ) {
+                assertTableEntry(tables.getSingleObservationLikelihoods(), base1, qual1, gl.calculateGenotypeLikelihoods(base1, qual1, (byte)0, (byte)0));
+
+                final double[] paired = tables.getPairedObservationLikelihoods(base1, qual1);
+                for ( final byte base2 : BaseUtils.BASES )
+                    for ( byte qual2 = 1; qual2 <= QualityUtils.MAX_QUAL_SCORE; qual2 += 11 )
+                        assertTableEntry(paired, base2, qual2, gl.calculateGenotypeLikelihoods(base1, qual1, base2, qual2));
+            }
+        }
+    }
+
+    private static void assertTableEntry(final double[] table, final byte base, final byte qual, final double[] expected) {
+        final int offset = DiploidSNPGenotypeLikelihoods.LikelihoodTables.getOffset(base, qual);
+        Assert.assertEquals(Arrays.copyOfRange(table, offset, offset + expected.length), expected);
+    }
+
+    @Test
+    public void testBadBases() {
+        Assert.assertEquals(DiploidSNPGenotypeLikelihoods.LikelihoodTables.getOffset((byte)'N', (byte)30), -1);
+        Assert.assertNull(new DiploidSNPGenotypeLikelihoods(DiploidSNPGenotypeLikelihoods.DEFAULT_PCR_ERROR_RATE).getTables().getPairedObservationLikelihoods((byte)'N', (byte)30));
+    }
+
+    @Test
+    public void testTablesDependOnPCRErrorRate() {
+        final DiploidSNPGenotypeLikelihoods gl1 = new DiploidSNPGenotypeLikelihoods(1e-4);
+        final DiploidSNPGenotypeLikelihoods gl2 = new DiploidSNPGenotypeLikelihoods(1e-2);
+        Assert.assertSame(gl1.getTables(), new DiploidSNPGenotypeLikelihoods(1e-4).getTables());
+
+        final PileupElement p = makeElement((byte)'A', (byte)40);
+        gl1.add(p, true, false, 0);
+        gl2.add(p, true, false, 0);
+        Assert.assertFalse(Arrays.equals(gl1.getLikelihoods(), gl2.getLikelihoods()));
+    }
+
+    @Test
+    public void testAddPileupElements() {
+        final DiploidSNPGenotypeLikelihoods gl = new DiploidSNPGenotypeLikelihoods(DiploidSNPGenotypeLikelihoods.DEFAULT_PCR_ERROR_RATE);
+        final byte[] bases = {'A', 'A', 'C', 'N'};
+        final byte[] quals = {30, 20, 10, 40};
+
+        final double[] expected = new double[DiploidGenotype.values().length];
+        int nExpected = 0;
+        for ( int i = 0; i < bases.length; i++ ) {
+            nExpected += gl.add(makeElement(bases[i], quals[i]), true, false, 0);
+            if ( BaseUtils.isRegularBase(bases[i]) ) {
+                final double[] likelihoods = gl.calculateGenotypeLikelihoods(bases[i], quals[i], (byte)0, (byte)0);
+                for ( int j = 0; j < expected.length; j++ )
+                    expected[j] += likelihoods[j];
+            }
+        }
+
+        Assert.assertEquals(nExpected, 3);
+        Assert.assertEquals(gl.getLikelihoods(), expected);
+    }
+
+    private static PileupElement makeElement(final byte base, final byte qual) {
+        final GATKSAMRecord read = ArtificialSAMUtils.createArtificialRead(header, "read", 0, 1, new byte[]{base}, new byte[]{qual});
+        read.setMappingQuality(60);
+        return new PileupElement(read, 0, false, false, false, false, false, false);
+    }
+}
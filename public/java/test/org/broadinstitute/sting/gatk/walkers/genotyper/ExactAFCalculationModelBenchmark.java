@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.genotyper;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+import com.google.caliper.runner.CaliperMain;
+import org.broadinstitute.sting.utils.variantcontext.Allele;
+import org.broadinstitute.sting.utils.variantcontext.Genotype;
+import org.broadinstitute.sting.utils.variantcontext.GenotypeBuilder;
+import org.broadinstitute.sting.utils.variantcontext.GenotypesContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Caliper microbenchmark of the multi-allelic exact model over synthetic GLs, in which most samples are
+ * confidently hom-ref and the rest carry one or two of the alternate alleles
+ */
+public class ExactAFCalculationModelBenchmark extends SimpleBenchmark {
+    @Param({"2", "3", "4", "5", "6"})
+    int nAltAlleles; // set automatically by framework
+
+    @Param({"10", "100", "1000", "10000"})
+    int nSamples; // set automatically by framework
+
+    @Param({"0.01", "0.1"})
+    double fractionNonRef; // set automatically by framework
+
+    private final static int N_SITES = 10;
+
+    private final List<GenotypesContext> sites = new ArrayList<GenotypesContext>(N_SITES);
+    private double[] priors;
+    private AlleleFrequencyCalculationResult result;
+
+    @Override protected void setUp() {
+        final Random random = new Random(42);
+        final int nLikelihoods = (nAltAlleles + 1) * (nAltAlleles + 2) / 2;
+        for ( int site = 0; site < N_SITES; site++ ) {
+            final List<Genotype> genotypes = new ArrayList<Genotype>(nSamples);
+            for ( int s = 0; s < nSamples; s++ ) {
+                final int bestPL = random.nextDouble() < fractionNonRef ? 1 + random.nextInt(nLikelihoods - 1) : 0;
+                final int[] PLs = new int[nLikelihoods];
+                for ( int i = 0; i < nLikelihoods; i++ )
+                    PLs[i] = i == bestPL ? 0 : 10 + random.nextInt(90);
+                genotypes.add(new GenotypeBuilder("S" + s, Arrays.asList(Allele.NO_CALL, Allele.NO_CALL)).PL(PLs).make());
+            }
+            sites.add(GenotypesContext.create(new ArrayList<Genotype>(genotypes)));
+        }
+
+        priors = new double[2 * nSamples + 1];
+        for ( int i = 1; i < priors.length; i++ )
+            priors[i] = Math.log10(0.001 / i);
+        result = new AlleleFrequencyCalculationResult(nAltAlleles);
+    }
+
+    public int timeLinearExactMultiAllelic(int rep) {
+        int sum = 0;
+        for ( int i = 0; i < rep; i++ ) {
+            for ( final GenotypesContext GLs : sites ) {
+                result.reset();
+                ExactAFCalculationModel.linearExactMultiAllelic(GLs, nAltAlleles, priors, result);
+                sum += result.getAlleleCountsOfMAP()[0];
+            }
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) {
+        CaliperMain.main(ExactAFCalculationModelBenchmark.class, args);
+    }
+}
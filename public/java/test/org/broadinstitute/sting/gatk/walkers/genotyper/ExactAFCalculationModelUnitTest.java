@@ -10,7 +10,10 @@ import org.testng.annotations.BeforeSuite;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 
 public class ExactAFCalculationModelUnitTest extends BaseTest {
@@ -109,4 +112,67 @@ public class ExactAFCalculationModelUnitTest extends BaseTest {
         int calculatedAlleleCount = result.getAlleleCountsOfMAP()[0];
         Assert.assertEquals(calculatedAlleleCount, 6);
     }
+    private static GenotypesContext makeRandomGLs(final Random random, final int numAltAlleles, final int nSamples) {
+        final int nLikelihoods = (numAltAlleles + 1) * (numAltAlleles + 2) / 2;
+        final List<Genotype> genotypes = new ArrayList<Genotype>(nSamples);
+        for ( int s = 0; s < nSamples; s++ ) {
+            final int best = random.nextInt(4) == 0 ? random.nextInt(nLikelihoods) : 0;
+            final double[] gls = new double[nLikelihoods];
+            for ( int i = 0; i < nLikelihoods; i++ )
+                gls[i] = i == best ? 0.0 : -1.0 - random.nextInt(200) / 10.0;
+            genotypes.add(createGenotype("S" + s, gls));
+        }
+        return GenotypesContext.create(new ArrayList<Genotype>(genotypes));
+    }
+
+    private static double[] makeFlatPriors(final int nSamples) {
+        return new double[2 * nSamples + 1];
+    }
+
+    private static AlleleFrequencyCalculationResult calculate(final GenotypesContext GLs, final int numAltAlleles, final double maxLog10ErrorToStopEarly) {
+        final AlleleFrequencyCalculationResult result = new AlleleFrequencyCalculationResult(numAltAlleles);
+        ExactAFCalculationModel.linearExactMultiAllelic(GLs, numAltAlleles, makeFlatPriors(GLs.size()), result, maxLog10ErrorToStopEarly);
+        return result;
+    }
+
+    private static void assertSameResults(final AlleleFrequencyCalculationResult actual, final AlleleFrequencyCalculationResult expected) {
+        Assert.assertEquals(actual.getLog10MLE(), expected.getLog10MLE());
+        Assert.assertEquals(actual.getLog10MAP(), expected.getLog10MAP());
+        Assert.assertEquals(actual.getLog10LikelihoodOfAFzero(), expected.getLog10LikelihoodOfAFzero());
+        Assert.assertEquals(actual.getLog10PosteriorsMatrixSumWithoutAFzero(), expected.getLog10PosteriorsMatrixSumWithoutAFzero());
+        Assert.assertEquals(actual.getAlleleCountsOfMLE(), expected.getAlleleCountsOfMLE());
+        Assert.assertEquals(actual.getAlleleCountsOfMAP(), expected.getAlleleCountsOfMAP());
+    }
+
+    @Test
+    public void testResultsDontDependOnPreviousSites() {
+        final Random random = new Random(42);
+        final GenotypesContext GLs = makeRandomGLs(random, 3, 40);
+        final AlleleFrequencyCalculationResult first = calculate(GLs, 3, ExactAFCalculationModel.MAX_LOG10_ERROR_TO_STOP_EARLY);
+
+        // sites with other numbers of alleles and samples, some large enough to grow the lattice
+        calculate(makeRandomGLs(random, 1, 500), 1, ExactAFCalculationModel.MAX_LOG10_ERROR_TO_STOP_EARLY);
+        calculate(makeRandomGLs(random, 4, 60), 4, ExactAFCalculationModel.MAX_LOG10_ERROR_TO_STOP_EARLY);
+        calculate(makeRandomGLs(random, 3, 5), 3, ExactAFCalculationModel.MAX_LOG10_ERROR_TO_STOP_EARLY);
+
+        assertSameResults(calculate(GLs, 3, ExactAFCalculationModel.MAX_LOG10_ERROR_TO_STOP_EARLY), first);
+    }
+
+    @Test
+    public void testEarlyTerminationBound() {
+        final GenotypesContext GLs = makeRandomGLs(new Random(17), 2, 20);
+        final AlleleFrequencyCalculationResult standard = calculate(GLs, 2, ExactAFCalculationModel.MAX_LOG10_ERROR_TO_STOP_EARLY);
+        final AlleleFrequencyCalculationResult exhaustive = calculate(GLs, 2, Double.POSITIVE_INFINITY);
+        final AlleleFrequencyCalculationResult aggressive = calculate(GLs, 2, 0.0);
+
+        // visiting more of the lattice can only add posterior mass
+        final double tolerance = 1e-3;
+        Assert.assertTrue(exhaustive.getLog10PosteriorsMatrixSumWithoutAFzero() + tolerance >= standard.getLog10PosteriorsMatrixSumWithoutAFzero());
+        Assert.assertTrue(exhaustive.getLog10PosteriorsMatrixSumWithoutAFzero() + tolerance >= aggressive.getLog10PosteriorsMatrixSumWithoutAFzero());
+        Assert.assertTrue(exhaustive.getLog10MAP() + tolerance >= standard.getLog10MAP());
+        Assert.assertTrue(standard.getLog10PosteriorsMatrixSumWithoutAFzero() + tolerance >= aggressive.getLog10PosteriorsMatrixSumWithoutAFzero());
+
+        // and stopping as early as possible must actually prune this site
+        Assert.assertTrue(aggressive.getLog10PosteriorsMatrixSumWithoutAFzero() < exhaustive.getLog10PosteriorsMatrixSumWithoutAFzero() - 1);
+    }
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.indels;
+
+import net.sf.samtools.SAMFileHeader;
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.gatk.contexts.ReferenceContext;
+import org.broadinstitute.sting.gatk.walkers.genotyper.IndelGenotypeLikelihoodsCalculationModel;
+import org.broadinstitute.sting.utils.GenomeLoc;
+import org.broadinstitute.sting.utils.GenomeLocParser;
+import org.broadinstitute.sting.utils.Haplotype;
+import org.broadinstitute.sting.utils.PairHMMEngine;
+import org.broadinstitute.sting.utils.pileup.PileupElement;
+import org.broadinstitute.sting.utils.pileup.ReadBackedPileup;
+import org.broadinstitute.sting.utils.pileup.ReadBackedPileupImpl;
+import org.broadinstitute.sting.utils.sam.ArtificialSAMUtils;
+import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
+import org.broadinstitute.sting.utils.variantcontext.Allele;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+public class ReadHaplotypeLikelihoodCacheUnitTest extends BaseTest {
+    private final static SAMFileHeader header = ArtificialSAMUtils.createArtificialSamHeader(1, 1, 1000);
+    private final static GenomeLocParser parser = new GenomeLocParser(header.getSequenceDictionary());
+    private final static String contig = header.getSequence(0).getSequenceName();
+
+    private static GATKSAMRecord makeRead(final String name, final int start, final byte[] bases) {
+        final byte[] quals = new byte[bases.length];
+        Arrays.fill(quals, (byte)30);
+        final GATKSAMRecord read = ArtificialSAMUtils.createArtificialRead(header, name, 0, start, bases, quals);
+        read.setCigarString(bases.length + "M");
+        read.setMappingQuality(60);
+        return read;
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        final ReadHaplotypeLikelihoodCache cache = new ReadHaplotypeLikelihoodCache(1024 * 1024);
+        final GATKSAMRecord read1 = makeRead("read1", 1, "ACGTACGT".getBytes());
+        final GATKSAMRecord read2 = makeRead("read2", 1, "ACGTACGT".getBytes());
+        final byte[] quals = read1.getBaseQualities();
+
+        final ReadHaplotypeLikelihoodCache.ReadKey key1 = cache.getReadKey(read1, read1.getReadBases(), quals);
+        Assert.assertNull(cache.get(key1, "AACGTACGTA".getBytes()));
+        cache.put(key1, "AACGTACGTA".getBytes(), -1.5);
+
+        // equal contents are enough for the read bases, quals, and haplotype
+        final ReadHaplotypeLikelihoodCache.ReadKey key1Copy = cache.getReadKey(read1, read1.getReadBases().clone(), quals.clone());
+        Assert.assertEquals(cache.get(key1Copy, "AACGTACGTA".getBytes()), -1.5);
+
+        // but not for the read itself, or when any of the bases differ
+        Assert.assertNull(cache.get(cache.getReadKey(read2, read2.getReadBases(), quals), "AACGTACGTA".getBytes()));
+        Assert.assertNull(cache.get(key1, "AACGTACGTC".getBytes()));
+        Assert.assertNull(cache.get(cache.getReadKey(read1, "ACGTACGA".getBytes(), quals), "AACGTACGTA".getBytes()));
+
+        Assert.assertEquals(cache.size(), 1);
+        Assert.assertEquals(cache.getNumHits(), 1);
+        Assert.assertEquals(cache.getNumMisses(), 4);
+        Assert.assertEquals(cache.getHitRate(), 0.2, 1e-10);
+        Assert.assertTrue(cache.getSizeInBytes() > 0);
+
+        cache.clear();
+        Assert.assertEquals(cache.size(), 0);
+        Assert.assertEquals(cache.getSizeInBytes(), 0);
+        Assert.assertNull(cache.get(key1, "AACGTACGTA".getBytes()));
+    }
+
+    @Test
+    public void testEviction() {
+        final ReadHaplotypeLikelihoodCache cache = new ReadHaplotypeLikelihoodCache(2048);
+        final GATKSAMRecord read = makeRead("read", 1, "ACGTACGT".getBytes());
+        final ReadHaplotypeLikelihoodCache.ReadKey key = cache.getReadKey(read, read.getReadBases(), read.getBaseQualities());
+
+        final int nHaplotypes = 100;
+        for ( int i = 0; i < nHaplotypes; i++ ) {
+            cache.put(key, String.format("ACGT%04d", i).getBytes(), -i);
+            Assert.assertTrue(cache.getSizeInBytes() <= 2048);
+        }
+
+        Assert.assertTrue(cache.size() < nHaplotypes);
+        Assert.assertEquals(cache.getNumEvictions(), nHaplotypes - cache.size());
+        Assert.assertTrue(cache.getPeakSizeInBytes() >= cache.getSizeInBytes());
+
+        // the most recent haplotypes are the ones kept
+        Assert.assertEquals(cache.get(key, String.format("ACGT%04d", nHaplotypes - 1).getBytes()), -(nHaplotypes - 1.0));
+        Assert.assertNull(cache.get(key, String.format("ACGT%04d", 0).getBytes()));
+    }
+
+    @Test
+    public void testPinnedReadsCountTowardsTheLimit() {
+        final int maxSizeInBytes = 16 * 1024;
+        final ReadHaplotypeLikelihoodCache cache = new ReadHaplotypeLikelihoodCache(maxSizeInBytes);
+        final byte[] haplotype = "AACGTACGTA".getBytes();
+
+        // each read is large compared to its keys, so the limit is only respected if the reads themselves are counted
+        final int nReads = 1000;
+        for ( int i = 0; i < nReads; i++ ) {
+            final byte[] bases = new byte[1000];
+            Arrays.fill(bases, (byte)'A');
+            final GATKSAMRecord read = makeRead("read" + i, 1, bases);
+            final byte[] clippedBases = Arrays.copyOf(bases, 10), clippedQuals = Arrays.copyOf(read.getBaseQualities(), 10);
+            cache.put(cache.getReadKey(read, clippedBases, clippedQuals), haplotype, -i);
+            cache.put(cache.getReadKey(read, clippedBases, clippedQuals), "CCCCCCCCCC".getBytes(), -i);
+            Assert.assertTrue(cache.getSizeInBytes() <= maxSizeInBytes);
+            Assert.assertTrue(cache.getSizeInBytes() >= cache.getNumPinnedReads() * 4L * bases.length);
+        }
+
+        Assert.assertTrue(cache.getNumPinnedReads() > 0);
+        Assert.assertTrue(cache.getNumPinnedReads() <= cache.size());
+        Assert.assertTrue(cache.getNumPinnedReads() < nReads);
+
+        cache.clear();
+        Assert.assertEquals(cache.getNumPinnedReads(), 0);
+        Assert.assertEquals(cache.getSizeInBytes(), 0);
+    }
+
+    @Test
+    public void testCachedLikelihoodsMatchAcrossAdjacentSites() {
+        // a random reference with a CA repeat in the middle
+        final Random random = new Random(42);
+        final StringBuilder refBuilder = new StringBuilder();
+        for ( int i = 0; i < 400; i++ )
+            refBuilder.append("ACGT".charAt(random.nextInt(4)));
+        for ( int i = 200; i < 230; i += 2 )
+            refBuilder.replace(i, i + 2, "CA");
+        final byte[] refBases = refBuilder.toString().getBytes();
+
+        final GenomeLoc window = parser.createGenomeLoc(contig, 101, 301);
+        final byte[] windowBases = Arrays.copyOfRange(refBases, window.getStart() - 1, window.getStop());
+
+        final List<PileupElement> reads = new ArrayList<PileupElement>();
+        for ( int i = 0; i < 20; i++ ) {
+            final int start = 170 + i;
+            reads.add(new PileupElement(makeRead("read" + i, start, Arrays.copyOfRange(refBases, start - 1, start + 59)), 30, false, false, false, false, false, false));
+        }
+
+        final PairHMMIndelErrorModel uncached = new PairHMMIndelErrorModel((byte)45, (byte)10, false, true, 0, PairHMMEngine.Implementation.ORIGINAL, 1);
+        final PairHMMIndelErrorModel cached = new PairHMMIndelErrorModel((byte)45, (byte)10, false, true, 1, PairHMMEngine.Implementation.ORIGINAL, 1);
+        Assert.assertNull(uncached.getLikelihoodCache());
+
+        // deletions of one CA unit at adjacent positions in the repeat produce the same haplotypes
+        for ( final int pos : Arrays.asList(201, 203, 205) ) {
+            final GenomeLoc loc = parser.createGenomeLoc(contig, pos, pos);
+            final ReferenceContext ref = new ReferenceContext(parser, loc, window, windowBases);
+            final List<Allele> alleles = Arrays.asList(Allele.create(Arrays.copyOfRange(refBases, pos, pos + 2), true), Allele.create(Allele.NULL_ALLELE_STRING, false));
+            final LinkedHashMap<Allele, Haplotype> haplotypeMap = new LinkedHashMap<Allele, Haplotype>();
+            IndelGenotypeLikelihoodsCalculationModel.getHaplotypeMapFromAlleles(alleles, ref, loc, haplotypeMap);
+            Assert.assertEquals(haplotypeMap.size(), 2);
+
+            final ReadBackedPileup pileup = new ReadBackedPileupImpl(loc, reads);
+            final double[][] expected = uncached.computeGeneralReadHaplotypeLikelihoods(pileup, haplotypeMap, ref, -2,
+                    new HashMap<PileupElement, LinkedHashMap<Allele, Double>>(), new int[reads.size()]);
+            final double[][] actual = cached.computeGeneralReadHaplotypeLikelihoods(pileup, haplotypeMap, ref, -2,
+                    new HashMap<PileupElement, LinkedHashMap<Allele, Double>>(), new int[reads.size()]);
+
+            Assert.assertEquals(actual.length, expected.length);
+            for ( int i = 0; i < expected.length; i++ )
+                Assert.assertEquals(actual[i], expected[i]);
+        }
+
+        final ReadHaplotypeLikelihoodCache cache = cached.getLikelihoodCache();
+        Assert.assertEquals(cache.getNumHits() + cache.getNumMisses(), 3 * 2 * reads.size());
+        Assert.assertTrue(cache.getNumHits() >= 2 * 2 * reads.size(), "Expected the later sites to reuse the likelihoods of the first, but hit rate was " + cache.getHitRate());
+    }
+}
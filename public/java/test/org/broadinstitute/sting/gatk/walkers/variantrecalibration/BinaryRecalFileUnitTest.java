@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.variantrecalibration;
+
+import net.sf.samtools.SAMFileHeader;
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.utils.GenomeLocParser;
+import org.broadinstitute.sting.utils.exceptions.ReviewedStingException;
+import org.broadinstitute.sting.utils.exceptions.UserException;
+import org.broadinstitute.sting.utils.sam.ArtificialSAMUtils;
+import org.broadinstitute.sting.utils.variantcontext.Allele;
+import org.broadinstitute.sting.utils.variantcontext.VariantContext;
+import org.broadinstitute.sting.utils.variantcontext.VariantContextBuilder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+public class BinaryRecalFileUnitTest extends BaseTest {
+    private final static SAMFileHeader header = ArtificialSAMUtils.createArtificialSamHeader(3, 1, 100000);
+    private final static GenomeLocParser genomeLocParser = new GenomeLocParser(header.getSequenceDictionary());
+    private final static List<String> annotationKeys = Arrays.asList("QD", "HaplotypeScore");
+    private final static int N_SITES = 500;
+
+    private static String contig(final int contig) {
+        return header.getSequence(contig).getSequenceName();
+    }
+
+    private static VariantContext makeVC(final int contig, final int start, final String ref, final String alt) {
+        return new VariantContextBuilder("test", contig(contig), start, start + ref.length() - 1, Arrays.asList(Allele.create(ref, true), Allele.create(alt, false))).make();
+    }
+
+    private static VariantDatum makeDatum(final VariantContext vc, final double lod, final int worstAnnotation) {
+        final VariantDatum datum = new VariantDatum();
+        datum.annotations = new double[annotationKeys.size()];
+        datum.isNull = new boolean[annotationKeys.size()];
+        datum.loc = genomeLocParser.createGenomeLoc(vc);
+        datum.allelesHash = BinaryRecalFile.allelesHash(vc);
+        datum.lod = lod;
+        datum.worstAnnotation = worstAnnotation;
+        return datum;
+    }
+
+    /**
+     * A SNP every 10 bases on each contig, with an indel at the same position as every 7th SNP, added out of order
+     */
+    private static VariantContext[] makeVCs() {
+        final VariantContext[] vcs = new VariantContext[N_SITES + (N_SITES + 6) / 7];
+        int n = 0;
+        for ( int i = 0; i < N_SITES; i++ ) {
+            final int contig = 2 - i % 3;
+            final int start = 10 * (i + 1);
+            vcs[n++] = makeVC(contig, start, "A", "G");
+            if ( i % 7 == 0 )
+                vcs[n++] = makeVC(contig, start, "AC", "A");
+        }
+        return vcs;
+    }
+
+    private static File writeRecalFile(final VariantContext[] vcs) {
+        final VariantDataMatrix data = new VariantDataMatrix(annotationKeys.size());
+        for ( int i = 0; i < vcs.length; i++ )
+            data.add(makeDatum(vcs[i], i / 10.0, i % 3 - 1));
+        data.sortByLocation();
+
+        final File file = createTempFile("BinaryRecalFileUnitTest", ".recal.bin");
+        BinaryRecalFile.write(data, annotationKeys, header.getSequenceDictionary(), file);
+        return file;
+    }
+
+    private static void assertFound(final BinaryRecalFile.Reader reader, final VariantContext[] vcs, final int i) {
+        final int record = reader.find(vcs[i]);
+        Assert.assertTrue(record != -1, "no record for " + vcs[i]);
+        Assert.assertEquals(reader.getStart(record), vcs[i].getStart());
+        Assert.assertEquals(reader.getStop(record), vcs[i].getEnd());
+        Assert.assertEquals(reader.getLod(record), i / 10.0);
+        Assert.assertEquals(reader.getCulprit(record), i % 3 == 0 ? "NULL" : annotationKeys.get(i % 3 - 1));
+    }
+
+    @Test
+    public void testFindInOrder() {
+        final VariantContext[] vcs = makeVCs();
+        final BinaryRecalFile.Reader reader = new BinaryRecalFile.Reader(writeRecalFile(vcs));
+        Assert.assertEquals(reader.size(), vcs.length);
+
+        // in the order of a traversal of the reference, which is a single pass through the file
+        for ( int contig = 0; contig < 3; contig++ )
+            for ( int i = 0; i < vcs.length; i++ )
+                if ( vcs[i].getChr().equals(contig(contig)) )
+                    assertFound(reader, vcs, i);
+    }
+
+    @Test
+    public void testFindOutOfOrder() {
+        final VariantContext[] vcs = makeVCs();
+        final BinaryRecalFile.Reader reader = new BinaryRecalFile.Reader(writeRecalFile(vcs));
+
+        for ( int i = 0; i < vcs.length; i++ )
+            assertFound(reader, vcs, i);
+        for ( int i = vcs.length - 1; i >= 0; i-- )
+            assertFound(reader, vcs, i);
+    }
+
+    @Test
+    public void testMissingVariants() {
+        final VariantContext[] vcs = makeVCs();
+        final BinaryRecalFile.Reader reader = new BinaryRecalFile.Reader(writeRecalFile(vcs));
+
+        Assert.assertEquals(reader.find(makeVC(0, 15, "A", "G")), -1);                // no variant at this position
+        Assert.assertEquals(reader.find(makeVC(2, 10, "A", "T")), -1);                // different alleles
+        Assert.assertEquals(reader.find(makeVC(2, 20, "AC", "A")), -1);               // no indel at this position
+        Assert.assertEquals(reader.find(makeVC(0, 100000, "A", "G")), -1);            // past the last variant
+        Assert.assertEquals(reader.find("unknownContig", 10, 10, BinaryRecalFile.allelesHash(vcs[0])), -1);
+        assertFound(reader, vcs, 0);
+    }
+
+    @Test(expectedExceptions = UserException.MalformedFile.class)
+    public void testTruncatedFile() throws Exception {
+        final File file = writeRecalFile(makeVCs());
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 5);
+        raf.close();
+        new BinaryRecalFile.Reader(file);
+    }
+
+    @Test(expectedExceptions = ReviewedStingException.class)
+    public void testUnsortedData() {
+        final VariantDataMatrix data = new VariantDataMatrix(annotationKeys.size());
+        data.add(makeDatum(makeVC(1, 10, "A", "G"), 0.0, -1));
+        data.add(makeDatum(makeVC(0, 10, "A", "G"), 0.0, -1));
+        BinaryRecalFile.write(data, annotationKeys, header.getSequenceDictionary(), createTempFile("BinaryRecalFileUnitTest", ".recal.bin"));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.variantrecalibration;
+
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.gatk.GenomeAnalysisEngine;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+public class GaussianMixtureModelUnitTest extends BaseTest {
+    private final static double[][] CENTERS = {{-2.0, 0.0}, {2.0, 1.0}};
+
+    /**
+     * Enough variants from two well separated clusters that the model is trained on several partitions
+     */
+    private static VariantDataMatrix makeData(final int n) {
+        final Random random = new Random(7);
+        final VariantDataMatrix data = new VariantDataMatrix(2);
+        for ( int i = 0; i < n; i++ ) {
+            final double[] center = CENTERS[i % CENTERS.length];
+            final VariantDatum datum = new VariantDatum();
+            datum.annotations = new double[]{center[0] + 0.5 * random.nextGaussian(), center[1] + 0.5 * random.nextGaussian()};
+            datum.isNull = new boolean[2];
+            data.add(datum);
+        }
+        return data;
+    }
+
+    private static GaussianMixtureModel trainModel(final VariantDataMatrix data, final int nThreads, final int miniBatchSize) {
+        final VariantRecalibratorArgumentCollection VRAC = new VariantRecalibratorArgumentCollection();
+        VRAC.MAX_GAUSSIANS = 4;
+        VRAC.MAX_ITERATIONS = 20;
+        VRAC.NUM_TRAINING_THREADS = nThreads;
+        VRAC.MINI_BATCH_SIZE = miniBatchSize;
+
+        GenomeAnalysisEngine.resetRandomGenerator();
+        final GaussianMixtureModel model = new VariantRecalibratorEngine(VRAC).generateModel(data);
+        model.precomputeDenominatorForEvaluation();
+        return model;
+    }
+
+    private static double evaluate(final GaussianMixtureModel model, final double x, final double y) {
+        final VariantDatum datum = new VariantDatum();
+        datum.annotations = new double[]{x, y};
+        datum.isNull = new boolean[2];
+        final VariantDataMatrix data = new VariantDataMatrix(2);
+        data.add(datum);
+        return model.evaluateDatum(data, 0);
+    }
+
+    @Test
+    public void testModelDoesNotDependOnThreads() {
+        final VariantDataMatrix data = makeData(25000);
+        final GaussianMixtureModel model1 = trainModel(data, 1, 0);
+        final GaussianMixtureModel model4 = trainModel(data, 4, 0);
+
+        for ( double x = -4.0; x <= 4.0; x += 0.5 ) {
+            for ( double y = -2.0; y <= 3.0; y += 0.5 ) {
+                Assert.assertEquals(evaluate(model4, x, y), evaluate(model1, x, y), "at " + x + "," + y);
+            }
+        }
+    }
+
+    @Test
+    public void testMiniBatchTraining() {
+        final VariantDataMatrix data = makeData(25000);
+        final GaussianMixtureModel model = trainModel(data, 1, 0);
+        final GaussianMixtureModel miniBatchModel = trainModel(data, 2, 2000);
+
+        final double far = evaluate(miniBatchModel, 0.0, 5.0);
+        for ( final double[] center : CENTERS ) {
+            Assert.assertTrue(evaluate(miniBatchModel, center[0], center[1]) > far + 3.0);
+            Assert.assertEquals(evaluate(miniBatchModel, center[0], center[1]), evaluate(model, center[0], center[1]), 0.1);
+        }
+    }
+}
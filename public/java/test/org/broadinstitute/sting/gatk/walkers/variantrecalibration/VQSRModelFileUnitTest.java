@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.variantrecalibration;
+
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.gatk.GenomeAnalysisEngine;
+import org.broadinstitute.sting.utils.exceptions.UserException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class VQSRModelFileUnitTest extends BaseTest {
+    private final static List<String> annotationKeys = Arrays.asList("QD", "FS");
+
+    /**
+     * Training variants from two clusters, in unnormalized units
+     */
+    private static VariantDataMatrix makeData(final int n, final long seed) {
+        final Random random = new Random(seed);
+        final VariantDataMatrix data = new VariantDataMatrix(annotationKeys.size());
+        for ( int i = 0; i < n; i++ ) {
+            final VariantDatum datum = new VariantDatum();
+            datum.annotations = i % 2 == 0
+                    ? new double[]{20.0 + 2.0 * random.nextGaussian(), 5.0 + random.nextGaussian()}
+                    : new double[]{5.0 + 2.0 * random.nextGaussian(), 30.0 + 3.0 * random.nextGaussian()};
+            datum.isNull = new boolean[annotationKeys.size()];
+            datum.atTrainingSite = true;
+            datum.originalQual = 100.0;
+            data.add(datum);
+        }
+        return data;
+    }
+
+    private static VariantRecalibratorArgumentCollection makeVRAC() {
+        final VariantRecalibratorArgumentCollection VRAC = new VariantRecalibratorArgumentCollection();
+        VRAC.MAX_GAUSSIANS = 3;
+        VRAC.MAX_ITERATIONS = 20;
+        return VRAC;
+    }
+
+    @Test
+    public void testSavedModelsScoreLikeTrainedModels() {
+        GenomeAnalysisEngine.resetRandomGenerator();
+        final VariantRecalibratorArgumentCollection VRAC = makeVRAC();
+        final VariantRecalibratorEngine engine = new VariantRecalibratorEngine(VRAC);
+        final VariantDataManager trainingManager = new VariantDataManager(annotationKeys, VRAC);
+        trainingManager.setData(makeData(2000, 1));
+        trainingManager.normalizeData();
+        final GaussianMixtureModel goodModel = engine.generateModel(trainingManager.getTrainingData());
+        final int[] badRows = new int[100];
+        for ( int i = 0; i < badRows.length; i++ )
+            badRows[i] = 5 * i;
+        final VariantRecalibratorArgumentCollection badVRAC = makeVRAC();
+        badVRAC.MAX_GAUSSIANS = 2;
+        final GaussianMixtureModel badModel = new VariantRecalibratorEngine(badVRAC).generateModel(trainingManager.getTrainingData().subset(badRows));
+
+        final File file = createTempFile("VQSRModelFileUnitTest", ".model");
+        VQSRModelFile.write(file, annotationKeys, trainingManager.getMeanVector(), trainingManager.getStandardDeviationVector(), goodModel, badModel);
+        final VQSRModelFile saved = VQSRModelFile.read(file);
+        Assert.assertEquals(saved.getAnnotationKeys(), annotationKeys);
+        Assert.assertEquals(saved.getMeans(), trainingManager.getMeanVector());
+        Assert.assertEquals(saved.getStandardDeviations(), trainingManager.getStandardDeviationVector());
+
+        // a new batch, normalized as the training data were, and scored by both the trained and the saved models
+        final VariantDataManager trainedManager = new VariantDataManager(annotationKeys, VRAC);
+        trainedManager.setData(makeData(500, 2));
+        trainedManager.normalizeData(trainingManager.getMeanVector(), trainingManager.getStandardDeviationVector());
+        engine.evaluateData(trainedManager.getData(), goodModel, false);
+        engine.evaluateData(trainedManager.getData(), badModel, true);
+        engine.calculateWorstPerformingAnnotation(trainedManager.getData(), goodModel, badModel);
+
+        final VariantDataManager savedManager = new VariantDataManager(annotationKeys, VRAC);
+        savedManager.setData(makeData(500, 2));
+        savedManager.normalizeData(saved.getMeans(), saved.getStandardDeviations());
+        engine.evaluateData(savedManager.getData(), saved.getGoodModel(), false);
+        engine.evaluateData(savedManager.getData(), saved.getBadModel(), true);
+        engine.calculateWorstPerformingAnnotation(savedManager.getData(), saved.getGoodModel(), saved.getBadModel());
+
+        Assert.assertFalse(saved.getGoodModel().failedToConverge);
+        Assert.assertFalse(saved.getBadModel().failedToConverge);
+        for ( int i = 0; i < 500; i++ ) {
+            Assert.assertEquals(savedManager.getData().getLod(i), trainedManager.getData().getLod(i));
+            Assert.assertEquals(savedManager.getData().getWorstAnnotation(i), trainedManager.getData().getWorstAnnotation(i));
+        }
+    }
+
+    @Test
+    public void testNormalizeWithTheDataMeans() {
+        final VariantDataManager manager = new VariantDataManager(annotationKeys, makeVRAC());
+        manager.setData(makeData(100, 3));
+        manager.normalizeData();
+
+        final VariantDataManager renormalized = new VariantDataManager(annotationKeys, makeVRAC());
+        renormalized.setData(makeData(100, 3));
+        renormalized.normalizeData(manager.getMeanVector(), manager.getStandardDeviationVector());
+        for ( int i = 0; i < 100; i++ )
+            for ( int j = 0; j < annotationKeys.size(); j++ )
+                Assert.assertEquals(renormalized.getData().getAnnotation(i, j), manager.getData().getAnnotation(i, j));
+    }
+
+    @Test(expectedExceptions = UserException.MalformedFile.class)
+    public void testTruncatedFile() throws Exception {
+        GenomeAnalysisEngine.resetRandomGenerator();
+        final VariantRecalibratorArgumentCollection VRAC = makeVRAC();
+        final VariantDataManager manager = new VariantDataManager(annotationKeys, VRAC);
+        manager.setData(makeData(500, 4));
+        manager.normalizeData();
+        final GaussianMixtureModel model = new VariantRecalibratorEngine(VRAC).generateModel(manager.getTrainingData());
+
+        final File file = createTempFile("VQSRModelFileUnitTest", ".model");
+        VQSRModelFile.write(file, annotationKeys, manager.getMeanVector(), manager.getStandardDeviationVector(), model, model);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 8);
+        raf.close();
+        VQSRModelFile.read(file);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.variantrecalibration;
+
+import org.broadinstitute.sting.BaseTest;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+public class VariantDataManagerUnitTest extends BaseTest {
+
+    @Test
+    public void testSelectWorstVariantsReturnsRowsOfTheSortedData() {
+        // the variant in row i has lod (7 * i) % 10, and its row as its annotation
+        final VariantDataMatrix data = new VariantDataMatrix(1);
+        for ( int i = 0; i < 10; i++ ) {
+            final VariantDatum datum = new VariantDatum();
+            datum.annotations = new double[]{i};
+            datum.isNull = new boolean[1];
+            datum.lod = (7 * i) % 10;
+            datum.atAntiTrainingSite = i == 2 || i == 7;
+            data.add(datum);
+        }
+
+        final VariantDataManager dataManager = new VariantDataManager(Arrays.asList("AN"), new VariantRecalibratorArgumentCollection());
+        dataManager.setData(data);
+        final int[] rows = dataManager.selectWorstVariants(0.0, 4);
+
+        // the bad sites come first, in their original order, followed by the worst of the others
+        final VariantDataMatrix trainingData = data.subset(rows);
+        Assert.assertEquals(trainingData.size(), 4);
+        final double[] expectedVariants = {2, 7, 0, 3};
+        for ( int i = 0; i < expectedVariants.length; i++ ) {
+            Assert.assertEquals(trainingData.getAnnotation(i, 0), expectedVariants[i]);
+            Assert.assertTrue(data.isAtAntiTrainingSite(rows[i]));
+        }
+
+        // the rows keep referring to the data, so a later subset sees its current annotations
+        data.setAnnotation(rows[0], 0, 42.0);
+        Assert.assertEquals(data.subset(rows).getAnnotation(0, 0), 42.0);
+    }
+}
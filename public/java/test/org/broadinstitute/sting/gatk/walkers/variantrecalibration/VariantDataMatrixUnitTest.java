@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.gatk.walkers.variantrecalibration;
+
+import net.sf.samtools.SAMFileHeader;
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.utils.GenomeLocParser;
+import org.broadinstitute.sting.utils.sam.ArtificialSAMUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class VariantDataMatrixUnitTest extends BaseTest {
+    private final static SAMFileHeader header = ArtificialSAMUtils.createArtificialSamHeader(2, 1, 1000);
+    private final static GenomeLocParser genomeLocParser = new GenomeLocParser(header.getSequenceDictionary());
+
+    private static VariantDatum makeDatum(final int contig, final int start, final double lod, final double... annotations) {
+        final VariantDatum datum = new VariantDatum();
+        datum.annotations = annotations.clone();
+        datum.isNull = new boolean[annotations.length];
+        for ( int i = 0; i < annotations.length; i++ )
+            datum.isNull[i] = Double.isNaN(annotations[i]);
+        datum.lod = lod;
+        datum.loc = genomeLocParser.createGenomeLoc(header.getSequence(contig).getSequenceName(), start, start + 1);
+        datum.isKnown = contig == 1;
+        datum.atTruthSite = start % 2 == 0;
+        return datum;
+    }
+
+    private static VariantDataMatrix makeData() {
+        final VariantDataMatrix data = new VariantDataMatrix(2);
+        data.add(makeDatum(1, 10, 2.0, 1.0, 2.0));
+        data.add(makeDatum(0, 30, -1.0, 3.0, Double.NaN));
+        data.add(makeDatum(0, 20, 2.0, 5.0, 6.0));
+        data.add(makeDatum(1, 5, -3.0, 7.0, 8.0));
+        return data;
+    }
+
+    @Test
+    public void testAdd() {
+        final VariantDataMatrix data = makeData();
+        Assert.assertEquals(data.size(), 4);
+        Assert.assertEquals(data.getNumAnnotations(), 2);
+        Assert.assertEquals(data.getAnnotation(2, 0), 5.0);
+        Assert.assertEquals(data.getAnnotations()[2 * 2 + 1], 6.0);
+        Assert.assertTrue(data.isNull(1, 1));
+        Assert.assertFalse(data.isNull(1, 0));
+        Assert.assertTrue(data.hasNullAnnotation(1));
+        Assert.assertFalse(data.hasNullAnnotation(0));
+        Assert.assertFalse(data.hasNullAnnotation(2));
+        Assert.assertTrue(data.isKnown(0));
+        Assert.assertFalse(data.isKnown(1));
+        Assert.assertTrue(data.isAtTruthSite(2));
+        Assert.assertFalse(data.isAtTruthSite(3));
+        Assert.assertEquals(data.getContigIndex(0), 1);
+        Assert.assertEquals(data.getStart(1), 30);
+        Assert.assertEquals(data.getStop(1), 31);
+    }
+
+    @Test
+    public void testManyVariants() {
+        final VariantDataMatrix data = new VariantDataMatrix(2);
+        for ( int i = 0; i < 1000; i++ )
+            data.add(makeDatum(0, i + 1, i, i, -i));
+
+        final VariantDataMatrix copy = new VariantDataMatrix(2);
+        copy.addAll(data);
+        Assert.assertEquals(copy.size(), 1000);
+        for ( int i = 0; i < 1000; i++ ) {
+            Assert.assertEquals(copy.getAnnotation(i, 1), (double)-i);
+            Assert.assertEquals(copy.getLod(i), (double)i);
+            Assert.assertEquals(copy.isAtTruthSite(i), (i + 1) % 2 == 0);
+        }
+    }
+
+    @Test
+    public void testSubset() {
+        final VariantDataMatrix subset = makeData().subset(new int[]{3, 1, 3});
+        Assert.assertEquals(subset.size(), 3);
+        Assert.assertEquals(subset.getAnnotation(0, 0), 7.0);
+        Assert.assertEquals(subset.getAnnotation(1, 0), 3.0);
+        Assert.assertTrue(subset.hasNullAnnotation(1));
+        Assert.assertFalse(subset.hasNullAnnotation(2));
+        Assert.assertEquals(subset.getStart(2), 5);
+    }
+
+    @Test
+    public void testSortByLod() {
+        final VariantDataMatrix data = makeData();
+        Assert.assertEquals(data.sortByLod(), new int[]{3, 1, 0, 2});
+        // the two variants with lod 2.0 keep their order
+        final int[] expectedStarts = {5, 30, 10, 20};
+        for ( int i = 0; i < expectedStarts.length; i++ )
+            Assert.assertEquals(data.getStart(i), expectedStarts[i]);
+        Assert.assertEquals(data.getAnnotation(1, 0), 3.0);
+        Assert.assertTrue(data.isNull(1, 1));
+        Assert.assertFalse(data.hasNullAnnotation(0));
+        Assert.assertTrue(data.isKnown(2));
+        Assert.assertEquals(data.getLod(0), -3.0);
+    }
+
+    @Test
+    public void testSortByLocation() {
+        final VariantDataMatrix data = makeData();
+        data.sortByLocation();
+        final int[] expectedContigs = {0, 0, 1, 1};
+        final int[] expectedStarts = {20, 30, 5, 10};
+        for ( int i = 0; i < expectedStarts.length; i++ ) {
+            Assert.assertEquals(data.getContigIndex(i), expectedContigs[i]);
+            Assert.assertEquals(data.getStart(i), expectedStarts[i]);
+        }
+        Assert.assertTrue(data.hasNullAnnotation(1));
+        Assert.assertEquals(data.getAnnotation(3, 1), 2.0);
+    }
+}
@@ -50,14 +50,16 @@ public final class VariantGaussianMixtureModelUnitTest extends BaseTest {
     private final File EXPECTED_TRANCHES_NEW = new File(privateTestDir + "tranches.6.txt");
     private final File EXPECTED_TRANCHES_OLD = new File(privateTestDir + "tranches.4.txt");
 
-    private ArrayList<VariantDatum> readData() {
-        ArrayList<VariantDatum> vd = new ArrayList<VariantDatum>();
+    private VariantDataMatrix readData() {
+        VariantDataMatrix vd = new VariantDataMatrix(0);
         try {
             for ( String line : new XReadLines(QUAL_DATA, true) ) {
                 String[] parts = line.split("\t");
                 // QUAL,TRANSITION,ID,LOD,FILTER
                 if ( ! parts[0].equals("QUAL") ) {
                     VariantDatum datum = new VariantDatum();
+                    datum.annotations = new double[0];
+                    datum.isNull = new boolean[0];
                     datum.lod = Double.valueOf(parts[3]);
                     datum.isTransition = parts[1].equals("1");
                     datum.isKnown = ! parts[2].equals(".");
@@ -109,7 +111,7 @@ public final class VariantGaussianMixtureModelUnitTest extends BaseTest {
         }
     }
 
-    private static List<Tranche> findMyTranches(ArrayList<VariantDatum> vd, double[] tranches) {
+    private static List<Tranche> findMyTranches(VariantDataMatrix vd, double[] tranches) {
         final int nCallsAtTruth = TrancheManager.countCallsAtTruth( vd, Double.NEGATIVE_INFINITY );
         final TrancheManager.SelectionMetric metric = new TrancheManager.TruthSensitivityMetric( nCallsAtTruth );
         return TrancheManager.findTranches(vd, tranches, metric, VariantRecalibratorArgumentCollection.Mode.SNP);
@@ -117,7 +119,7 @@ public final class VariantGaussianMixtureModelUnitTest extends BaseTest {
 
     @Test
     public final void testFindTranches1() {
-        ArrayList<VariantDatum> vd = readData();
+        VariantDataMatrix vd = readData();
         List<Tranche> tranches = findMyTranches(vd, TRUTH_SENSITIVITY_CUTS);
         System.out.printf(Tranche.tranchesString(tranches));
         assertTranchesAreTheSame(read(EXPECTED_TRANCHES_NEW), tranches, true, false);
@@ -125,7 +127,7 @@ public final class VariantGaussianMixtureModelUnitTest extends BaseTest {
 
     @Test(expectedExceptions = {UserException.class})
     public final void testBadFDR() {
-        ArrayList<VariantDatum> vd = readData();
+        VariantDataMatrix vd = readData();
         List<Tranche> tranches = findMyTranches(vd, new double[]{-1});
     }
 }
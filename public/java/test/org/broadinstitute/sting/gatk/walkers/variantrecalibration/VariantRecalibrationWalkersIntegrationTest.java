@@ -4,6 +4,7 @@ import org.broadinstitute.sting.WalkerTest;
 import org.testng.annotations.Test;
 import org.testng.annotations.DataProvider;
 
+import java.io.File;
 import java.util.*;
 
 public class VariantRecalibrationWalkersIntegrationTest extends WalkerTest {
@@ -74,6 +75,42 @@ public class VariantRecalibrationWalkersIntegrationTest extends WalkerTest {
         executeTest("testApplyRecalibration-"+params.inVCF, spec);
     }
 
+    @Test(dataProvider = "VRTest")
+    public void testApplyRecalibrationWithBinaryRecalFile(VRTest params) {
+        WalkerTest.WalkerTestSpec spec1 = new WalkerTest.WalkerTestSpec(
+                "-R " + b37KGReference +
+                        " -resource:known=true,prior=10.0 " + GATKDataLocation + "dbsnp_132_b37.leftAligned.vcf" +
+                        " -resource:truth=true,training=true,prior=15.0 " + comparisonDataLocation + "Validated/HapMap/3.3/sites_r27_nr.b37_fwd.vcf" +
+                        " -resource:training=true,truth=true,prior=12.0 " + comparisonDataLocation + "Validated/Omni2.5_chip/Omni25_sites_1525_samples.b37.vcf" +
+                        " -T VariantRecalibrator" +
+                        " -input " + params.inVCF +
+                        " -L 20:1,000,000-40,000,000" +
+                        " --no_cmdline_in_header" +
+                        " -an QD -an HaplotypeScore -an HRun" +
+                        " -percentBad 0.07" +
+                        " --minNumBadVariants 0" +
+                        " --trustAllPolymorphic" + // for speed
+                        " -recalFile %s" +
+                        " -tranchesFile %s" +
+                        " -binaryRecalFile %s",
+                Arrays.asList(params.recalMD5, params.tranchesMD5, ""));
+        List<File> result = executeTest("testVariantRecalibratorWithBinaryRecalFile-"+params.inVCF, spec1).getFirst();
+
+        // the cut VCF must be the same as the one made with the VCF recal file
+        WalkerTest.WalkerTestSpec spec2 = new WalkerTest.WalkerTestSpec(
+                "-R " + b37KGReference +
+                        " -T ApplyRecalibration" +
+                        " -L 20:12,000,000-30,000,000" +
+                        " --no_cmdline_in_header" +
+                        " -input " + params.inVCF +
+                        " -U LENIENT_VCF_PROCESSING -o %s" +
+                        " -tranchesFile " + result.get(1).getAbsolutePath() +
+                        " -binaryRecalFile " + result.get(2).getAbsolutePath(),
+                Arrays.asList(params.cutVCFMD5));
+        spec2.disableShadowBCF(); // TODO -- enable when we support symbolic alleles
+        executeTest("testApplyRecalibrationWithBinaryRecalFile-"+params.inVCF, spec2);
+    }
+
     VRTest indelUnfiltered = new VRTest(
             "combined.phase1.chr20.raw.indels.unfiltered.sites.vcf", // all FILTERs as .
             "b7589cd098dc153ec64c02dcff2838e4",  // tranches
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic but realistic inputs for benchmarking the alignment kernels (PairHMM, BAQ and SWPairwiseAlignment)
+ *
+ * The reference is random sequence sprinkled with homopolymers and short tandem repeats, which is where most indels
+ * and most indel errors occur.  The haplotypes are the reference plus alternate haplotypes carrying an indel in one
+ * of the repeats and a few SNPs.  The reads are sampled from the haplotypes, with an Illumina-like quality profile
+ * that decays along the read, substitution errors drawn from those qualities, and indel errors at indelRate per base.
+ *
+ * Everything is derived from the seed, so that different benchmark runs see exactly the same workload.
+ */
+public class AlignmentBenchmarkWorkload {
+    /**
+     * A read sampled from one of the haplotypes
+     */
+    public static class Read {
+        private final byte[] bases, quals;
+        private final int referenceStart;
+
+        private Read(final byte[] bases, final byte[] quals, final int referenceStart) {
+            this.bases = bases;
+            this.quals = quals;
+            this.referenceStart = referenceStart;
+        }
+
+        public byte[] getBases() { return bases; }
+        public byte[] getQuals() { return quals; }
+
+        /**
+         * @return the approximate offset in the reference of the first base of the read
+         */
+        public int getReferenceStart() { return referenceStart; }
+    }
+
+    // roughly the fraction of the reference made of repeats, and the lengths of their units
+    private final static double REPEAT_FRACTION = 0.15;
+    private final static int[] STR_UNIT_LENGTHS = {1, 2, 3, 4};
+
+    private final Random random;
+    private final byte[] reference;
+    private final List<byte[]> haplotypes = new ArrayList<byte[]>();
+    private final List<Read> reads = new ArrayList<Read>();
+
+    /**
+     * @param readLength the length of the reads
+     * @param indelRate the per-base rate of indel errors in the reads
+     * @param nHaplotypes the number of haplotypes, including the reference
+     * @param nReads the number of reads to sample from the haplotypes
+     * @param seed the seed of all of the random choices
+     */
+    public AlignmentBenchmarkWorkload(final int readLength, final double indelRate, final int nHaplotypes, final int nReads, final long seed) {
+        random = new Random(seed);
+
+        // the reference covers the reads with room on both sides for them to start anywhere in the middle
+        reference = makeReference(3 * readLength);
+        haplotypes.add(reference);
+        while ( haplotypes.size() < nHaplotypes )
+            haplotypes.add(makeAlternateHaplotype());
+
+        for ( int i = 0; i < nReads; i++ ) {
+            final byte[] haplotype = haplotypes.get(random.nextInt(haplotypes.size()));
+            final int start = readLength / 2 + random.nextInt(Math.max(1, haplotype.length - 2 * readLength));
+            reads.add(makeRead(haplotype, start, readLength, indelRate));
+        }
+    }
+
+    /**
+     * @return the reference, which is also the first of the haplotypes
+     */
+    public byte[] getReference() {
+        return reference;
+    }
+
+    public List<byte[]> getHaplotypes() {
+        return Collections.unmodifiableList(haplotypes);
+    }
+
+    public List<Read> getReads() {
+        return Collections.unmodifiableList(reads);
+    }
+
+    /**
+     * @return the part of the reference from start to stop, clipped to the reference
+     */
+    public byte[] getReferenceWindow(final int start, final int stop) {
+        return Arrays.copyOfRange(reference, Math.max(0, start), Math.min(reference.length, stop));
+    }
+
+    private byte randomBase() {
+        return BaseUtils.BASES[random.nextInt(4)];
+    }
+
+    private byte[] makeReference(final int length) {
+        final StringBuilder ref = new StringBuilder(length);
+        while ( ref.length() < length ) {
+            if ( random.nextDouble() < REPEAT_FRACTION / 10 ) {
+                // a repeat of 3-10 copies of a unit of 1-4 bases
+                final byte[] unit = new byte[STR_UNIT_LENGTHS[random.nextInt(STR_UNIT_LENGTHS.length)]];
+                for ( int i = 0; i < unit.length; i++ )
+                    unit[i] = randomBase();
+                final int copies = 3 + random.nextInt(8);
+                for ( int i = 0; i < copies; i++ )
+                    ref.append(new String(unit));
+            } else {
+                ref.append((char)randomBase());
+            }
+        }
+        return ref.substring(0, length).getBytes();
+    }
+
+    /**
+     * @return a copy of the reference with an indel of 1-10 bases, preferably in a repeat, and a few SNPs
+     */
+    private byte[] makeAlternateHaplotype() {
+        final StringBuilder hap = new StringBuilder(new String(reference));
+
+        // indels are put in the middle third, where they are covered by most of the reads
+        final int middle = reference.length / 3 + random.nextInt(reference.length / 3);
+        int pos = middle;
+        for ( int i = middle; i < middle + 50 && i + 1 < reference.length; i++ ) {
+            if ( reference[i] == reference[i + 1] ) {
+                pos = i;
+                break;
+            }
+        }
+
+        final int indelLength = 1 + random.nextInt(10);
+        if ( random.nextBoolean() ) {
+            hap.delete(pos, Math.min(hap.length(), pos + indelLength));
+        } else {
+            for ( int i = 0; i < indelLength; i++ )
+                hap.insert(pos, (char)reference[pos]);
+        }
+
+        for ( int i = 0; i < 3; i++ )
+            hap.setCharAt(random.nextInt(hap.length()), (char)randomBase());
+
+        return hap.toString().getBytes();
+    }
+
+    private Read makeRead(final byte[] haplotype, final int start, final int readLength, final double indelRate) {
+        final byte[] bases = new byte[readLength];
+        final byte[] quals = new byte[readLength];
+
+        int hapPos = start;
+        for ( int i = 0; i < readLength; i++ ) {
+            // qualities decay from Q35 to Q20 along the read, with noise, and some reads end in a run of Q2s
+            final int qual = Math.max(2, 35 - (15 * i) / readLength + random.nextInt(7) - 3);
+            quals[i] = (byte)(i > readLength - 5 && random.nextDouble() < 0.2 ? 2 : qual);
+
+            if ( random.nextDouble() < indelRate ) {
+                if ( random.nextBoolean() )
+                    hapPos++; // a deletion error
+                else {
+                    bases[i] = randomBase(); // an insertion error
+                    continue;
+                }
+            }
+
+            final byte trueBase = hapPos < haplotype.length ? haplotype[hapPos] : randomBase();
+            bases[i] = random.nextDouble() < QualityUtils.qualToErrorProb(quals[i]) ? randomBase() : trueBase;
+            hapPos++;
+        }
+
+        return new Read(bases, quals, start);
+    }
+}
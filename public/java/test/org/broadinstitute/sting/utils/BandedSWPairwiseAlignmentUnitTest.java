@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils;
+
+import net.sf.samtools.Cigar;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.CigarOperator;
+import org.broadinstitute.sting.BaseTest;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BandedSWPairwiseAlignmentUnitTest extends BaseTest {
+    // the weights of the indel realigner, and those of SWPairwiseAlignment's defaults scaled to whole numbers
+    private final static int[][] WEIGHTS = {{30, -10, -10, -2}, {3, -1, -4, -1}};
+
+    @DataProvider(name = "Workloads")
+    public Object[][] makeWorkloads() {
+        final List<Object[]> tests = new ArrayList<Object[]>();
+        for ( final int[] weights : WEIGHTS )
+            for ( final int readLength : new int[]{10, 50, 101} )
+                for ( final double indelRate : new double[]{0.0, 0.02, 0.1} )
+                    tests.add(new Object[]{weights, new AlignmentBenchmarkWorkload(readLength, indelRate, 4, 20, readLength)});
+        return tests.toArray(new Object[][]{});
+    }
+
+    private static void assertSameAlignment(final BandedSWPairwiseAlignment actual, final SWPairwiseAlignment expected) {
+        Assert.assertEquals(actual.getCigar(), expected.getCigar());
+        Assert.assertEquals(actual.getAlignmentStart2wrt1(), expected.getAlignmentStart2wrt1());
+    }
+
+    @Test(dataProvider = "Workloads")
+    public void testUnbandedMatchesOriginal(final int[] w, final AlignmentBenchmarkWorkload workload) {
+        final byte[] ref = workload.getReference();
+        for ( final AlignmentBenchmarkWorkload.Read read : workload.getReads() ) {
+            final byte[] bases = read.getBases();
+            assertSameAlignment(new BandedSWPairwiseAlignment(ref, bases, w[0], w[1], w[2], w[3]), new SWPairwiseAlignment(ref, bases, w[0], w[1], w[2], w[3]));
+
+            // and with the read hanging off either end of the reference
+            final byte[] leftEnd = workload.getReferenceWindow(read.getReferenceStart() + bases.length / 2, ref.length);
+            assertSameAlignment(new BandedSWPairwiseAlignment(leftEnd, bases, w[0], w[1], w[2], w[3]), new SWPairwiseAlignment(leftEnd, bases, w[0], w[1], w[2], w[3]));
+            final byte[] rightEnd = workload.getReferenceWindow(0, read.getReferenceStart() + bases.length / 2);
+            assertSameAlignment(new BandedSWPairwiseAlignment(rightEnd, bases, w[0], w[1], w[2], w[3]), new SWPairwiseAlignment(rightEnd, bases, w[0], w[1], w[2], w[3]));
+        }
+
+        for ( final byte[] haplotype : workload.getHaplotypes() )
+            assertSameAlignment(new BandedSWPairwiseAlignment(ref, haplotype, w[0], w[1], w[2], w[3]), new SWPairwiseAlignment(ref, haplotype, w[0], w[1], w[2], w[3]));
+    }
+
+    /**
+     * @return the largest distance from the diagonal of its first aligned base that the alignment strays
+     */
+    private static int maxDistanceFromStartingDiagonal(final Cigar cigar) {
+        int distance = 0, maxDistance = 0;
+        for ( final CigarElement e : cigar.getCigarElements() ) {
+            if ( e.getOperator() == CigarOperator.D )
+                distance += e.getLength();
+            else if ( e.getOperator() == CigarOperator.I )
+                distance -= e.getLength();
+            maxDistance = Math.max(maxDistance, Math.abs(distance));
+        }
+        return maxDistance;
+    }
+
+    @Test(dataProvider = "Workloads")
+    public void testBandedMatchesOriginalWithinBand(final int[] w, final AlignmentBenchmarkWorkload workload) {
+        final int bandWidth = 15;
+        final byte[] ref = workload.getReference();
+        int nCompared = 0;
+        for ( final AlignmentBenchmarkWorkload.Read read : workload.getReads() ) {
+            final SWPairwiseAlignment expected = new SWPairwiseAlignment(ref, read.getBases(), w[0], w[1], w[2], w[3]);
+            if ( maxDistanceFromStartingDiagonal(expected.getCigar()) > bandWidth )
+                continue; // the best alignment leaves the band, so the banded aligner can't find it
+
+            final CigarElement first = expected.getCigar().getCigarElement(0);
+            final int leadingClip = first.getOperator() == CigarOperator.S ? first.getLength() : 0;
+            assertSameAlignment(new BandedSWPairwiseAlignment(ref, read.getBases(), w[0], w[1], w[2], w[3], expected.getAlignmentStart2wrt1() - leadingClip, bandWidth), expected);
+            nCompared++;
+        }
+        Assert.assertTrue(nCompared > workload.getReads().size() / 2, "too few alignments stay within the band to test it");
+    }
+
+    @Test
+    public void testBandedFindsAlignmentOnlyNearExpectedOffset() {
+        // the read occurs twice in the reference, and the band picks which one we find
+        final String read = "ACGTTGCAGGCATTAGCCAT";
+        final byte[] ref = ("GGGGGGGGGG" + read + "TTTTTTTTTTTTTTTTTTTT" + read + "CCCCCCCCCC").getBytes();
+
+        Assert.assertEquals(new BandedSWPairwiseAlignment(ref, read.getBytes(), 30, -10, -10, -2).getAlignmentStart2wrt1(),
+                new SWPairwiseAlignment(ref, read.getBytes(), 30, -10, -10, -2).getAlignmentStart2wrt1());
+        for ( final int offset : new int[]{10, 50} ) {
+            final BandedSWPairwiseAlignment banded = new BandedSWPairwiseAlignment(ref, read.getBytes(), 30, -10, -10, -2, offset + 3, 5);
+            Assert.assertEquals(banded.getAlignmentStart2wrt1(), offset);
+            Assert.assertEquals(banded.getCigar().toString(), read.length() + "M");
+        }
+    }
+
+    @Test
+    public void testEmptySequences() {
+        final byte[] seq = "ACGTACGT".getBytes();
+        for ( final byte[][] pair : new byte[][][]{{seq, new byte[0]}, {new byte[0], seq}} ) {
+            final SWPairwiseAlignment expected = new SWPairwiseAlignment(pair[0], pair[1], 30, -10, -10, -2);
+            assertSameAlignment(new BandedSWPairwiseAlignment(pair[0], pair[1], 30, -10, -10, -2), expected);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils;
+
+import org.broadinstitute.sting.BaseTest;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class BatchPairHMMUnitTest extends BaseTest {
+    private final Random random = new Random(1234567);
+
+    private byte[] randomBytes(final int length, final byte[] choices) {
+        final byte[] bytes = new byte[length];
+        for ( int i = 0; i < length; i++ )
+            bytes[i] = choices[random.nextInt(choices.length)];
+        return bytes;
+    }
+
+    private PairHMMRead makeRead(final byte[] bases) {
+        final byte[] quals = randomBytes(bases.length, new byte[]{5, 10, 20, 30, 40});
+        final byte[] gop = randomBytes(bases.length, new byte[]{40, 45});
+        final byte[] gcp = randomBytes(bases.length, new byte[]{10});
+        return new PairHMMRead(bases, quals, gop, gop, gcp);
+    }
+
+    /**
+     * @return haplotypes differing from each other by a few SNPs, with some of them repeated
+     */
+    private List<byte[]> makeHaplotypes(final int nHaplotypes, final int length) {
+        final List<byte[]> haplotypes = new ArrayList<byte[]>();
+        haplotypes.add(randomBytes(length, BaseUtils.BASES));
+        while ( haplotypes.size() < nHaplotypes ) {
+            final byte[] haplotype = haplotypes.get(random.nextInt(haplotypes.size())).clone();
+            if ( random.nextBoolean() )
+                haplotype[random.nextInt(length)] = BaseUtils.BASES[random.nextInt(4)];
+            haplotypes.add(haplotype);
+        }
+        return haplotypes;
+    }
+
+    @DataProvider(name = "Batches")
+    public Object[][] makeBatches() {
+        final List<Object[]> tests = new ArrayList<Object[]>();
+        for ( final PairHMMEngine.Implementation implementation : PairHMMEngine.Implementation.values() )
+            for ( final int nThreads : Arrays.asList(1, 3) )
+                for ( final int nReads : Arrays.asList(0, 1, 50) )
+                    tests.add(new Object[]{implementation, nThreads, nReads});
+        return tests.toArray(new Object[][]{});
+    }
+
+    @Test(dataProvider = "Batches")
+    public void testBatchMatchesIndividualAlignments(final PairHMMEngine.Implementation implementation, final int nThreads, final int nReads) {
+        final List<byte[]> haplotypes = makeHaplotypes(6, 60);
+        final List<PairHMMRead> reads = new ArrayList<PairHMMRead>();
+        for ( int i = 0; i < nReads; i++ ) {
+            final int start = random.nextInt(20);
+            reads.add(makeRead(Arrays.copyOfRange(haplotypes.get(random.nextInt(haplotypes.size())), start, start + 30)));
+        }
+
+        final double[][] likelihoods = new BatchPairHMM(implementation, nThreads).computeLikelihoods(reads, haplotypes);
+
+        Assert.assertEquals(likelihoods.length, nReads);
+        for ( int i = 0; i < nReads; i++ ) {
+            Assert.assertEquals(likelihoods[i].length, haplotypes.size());
+            for ( int j = 0; j < haplotypes.size(); j++ ) {
+                final double expected = implementation.makeEngine().computeReadLikelihoodGivenHaplotype(haplotypes.get(j), reads.get(i), 0);
+                Assert.assertEquals(likelihoods[i][j], expected, "read " + i + " haplotype " + j);
+            }
+        }
+    }
+
+    @Test(dataProvider = "Batches")
+    public void testBatchOfReadSpecificHaplotypes(final PairHMMEngine.Implementation implementation, final int nThreads, final int nReads) {
+        final List<PairHMMRead> reads = new ArrayList<PairHMMRead>();
+        final byte[][][] haplotypesOfEachRead = new byte[nReads][][];
+        for ( int i = 0; i < nReads; i++ ) {
+            // each read has its own number of haplotypes, of lengths that vary between reads
+            final List<byte[]> haplotypes = makeHaplotypes(1 + random.nextInt(5), 30 + random.nextInt(20));
+            haplotypesOfEachRead[i] = haplotypes.toArray(new byte[haplotypes.size()][]);
+            reads.add(makeRead(Arrays.copyOfRange(haplotypes.get(0), 5, 25)));
+        }
+
+        final double[][] likelihoods = new BatchPairHMM(implementation, nThreads).computeLikelihoods(reads, haplotypesOfEachRead);
+
+        for ( int i = 0; i < nReads; i++ ) {
+            Assert.assertEquals(likelihoods[i].length, haplotypesOfEachRead[i].length);
+            for ( int j = 0; j < haplotypesOfEachRead[i].length; j++ ) {
+                final double expected = implementation.makeEngine().computeReadLikelihoodGivenHaplotype(haplotypesOfEachRead[i][j], reads.get(i), 0);
+                Assert.assertEquals(likelihoods[i][j], expected, "read " + i + " haplotype " + j);
+            }
+        }
+    }
+}
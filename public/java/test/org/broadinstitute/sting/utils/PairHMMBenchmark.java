@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+import com.google.caliper.runner.CaliperMain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Caliper microbenchmark of the pair HMM implementations, aligning reads against the candidate haplotypes of an
+ * indel site as PairHMMIndelErrorModel does
+ *
+ * Run with --measureMemory (which needs the allocation instrumenter as a java agent) to see allocation as well.
+ */
+public class PairHMMBenchmark extends SimpleBenchmark {
+    @Param({"50", "100", "150", "250"})
+    int readLength; // set automatically by framework
+
+    @Param({"0.0", "0.005", "0.02"})
+    double indelRate; // set automatically by framework
+
+    @Param
+    PairHMMEngine.Implementation implementation; // set automatically by framework
+
+    private final static int N_HAPLOTYPES = 4;
+    private final static int N_READS = 100;
+
+    private final List<PairHMMRead> reads = new ArrayList<PairHMMRead>();
+    private final List<byte[]> readBases = new ArrayList<byte[]>(), readQuals = new ArrayList<byte[]>(), gapPenalties = new ArrayList<byte[]>();
+    private List<byte[]> haplotypes;
+    private byte[] gcp;
+
+    @Override protected void setUp() {
+        final AlignmentBenchmarkWorkload workload = new AlignmentBenchmarkWorkload(readLength, indelRate, N_HAPLOTYPES, N_READS, 42);
+        haplotypes = workload.getHaplotypes();
+
+        // constant gap penalties, as in reads without homopolymers
+        gcp = new byte[readLength];
+        Arrays.fill(gcp, (byte)10);
+        final byte[] gop = new byte[readLength];
+        Arrays.fill(gop, (byte)45);
+
+        for ( final AlignmentBenchmarkWorkload.Read read : workload.getReads() ) {
+            readBases.add(read.getBases());
+            readQuals.add(read.getQuals());
+            gapPenalties.add(gop);
+            reads.add(new PairHMMRead(read.getBases(), read.getQuals(), gop, gop, gcp));
+        }
+    }
+
+    /**
+     * Each read against each haplotype from scratch, with the quals and gap penalties of the read
+     */
+    public void timeIndependentAlignments(int rep) {
+        final PairHMMEngine engine = implementation.makeEngine();
+        double sum = 0.0;
+        for ( int i = 0; i < rep; i++ ) {
+            for ( int r = 0; r < N_READS; r++ )
+                for ( final byte[] haplotype : haplotypes )
+                    sum += engine.computeReadLikelihoodGivenHaplotype(haplotype, readBases.get(r), readQuals.get(r).clone(), gapPenalties.get(r), gapPenalties.get(r), gcp, 0);
+        }
+        if ( sum == 0.0 ) throw new IllegalStateException("no likelihoods computed");
+    }
+
+    /**
+     * Each read, prepared in advance, against all of the haplotypes in one batch
+     */
+    public void timeBatch(int rep) {
+        final BatchPairHMM batch = new BatchPairHMM(implementation, 1);
+        double sum = 0.0;
+        for ( int i = 0; i < rep; i++ )
+            sum += batch.computeLikelihoods(reads, haplotypes)[0][0];
+        if ( sum == 0.0 ) throw new IllegalStateException("no likelihoods computed");
+    }
+
+    public static void main(String[] args) {
+        CaliperMain.main(PairHMMBenchmark.class, args);
+    }
+}
@@ -41,6 +41,8 @@ public class PairHMMUnitTest extends BaseTest {
     final static boolean EXTENSIVE_TESTING = true;
     PairHMM hmm = new PairHMM( false ); // reference implementation
     PairHMM bandedHMM = new PairHMM( true ); // algorithm with banding
+    final CachingPairHMM cachingHMM = new CachingPairHMM( false );
+    final CachingPairHMM cachingFloatHMM = new CachingPairHMM( true );
 
     // --------------------------------------------------------------------------------
     //
@@ -84,11 +86,15 @@ public class PairHMMUnitTest extends BaseTest {
         }
 
         public double calcLogL() {
+            return calcLogL(hmm);
+        }
 
-            double logL = hmm.computeReadLikelihoodGivenHaplotype(
+        public double calcLogL(final PairHMMEngine engine) {
+
+            double logL = engine.computeReadLikelihoodGivenHaplotype(
                     refBasesWithContext, readBasesWithContext,
                     qualAsBytes(baseQual, false), qualAsBytes(insQual, true), qualAsBytes(delQual, true),
-                    qualAsBytes(gcp, false));
+                    qualAsBytes(gcp, false), 0);
 
             return logL;
         }
@@ -246,6 +252,24 @@ public class PairHMMUnitTest extends BaseTest {
         Assert.assertEquals(calculatedLogL, expectedLogL, cfg.tolerance());
     }
 
+    @Test(dataProvider = "BasicLikelihoodTestProvider", enabled = true)
+    public void testCachingLikelihoodsMatchOriginal(BasicLikelihoodTestProvider cfg) {
+        final double expectedLogL = cfg.calcLogL(hmm);
+        Assert.assertEquals(cfg.calcLogL(cachingHMM), expectedLogL, CACHING_TOLERANCE);
+        Assert.assertEquals(cfg.calcLogL(cachingFloatHMM), expectedLogL, CACHING_TOLERANCE);
+    }
+
+    @Test(dataProvider = "BasicLikelihoodTestProvider", enabled = true)
+    public void testPreparedReadLikelihoodsMatchOriginal(BasicLikelihoodTestProvider cfg) {
+        final byte[] quals = cfg.qualAsBytes(cfg.baseQual, false);
+        final PairHMMRead read = new PairHMMRead(cfg.readBasesWithContext, quals,
+                cfg.qualAsBytes(cfg.insQual, true), cfg.qualAsBytes(cfg.delQual, true), cfg.qualAsBytes(cfg.gcp, false));
+
+        // preparing the read in advance must not change the likelihoods of the original implementation at all
+        Assert.assertEquals(new PairHMM().computeReadLikelihoodGivenHaplotype(cfg.refBasesWithContext, read, 0), cfg.calcLogL(hmm));
+        Assert.assertEquals(cachingHMM.computeReadLikelihoodGivenHaplotype(cfg.refBasesWithContext, read, 0), cfg.calcLogL(cachingHMM));
+    }
+
     @DataProvider(name = "BandedLikelihoodTestProvider")
     public Object[][] makeBandedLikelihoodTests() {
         // context on either side is ACGTTGCA REF ACGTTGCA
@@ -364,4 +388,139 @@ public class PairHMMUnitTest extends BaseTest {
             Assert.assertEquals(res1, -2.0, 1e-2);
         }
     }
-}
\ No newline at end of file
+
+    // --------------------------------------------------------------------------------
+    //
+    // Validation of the caching implementations against the original one
+    //
+    // --------------------------------------------------------------------------------
+
+    // the original implementation approximates its log10 sums, so the implementations don't agree exactly
+    private final static double CACHING_TOLERANCE = 1e-2;
+
+    private byte[] randomBases(final int length) {
+        final byte[] bases = new byte[length];
+        for ( int i = 0; i < length; i++ )
+            bases[i] = BaseUtils.BASES[random.nextInt(4)];
+        return bases;
+    }
+
+    private byte[] randomQuals(final int length, final int minQual, final int maxQual) {
+        final byte[] quals = new byte[length];
+        for ( int i = 0; i < length; i++ )
+            quals[i] = (byte)(minQual + random.nextInt(maxQual - minQual + 1));
+        return quals;
+    }
+
+    /**
+     * @return the read with a few random substitutions, insertions, and deletions
+     */
+    private byte[] mutate(final byte[] bases, final int nMutations) {
+        final StringBuilder b = new StringBuilder(new String(bases));
+        for ( int i = 0; i < nMutations; i++ ) {
+            final int pos = random.nextInt(b.length() - 1);
+            switch ( random.nextInt(3) ) {
+                case 0: b.setCharAt(pos, (char)BaseUtils.BASES[random.nextInt(4)]); break;
+                case 1: b.insert(pos, (char)BaseUtils.BASES[random.nextInt(4)]); break;
+                default: b.deleteCharAt(pos); break;
+            }
+        }
+        return b.toString().getBytes();
+    }
+
+    @DataProvider(name = "RandomReadsAndHaplotypes")
+    public Object[][] makeRandomReadsAndHaplotypes() {
+        final List<Object[]> tests = new ArrayList<Object[]>();
+        for ( final int readLength : Arrays.asList(10, 50, 101, 250) )
+            for ( final int nMutations : Arrays.asList(0, 2, 10) )
+                tests.add(new Object[]{readLength, nMutations});
+        return tests.toArray(new Object[][]{});
+    }
+
+    @Test(dataProvider = "RandomReadsAndHaplotypes")
+    public void testCachingMatchesOriginalOnRandomReads(final int readLength, final int nMutations) {
+        for ( int iteration = 0; iteration < 10; iteration++ ) {
+            final byte[] haplotype = randomBases(readLength + 40);
+            final byte[] read = mutate(Arrays.copyOfRange(haplotype, 20, 20 + readLength), nMutations);
+            final byte[] quals = randomQuals(read.length, 2, 60);
+            final byte[] gop = randomQuals(read.length, 30, 50);
+            final byte[] gcp = randomQuals(read.length, 10, 10);
+            final byte[] originalQuals = quals.clone();
+
+            final double expected = hmm.computeReadLikelihoodGivenHaplotype(haplotype, read, quals.clone(), gop, gop, gcp);
+            Assert.assertEquals(cachingHMM.computeReadLikelihoodGivenHaplotype(haplotype, read, quals, gop, gop, gcp, 0), expected, CACHING_TOLERANCE);
+            Assert.assertEquals(cachingFloatHMM.computeReadLikelihoodGivenHaplotype(haplotype, read, quals, gop, gop, gcp, 0), expected, CACHING_TOLERANCE);
+
+            // unlike the original implementation, the caching ones leave the quals alone
+            Assert.assertEquals(quals, originalQuals);
+        }
+    }
+
+    @Test
+    public void testCachingReusesSharedHaplotypePrefixes() {
+        final byte[] haplotype = randomBases(140);
+        final byte[] read = mutate(Arrays.copyOfRange(haplotype, 20, 120), 3);
+        final byte[] quals = randomQuals(read.length, 10, 40);
+        final byte[] gop = randomQuals(read.length, 40, 45);
+        final byte[] gcp = randomQuals(read.length, 10, 10);
+
+        // each haplotype differs from the previous one starting at a random position
+        final List<byte[]> haplotypes = new ArrayList<byte[]>();
+        haplotypes.add(haplotype);
+        for ( int i = 1; i < 20; i++ ) {
+            final byte[] next = haplotypes.get(i - 1).clone();
+            final int pos = random.nextInt(next.length);
+            next[pos] = next[pos] == 'A' ? (byte)'C' : (byte)'A';
+            haplotypes.add(next);
+        }
+
+        for ( final boolean useFloats : Arrays.asList(false, true) ) {
+            final CachingPairHMM reusing = new CachingPairHMM(useFloats);
+            byte[] previous = null;
+            for ( final byte[] h : haplotypes ) {
+                int startIndex = 0;
+                if ( previous != null )
+                    while ( startIndex < h.length && h[startIndex] == previous[startIndex] )
+                        startIndex++;
+                previous = h;
+
+                final double fromScratch = new CachingPairHMM(useFloats).computeReadLikelihoodGivenHaplotype(h, read, quals, gop, gop, gcp, 0);
+                Assert.assertEquals(reusing.computeReadLikelihoodGivenHaplotype(h, read, quals, gop, gop, gcp, startIndex), fromScratch);
+                Assert.assertEquals(fromScratch, hmm.computeReadLikelihoodGivenHaplotype(h, read, quals.clone(), gop, gop, gcp), CACHING_TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    public void testCachingHandlesChangingDimensions() {
+        // a reused engine must not be confused by earlier reads and haplotypes of other lengths, even when told to reuse columns
+        final CachingPairHMM reusing = new CachingPairHMM(true);
+        for ( final int readLength : Arrays.asList(100, 20, 150, 20, 100) ) {
+            final byte[] haplotype = randomBases(readLength + 30);
+            final byte[] read = mutate(Arrays.copyOfRange(haplotype, 10, 10 + readLength), 2);
+            final byte[] quals = randomQuals(read.length, 20, 40);
+            final byte[] gop = randomQuals(read.length, 45, 45);
+            final byte[] gcp = randomQuals(read.length, 10, 10);
+
+            final double expected = new CachingPairHMM(true).computeReadLikelihoodGivenHaplotype(haplotype, read, quals, gop, gop, gcp, 0);
+            Assert.assertEquals(reusing.computeReadLikelihoodGivenHaplotype(haplotype, read, quals, gop, gop, gcp, 5), expected);
+        }
+    }
+
+    @Test
+    public void testCachingFallsBackForTinyLikelihoods() {
+        // a long, confidently wrong read has a likelihood far below the range of a float, and even of a scaled double
+        for ( final int readLength : Arrays.asList(100, 300) ) {
+            final byte[] haplotype = Utils.dupString('A', readLength + 20).getBytes();
+            final byte[] read = Utils.dupString('C', readLength).getBytes();
+            final byte[] quals = randomQuals(readLength, 40, 40);
+            final byte[] gop = randomQuals(readLength, 45, 45);
+            final byte[] gcp = randomQuals(readLength, 10, 10);
+
+            final double expected = hmm.computeReadLikelihoodGivenHaplotype(haplotype, read, quals.clone(), gop, gop, gcp);
+            Assert.assertTrue(expected < Math.log10(CachingPairHMM.MIN_ACCEPTED_FLOAT) - Math.log10(CachingPairHMM.INITIAL_CONDITION_FLOAT));
+            Assert.assertEquals(cachingHMM.computeReadLikelihoodGivenHaplotype(haplotype, read, quals, gop, gop, gcp, 0), expected, CACHING_TOLERANCE);
+            Assert.assertEquals(cachingFloatHMM.computeReadLikelihoodGivenHaplotype(haplotype, read, quals, gop, gop, gcp, 0), expected, CACHING_TOLERANCE);
+        }
+    }
+}
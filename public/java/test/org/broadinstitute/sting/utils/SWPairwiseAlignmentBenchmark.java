@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+import com.google.caliper.runner.CaliperMain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Caliper microbenchmark of SWPairwiseAlignment, both of reads against the reference around them and of whole
+ * haplotypes against the reference, the two ways the indel realigner uses it
+ *
+ * Run with --measureMemory (which needs the allocation instrumenter as a java agent) to see allocation as well.
+ */
+public class SWPairwiseAlignmentBenchmark extends SimpleBenchmark {
+    @Param({"50", "100", "150", "250"})
+    int readLength; // set automatically by framework
+
+    @Param({"0.0", "0.005", "0.02"})
+    double indelRate; // set automatically by framework
+
+    private final static int N_READS = 50;
+
+    // reads are aligned against this much reference on either side of where they map
+    private final static int REFERENCE_PADDING = 20;
+
+    private AlignmentBenchmarkWorkload workload;
+    private final List<byte[]> refWindows = new ArrayList<byte[]>();
+
+    @Override protected void setUp() {
+        workload = new AlignmentBenchmarkWorkload(readLength, indelRate, 4, N_READS, 42);
+        for ( final AlignmentBenchmarkWorkload.Read read : workload.getReads() )
+            refWindows.add(workload.getReferenceWindow(read.getReferenceStart() - REFERENCE_PADDING, read.getReferenceStart() + readLength + REFERENCE_PADDING));
+    }
+
+    public void timeReadsAgainstReference(int rep) {
+        int sum = 0;
+        for ( int i = 0; i < rep; i++ ) {
+            for ( int r = 0; r < N_READS; r++ )
+                sum += new SWPairwiseAlignment(refWindows.get(r), workload.getReads().get(r).getBases()).getAlignmentStart2wrt1();
+        }
+        if ( sum < 0 ) throw new IllegalStateException("invalid alignment");
+    }
+
+    public void timeHaplotypesAgainstReference(int rep) {
+        final List<byte[]> haplotypes = workload.getHaplotypes();
+        int sum = 0;
+        for ( int i = 0; i < rep; i++ ) {
+            for ( int h = 1; h < haplotypes.size(); h++ )
+                sum += new SWPairwiseAlignment(workload.getReference(), haplotypes.get(h)).getAlignmentStart2wrt1();
+        }
+        if ( sum < 0 ) throw new IllegalStateException("invalid alignment");
+    }
+
+    public static void main(String[] args) {
+        CaliperMain.main(SWPairwiseAlignmentBenchmark.class, args);
+    }
+}
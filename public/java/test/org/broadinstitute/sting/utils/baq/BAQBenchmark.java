@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils.baq;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+import com.google.caliper.runner.CaliperMain;
+import org.broadinstitute.sting.utils.AlignmentBenchmarkWorkload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Caliper microbenchmark of the BAQ calculation (BAQ.hmm_glocal) over reads sampled from haplotypes with indels,
+ * each aligned against the reference it maps to padded by half the band width on both sides, as
+ * calcBAQFromHMM(SAMRecord, IndexedFastaSequenceFile) does
+ *
+ * Run with --measureMemory (which needs the allocation instrumenter as a java agent) to see allocation as well.
+ */
+public class BAQBenchmark extends SimpleBenchmark {
+    @Param({"50", "100", "150", "250"})
+    int readLength; // set automatically by framework
+
+    @Param({"0.0", "0.005", "0.02"})
+    double indelRate; // set automatically by framework
+
+    private final static int N_READS = 100;
+
+    private final BAQ baq = new BAQ();
+    private final List<AlignmentBenchmarkWorkload.Read> reads = new ArrayList<AlignmentBenchmarkWorkload.Read>();
+    private final List<byte[]> refWindows = new ArrayList<byte[]>();
+
+    @Override protected void setUp() {
+        final AlignmentBenchmarkWorkload workload = new AlignmentBenchmarkWorkload(readLength, indelRate, 4, N_READS, 42);
+        final int offset = baq.getBandWidth() / 2;
+        for ( final AlignmentBenchmarkWorkload.Read read : workload.getReads() ) {
+            reads.add(read);
+            refWindows.add(workload.getReferenceWindow(read.getReferenceStart() - offset, read.getReferenceStart() + readLength + offset));
+        }
+    }
+
+    public void timeHmmGlocal(int rep) {
+        int sum = 0;
+        for ( int i = 0; i < rep; i++ ) {
+            for ( int r = 0; r < N_READS; r++ ) {
+                final AlignmentBenchmarkWorkload.Read read = reads.get(r);
+                sum += baq.calcBAQFromHMM(refWindows.get(r), read.getBases(), read.getQuals(), 0, readLength).bq[0];
+            }
+        }
+        if ( sum < 0 ) throw new IllegalStateException("invalid BAQ");
+    }
+
+    public static void main(String[] args) {
+        CaliperMain.main(BAQBenchmark.class, args);
+    }
+}
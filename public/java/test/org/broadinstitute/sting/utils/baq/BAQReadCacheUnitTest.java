@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils.baq;
+
+import net.sf.picard.reference.IndexedFastaSequenceFile;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.utils.fasta.CachingIndexedFastaSequenceFile;
+import org.broadinstitute.sting.utils.sam.ArtificialSAMUtils;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class BAQReadCacheUnitTest extends BaseTest {
+    private IndexedFastaSequenceFile fasta;
+    private SAMFileHeader header;
+
+    @BeforeClass
+    public void before() throws FileNotFoundException {
+        fasta = new CachingIndexedFastaSequenceFile(new File(exampleFASTA));
+        header = new SAMFileHeader();
+        header.setSequenceDictionary(fasta.getSequenceDictionary());
+    }
+
+    /**
+     * Reads copied from the reference with a few mismatches, an insertion and a deletion, so the HMM doesn't
+     * just return the raw qualities
+     */
+    private List<SAMRecord> makeReads() {
+        final List<SAMRecord> reads = new ArrayList<SAMRecord>();
+        for ( int start = 1000; start < 1500; start += 37 ) {
+            final byte[] ref = fasta.getSubsequenceAt("chr1", start, start + 59).getBases();
+            final byte[] quals = new byte[ref.length];
+            Arrays.fill(quals, (byte)30);
+
+            final byte[] mismatches = ref.clone();
+            mismatches[20] = mismatches[20] == 'A' ? (byte)'C' : (byte)'A';
+            mismatches[45] = mismatches[45] == 'G' ? (byte)'T' : (byte)'G';
+            reads.add(ArtificialSAMUtils.createArtificialRead(header, "mm" + start, 0, start, mismatches, quals.clone(), "60M"));
+
+            final byte[] deletion = new byte[ref.length - 2];
+            System.arraycopy(ref, 0, deletion, 0, 30);
+            System.arraycopy(ref, 32, deletion, 30, deletion.length - 30);
+            reads.add(ArtificialSAMUtils.createArtificialRead(header, "del" + start, 0, start, deletion, Arrays.copyOf(quals, deletion.length), "30M2D28M"));
+        }
+        return reads;
+    }
+
+    private static SAMRecord copyOf(final SAMRecord read) {
+        try {
+            return (SAMRecord)read.clone();
+        } catch ( CloneNotSupportedException e ) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testCachedBAQMatchesHMM() {
+        final BAQ uncached = new BAQ();
+        uncached.setReadCache(null);
+        final BAQ cached = new BAQ();
+        final BAQReadCache cache = new BAQReadCache(1024 * 1024);
+        cached.setReadCache(cache);
+
+        final List<SAMRecord> reads = makeReads();
+        for ( int pass = 0; pass < 2; pass++ ) {
+            for ( final SAMRecord read : reads ) {
+                final byte[] expected = uncached.baqRead(copyOf(read), fasta, BAQ.CalculationMode.RECALCULATE, BAQ.QualityMode.DONT_MODIFY);
+                final byte[] actual = cached.baqRead(copyOf(read), fasta, BAQ.CalculationMode.RECALCULATE, BAQ.QualityMode.DONT_MODIFY);
+                Assert.assertEquals(actual, expected, "BAQ of " + read.getReadName() + " in pass " + pass);
+            }
+        }
+
+        Assert.assertEquals(cache.getNumMisses(), reads.size());
+        Assert.assertEquals(cache.getNumHits(), reads.size());
+        Assert.assertEquals(uncached.getReadCache(), null);
+    }
+
+    @Test
+    public void testCachedBAQIsACopy() {
+        final BAQ baq = new BAQ();
+        baq.setReadCache(new BAQReadCache(1024 * 1024));
+        final SAMRecord read = makeReads().get(1);
+
+        final byte[] first = baq.baqRead(copyOf(read), fasta, BAQ.CalculationMode.RECALCULATE, BAQ.QualityMode.DONT_MODIFY);
+        final byte[] expected = first.clone();
+        Arrays.fill(first, (byte)0);
+        Assert.assertEquals(baq.baqRead(copyOf(read), fasta, BAQ.CalculationMode.RECALCULATE, BAQ.QualityMode.DONT_MODIFY), expected);
+
+        // overwriting the quals of a read BAQ-ed from the cache gives the same quals as the first time
+        final SAMRecord overwritten = copyOf(read);
+        baq.baqRead(overwritten, fasta, BAQ.CalculationMode.RECALCULATE, BAQ.QualityMode.OVERWRITE_QUALS);
+        Assert.assertEquals(overwritten.getBaseQualities(), expected);
+    }
+
+    @Test
+    public void testKeysDistinguishReadsAndSettings() {
+        final BAQReadCache cache = new BAQReadCache(1024 * 1024);
+        final SAMRecord read = makeReads().get(0);
+        final byte[] bq = read.getBaseQualities().clone();
+        cache.put(fasta, "settings", read, bq);
+
+        Assert.assertEquals(cache.get(fasta, "settings", copyOf(read)), bq);
+        Assert.assertNull(cache.get(fasta, "other settings", read));
+        Assert.assertNull(cache.get(new Object(), "settings", read));
+
+        final SAMRecord moved = copyOf(read);
+        moved.setAlignmentStart(read.getAlignmentStart() + 1);
+        Assert.assertNull(cache.get(fasta, "settings", moved));
+
+        final SAMRecord requaled = copyOf(read);
+        final byte[] quals = read.getBaseQualities().clone();
+        quals[0]++;
+        requaled.setBaseQualities(quals);
+        Assert.assertNull(cache.get(fasta, "settings", requaled));
+
+        final SAMRecord recigared = copyOf(read);
+        recigared.setCigarString("59M1S");
+        Assert.assertNull(cache.get(fasta, "settings", recigared));
+    }
+
+    @Test
+    public void testNumStripes() {
+        Assert.assertEquals(new BAQReadCache(BAQReadCache.DEFAULT_MAX_SIZE_IN_MB * 1024L * 1024L).getNumStripes(), BAQReadCache.DEFAULT_MAX_STRIPES);
+        Assert.assertEquals(new BAQReadCache(1000).getNumStripes(), 1);
+        Assert.assertEquals(new BAQReadCache(1024 * 1024, 5).getNumStripes(), 5);
+    }
+
+    @Test
+    public void testCacheSharedByManyThreads() throws Exception {
+        final BAQ uncached = new BAQ();
+        uncached.setReadCache(null);
+        final List<SAMRecord> reads = makeReads();
+        final List<byte[]> expected = new ArrayList<byte[]>();
+        for ( final SAMRecord read : reads )
+            expected.add(uncached.baqRead(copyOf(read), fasta, BAQ.CalculationMode.RECALCULATE, BAQ.QualityMode.DONT_MODIFY));
+
+        final BAQReadCache cache = new BAQReadCache(1024 * 1024, 4);
+        final int nThreads = 4, nPasses = 5;
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final List<Thread> threads = new ArrayList<Thread>();
+        for ( int t = 0; t < nThreads; t++ ) {
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        final BAQ baq = new BAQ();
+                        baq.setReadCache(cache);
+                        for ( int pass = 0; pass < nPasses; pass++ )
+                            for ( int i = 0; i < reads.size(); i++ )
+                                Assert.assertEquals(baq.baqRead(copyOf(reads.get(i)), fasta, BAQ.CalculationMode.RECALCULATE, BAQ.QualityMode.DONT_MODIFY), expected.get(i));
+                    } catch ( Throwable e ) {
+                        failures.add(e);
+                    }
+                }
+            });
+        }
+        for ( final Thread thread : threads )
+            thread.start();
+        for ( final Thread thread : threads )
+            thread.join();
+
+        Assert.assertTrue(failures.isEmpty(), "Failures: " + failures);
+        Assert.assertEquals(cache.size(), reads.size());
+        Assert.assertEquals(cache.getNumHits() + cache.getNumMisses(), (long)nThreads * nPasses * reads.size());
+        Assert.assertTrue(cache.getNumMisses() >= reads.size());
+    }
+
+    @Test
+    public void testEviction() {
+        final List<SAMRecord> reads = makeReads();
+        final BAQReadCache cache = new BAQReadCache(1000);
+        for ( final SAMRecord read : reads )
+            cache.put(fasta, "settings", read, read.getBaseQualities());
+
+        Assert.assertTrue(cache.getSizeInBytes() <= 1000);
+        Assert.assertTrue(cache.size() < reads.size());
+        Assert.assertEquals(cache.getNumEvictions(), reads.size() - cache.size());
+
+        // the most recently added read is always kept
+        final SAMRecord last = reads.get(reads.size() - 1);
+        Assert.assertEquals(cache.get(fasta, "settings", last), last.getBaseQualities());
+
+        cache.clear();
+        Assert.assertEquals(cache.size(), 0);
+        Assert.assertEquals(cache.getSizeInBytes(), 0);
+    }
+}
@@ -41,6 +41,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -431,6 +432,35 @@ public class BCF2EncoderDecoderUnitTest extends BaseTest {
         decoder.skipNextBlock(record1.length, stream);
         decoder.readNextBlock(record2.length, stream);
         decodeRecord(block2, decoder);
+
+        // reading both blocks through the decoder's reusable buffer
+        stream = new ByteArrayInputStream(combined);
+        decoder.readNextBlockIntoReusableBuffer(record1.length, stream);
+        decodeRecord(block1, decoder);
+        decoder.readNextBlockIntoReusableBuffer(record2.length, stream);
+        decodeRecord(block2, decoder);
+
+        // decoding views of a direct buffer holding both blocks, which doesn't disturb the buffer itself
+        final ByteBuffer direct = ByteBuffer.allocateDirect(combined.length);
+        direct.put(combined);
+        direct.flip();
+        final ByteBuffer view1 = direct.duplicate();
+        view1.limit(record1.length);
+        decoder.setRecordBuffer(view1);
+        Assert.assertEquals(decoder.getBlockSize(), record1.length);
+        decodeRecord(block1, decoder);
+        final ByteBuffer view2 = direct.duplicate();
+        view2.position(record1.length);
+        decoder.setRecordBuffer(view2);
+        Assert.assertEquals(decoder.getBlockSize(), record2.length);
+        decodeRecord(block2, decoder);
+        Assert.assertEquals(direct.position(), 0);
+
+        // the record buffer of a view covers exactly the block
+        final ByteBuffer block = decoder.getRecordBuffer();
+        final byte[] blockBytes = new byte[block.remaining()];
+        block.get(blockBytes);
+        Assert.assertEquals(blockBytes, record2);
     }
 
     // -----------------------------------------------------------------
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.broadinstitute.sting.utils.codecs.bcf2;
+
+import org.broad.tribble.AbstractFeatureReader;
+import org.broad.tribble.FeatureReader;
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.utils.codecs.vcf.VCFCodec;
+import org.broadinstitute.sting.utils.codecs.vcf.VCFHeader;
+import org.broadinstitute.sting.utils.variantcontext.Genotype;
+import org.broadinstitute.sting.utils.variantcontext.VariantContext;
+import org.broadinstitute.sting.utils.variantcontext.writer.VariantContextWriter;
+import org.broadinstitute.sting.utils.variantcontext.writer.VariantContextWriterFactory;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.util.*;
+
+public class MemoryMappedBCF2IteratorUnitTest extends BaseTest {
+    private final static int N_SAMPLES = 10;
+    private final static int N_RECORDS = 200;
+
+    private File bcfFile;
+    private List<VariantContext> expected;
+
+    @BeforeClass
+    public void writeTestBCF() throws IOException {
+        final File vcfFile = File.createTempFile("MemoryMappedBCF2IteratorUnitTest", ".vcf");
+        vcfFile.deleteOnExit();
+        bcfFile = File.createTempFile("MemoryMappedBCF2IteratorUnitTest", ".bcf");
+        bcfFile.deleteOnExit();
+
+        final PrintStream stream = new PrintStream(vcfFile);
+        stream.println("##fileformat=VCFv4.1");
+        stream.println("##contig=<ID=20,length=1000000>");
+        stream.println("##FILTER=<ID=LowQual,Description=\"Low quality\">");
+        stream.println("##INFO=<ID=AC,Number=A,Type=Integer,Description=\"Allele count\">");
+        stream.println("##INFO=<ID=AF,Number=A,Type=Float,Description=\"Allele frequency\">");
+        stream.println("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+        stream.println("##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype quality\">");
+        stream.println("##FORMAT=<ID=PL,Number=G,Type=Integer,Description=\"Phred-scaled genotype likelihoods\">");
+        stream.print("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+        for ( int s = 0; s < N_SAMPLES; s++ )
+            stream.print("\tS" + s);
+        stream.println();
+
+        final Random random = new Random(42);
+        final String[] gts = {"0/0", "0/1", "1/1", "./."};
+        for ( int i = 0; i < N_RECORDS; i++ ) {
+            final int ac = random.nextInt(2 * N_SAMPLES);
+            stream.printf("20\t%d\trs%d\tA\tC\t%d\t%s\tAC=%d;AF=%.2f\tGT:GQ:PL", i + 1, i, random.nextInt(100),
+                    i % 5 == 0 ? "LowQual" : "PASS", ac, ac / (2.0 * N_SAMPLES));
+            for ( int s = 0; s < N_SAMPLES; s++ )
+                stream.printf("\t%s:%d:%d,%d,%d", gts[random.nextInt(gts.length)], random.nextInt(99), random.nextInt(100), random.nextInt(100), random.nextInt(100));
+            stream.println();
+        }
+        stream.close();
+
+        final FeatureReader<VariantContext> vcfReader = AbstractFeatureReader.getFeatureReader(vcfFile.getAbsolutePath(), new VCFCodec(), false);
+        final VariantContextWriter writer = VariantContextWriterFactory.create(bcfFile, null, VariantContextWriterFactory.NO_OPTIONS);
+        writer.writeHeader((VCFHeader)vcfReader.getHeader());
+        for ( final VariantContext vc : vcfReader.iterator() )
+            writer.add(vc);
+        writer.close();
+        vcfReader.close();
+
+        // the stream-based reader is our reference
+        expected = new ArrayList<VariantContext>();
+        final FeatureReader<VariantContext> bcfReader = AbstractFeatureReader.getFeatureReader(bcfFile.getAbsolutePath(), new BCF2Codec(), false);
+        for ( final VariantContext vc : bcfReader.iterator() )
+            expected.add(vc);
+        bcfReader.close();
+    }
+
+    @DataProvider(name = "WindowSizes")
+    public Object[][] makeWindowSizes() {
+        // tiny windows force a remapping for nearly every record, and records larger than the window
+        return new Object[][]{{1}, {100}, {4096}, {MemoryMappedBCF2Iterator.DEFAULT_WINDOW_SIZE}};
+    }
+
+    @Test(dataProvider = "WindowSizes")
+    public void testMemoryMappedMatchesStreamDecoding(final int windowSize) {
+        Assert.assertEquals(expected.size(), N_RECORDS);
+
+        final MemoryMappedBCF2Iterator it = new MemoryMappedBCF2Iterator(bcfFile, new BCF2Codec(), windowSize);
+        Assert.assertEquals(it.getHeader().getGenotypeSamples().size(), N_SAMPLES);
+
+        // hold onto all of the records before decoding their genotypes, which must remain valid after remapping
+        final List<VariantContext> actual = new ArrayList<VariantContext>();
+        for ( final VariantContext vc : it )
+            actual.add(vc);
+        it.close();
+
+        Assert.assertEquals(actual.size(), expected.size());
+        for ( int i = 0; i < expected.size(); i++ ) {
+            final VariantContext a = actual.get(i), e = expected.get(i);
+            Assert.assertEquals(a.getChr(), e.getChr());
+            Assert.assertEquals(a.getStart(), e.getStart());
+            Assert.assertEquals(a.getID(), e.getID());
+            Assert.assertEquals(a.getAlleles(), e.getAlleles());
+            Assert.assertEquals(a.getFilters(), e.getFilters());
+            Assert.assertEquals(a.getAttributes(), e.getAttributes());
+            Assert.assertEquals(a.getPhredScaledQual(), e.getPhredScaledQual());
+            for ( final Genotype g : e.getGenotypes() )
+                Assert.assertEquals(a.getGenotype(g.getSampleName()).toString(), g.toString());
+        }
+    }
+
+    @Test
+    public void testSampleSubset() {
+        final BCF2Codec codec = new BCF2Codec();
+        codec.setSamplesToDecode(Arrays.asList("S3", "S8"));
+        final MemoryMappedBCF2Iterator it = new MemoryMappedBCF2Iterator(bcfFile, codec, 100);
+        int i = 0;
+        for ( final VariantContext vc : it ) {
+            final VariantContext e = expected.get(i++);
+            Assert.assertEquals(vc.getNSamples(), 2);
+            Assert.assertEquals(vc.getGenotype("S3").toString(), e.getGenotype("S3").toString());
+            Assert.assertEquals(vc.getGenotype("S8").toString(), e.getGenotype("S8").toString());
+        }
+        it.close();
+        Assert.assertEquals(i, N_RECORDS);
+    }
+
+    @Test(expectedExceptions = NoSuchElementException.class)
+    public void testNextPastEnd() {
+        final MemoryMappedBCF2Iterator it = new MemoryMappedBCF2Iterator(bcfFile, new BCF2Codec());
+        while ( it.hasNext() ) it.next();
+        it.next();
+    }
+}
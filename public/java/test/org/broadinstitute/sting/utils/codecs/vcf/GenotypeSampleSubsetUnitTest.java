@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.broadinstitute.sting.utils.codecs.vcf;
+
+import org.broad.tribble.AbstractFeatureReader;
+import org.broad.tribble.FeatureCodec;
+import org.broad.tribble.FeatureReader;
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.utils.codecs.bcf2.BCF2Codec;
+import org.broadinstitute.sting.utils.variantcontext.Genotype;
+import org.broadinstitute.sting.utils.variantcontext.VariantContext;
+import org.broadinstitute.sting.utils.variantcontext.writer.VariantContextWriter;
+import org.broadinstitute.sting.utils.variantcontext.writer.VariantContextWriterFactory;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+
+public class GenotypeSampleSubsetUnitTest extends BaseTest {
+    private final static int N_SAMPLES = 10;
+    private final static int N_RECORDS = 100;
+
+    private File vcfFile, bcfFile;
+    private List<VariantContext> allSamplesVCs;
+
+    @BeforeClass
+    public void writeTestFiles() throws IOException {
+        vcfFile = File.createTempFile("GenotypeSampleSubsetUnitTest", ".vcf");
+        vcfFile.deleteOnExit();
+        bcfFile = File.createTempFile("GenotypeSampleSubsetUnitTest", ".bcf");
+        bcfFile.deleteOnExit();
+
+        final PrintStream stream = new PrintStream(vcfFile);
+        stream.println("##fileformat=VCFv4.1");
+        stream.println("##contig=<ID=20,length=1000000>");
+        stream.println("##INFO=<ID=AC,Number=A,Type=Integer,Description=\"Allele count\">");
+        stream.println("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+        stream.println("##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype quality\">");
+        stream.println("##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Depth\">");
+        stream.println("##FORMAT=<ID=PL,Number=G,Type=Integer,Description=\"Phred-scaled genotype likelihoods\">");
+        stream.print("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+        for ( int s = 0; s < N_SAMPLES; s++ )
+            stream.print("\tS" + s);
+        stream.println();
+
+        final Random random = new Random(42);
+        final String[] biallelicGTs = {"0/0", "0/1", "1/1", "./."};
+        final String[] triallelicGTs = {"0/0", "0/2", "1/2", "2/2"};
+        for ( int i = 0; i < N_RECORDS; i++ ) {
+            final boolean triallelic = i % 3 == 0;
+            if ( triallelic )
+                stream.printf("20\t%d\t.\tA\tC,G\t%d\tPASS\tAC=%d,%d\tGT:GQ:DP:PL", i + 1, random.nextInt(100), random.nextInt(N_SAMPLES), random.nextInt(N_SAMPLES));
+            else
+                stream.printf("20\t%d\t.\tA\tC\t%d\tPASS\tAC=%d\tGT:GQ:DP:PL", i + 1, random.nextInt(100), random.nextInt(N_SAMPLES));
+
+            for ( int s = 0; s < N_SAMPLES; s++ ) {
+                final String[] gts = triallelic ? triallelicGTs : biallelicGTs;
+                stream.printf("\t%s:%d:%d:", gts[random.nextInt(gts.length)], random.nextInt(99), random.nextInt(50));
+                final int nPLs = triallelic ? 6 : 3;
+                for ( int j = 0; j < nPLs; j++ )
+                    stream.print((j == 0 ? "" : ",") + random.nextInt(100));
+            }
+            stream.println();
+        }
+        stream.close();
+
+        final FeatureReader<VariantContext> reader = AbstractFeatureReader.getFeatureReader(vcfFile.getAbsolutePath(), new VCFCodec(), false);
+        final VariantContextWriter writer = VariantContextWriterFactory.create(bcfFile, null, VariantContextWriterFactory.NO_OPTIONS);
+        writer.writeHeader((VCFHeader)reader.getHeader());
+        allSamplesVCs = new ArrayList<VariantContext>();
+        for ( final VariantContext vc : reader.iterator() ) {
+            allSamplesVCs.add(vc);
+            writer.add(vc);
+        }
+        writer.close();
+        reader.close();
+    }
+
+    @DataProvider(name = "SampleSubsetTest")
+    public Object[][] makeSampleSubsetTest() {
+        final List<Collection<String>> subsets = new ArrayList<Collection<String>>();
+        subsets.add(Collections.<String>emptyList());
+        subsets.add(Arrays.asList("S0"));
+        subsets.add(Arrays.asList("S" + (N_SAMPLES - 1)));
+        subsets.add(Arrays.asList("S7", "S2", "S3"));
+        subsets.add(Arrays.asList("S1", "S5", "not_in_the_file"));
+        final List<String> all = new ArrayList<String>();
+        for ( int s = 0; s < N_SAMPLES; s++ )
+            all.add("S" + s);
+        subsets.add(all);
+
+        final List<Object[]> tests = new ArrayList<Object[]>();
+        for ( final Collection<String> subset : subsets ) {
+            tests.add(new Object[]{"VCF", subset});
+            tests.add(new Object[]{"BCF2", subset});
+        }
+        return tests.toArray(new Object[][]{});
+    }
+
+    @Test(dataProvider = "SampleSubsetTest")
+    public void testSubsetDecoding(final String format, final Collection<String> subset) throws IOException {
+        final boolean isVCF = format.equals("VCF");
+        final FeatureCodec<VariantContext> codec = isVCF ? new VCFCodec() : new BCF2Codec();
+        ((SampleSubsetAwareCodec)codec).setSamplesToDecode(subset);
+
+        final Set<String> expectedSamples = new TreeSet<String>(subset);
+        expectedSamples.remove("not_in_the_file");
+
+        final FeatureReader<VariantContext> reader = AbstractFeatureReader.getFeatureReader((isVCF ? vcfFile : bcfFile).getAbsolutePath(), codec, false);
+        int i = 0;
+        for ( final VariantContext vc : reader.iterator() ) {
+            final VariantContext expected = allSamplesVCs.get(i++);
+            Assert.assertEquals(vc.getStart(), expected.getStart());
+            Assert.assertEquals(vc.getAlleles(), expected.getAlleles());
+            Assert.assertEquals(vc.getNSamples(), expectedSamples.size());
+            Assert.assertEquals(vc.getGenotypes().getSampleNamesOrderedByName(), new ArrayList<String>(expectedSamples));
+
+            for ( final String sample : expectedSamples ) {
+                final Genotype actualG = vc.getGenotype(sample);
+                final Genotype expectedG = expected.getGenotype(sample);
+                Assert.assertEquals(actualG.getAlleles(), expectedG.getAlleles());
+                Assert.assertEquals(actualG.getGQ(), expectedG.getGQ());
+                Assert.assertEquals(actualG.getDP(), expectedG.getDP());
+                Assert.assertEquals(actualG.getPL(), expectedG.getPL());
+            }
+        }
+        reader.close();
+
+        Assert.assertEquals(i, allSamplesVCs.size());
+    }
+
+    @Test
+    public void testSubsetCanBeChangedAfterHeader() throws IOException {
+        final VCFCodec codec = new VCFCodec();
+        final FeatureReader<VariantContext> reader = AbstractFeatureReader.getFeatureReader(vcfFile.getAbsolutePath(), codec, false);
+        codec.setSamplesToDecode(Arrays.asList("S4"));
+        Assert.assertEquals(reader.iterator().next().getSampleNames(), Collections.singleton("S4"));
+        codec.setSamplesToDecode(null);
+        Assert.assertEquals(reader.iterator().next().getNSamples(), N_SAMPLES);
+        reader.close();
+    }
+}
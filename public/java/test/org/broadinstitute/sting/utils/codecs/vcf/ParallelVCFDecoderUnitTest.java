@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.broadinstitute.sting.utils.codecs.vcf;
+
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import org.broad.tribble.AbstractFeatureReader;
+import org.broad.tribble.FeatureReader;
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.utils.exceptions.UserException;
+import org.broadinstitute.sting.utils.variantcontext.Genotype;
+import org.broadinstitute.sting.utils.variantcontext.VariantContext;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+public class ParallelVCFDecoderUnitTest extends BaseTest {
+    private final static int N_SAMPLES = 20;
+    private final static int N_RECORDS = 500;
+
+    private final static ParallelVCFDecoder.CodecFactory VCF_CODEC_FACTORY = new ParallelVCFDecoder.CodecFactory() {
+        @Override
+        public AbstractVCFCodec createCodec() {
+            return new VCFCodec();
+        }
+    };
+
+    private enum Compression { NONE, GZIP, BGZIP }
+
+    @DataProvider(name = "ParallelVCFDecoderTest")
+    public Object[][] makeParallelVCFDecoderTest() {
+        List<Object[]> tests = new ArrayList<Object[]>();
+
+        for ( final Compression compression : Compression.values() )
+            for ( final int nThreads : Arrays.asList(1, 2, 4) )
+                // tiny chunks force lines to be split across chunk boundaries, including lines longer than a chunk
+                for ( final int chunkSize : Arrays.asList(10, 1000, ParallelVCFDecoder.DEFAULT_CHUNK_SIZE) )
+                    tests.add(new Object[]{compression, nThreads, chunkSize});
+
+        return tests.toArray(new Object[][]{});
+    }
+
+    @Test(dataProvider = "ParallelVCFDecoderTest")
+    public void testParallelDecodingMatchesSerialDecoding(final Compression compression, final int nThreads, final int chunkSize) throws IOException {
+        final File vcf = writeTestVCF(compression);
+        final List<VariantContext> expected = readSerially(vcf);
+        Assert.assertEquals(expected.size(), N_RECORDS);
+
+        final ParallelVCFDecoder decoder = new ParallelVCFDecoder(vcf, VCF_CODEC_FACTORY, nThreads, chunkSize);
+        Assert.assertEquals(decoder.getHeader().getGenotypeSamples().size(), N_SAMPLES);
+
+        int i = 0;
+        for ( final VariantContext vc : decoder ) {
+            Assert.assertTrue(i < expected.size(), "Parallel decoder returned more records than the serial reader");
+            assertEqualVariantContexts(vc, expected.get(i++));
+        }
+        decoder.close();
+
+        Assert.assertEquals(i, expected.size());
+    }
+
+    @Test(expectedExceptions = NoSuchElementException.class)
+    public void testNextPastEnd() throws IOException {
+        final ParallelVCFDecoder decoder = new ParallelVCFDecoder(writeTestVCF(Compression.NONE), VCF_CODEC_FACTORY, 2);
+        while ( decoder.hasNext() ) decoder.next();
+        decoder.next();
+    }
+
+    @DataProvider(name = "ParallelVCFDecoderLineNumberTest")
+    public Object[][] makeParallelVCFDecoderLineNumberTest() {
+        List<Object[]> tests = new ArrayList<Object[]>();
+        for ( final int nThreads : Arrays.asList(1, 4) )
+            for ( final int chunkSize : Arrays.asList(10, 1000, ParallelVCFDecoder.DEFAULT_CHUNK_SIZE) )
+                tests.add(new Object[]{nThreads, chunkSize});
+        return tests.toArray(new Object[][]{});
+    }
+
+    @Test(dataProvider = "ParallelVCFDecoderLineNumberTest")
+    public void testErrorsReportLineNumbersInTheFile(final int nThreads, final int chunkSize) throws IOException {
+        // the header has 6 lines, so the record with index 400 is on line 407
+        final File vcf = writeTestVCF(Compression.NONE, 400);
+        ParallelVCFDecoder decoder = null;
+        try {
+            // small files are decoded as soon as the decoder is created
+            decoder = new ParallelVCFDecoder(vcf, VCF_CODEC_FACTORY, nThreads, chunkSize);
+            while ( decoder.hasNext() ) decoder.next();
+            Assert.fail("Expected the malformed record to be rejected");
+        } catch ( UserException.MalformedVCF e ) {
+            Assert.assertTrue(e.getMessage().contains("line number 407:"), e.getMessage());
+        } finally {
+            if ( decoder != null ) decoder.close();
+        }
+    }
+
+    private void assertEqualVariantContexts(final VariantContext actual, final VariantContext expected) {
+        Assert.assertEquals(actual.getChr(), expected.getChr());
+        Assert.assertEquals(actual.getStart(), expected.getStart());
+        Assert.assertEquals(actual.getEnd(), expected.getEnd());
+        Assert.assertEquals(actual.getAlleles(), expected.getAlleles());
+        Assert.assertEquals(actual.getAttributes(), expected.getAttributes());
+        Assert.assertEquals(actual.getNSamples(), expected.getNSamples());
+        for ( final Genotype g : expected.getGenotypes() )
+            Assert.assertEquals(actual.getGenotype(g.getSampleName()).toString(), g.toString());
+    }
+
+    private List<VariantContext> readSerially(final File vcf) throws IOException {
+        final FeatureReader<VariantContext> reader = AbstractFeatureReader.getFeatureReader(vcf.getAbsolutePath(), new VCFCodec(), false);
+        final List<VariantContext> vcs = new ArrayList<VariantContext>();
+        for ( final VariantContext vc : reader.iterator() )
+            vcs.add(vc);
+        reader.close();
+        return vcs;
+    }
+
+    private File writeTestVCF(final Compression compression) throws IOException {
+        return writeTestVCF(compression, -1);
+    }
+
+    /**
+     * @param badRecord the index of a record to give an unparsable alt allele, or -1 for none
+     */
+    private File writeTestVCF(final Compression compression, final int badRecord) throws IOException {
+        final File file = File.createTempFile("ParallelVCFDecoderUnitTest", compression == Compression.NONE ? ".vcf" : ".vcf.gz");
+        file.deleteOnExit();
+
+        final OutputStream out;
+        switch ( compression ) {
+            case GZIP: out = new GZIPOutputStream(new FileOutputStream(file)); break;
+            case BGZIP: out = new BlockCompressedOutputStream(file); break;
+            default: out = new FileOutputStream(file); break;
+        }
+
+        final PrintStream stream = new PrintStream(out);
+        stream.println("##fileformat=VCFv4.1");
+        stream.println("##INFO=<ID=AC,Number=A,Type=Integer,Description=\"Allele count\">");
+        stream.println("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+        stream.println("##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype quality\">");
+        stream.println("##FORMAT=<ID=PL,Number=G,Type=Integer,Description=\"Phred-scaled genotype likelihoods\">");
+        stream.print("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+        for ( int s = 0; s < N_SAMPLES; s++ )
+            stream.print("\tS" + s);
+        stream.println();
+
+        final Random random = new Random(42);
+        final String[] gts = {"0/0", "0/1", "1/1", "./."};
+        for ( int i = 0; i < N_RECORDS; i++ ) {
+            stream.printf("20\t%d\t.\tA\t%s\t%d\tPASS\tAC=%d\tGT:GQ:PL", i + 1, i == badRecord ? "Z" : "C", random.nextInt(100), random.nextInt(2 * N_SAMPLES));
+            for ( int s = 0; s < N_SAMPLES; s++ )
+                stream.printf("\t%s:%d:%d,%d,%d", gts[random.nextInt(gts.length)], random.nextInt(99), random.nextInt(100), random.nextInt(100), random.nextInt(100));
+            stream.println();
+        }
+        stream.close();
+
+        return file;
+    }
+}
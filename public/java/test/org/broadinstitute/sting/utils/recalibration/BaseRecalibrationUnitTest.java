@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils.recalibration;
+
+import net.sf.samtools.SAMFileHeader;
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.gatk.walkers.bqsr.*;
+import org.broadinstitute.sting.utils.BaseUtils;
+import org.broadinstitute.sting.utils.MathUtils;
+import org.broadinstitute.sting.utils.QualityUtils;
+import org.broadinstitute.sting.utils.sam.ArtificialSAMUtils;
+import org.broadinstitute.sting.utils.sam.GATKSAMReadGroupRecord;
+import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BaseRecalibrationUnitTest extends BaseTest {
+    private final static SAMFileHeader header = ArtificialSAMUtils.createArtificialSamHeader(1, 1, 1000);
+    private final static int N_READS = 100;
+    private final static int READ_LENGTH = 76;
+
+    private File recal;
+    private RecalibrationReport report;
+
+    /**
+     * Writes a recalibration report made from the mismatches of random reads against a random reference
+     */
+    @BeforeClass
+    public void setup() throws Exception {
+        final RecalibrationArgumentCollection RAC = new RecalibrationArgumentCollection();
+        final Covariate[] covariates = new Covariate[]{new ReadGroupCovariate(), new QualityScoreCovariate(), new ContextCovariate(), new CycleCovariate()};
+        for ( final Covariate covariate : covariates )
+            covariate.initialize(RAC);
+
+        final RecalibrationTables tables = new RecalibrationTables(covariates, 3);
+        final RecalDatumTable rgTable = tables.getTable(RecalibrationTables.TableType.READ_GROUP_TABLE);
+        final RecalDatumTable qualTable = tables.getTable(RecalibrationTables.TableType.QUALITY_SCORE_TABLE);
+        final int eventIndex = EventType.BASE_SUBSTITUTION.index;
+
+        final Random random = new Random(42);
+        for ( int i = 0; i < 10 * N_READS; i++ ) {
+            final GATKSAMRecord read = makeRead(i);
+            final ReadCovariates readCovariates = RecalDataManager.computeCovariates(read, covariates);
+            for ( int offset = 0; offset < READ_LENGTH; offset++ ) {
+                final byte qual = read.getBaseQualities()[offset];
+                final boolean isError = random.nextInt(qual) == 0;
+                final int[] keys = readCovariates.getKeySet(offset, EventType.BASE_SUBSTITUTION);
+                rgTable.combine(rgTable.index(keys[0], eventIndex), 1, isError ? 1 : 0, qual);
+                qualTable.increment(qualTable.index(keys[0], keys[1], eventIndex), qual, isError);
+                for ( int j = 2; j < covariates.length; j++ ) {
+                    if ( keys[j] >= 0 )
+                        tables.getTable(j).increment(tables.getTable(j).index(keys[0], keys[1], keys[j], eventIndex), qual, isError);
+                }
+            }
+        }
+
+        recal = createTempFile("BaseRecalibrationUnitTest", ".grp");
+        final PrintStream output = new PrintStream(recal);
+        RecalDataManager.outputRecalibrationReport(RAC, new QuantizationInfo(tables, RAC.QUANTIZING_LEVELS), tables, covariates, output);
+        output.close();
+
+        report = new RecalibrationReport(recal);
+    }
+
+    private static GATKSAMRecord makeRead(final int i) {
+        final Random random = new Random(i);
+        final byte[] bases = new byte[READ_LENGTH];
+        final byte[] quals = new byte[READ_LENGTH];
+        for ( int j = 0; j < READ_LENGTH; j++ ) {
+            bases[j] = BaseUtils.BASES[random.nextInt(4)];
+            quals[j] = (byte)(2 + random.nextInt(40));
+        }
+
+        final GATKSAMRecord read = ArtificialSAMUtils.createArtificialRead(header, "read" + i, 0, 1, bases, quals);
+        final GATKSAMReadGroupRecord rg = new GATKSAMReadGroupRecord("rg" + (i % 3));
+        rg.setPlatform("illumina");
+        read.setReadGroup(rg);
+        read.setReadNegativeStrandFlag(i % 2 == 1);
+        return read;
+    }
+
+    /**
+     * The BQSR formula, straight from the tables
+     */
+    private byte expectedQual(final int[] key, final EventType errorModel) {
+        final RecalibrationTables tables = report.getRecalibrationTables();
+        final byte qualFromRead = (byte)key[1];
+
+        double globalDeltaQ = 0.0;
+        final RecalDatum rgDatum = tables.getTable(RecalibrationTables.TableType.READ_GROUP_TABLE).get(key[0], errorModel.index);
+        if ( rgDatum != null )
+            globalDeltaQ = rgDatum.getEmpiricalQuality() - rgDatum.getEstimatedQReported();
+
+        double deltaQReported = 0.0;
+        final RecalDatum qualDatum = tables.getTable(RecalibrationTables.TableType.QUALITY_SCORE_TABLE).get(key[0], key[1], errorModel.index);
+        if ( qualDatum != null )
+            deltaQReported = qualDatum.getEmpiricalQuality() - qualFromRead - globalDeltaQ;
+
+        double deltaQCovariates = 0.0;
+        for ( int i = 2; i < key.length; i++ ) {
+            if ( key[i] < 0 || key[i] >= tables.getTable(i).getDimension(2) )
+                continue;
+            final RecalDatum datum = tables.getTable(i).get(key[0], key[1], key[i], errorModel.index);
+            if ( datum != null )
+                deltaQCovariates += datum.getEmpiricalQuality() - qualFromRead - (globalDeltaQ + deltaQReported);
+        }
+
+        final double recalibratedQual = qualFromRead + globalDeltaQ + deltaQReported + deltaQCovariates;
+        final byte bounded = QualityUtils.boundQual(MathUtils.fastRound(recalibratedQual), QualityUtils.MAX_RECALIBRATED_Q_SCORE);
+        return report.getQuantizationInfo().getQuantizedQuals().get(bounded);
+    }
+
+    @Test
+    public void testPrecomputedTablesMatchDirectCalculation() {
+        final BaseRecalibration bqsr = new BaseRecalibration(recal, -1, false, 0, false);
+        final Covariate[] covariates = report.getRequestedCovariates();
+
+        for ( int i = 0; i < N_READS; i++ ) {
+            final GATKSAMRecord read = makeRead(i);
+            final ReadCovariates readCovariates = RecalDataManager.computeCovariates(read, covariates);
+            final byte[][] expected = new byte[EventType.values().length][];
+            for ( final EventType errorModel : EventType.values() ) {
+                final byte[] quals = read.getBaseQualities(errorModel).clone();
+                for ( int offset = 0; offset < quals.length; offset++ )
+                    quals[offset] = expectedQual(readCovariates.getKeySet(offset, errorModel), errorModel);
+                expected[errorModel.index] = quals;
+            }
+
+            bqsr.recalibrateRead(read);
+            for ( final EventType errorModel : EventType.values() )
+                Assert.assertEquals(read.getBaseQualities(errorModel), expected[errorModel.index], "Read " + i + " " + errorModel);
+        }
+    }
+
+    @Test
+    public void testRecalibrationInParallel() throws Exception {
+        final BaseRecalibration bqsr = new BaseRecalibration(recal, -1, false, 0, false);
+        final List<byte[]> expected = new ArrayList<byte[]>();
+        for ( int i = 0; i < N_READS; i++ ) {
+            final GATKSAMRecord read = makeRead(i);
+            bqsr.recalibrateRead(read);
+            expected.add(read.getBaseQualities());
+        }
+
+        final int nThreads = 4;
+        final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        final List<Future<List<byte[]>>> futures = new ArrayList<Future<List<byte[]>>>();
+        for ( int thread = 0; thread < nThreads; thread++ ) {
+            futures.add(executor.submit(new Callable<List<byte[]>>() {
+                public List<byte[]> call() {
+                    final List<byte[]> quals = new ArrayList<byte[]>();
+                    for ( int i = 0; i < N_READS; i++ ) {
+                        final GATKSAMRecord read = makeRead(i);
+                        bqsr.recalibrateRead(read);
+                        quals.add(read.getBaseQualities());
+                    }
+                    return quals;
+                }
+            }));
+        }
+
+        for ( final Future<List<byte[]>> future : futures ) {
+            final List<byte[]> actual = future.get();
+            for ( int i = 0; i < N_READS; i++ )
+                Assert.assertEquals(actual.get(i), expected.get(i));
+        }
+        executor.shutdown();
+    }
+}
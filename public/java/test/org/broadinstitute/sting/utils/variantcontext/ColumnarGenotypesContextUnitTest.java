@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils.variantcontext;
+
+import org.broad.tribble.AbstractFeatureReader;
+import org.broad.tribble.FeatureCodec;
+import org.broad.tribble.FeatureReader;
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.utils.codecs.bcf2.BCF2Codec;
+import org.broadinstitute.sting.utils.codecs.vcf.SampleSubsetAwareCodec;
+import org.broadinstitute.sting.utils.codecs.vcf.VCFCodec;
+import org.broadinstitute.sting.utils.codecs.vcf.VCFHeader;
+import org.broadinstitute.sting.utils.variantcontext.writer.VariantContextWriter;
+import org.broadinstitute.sting.utils.variantcontext.writer.VariantContextWriterFactory;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+
+public class ColumnarGenotypesContextUnitTest extends BaseTest {
+    private Allele Aref, C, G, T;
+    private List<Genotype> genotypes;
+
+    @BeforeClass
+    public void makeGenotypes() {
+        Aref = Allele.create("A", true);
+        C = Allele.create("C");
+        G = Allele.create("G");
+        T = Allele.create("T"); // not an allele of the site
+
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("AB", 0.5);
+        attributes.put("NULL", null);
+
+        genotypes = Arrays.asList(
+                new GenotypeBuilder("hom-ref", Arrays.asList(Aref, Aref)).GQ(30).DP(10).AD(new int[]{10, 0}).PL(new int[]{0, 30, 300}).make(),
+                new GenotypeBuilder("het-phased", Arrays.asList(Aref, C)).phased(true).GQ(99).PL(new int[]{100, 0, 100}).attributes(attributes).make(),
+                new GenotypeBuilder("no-call", Arrays.asList(Allele.NO_CALL, Allele.NO_CALL)).filters("LowDP").make(),
+                new GenotypeBuilder("haploid", Arrays.asList(G)).DP(3).AD(new int[]{}).attribute("AB", 1.0).make(),
+                new GenotypeBuilder("triploid", Arrays.asList(Aref, C, G)).AD(new int[]{1, 2, 3}).make(),
+                new GenotypeBuilder("unavailable", Collections.<Allele>emptyList()).attribute("XX", "x").make(),
+                new GenotypeBuilder("other-allele", Arrays.asList(T, C)).PL(new int[]{5, 0, 5}).filters("F1", "F2").make());
+    }
+
+    private ColumnarGenotypesContext makeContext() {
+        return new ColumnarGenotypesContext.Builder(Arrays.asList(Aref, C, G), 2).addAll(genotypes).make();
+    }
+
+    private static void assertGenotypesEqual(final Genotype actual, final Genotype expected) {
+        Assert.assertEquals(actual.getSampleName(), expected.getSampleName());
+        Assert.assertEquals(actual.getAlleles(), expected.getAlleles());
+        Assert.assertEquals(actual.getPloidy(), expected.getPloidy());
+        Assert.assertEquals(actual.getType(), expected.getType());
+        Assert.assertEquals(actual.isPhased(), expected.isPhased());
+        Assert.assertEquals(actual.getGQ(), expected.getGQ());
+        Assert.assertEquals(actual.getDP(), expected.getDP());
+        Assert.assertEquals(actual.hasAD(), expected.hasAD());
+        Assert.assertEquals(actual.getAD(), expected.getAD());
+        Assert.assertEquals(actual.hasPL(), expected.hasPL());
+        Assert.assertEquals(actual.getPL(), expected.getPL());
+        Assert.assertEquals(actual.getFilters(), expected.getFilters());
+        Assert.assertEquals(actual.getExtendedAttributes(), expected.getExtendedAttributes());
+        for ( final String key : Arrays.asList("AB", "NULL", "XX", "absent") ) {
+            Assert.assertEquals(actual.hasExtendedAttribute(key), expected.hasExtendedAttribute(key), key);
+            Assert.assertEquals(actual.getExtendedAttribute(key, "default"), expected.getExtendedAttribute(key, "default"), key);
+        }
+        Assert.assertEquals(actual.toString(), expected.toString());
+    }
+
+    @Test
+    public void testViewsMatchGenotypes() {
+        final ColumnarGenotypesContext gc = makeContext();
+        Assert.assertEquals(gc.size(), genotypes.size());
+        Assert.assertFalse(gc.isEmpty());
+        Assert.assertEquals(gc.getMaxPloidy(), 3);
+
+        for ( int i = 0; i < genotypes.size(); i++ ) {
+            assertGenotypesEqual(gc.get(i), genotypes.get(i));
+            Assert.assertSame(gc.get(genotypes.get(i).getSampleName()), gc.get(i), "Views should be created only once");
+        }
+        Assert.assertNull(gc.get("not-a-sample"));
+
+        int i = 0;
+        for ( final Genotype g : gc )
+            assertGenotypesEqual(g, genotypes.get(i++));
+        Assert.assertEquals(i, genotypes.size());
+
+        final Set<String> names = new HashSet<String>();
+        for ( final Genotype g : genotypes )
+            names.add(g.getSampleName());
+        Assert.assertEquals(gc.getSampleNames(), names);
+        Assert.assertEquals(gc.getSampleNamesOrderedByName(), new ArrayList<String>(new TreeSet<String>(names)));
+    }
+
+    @Test
+    public void testAddingFromGenotypeBuilders() {
+        final ColumnarGenotypesContext.Builder builder = new ColumnarGenotypesContext.Builder(Arrays.asList(Aref, C, G), 2);
+        final GenotypeBuilder gb = new GenotypeBuilder();
+        for ( final Genotype g : genotypes ) {
+            gb.reset(false);
+            builder.add(gb.copy(g));
+        }
+
+        final ColumnarGenotypesContext gc = builder.make();
+        Assert.assertEquals(gc.size(), genotypes.size());
+        for ( int i = 0; i < genotypes.size(); i++ )
+            assertGenotypesEqual(gc.get(i), genotypes.get(i));
+    }
+
+    @Test
+    public void testViewsWorkWithGenotypeBuilder() {
+        for ( final Genotype view : makeContext() )
+            assertGenotypesEqual(new GenotypeBuilder(view).make(), view);
+    }
+
+    @Test
+    public void testMutationAfterReading() {
+        final ColumnarGenotypesContext gc = makeContext();
+        final Genotype first = gc.get(0);
+        final Genotype added = GenotypeBuilder.create("added", Arrays.asList(Aref, C));
+
+        gc.add(added);
+        Assert.assertEquals(gc.size(), genotypes.size() + 1);
+        Assert.assertSame(gc.get(0), first);
+        Assert.assertSame(gc.get("added"), added);
+        Assert.assertEquals(gc.getMaxPloidy(), 3);
+
+        Assert.assertTrue(gc.remove(first));
+        Assert.assertFalse(gc.containsSample(first.getSampleName()));
+        Assert.assertEquals(gc.size(), genotypes.size());
+        assertGenotypesEqual(gc.get(genotypes.get(1).getSampleName()), genotypes.get(1));
+    }
+
+    @Test(expectedExceptions = IllegalAccessError.class)
+    public void testImmutable() {
+        final GenotypesContext gc = makeContext().immutable();
+        gc.add(GenotypeBuilder.create("added", Arrays.asList(Aref, C)));
+    }
+
+    @Test
+    public void testEmpty() {
+        final ColumnarGenotypesContext gc = new ColumnarGenotypesContext.Builder(Arrays.asList(Aref, C), 0).make();
+        Assert.assertTrue(gc.isEmpty());
+        Assert.assertEquals(gc.size(), 0);
+        Assert.assertEquals(gc.getMaxPloidy(), 0);
+        Assert.assertFalse(gc.iterator().hasNext());
+    }
+
+    // --------------------------------------------------------------------------------
+    //
+    // Decoding large cohorts
+    //
+    // --------------------------------------------------------------------------------
+
+    private final static int N_SAMPLES = ColumnarGenotypesContext.MIN_SAMPLES_FOR_COLUMNAR_STORAGE + 100;
+    private File vcfFile, bcfFile;
+
+    @BeforeClass
+    public void writeLargeCohort() throws IOException {
+        vcfFile = File.createTempFile("ColumnarGenotypesContextUnitTest", ".vcf");
+        vcfFile.deleteOnExit();
+        bcfFile = File.createTempFile("ColumnarGenotypesContextUnitTest", ".bcf");
+        bcfFile.deleteOnExit();
+
+        final PrintStream stream = new PrintStream(vcfFile);
+        stream.println("##fileformat=VCFv4.1");
+        stream.println("##contig=<ID=20,length=1000000>");
+        stream.println("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+        stream.println("##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype quality\">");
+        stream.println("##FORMAT=<ID=AD,Number=.,Type=Integer,Description=\"Allele depths\">");
+        stream.println("##FORMAT=<ID=FT,Number=1,Type=String,Description=\"Genotype filter\">");
+        stream.println("##FORMAT=<ID=PL,Number=G,Type=Integer,Description=\"Phred-scaled genotype likelihoods\">");
+        stream.print("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+        for ( int s = 0; s < N_SAMPLES; s++ )
+            stream.print("\tS" + s);
+        stream.println();
+
+        final Random random = new Random(42);
+        final String[] gts = {"0/0", "0|1", "1/1", "./.", "1/2"};
+        for ( int i = 0; i < 10; i++ ) {
+            stream.printf("20\t%d\t.\tA\tC,G\t50\tPASS\t.\tGT:GQ:AD:FT:PL", i + 1);
+            for ( int s = 0; s < N_SAMPLES; s++ ) {
+                if ( random.nextInt(10) == 0 )
+                    stream.printf("\t%s", gts[random.nextInt(gts.length)]);
+                else
+                    stream.printf("\t%s:%d:%d,%d,%d:%s:%d,%d,%d,%d,%d,%d", gts[random.nextInt(gts.length)], random.nextInt(99),
+                            random.nextInt(20), random.nextInt(20), random.nextInt(20), random.nextBoolean() ? "PASS" : "LowGQ",
+                            random.nextInt(100), random.nextInt(100), random.nextInt(100), random.nextInt(100), random.nextInt(100), random.nextInt(100));
+            }
+            stream.println();
+        }
+        stream.close();
+
+        final FeatureReader<VariantContext> reader = AbstractFeatureReader.getFeatureReader(vcfFile.getAbsolutePath(), new VCFCodec(), false);
+        final VariantContextWriter writer = VariantContextWriterFactory.create(bcfFile, null, VariantContextWriterFactory.NO_OPTIONS);
+        writer.writeHeader((VCFHeader)reader.getHeader());
+        for ( final VariantContext vc : reader.iterator() )
+            writer.add(vc);
+        writer.close();
+        reader.close();
+    }
+
+    private List<VariantContext> read(final boolean isVCF, final Collection<String> samples) throws IOException {
+        final FeatureCodec<VariantContext> codec = isVCF ? new VCFCodec() : new BCF2Codec();
+        ((SampleSubsetAwareCodec)codec).setSamplesToDecode(samples);
+        final FeatureReader<VariantContext> reader = AbstractFeatureReader.getFeatureReader((isVCF ? vcfFile : bcfFile).getAbsolutePath(), codec, false);
+        final List<VariantContext> vcs = new ArrayList<VariantContext>();
+        for ( final VariantContext vc : reader.iterator() )
+            vcs.add(vc);
+        reader.close();
+        return vcs;
+    }
+
+    @DataProvider(name = "Formats")
+    public Object[][] makeFormats() {
+        return new Object[][]{{true}, {false}};
+    }
+
+    @Test(dataProvider = "Formats")
+    public void testDecodingLargeCohortsIntoColumns(final boolean isVCF) throws IOException {
+        // too few samples in the subset for them to be stored in columns, so they are our reference
+        final List<String> subset = new ArrayList<String>();
+        for ( int s = 0; s < ColumnarGenotypesContext.MIN_SAMPLES_FOR_COLUMNAR_STORAGE - 1; s++ )
+            subset.add("S" + (s + 50));
+
+        final List<VariantContext> columnar = read(isVCF, null);
+        final List<VariantContext> expected = read(isVCF, subset);
+        Assert.assertEquals(columnar.size(), expected.size());
+
+        for ( int i = 0; i < expected.size(); i++ ) {
+            final VariantContext vc = columnar.get(i);
+            Assert.assertTrue(((LazyGenotypesContext)vc.getGenotypes()).isColumnar(), "Expected the large cohort to be decoded into columns");
+            Assert.assertFalse(((LazyGenotypesContext)expected.get(i).getGenotypes()).isColumnar());
+            Assert.assertEquals(vc.getNSamples(), N_SAMPLES);
+            Assert.assertEquals(vc.getMaxPloidy(), 2);
+            for ( final String sample : subset ) {
+                final Genotype actual = vc.getGenotype(sample);
+                final Genotype reference = expected.get(i).getGenotype(sample);
+                Assert.assertNotSame(actual.getClass(), reference.getClass(), "Expected only the large cohort to be stored in columns");
+                assertGenotypesEqual(actual, reference);
+            }
+
+            int nGenotypes = 0;
+            for ( final Genotype g : vc.getGenotypes() ) {
+                Assert.assertSame(vc.getGenotype(g.getSampleName()), g);
+                nGenotypes++;
+            }
+            Assert.assertEquals(nGenotypes, N_SAMPLES);
+            Assert.assertTrue(((LazyGenotypesContext)vc.getGenotypes()).isColumnar(), "Reading the genotypes shouldn't switch them to a list");
+        }
+    }
+
+    @Test(dataProvider = "Formats")
+    public void testSwitchingDecodedColumnsToAList(final boolean isVCF) throws IOException {
+        final LazyGenotypesContext gc = (LazyGenotypesContext)read(isVCF, null).get(0).getGenotypes();
+        final Genotype first = gc.get(0);
+        final Genotype last = gc.get("S" + (N_SAMPLES - 1));
+
+        // indexOf needs the genotypes as a list, so the context switches to the views it has already handed out
+        Assert.assertEquals(gc.indexOf(last), N_SAMPLES - 1);
+        Assert.assertFalse(gc.isColumnar());
+        Assert.assertEquals(gc.size(), N_SAMPLES);
+        Assert.assertSame(gc.get(0), first);
+        Assert.assertSame(gc.get(first.getSampleName()), first);
+        Assert.assertSame(gc.get(N_SAMPLES - 1), last);
+    }
+}
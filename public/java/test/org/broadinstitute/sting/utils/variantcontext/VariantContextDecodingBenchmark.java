@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.broadinstitute.sting.utils.variantcontext;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+import com.google.caliper.runner.CaliperMain;
+import org.broad.tribble.AbstractFeatureReader;
+import org.broad.tribble.FeatureCodec;
+import org.broad.tribble.FeatureReader;
+import org.broadinstitute.sting.utils.codecs.bcf2.BCF2Codec;
+import org.broadinstitute.sting.utils.codecs.bcf2.MemoryMappedBCF2Iterator;
+import org.broadinstitute.sting.utils.codecs.vcf.VCFCodec;
+import org.broadinstitute.sting.utils.codecs.vcf.VCFHeader;
+import org.broadinstitute.sting.utils.variantcontext.writer.VariantContextWriter;
+import org.broadinstitute.sting.utils.variantcontext.writer.VariantContextWriterFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * Caliper microbenchmark comparing the cost of reading the same variants from VCF, from BCF2
+ * through the stream-based tribble reader, and from BCF2 through the memory-mapped iterator
+ */
+public class VariantContextDecodingBenchmark extends SimpleBenchmark {
+    @Param({"10000"})
+    int nRecords; // set automatically by framework
+
+    @Param({"100", "1000"})
+    int nSamples; // set automatically by framework
+
+    @Param
+    Operation operation; // set automatically by framework
+
+    public enum Operation {
+        READ_SITES,
+        DECODE_GENOTYPES
+    }
+
+    private File vcfFile, bcfFile;
+
+    @Override protected void setUp() throws IOException {
+        vcfFile = File.createTempFile("VariantContextDecodingBenchmark", ".vcf");
+        bcfFile = File.createTempFile("VariantContextDecodingBenchmark", ".bcf");
+
+        final PrintStream stream = new PrintStream(vcfFile);
+        stream.println("##fileformat=VCFv4.1");
+        stream.println("##contig=<ID=20,length=63025520>");
+        stream.println("##INFO=<ID=AC,Number=A,Type=Integer,Description=\"Allele count\">");
+        stream.println("##INFO=<ID=AF,Number=A,Type=Float,Description=\"Allele frequency\">");
+        stream.println("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+        stream.println("##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype quality\">");
+        stream.println("##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Depth\">");
+        stream.println("##FORMAT=<ID=PL,Number=G,Type=Integer,Description=\"Phred-scaled genotype likelihoods\">");
+        stream.print("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+        for ( int s = 0; s < nSamples; s++ )
+            stream.print("\tS" + s);
+        stream.println();
+
+        final Random random = new Random(42);
+        final String[] gts = {"0/0", "0/0", "0/1", "1/1", "./."};
+        for ( int i = 0; i < nRecords; i++ ) {
+            final int ac = random.nextInt(2 * nSamples);
+            stream.printf("20\t%d\t.\tA\tC\t%d\tPASS\tAC=%d;AF=%.3f\tGT:GQ:DP:PL", 10 * i + 1, random.nextInt(1000), ac, ac / (2.0 * nSamples));
+            for ( int s = 0; s < nSamples; s++ )
+                stream.printf("\t%s:%d:%d:%d,%d,%d", gts[random.nextInt(gts.length)], random.nextInt(99), random.nextInt(50),
+                        random.nextInt(100), random.nextInt(100), random.nextInt(100));
+            stream.println();
+        }
+        stream.close();
+
+        final FeatureReader<VariantContext> reader = AbstractFeatureReader.getFeatureReader(vcfFile.getAbsolutePath(), new VCFCodec(), false);
+        final VariantContextWriter writer = VariantContextWriterFactory.create(bcfFile, null, VariantContextWriterFactory.NO_OPTIONS);
+        writer.writeHeader((VCFHeader)reader.getHeader());
+        for ( final VariantContext vc : reader.iterator() )
+            writer.add(vc);
+        writer.close();
+        reader.close();
+    }
+
+    @Override protected void tearDown() {
+        vcfFile.delete();
+        bcfFile.delete();
+    }
+
+    private int consume(final VariantContext vc) {
+        switch ( operation ) {
+            case READ_SITES: return vc.getStart();
+            case DECODE_GENOTYPES: return vc.getGenotypes().size() + vc.getGenotype(0).getDP();
+            default: throw new IllegalArgumentException("Unexpected operation " + operation);
+        }
+    }
+
+    private int readWithTribble(final File file, final FeatureCodec<VariantContext> codec) throws IOException {
+        final FeatureReader<VariantContext> reader = AbstractFeatureReader.getFeatureReader(file.getAbsolutePath(), codec, false);
+        int sum = 0;
+        for ( final VariantContext vc : reader.iterator() )
+            sum += consume(vc);
+        reader.close();
+        return sum;
+    }
+
+    public int timeVCF(int rep) throws IOException {
+        int sum = 0;
+        for ( int i = 0; i < rep; i++ )
+            sum += readWithTribble(vcfFile, new VCFCodec());
+        return sum;
+    }
+
+    public int timeBCF2Stream(int rep) throws IOException {
+        int sum = 0;
+        for ( int i = 0; i < rep; i++ )
+            sum += readWithTribble(bcfFile, new BCF2Codec());
+        return sum;
+    }
+
+    public int timeBCF2MemoryMapped(int rep) {
+        int sum = 0;
+        for ( int i = 0; i < rep; i++ ) {
+            final MemoryMappedBCF2Iterator it = new MemoryMappedBCF2Iterator(bcfFile, new BCF2Codec());
+            for ( final VariantContext vc : it )
+                sum += consume(vc);
+            it.close();
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) {
+        CaliperMain.main(VariantContextDecodingBenchmark.class, args);
+    }
+}
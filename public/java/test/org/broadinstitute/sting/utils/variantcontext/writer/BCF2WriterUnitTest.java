@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils.variantcontext.writer;
+
+import org.broad.tribble.AbstractFeatureReader;
+import org.broad.tribble.FeatureReader;
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.utils.codecs.vcf.VCFCodec;
+import org.broadinstitute.sting.utils.codecs.vcf.VCFHeader;
+import org.broadinstitute.sting.utils.variantcontext.VariantContext;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+
+public class BCF2WriterUnitTest extends BaseTest {
+    private final static int N_RECORDS = 50;
+
+    private VCFHeader header;
+    private List<VariantContext> vcs;
+
+    @BeforeClass
+    public void readTestVCF() throws IOException {
+        // enough samples that records are encoded in several ranges per field
+        final int nSamples = 3 * BCF2Writer.MIN_SAMPLES_FOR_PARALLEL_ENCODING + 7;
+        final File vcfFile = File.createTempFile("BCF2WriterUnitTest", ".vcf");
+        vcfFile.deleteOnExit();
+
+        final PrintStream stream = new PrintStream(vcfFile);
+        stream.println("##fileformat=VCFv4.1");
+        stream.println("##contig=<ID=20,length=1000000>");
+        stream.println("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+        stream.println("##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype quality\">");
+        stream.println("##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Depth\">");
+        stream.println("##FORMAT=<ID=FT,Number=1,Type=String,Description=\"Genotype filter\">");
+        stream.println("##FORMAT=<ID=PL,Number=G,Type=Integer,Description=\"Phred-scaled genotype likelihoods\">");
+        stream.println("##FORMAT=<ID=AB,Number=1,Type=Float,Description=\"Allele balance\">");
+        stream.print("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+        for ( int s = 0; s < nSamples; s++ )
+            stream.print("\tS" + s);
+        stream.println();
+
+        final Random random = new Random(42);
+        final String[] gts = {"0/0", "0|1", "1/1", "./.", "0/2", "2/2"};
+        for ( int i = 0; i < N_RECORDS; i++ ) {
+            stream.printf("20\t%d\t.\tA\tC,G\t%d\tPASS\t.\tGT:GQ:DP:FT:PL:AB", i + 1, random.nextInt(100));
+            for ( int s = 0; s < nSamples; s++ ) {
+                // vary the value ranges across records, so the encoding types depend on samples from every range
+                final int maxPL = i % 2 == 0 ? 100 : 100000;
+                stream.printf("\t%s:%d:%d:%s:%d,%d,%d,%d,%d,%d:%.2f", gts[random.nextInt(gts.length)], random.nextInt(99), random.nextInt(i % 3 == 0 ? 50 : 1000),
+                        random.nextInt(10) == 0 ? "LowGQ" : "PASS", random.nextInt(maxPL), random.nextInt(maxPL), random.nextInt(maxPL),
+                        random.nextInt(maxPL), random.nextInt(maxPL), random.nextInt(maxPL), random.nextDouble());
+            }
+            stream.println();
+        }
+        stream.close();
+
+        final FeatureReader<VariantContext> reader = AbstractFeatureReader.getFeatureReader(vcfFile.getAbsolutePath(), new VCFCodec(), false);
+        header = (VCFHeader)reader.getHeader();
+        vcs = new ArrayList<VariantContext>();
+        for ( final VariantContext vc : reader.iterator() )
+            vcs.add(vc);
+        reader.close();
+    }
+
+    private byte[] writeBCF2(final int nEncodingThreads) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final VariantContextWriter writer = VariantContextWriterFactory.create(null, bytes, null,
+                EnumSet.of(Options.FORCE_BCF), nEncodingThreads);
+        writer.writeHeader(header);
+        for ( final VariantContext vc : vcs )
+            writer.add(vc);
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    @DataProvider(name = "EncodingThreads")
+    public Object[][] makeEncodingThreads() {
+        return new Object[][]{{2}, {3}, {4}, {8}};
+    }
+
+    @Test(dataProvider = "EncodingThreads")
+    public void testParallelEncodingIsIdenticalToSerial(final int nEncodingThreads) {
+        final byte[] serial = writeBCF2(1);
+        final byte[] parallel = writeBCF2(nEncodingThreads);
+        Assert.assertEquals(parallel.length, serial.length);
+        Assert.assertTrue(Arrays.equals(parallel, serial), "BCF2 output encoded on " + nEncodingThreads + " threads differs from serial output");
+    }
+}
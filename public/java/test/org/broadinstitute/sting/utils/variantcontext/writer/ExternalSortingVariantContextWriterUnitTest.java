@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils.variantcontext.writer;
+
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+import org.broad.tribble.AbstractFeatureReader;
+import org.broad.tribble.FeatureReader;
+import org.broadinstitute.sting.BaseTest;
+import org.broadinstitute.sting.utils.codecs.vcf.*;
+import org.broadinstitute.sting.utils.variantcontext.*;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+public class ExternalSortingVariantContextWriterUnitTest extends BaseTest {
+    private final static int N_RECORDS = 3000;
+    private final static List<String> SAMPLES = Arrays.asList("NA1", "NA2", "NA3");
+
+    private VCFHeader header;
+    private List<VariantContext> unsorted;
+
+    @BeforeClass
+    public void makeRecords() {
+        final Set<VCFHeaderLine> metaData = new HashSet<VCFHeaderLine>();
+        metaData.add(new VCFContigHeaderLine(VCFHeader.CONTIG_KEY, makeContigMap("1"), 0));
+        metaData.add(new VCFContigHeaderLine(VCFHeader.CONTIG_KEY, makeContigMap("2"), 1));
+        metaData.add(new VCFContigHeaderLine(VCFHeader.CONTIG_KEY, makeContigMap("20"), 2));
+        metaData.add(new VCFInfoHeaderLine("AF", VCFHeaderLineCount.A, VCFHeaderLineType.Float, "Allele frequency"));
+        metaData.add(new VCFInfoHeaderLine("DB", 0, VCFHeaderLineType.Flag, "dbSNP membership"));
+        metaData.add(new VCFFilterHeaderLine("LowQual"));
+        metaData.add(new VCFFormatHeaderLine("GT", 1, VCFHeaderLineType.String, "Genotype"));
+        metaData.add(new VCFFormatHeaderLine("GQ", 1, VCFHeaderLineType.Integer, "Genotype quality"));
+        metaData.add(new VCFFormatHeaderLine("PL", VCFHeaderLineCount.G, VCFHeaderLineType.Integer, "Phred-scaled genotype likelihoods"));
+        header = new VCFHeader(metaData, new LinkedHashSet<String>(SAMPLES));
+
+        // the X records are on a contig that's not in the header, and many records share a position
+        final String[] contigs = {"20", "1", "X", "2"};
+        final Allele ref = Allele.create("A", true), alt = Allele.create("C");
+        final Random random = new Random(42);
+        unsorted = new ArrayList<VariantContext>(N_RECORDS);
+        for ( int i = 0; i < N_RECORDS; i++ ) {
+            final String contig = contigs[random.nextInt(contigs.length)];
+            final int start = 1 + random.nextInt(N_RECORDS / 4);
+            final VariantContextBuilder builder = new VariantContextBuilder("test", contig, start, start, Arrays.asList(ref, alt));
+            final Map<String, Object> attributes = new HashMap<String, Object>();
+            attributes.put("AF", random.nextDouble());
+            if ( random.nextBoolean() ) attributes.put("DB", true);
+            builder.id("rs" + i).log10PError(-random.nextInt(1000) / 10.0).attributes(attributes);
+            if ( random.nextInt(5) == 0 ) builder.filter("LowQual"); else builder.passFilters();
+
+            final List<Genotype> genotypes = new ArrayList<Genotype>();
+            for ( final String sample : SAMPLES )
+                genotypes.add(new GenotypeBuilder(sample, Arrays.asList(ref, random.nextBoolean() ? ref : alt))
+                        .GQ(random.nextInt(99)).PL(new int[]{random.nextInt(100), random.nextInt(100), random.nextInt(100)}).make());
+            unsorted.add(builder.genotypes(genotypes).make());
+        }
+    }
+
+    private static Map<String, String> makeContigMap(final String contig) {
+        final Map<String, String> map = new LinkedHashMap<String, String>();
+        map.put("ID", contig);
+        map.put("length", "1000000");
+        return map;
+    }
+
+    private String writeVCF(final List<VariantContext> vcs) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final VariantContextWriter writer = VariantContextWriterFactory.create(output, null, VariantContextWriterFactory.NO_OPTIONS);
+        writer.writeHeader(header);
+        for ( final VariantContext vc : vcs )
+            writer.add(vc);
+        writer.close();
+        return output.toString();
+    }
+
+    private String writeSortedExternally(final SAMSequenceDictionary refDict, final int maxRecordsInMemory) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final VariantContextWriter inner = VariantContextWriterFactory.create(output, null, VariantContextWriterFactory.NO_OPTIONS);
+        final VariantContextWriter writer = VariantContextWriterFactory.sortExternally(inner, refDict, maxRecordsInMemory, true);
+        writer.writeHeader(header);
+        for ( final VariantContext vc : unsorted )
+            writer.add(vc);
+        writer.close();
+        return output.toString();
+    }
+
+    private byte[] writeBCF2SortedExternally(final List<VariantContext> vcs, final int maxRecordsInMemory) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final VariantContextWriter inner = VariantContextWriterFactory.create(output, null, EnumSet.of(Options.FORCE_BCF));
+        final VariantContextWriter writer = VariantContextWriterFactory.sortExternally(inner, null, maxRecordsInMemory, true);
+        writer.writeHeader(header);
+        for ( final VariantContext vc : vcs )
+            writer.add(vc);
+        writer.close();
+        return output.toByteArray();
+    }
+
+    /**
+     * @return the records in the header's contigs, which are all that a BCF2 writer accepts
+     */
+    private List<VariantContext> getRecordsOnHeaderContigs() {
+        final List<VariantContext> vcs = new ArrayList<VariantContext>();
+        for ( final VariantContext vc : unsorted )
+            if ( ! vc.getChr().equals("X") )
+                vcs.add(vc);
+        return vcs;
+    }
+
+    /**
+     * @return vcs after they've been written to and read back from a VCF file
+     */
+    private List<VariantContext> roundTripThroughVCF(final List<VariantContext> vcs) throws IOException {
+        final File vcf = createTempFile("ExternalSortingVariantContextWriterUnitTest", ".vcf");
+        final FileOutputStream stream = new FileOutputStream(vcf);
+        stream.write(writeVCF(vcs).getBytes());
+        stream.close();
+
+        final FeatureReader<VariantContext> reader = AbstractFeatureReader.getFeatureReader(vcf.getAbsolutePath(), new VCFCodec(), false);
+        final List<VariantContext> decoded = new ArrayList<VariantContext>(vcs.size());
+        for ( final VariantContext vc : reader.iterator() )
+            decoded.add(vc);
+        reader.close();
+        return decoded;
+    }
+
+    /**
+     * A stable in-memory sort of the records, with the contigs in the given order
+     */
+    private List<VariantContext> sortInMemory(final List<String> contigOrder) {
+        final List<VariantContext> sorted = new ArrayList<VariantContext>(unsorted);
+        Collections.sort(sorted, new Comparator<VariantContext>() {
+            @Override
+            public int compare(final VariantContext vc1, final VariantContext vc2) {
+                final int cmp = contigOrder.indexOf(vc1.getChr()) - contigOrder.indexOf(vc2.getChr());
+                return cmp != 0 ? cmp : vc1.getStart() - vc2.getStart();
+            }
+        });
+        return sorted;
+    }
+
+    @DataProvider(name = "MaxRecordsInMemory")
+    public Object[][] makeMaxRecordsInMemory() {
+        // no spilling at all, a few runs, and enough runs to need more than one round of merging
+        return new Object[][]{{N_RECORDS + 1}, {N_RECORDS}, {N_RECORDS / 3}, {N_RECORDS / (2 * ExternalSortingVariantContextWriter.MAX_RUNS_PER_MERGE) + 1}, {1}};
+    }
+
+    @Test(dataProvider = "MaxRecordsInMemory")
+    public void testSortByHeaderContigs(final int maxRecordsInMemory) {
+        final String expected = writeVCF(sortInMemory(Arrays.asList("1", "2", "20", "X")));
+        Assert.assertEquals(writeSortedExternally(null, maxRecordsInMemory), expected);
+    }
+
+    @Test
+    public void testSortByDictionary() {
+        final SAMSequenceDictionary refDict = new SAMSequenceDictionary(Arrays.asList(
+                new SAMSequenceRecord("X", 1000000), new SAMSequenceRecord("20", 1000000), new SAMSequenceRecord("1", 1000000)));
+        final String expected = writeVCF(sortInMemory(Arrays.asList("X", "20", "1", "2")));
+        Assert.assertEquals(writeSortedExternally(refDict, N_RECORDS / 5), expected);
+    }
+
+    @Test
+    public void testSpillingWithBCF2InnerWriter() throws IOException {
+        final List<VariantContext> vcs = getRecordsOnHeaderContigs();
+        final int spillEvery = vcs.size() / 3 + 7; // so that some records are still in memory at close()
+
+        // spilling rounds the floating point values as VCF text does, so records read from a VCF are unchanged
+        final List<VariantContext> fromVCF = roundTripThroughVCF(vcs);
+        Assert.assertEquals(writeBCF2SortedExternally(fromVCF, spillEvery), writeBCF2SortedExternally(fromVCF, vcs.size() + 1));
+
+        // but records with more precise values are written by the inner writer as if they had been read from a VCF
+        final byte[] spilled = writeBCF2SortedExternally(vcs, spillEvery);
+        Assert.assertEquals(spilled, writeBCF2SortedExternally(fromVCF, vcs.size() + 1));
+        Assert.assertFalse(Arrays.equals(spilled, writeBCF2SortedExternally(vcs, vcs.size() + 1)));
+    }
+
+    @Test
+    public void testSpilledRuns() {
+        final ExternalSortingVariantContextWriter writer =
+                new ExternalSortingVariantContextWriter(VariantContextWriterFactory.create(new ByteArrayOutputStream(), null, VariantContextWriterFactory.NO_OPTIONS), null, 100, true);
+        writer.writeHeader(header);
+        for ( final VariantContext vc : unsorted.subList(0, 250) )
+            writer.add(vc);
+        Assert.assertEquals(writer.getNumberOfSpilledRuns(), 2);
+        writer.close();
+        Assert.assertEquals(writer.getNumberOfSpilledRuns(), 0);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testAddBeforeHeader() {
+        final VariantContextWriter writer = VariantContextWriterFactory.sortExternally(
+                VariantContextWriterFactory.create(new ByteArrayOutputStream(), null, VariantContextWriterFactory.NO_OPTIONS), null, 10, true);
+        writer.add(unsorted.get(0));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2012, The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.broadinstitute.sting.utils.variantcontext.writer;
+
+import org.broadinstitute.sting.BaseTest;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+public class VCFTextEncoderUnitTest extends BaseTest {
+    private static String encode(final VCFTextEncoder encoder) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeTo(out);
+        encoder.reset();
+        return out.toString();
+    }
+
+    @DataProvider(name = "Doubles")
+    public Object[][] makeDoubles() {
+        final List<Object[]> tests = new ArrayList<Object[]>();
+        final double[] specials = {0.0, -0.0, 1.0, -1.0, 0.01, 0.1, 0.125, 0.0125, 1.005, 2.675, 0.0005, 0.9995, 0.99999,
+                9.9995e-5, 1e-20, 1e-21, -1e-21, 1e-3, 123456789.125, 1e12, -1e12, 1e300, 4.9e-324, Double.MAX_VALUE,
+                Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for ( final double d : specials )
+            tests.add(new Object[]{d});
+
+        final Random random = new Random(42);
+        for ( int i = 0; i < 200; i++ ) {
+            final double scale = Math.pow(10, random.nextInt(20) - 10);
+            tests.add(new Object[]{random.nextDouble() * scale});
+            tests.add(new Object[]{-random.nextDouble() * scale});
+            // values landing on or near the ties of %.2f and %.3f
+            tests.add(new Object[]{random.nextInt(100000) / 100.0 + 0.005});
+            tests.add(new Object[]{random.nextInt(1000) / 1000.0 + 0.0005});
+        }
+        return tests.toArray(new Object[][]{});
+    }
+
+    @Test(dataProvider = "Doubles")
+    public void testVCFDoubleMatchesFormatVCFDouble(final double d) throws IOException {
+        final VCFTextEncoder encoder = new VCFTextEncoder();
+        encoder.appendVCFDouble(d);
+        Assert.assertEquals(encode(encoder), VCFWriter.formatVCFDouble(d), "Formatting of " + d);
+    }
+
+    @Test(dataProvider = "Doubles")
+    public void testQual(final double d) throws IOException {
+        String expected = String.format("%.2f", d);
+        if ( expected.endsWith(".00") )
+            expected = expected.substring(0, expected.length() - 3);
+
+        final VCFTextEncoder encoder = new VCFTextEncoder();
+        encoder.appendQual(d);
+        Assert.assertEquals(encode(encoder), expected, "Formatting of " + d);
+    }
+
+    @DataProvider(name = "Fields")
+    public Object[][] makeFields() {
+        return new Object[][]{
+                {null},
+                {"a string"},
+                {""},
+                {1},
+                {-17},
+                {Integer.MIN_VALUE},
+                {Long.MIN_VALUE},
+                {0.5},
+                {1.5e-7},
+                {true},
+                {false},
+                {new int[]{}},
+                {new int[]{1, -2, 3}},
+                {new double[]{0.001, 10.0}},
+                {new float[]{1.5f, 2}},
+                {new String[]{"x", "y"}},
+                {Arrays.asList()},
+                {Arrays.asList(1, 2.5, "z", null, true, false)},
+                {Arrays.asList(Arrays.asList(1, 2), new int[]{3})}
+        };
+    }
+
+    @Test(dataProvider = "Fields")
+    public void testVCFFieldMatchesFormatVCFField(final Object val) throws IOException {
+        final VCFTextEncoder encoder = new VCFTextEncoder();
+        final boolean wrote = encoder.appendVCFField(val);
+        final String expected = VCFWriter.formatVCFField(val);
+        Assert.assertEquals(wrote, expected != null);
+        Assert.assertEquals(encode(encoder), expected == null ? "" : expected);
+    }
+
+    @Test
+    public void testTruncateAndMissingValues() throws IOException {
+        final VCFTextEncoder encoder = new VCFTextEncoder();
+        encoder.append("0/1:");
+        final int start = encoder.getPosition();
+        encoder.append(".,.");
+        Assert.assertTrue(encoder.isMissingValue(start));
+        encoder.append(',');
+        encoder.append(3);
+        Assert.assertFalse(encoder.isMissingValue(start));
+        encoder.truncate(start - 1);
+        Assert.assertEquals(encode(encoder), "0/1");
+    }
+
+    @Test
+    public void testBufferGrows() throws IOException {
+        final VCFTextEncoder encoder = new VCFTextEncoder();
+        final StringBuilder expected = new StringBuilder();
+        for ( int i = 0; i < 100000; i++ ) {
+            encoder.append(i);
+            encoder.append('\t');
+            expected.append(i).append('\t');
+        }
+        Assert.assertEquals(encode(encoder), expected.toString());
+    }
+}